@@ -42,13 +42,16 @@ object AcConf extends Conf{
 }
 
 case class StorageConf(driver:String,url:String,
-    user:String,pass:String,identifier:Option[String]) 
+    user:String,pass:String,identifier:Option[String],
+    batchSize:Option[Int]=None,batchLinger:Option[Int]=None) 
 object StorageConf extends Conf{
   def create(xml:Node)=StorageConf(
     xml \@ "driver",
     xml \@ "url",
     xml \@ "user",
     xml \@ "password",
-    xml.attribute("identifier").map(_.toString))  
+    xml.attribute("identifier").map(_.toString),
+    xml.attribute("batch-size").map(_.toString.toInt),
+    xml.attribute("batch-linger").map(_.toString.toInt))  
 }
 
@@ -4,7 +4,8 @@ import xml._
 
 case class VsConf(name:String,accessProtected:Boolean,priority:Int,timeZone:String,
     description:String,poolSize:Option[Int],address:Map[String,String],storage:Option[StorageConf],
-    storageSize:Option[String],processing:ProcessingConf,streams:Seq[StreamConf]) {
+    storageSize:Option[String],processing:ProcessingConf,streams:Seq[StreamConf],
+    rollups:Option[String]=None) {
   
 }
 
@@ -29,7 +30,8 @@ object VsConf extends Conf{
 		    s.attribute("url").headOption.map(u=>StorageConf.create(s))},		  
 		  (xml \ "storage").headOption.map(s=>s \@ "history-size"),
 		  ProcessingConf.create((xml \ "processing-class").head) ,
-		  (xml \ "streams" \ "stream").map(s=>StreamConf.create(s))		  
+		  (xml \ "streams" \ "stream").map(s=>StreamConf.create(s)),
+		  (xml \ "storage").headOption.flatMap(s=>s.attribute("rollups").map(_.toString))
   )
   def load(path:String):VsConf=create(XML.load(path))
 }
@@ -0,0 +1,82 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/benchmarks/AccessControlBenchmark.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.benchmarks;
+
+import gsn.http.ac.AccessControlCache;
+import gsn.http.ac.ConnectToDB;
+import gsn.http.ac.DataSource;
+import gsn.http.ac.GeneralServicesAPI;
+import gsn.http.ac.User;
+import gsn.storage.StorageManager;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The access control check of a REST or download request on a managed virtual sensor (as RestStreamHanlder and
+ * MultiDataDownload): the virtual sensor is managed, the login of the user and his read access right.
+ * <p>
+ * Without the cache, the cached decisions are dropped before each request, which then reads the access control
+ * tables as before the cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class AccessControlBenchmark {
+
+	private static final String VS_NAME = "bench_access_control";
+
+	@Param({"true", "false"})
+	public boolean cached;
+
+	@Setup
+	public void setup() throws Exception {
+		StorageManager storage = BenchmarkDatabase.getStorage();
+		ConnectToDB.init("org.h2.Driver", "sa", "", "jdbc:h2:mem:gsn_benchmarks;DB_CLOSE_DELAY=-1");
+		storage.executeUpdate(new StringBuilder("DELETE FROM ACDATASOURCE WHERE DATASOURCENAME='").append(VS_NAME).append("'"));
+		storage.executeUpdate(new StringBuilder("INSERT INTO ACDATASOURCE(DATASOURCENAME,ISCANDIDATE) VALUES ('").append(VS_NAME).append("','no')"));
+		AccessControlCache.getInstance().invalidate();
+	}
+
+	@Benchmark
+	public boolean authorize() {
+		if (!cached)
+			AccessControlCache.getInstance().invalidate();
+		if (!DataSource.isVSManaged(VS_NAME))
+			throw new IllegalStateException(VS_NAME + " is not managed.");
+		User user = GeneralServicesAPI.getInstance().doLogin("Admin", "changeit");
+		return user != null && (user.isAdmin() || user.hasReadAccessRight(VS_NAME));
+	}
+
+}
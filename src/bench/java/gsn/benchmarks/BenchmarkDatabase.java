@@ -0,0 +1,103 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/benchmarks/BenchmarkDatabase.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.benchmarks;
+
+import gsn.Main;
+import gsn.beans.DataField;
+import gsn.beans.StreamElement;
+import gsn.storage.StorageManager;
+import gsn.storage.StorageManagerFactory;
+
+import java.io.Serializable;
+import java.lang.reflect.Field;
+import java.sql.DriverManager;
+
+/**
+ * The embedded H2 database used by the benchmarks, in memory, and the stream elements written into it.
+ * <p>
+ * The window tables, the views of the stream sources and the data distributers use the storages of
+ * {@link Main}, which are only created when the container starts: the database is installed as the main and
+ * the window storage of the (not started) container, it also provides the DDL of the query validator.
+ */
+final class BenchmarkDatabase {
+
+	static final DataField[] STRUCTURE = new DataField[] {new DataField("temperature", "double"), new DataField("light", "int"),
+			new DataField("station", "varchar(20)"), new DataField("counter", "bigint"), new DataField("humidity", "float")};
+
+	private static StorageManager storage;
+
+	private BenchmarkDatabase() {}
+
+	static synchronized StorageManager getStorage() throws Exception {
+		if (storage == null) {
+			DriverManager.registerDriver(new org.h2.Driver());
+			storage = StorageManagerFactory.getInstance("org.h2.Driver", "sa", "", "jdbc:h2:mem:gsn_benchmarks;DB_CLOSE_DELAY=-1", Main.DEFAULT_MAX_DB_CONNECTIONS);
+			setMainField("mainStorage", storage);
+			setMainField("windowStorage", storage);
+			setMainField("validationStorage", storage);
+		}
+		return storage;
+	}
+
+	private static void setMainField(String name, Object value) throws Exception {
+		Field field = Main.class.getDeclaredField(name);
+		field.setAccessible(true);
+		field.set(null, value);
+	}
+
+	/**
+	 * Clears a private field (e.g., a cached query) of the object.
+	 */
+	static void clearField(Class<?> c, String name, Object target) {
+		try {
+			Field field = c.getDeclaredField(name);
+			field.setAccessible(true);
+			field.set(target, null);
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Returns the i-th stream element of the benchmarks, the values only depend on i.
+	 */
+	static StreamElement element(long i) {
+		return new StreamElement(STRUCTURE, new Serializable[] {i * 0.5, (int) i, "station-" + (i % 10), i * 1000, (float) i / 4}, i);
+	}
+
+	/**
+	 * (Re)creates the table, with the rows from 1 to <code>rows</code>.
+	 */
+	static void createTable(CharSequence name, DataField[] structure, int rows) throws Exception {
+		StorageManager sm = getStorage();
+		if (sm.tableExists(name))
+			sm.executeDropTable(name);
+		sm.executeCreateTable(name, structure, false);
+		for (long i = 1; i <= rows; i++)
+			sm.executeInsert(name, structure, element(i));
+	}
+
+}
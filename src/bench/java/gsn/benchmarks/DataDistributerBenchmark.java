@@ -0,0 +1,157 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/benchmarks/DataDistributerBenchmark.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.benchmarks;
+
+import gsn.DataDistributer;
+import gsn.beans.DataField;
+import gsn.beans.StreamElement;
+import gsn.beans.VSensorConfig;
+import gsn.http.rest.DefaultDistributionRequest;
+import gsn.http.rest.DeliverySystem;
+import gsn.storage.SQLValidator;
+import gsn.storage.StorageManager;
+import gsn.vsensor.SQLValidatorIntegration;
+
+import java.util.ArrayList;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * The publication of stream elements (the insert into the table of the virtual sensor, then the distribution)
+ * to N listeners, each operation ends when all the listeners have received the elements.
+ * <p>
+ * The distributers read -DinMemoryDistribution once per JVM, the parameter is only effective when each set of
+ * parameters runs in its own fork (the default, -f 1 or more).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class DataDistributerBenchmark {
+
+	private static final String VS_NAME = "bench_distribution";
+
+	private static final int ELEMENTS = 100;
+
+	@Param({"1", "10", "100"})
+	public int listeners;
+
+	@Param({"false", "true"})
+	public boolean inMemoryDistribution;
+
+	private final Semaphore delivered = new Semaphore(0);
+
+	private final ArrayList<DefaultDistributionRequest> requests = new ArrayList<DefaultDistributionRequest>();
+
+	private StorageManager sm;
+
+	private VSensorConfig config;
+
+	private DataDistributer distributer;
+
+	private long counter;
+
+	@Setup
+	public void setup() throws Exception {
+		System.setProperty("inMemoryDistribution", String.valueOf(inMemoryDistribution));
+		sm = BenchmarkDatabase.getStorage();
+		config = new VSensorConfig();
+		config.setName(VS_NAME);
+		config.setOutputStructure(BenchmarkDatabase.STRUCTURE);
+		BenchmarkDatabase.createTable(VS_NAME, BenchmarkDatabase.STRUCTURE, 0);
+		new SQLValidatorIntegration(SQLValidator.getInstance()).vsLoading(config);
+		distributer = DataDistributer.getInstance(CountingDelivery.class);
+		for (int i = 0; i < listeners; i++) {
+			DefaultDistributionRequest request = DefaultDistributionRequest.create(new CountingDelivery(delivered), config, "select * from " + VS_NAME, 0);
+			requests.add(request);
+			distributer.addListener(request);
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		for (DefaultDistributionRequest request : requests)
+			distributer.removeListener(request);
+		new SQLValidatorIntegration(SQLValidator.getInstance()).vsUnLoading(config);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(ELEMENTS)
+	public void publish() throws Exception {
+		for (int i = 0; i < ELEMENTS; i++) {
+			StreamElement se = BenchmarkDatabase.element(++counter);
+			// Sets the primary key of the element, as ContainerImpl.
+			sm.executeInsertDirectly(VS_NAME, BenchmarkDatabase.STRUCTURE, se);
+			distributer.consume(se, config);
+		}
+		delivered.acquire(ELEMENTS * listeners);
+	}
+
+	/**
+	 * A delivery system which only counts the stream elements.
+	 */
+	public static class CountingDelivery implements DeliverySystem {
+
+		private final Semaphore delivered;
+
+		private boolean closed = false;
+
+		public CountingDelivery(Semaphore delivered) {
+			this.delivered = delivered;
+		}
+
+		public void writeStructure(DataField[] fields) {}
+
+		public boolean writeStreamElement(StreamElement se) {
+			delivered.release();
+			return true;
+		}
+
+		public boolean writeKeepAliveStreamElement() {
+			return true;
+		}
+
+		public void close() {
+			closed = true;
+		}
+
+		public boolean isClosed() {
+			return closed;
+		}
+
+	}
+
+}
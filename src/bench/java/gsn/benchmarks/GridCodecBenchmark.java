@@ -0,0 +1,85 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/benchmarks/GridCodecBenchmark.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.benchmarks;
+
+import gsn.utils.geo.GridCodec;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The read of a cell from a grid of 500x500 values: from the former serialized grid (deserialized as a whole),
+ * from the encoded grid, and from the compressed tiles of 64x64 values.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class GridCodecBenchmark {
+
+	private static final int ROWS = 500;
+
+	private static final int COLS = 500;
+
+	@Param({"serialized", "encoded", "tiled"})
+	public String format;
+
+	private byte[] bytes;
+
+	@Setup
+	public void setup() throws IOException {
+		Double[][] grid = new Double[ROWS][COLS];
+		for (int y = 0; y < ROWS; y++)
+			for (int x = 0; x < COLS; x++)
+				grid[y][x] = y * 1000.0 + x + 0.25;
+		if (format.equals("serialized")) {
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			ObjectOutputStream oos = new ObjectOutputStream(bos);
+			oos.writeObject(grid);
+			oos.close();
+			bytes = bos.toByteArray();
+		} else if (format.equals("encoded"))
+			bytes = GridCodec.encode(grid, GridCodec.DOUBLE, 0, false);
+		else
+			bytes = GridCodec.encode(grid, GridCodec.DOUBLE, 64, true);
+	}
+
+	@Benchmark
+	public double readCell() throws IOException {
+		return GridCodec.readCell(bytes, COLS / 3, ROWS / 2);
+	}
+
+}
@@ -0,0 +1,172 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/benchmarks/IngestServerBenchmark.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.benchmarks;
+
+import gsn.beans.AddressBean;
+import gsn.beans.DataField;
+import gsn.beans.StreamElement;
+import gsn.beans.StreamSchema;
+import gsn.networking.IngestServer;
+import gsn.networking.PacketDecoder;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * A local load test of the IngestServer: small fixed size records sent over loopback to one or several ports, one
+ * record per datagram or per write on a TCP connection, as sent by the field gateways. Each operation ends when
+ * the listeners of the ports have received all the stream elements.
+ * <p>
+ * The datagrams dropped by the kernel (when the receive buffers overflow) are counted and reported at the end of
+ * the trial, an operation waits for them at most one second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class IngestServerBenchmark {
+
+	private static final int RECORDS = 1000;
+
+	@Param({"udp", "tcp"})
+	public String protocol;
+
+	@Param({"1", "16"})
+	public int ports;
+
+	private final Semaphore received = new Semaphore(0);
+
+	private IngestServer.Binding[] bindings;
+
+	private WritableByteChannel[] senders;
+
+	private final ByteBuffer record = ByteBuffer.allocateDirect(RecordDecoder.LENGTH);
+
+	private long sequence = 0;
+
+	private long lost = 0;
+
+	/**
+	 * Decodes the records in place: the timestamp, a double, an int and a long.
+	 */
+	public static class RecordDecoder implements PacketDecoder {
+
+		static final int LENGTH = 28;
+
+		private static final DataField[] outputFormat = new DataField[] {new DataField("temperature", "double"), new DataField("light", "int"),
+				new DataField("counter", "bigint")};
+
+		private final StreamSchema schema = StreamSchema.of(outputFormat);
+
+		public boolean initialize(AddressBean addressBean) {
+			return true;
+		}
+
+		public DataField[] getOutputFormat() {
+			return outputFormat;
+		}
+
+		public void decode(ByteBuffer buffer, long timestamp, List<StreamElement> elements) {
+			while (buffer.remaining() >= LENGTH) {
+				StreamElement se = new StreamElement(schema, buffer.getLong());
+				se.setDouble(0, buffer.getDouble());
+				se.setLong(1, buffer.getInt());
+				se.setLong(2, buffer.getLong());
+				elements.add(se);
+			}
+		}
+	}
+
+	@Setup
+	public void setup() throws Exception {
+		IngestServer.Listener listener = new IngestServer.Listener() {
+			public void packetsReceived(List<StreamElement> elements) {
+				received.release(elements.size());
+			}
+		};
+		bindings = new IngestServer.Binding[ports];
+		senders = new WritableByteChannel[ports];
+		for (int i = 0; i < ports; i++) {
+			InetSocketAddress address;
+			if (protocol.equals("udp")) {
+				bindings[i] = IngestServer.getInstance().bindDatagram(0, new RecordDecoder(), listener);
+				address = new InetSocketAddress(InetAddress.getLoopbackAddress(), bindings[i].getPort());
+				senders[i] = DatagramChannel.open().connect(address);
+			} else {
+				bindings[i] = IngestServer.getInstance().bindStream(0, new RecordDecoder(), listener);
+				address = new InetSocketAddress(InetAddress.getLoopbackAddress(), bindings[i].getPort());
+				SocketChannel channel = SocketChannel.open(address);
+				channel.socket().setTcpNoDelay(true);
+				senders[i] = channel;
+			}
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		for (int i = 0; i < ports; i++) {
+			senders[i].close();
+			bindings[i].close();
+		}
+		if (lost > 0)
+			System.out.println(lost + " datagrams lost.");
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(RECORDS)
+	public void ingest() throws Exception {
+		for (int i = 0; i < RECORDS; i++) {
+			record.clear();
+			record.putLong(++sequence).putDouble(sequence * 0.5).putInt((int) sequence).putLong(sequence * 1000).flip();
+			WritableByteChannel sender = senders[i % ports];
+			while (record.hasRemaining())
+				sender.write(record);
+		}
+		if (!received.tryAcquire(RECORDS, 1, TimeUnit.SECONDS)) {
+			lost += RECORDS - received.drainPermits();
+			if (protocol.equals("tcp"))
+				throw new IllegalStateException("Records lost over TCP.");
+		}
+	}
+
+}
@@ -0,0 +1,100 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/benchmarks/PublishBenchmark.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.benchmarks;
+
+import gsn.ContainerImpl;
+import gsn.beans.StreamElement;
+import gsn.beans.VSensorConfig;
+import gsn.vsensor.AbstractVirtualSensor;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Several virtual sensors publishing at the same time through ContainerImpl (the insert into the table of the
+ * virtual sensor and the notification of the listeners), each thread publishing the stream elements of its own
+ * virtual sensor. With serialized = true, the publications go through a single shared lock, as before the per
+ * table locks.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Threads(8)
+public class PublishBenchmark {
+
+	private static final Object lock = new Object();
+
+	private static final AtomicInteger sensors = new AtomicInteger();
+
+	@Param({"false", "true"})
+	public boolean serialized;
+
+	private AbstractVirtualSensor sensor;
+
+	private long counter;
+
+	@Setup
+	public void setup() throws Exception {
+		BenchmarkDatabase.getStorage();
+		VSensorConfig config = new VSensorConfig();
+		config.setName("bench_publish_" + sensors.incrementAndGet());
+		config.setOutputStructure(BenchmarkDatabase.STRUCTURE);
+		BenchmarkDatabase.createTable(config.getName(), BenchmarkDatabase.STRUCTURE, 0);
+		sensor = new AbstractVirtualSensor() {
+			public boolean initialize() {
+				return true;
+			}
+
+			public void dispose() {}
+
+			public void dataAvailable(String inputStreamName, StreamElement streamElement) {}
+		};
+		sensor.setVirtualSensorConfiguration(config);
+	}
+
+	@Benchmark
+	public void publish() throws Exception {
+		StreamElement se = BenchmarkDatabase.element(++counter);
+		if (serialized) {
+			synchronized (lock) {
+				ContainerImpl.getInstance().publishData(sensor, se);
+			}
+		} else {
+			ContainerImpl.getInstance().publishData(sensor, se);
+		}
+	}
+
+}
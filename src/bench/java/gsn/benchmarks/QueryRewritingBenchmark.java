@@ -0,0 +1,149 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/benchmarks/QueryRewritingBenchmark.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.benchmarks;
+
+import gsn.beans.AddressBean;
+import gsn.beans.DataField;
+import gsn.beans.InputStream;
+import gsn.beans.StreamSource;
+import gsn.beans.windowing.SQLViewQueryRewriter;
+import gsn.storage.DataEnumerator;
+import gsn.storage.SQLUtils;
+import gsn.utils.CaseInsensitiveComparator;
+import gsn.wrappers.AbstractWrapper;
+
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The rewriting of the queries of the input streams, the generation of the queries of a stream source (which are
+ * normally cached, the caches are cleared on each call) and the evaluation of its view on the window table.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class QueryRewritingBenchmark {
+
+	private static final String INPUT_STREAM_QUERY = "select src1.temperature, src2.light from src1, src2 where src1.timed = src2.timed and src1.station = 'station-1'";
+
+	private static final String STREAM_SOURCE_QUERY = "select temperature, light, station from wrapper";
+
+	private static final int WINDOW_ROWS = 1000;
+
+	private static final String WINDOW_SIZE = "100";
+
+	private final TreeMap<CharSequence, CharSequence> mapping = new TreeMap<CharSequence, CharSequence>(new CaseInsensitiveComparator());
+
+	private BenchmarkWrapper wrapper;
+
+	private StreamSource streamSource;
+
+	private SQLViewQueryRewriter rewriter;
+
+	@Setup
+	public void setup() throws Exception {
+		BenchmarkDatabase.getStorage();
+		mapping.put("src1", "_view_1");
+		mapping.put("src2", "_view_2");
+		wrapper = new BenchmarkWrapper();
+		wrapper.setActiveAddressBean(new AddressBean("benchmark"));
+		BenchmarkDatabase.createTable(wrapper.getDBAliasInStr(), BenchmarkDatabase.STRUCTURE, WINDOW_ROWS);
+		streamSource = new StreamSource().setAlias("src1").setAddressing(new AddressBean[] {new AddressBean("benchmark")})
+				.setSqlQuery(STREAM_SOURCE_QUERY).setRawHistorySize(WINDOW_SIZE);
+		streamSource.setInputStream(new InputStream());
+		// Creates the view of the stream source on the window table.
+		streamSource.setWrapper(wrapper);
+		rewriter = (SQLViewQueryRewriter) streamSource.getQueryRewriter();
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		// Drops the view of the stream source.
+		wrapper.removeListener(streamSource);
+	}
+
+	@Benchmark
+	public StringBuilder newRewriteMapping() {
+		return SQLUtils.newRewrite(INPUT_STREAM_QUERY, mapping);
+	}
+
+	@Benchmark
+	public StringBuilder newRewriteTable() {
+		return SQLUtils.newRewrite(INPUT_STREAM_QUERY, "src1", "_view_1");
+	}
+
+	@Benchmark
+	public StringBuilder toSql() {
+		BenchmarkDatabase.clearField(StreamSource.class, "cachedSqlQuery", streamSource);
+		return streamSource.toSql();
+	}
+
+	@Benchmark
+	public CharSequence createViewSQL() {
+		BenchmarkDatabase.clearField(SQLViewQueryRewriter.class, "cachedSqlQuery", rewriter);
+		return rewriter.createViewSQL();
+	}
+
+	@Benchmark
+	public void queryView(Blackhole blackhole) throws Exception {
+		DataEnumerator rows = BenchmarkDatabase.getStorage().executeQuery(new StringBuilder("select * from ").append(streamSource.getUIDStr()), false);
+		while (rows.hasMoreElements())
+			blackhole.consume(rows.nextElement());
+		rows.close();
+	}
+
+	/**
+	 * A wrapper which doesn't produce anything, its window table is filled by the benchmark.
+	 */
+	static class BenchmarkWrapper extends AbstractWrapper {
+
+		public DataField[] getOutputFormat() {
+			return BenchmarkDatabase.STRUCTURE;
+		}
+
+		public boolean initialize() {
+			return true;
+		}
+
+		public void dispose() {}
+
+		public String getWrapperName() {
+			return "BenchmarkWrapper";
+		}
+
+	}
+
+}
@@ -0,0 +1,170 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/benchmarks/RestStreamingBenchmark.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.benchmarks;
+
+import gsn.beans.DataField;
+import gsn.beans.StreamElement;
+import gsn.http.rest.RestDelivery;
+import gsn.http.rest.RestStreamCodec;
+import gsn.http.rest.StreamElement4Rest;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.thoughtworks.xstream.XStream;
+
+/**
+ * The streaming protocol between two GSN nodes (RestDelivery and RestRemoteWrapper) over a loopback connection,
+ * each operation ends when the receiving side has decoded all the stream elements.
+ * <p>
+ * The xml format writes and flushes the stream elements one by one, as the XML framing (without the check of the
+ * connection by the servlet between two elements), the binary format batches them as the binary framing, flushing
+ * a frame once it reaches -DrestFrameSize bytes and at the end of the operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class RestStreamingBenchmark {
+
+	private static final int ELEMENTS = 1000;
+
+	@Param({"xml", "binary"})
+	public String format;
+
+	private final Semaphore received = new Semaphore(0);
+
+	private ServerSocket server;
+
+	private Socket sender;
+
+	private Thread receiver;
+
+	private ObjectOutputStream objectStream;
+
+	private DataOutputStream dataStream;
+
+	private RestStreamCodec codec;
+
+	private StreamElement[] elements;
+
+	@Setup
+	public void setup() throws Exception {
+		elements = new StreamElement[ELEMENTS];
+		for (int i = 0; i < ELEMENTS; i++)
+			elements[i] = BenchmarkDatabase.element(i);
+		server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+		receiver = new Thread(new Runnable() {
+			public void run() {
+				try {
+					receive(server.accept());
+				} catch (Exception e) {
+					// The connection is closed at the end of the benchmark.
+				}
+			}
+		}, "RestStreamingBenchmark-Receiver");
+		receiver.setDaemon(true);
+		receiver.start();
+		sender = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+		sender.setTcpNoDelay(true);
+		if (format.equals("binary")) {
+			codec = new RestStreamCodec();
+			dataStream = new DataOutputStream(new BufferedOutputStream(sender.getOutputStream()));
+			codec.writeStructure(dataStream, BenchmarkDatabase.STRUCTURE);
+			dataStream.flush();
+		} else {
+			XStream xstream = StreamElement4Rest.getXstream();
+			objectStream = xstream.createObjectOutputStream(new OutputStreamWriter(new BufferedOutputStream(sender.getOutputStream()), "UTF-8"));
+			objectStream.writeObject(BenchmarkDatabase.STRUCTURE);
+			objectStream.flush();
+		}
+	}
+
+	private void receive(Socket socket) throws Exception {
+		if (format.equals("binary")) {
+			RestStreamCodec decoder = new RestStreamCodec();
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			decoder.readStructure(in);
+			while (true)
+				received.release(decoder.readBatch(in).size());
+		} else {
+			ObjectInputStream in = StreamElement4Rest.getXstream().createObjectInputStream(socket.getInputStream());
+			DataField[] structure = (DataField[]) in.readObject();
+			while (structure != null && ((StreamElement4Rest) in.readObject()).toStreamElement() != null)
+				received.release();
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		sender.close();
+		server.close();
+		receiver.join(1000);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(ELEMENTS)
+	public void stream() throws Exception {
+		if (codec != null) {
+			for (StreamElement se : elements) {
+				codec.add(se);
+				if (codec.length() >= RestDelivery.getFrameSize()) {
+					codec.writeBatch(dataStream);
+					dataStream.flush();
+				}
+			}
+			codec.writeBatch(dataStream);
+			dataStream.flush();
+		} else {
+			for (StreamElement se : elements) {
+				objectStream.writeObject(new StreamElement4Rest(se));
+				objectStream.flush();
+			}
+		}
+		received.acquire(ELEMENTS);
+	}
+
+}
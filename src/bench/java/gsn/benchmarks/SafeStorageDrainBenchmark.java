@@ -0,0 +1,184 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/benchmarks/SafeStorageDrainBenchmark.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.benchmarks;
+
+import gsn.acquisition2.SafeStorage;
+import gsn.acquisition2.client.MessageHandler;
+import gsn.acquisition2.client.SafeStorageClientSessionHandler;
+import gsn.acquisition2.messages.DataMsg;
+import gsn.acquisition2.messages.HelloMsg;
+import gsn.acquisition2.server.SafeStorageServerSessionHandler;
+import gsn.acquisition2.wrappers.AbstractWrapper2;
+import gsn.beans.AddressBean;
+import gsn.utils.KeyValueImp;
+
+import java.io.File;
+import java.io.Serializable;
+import java.lang.reflect.Field;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.mina.common.ConnectFuture;
+import org.apache.mina.common.IoSession;
+import org.apache.mina.common.ThreadModel;
+import org.apache.mina.filter.codec.ProtocolCodecFilter;
+import org.apache.mina.filter.codec.serialization.ObjectSerializationCodecFactory;
+import org.apache.mina.filter.executor.ExecutorFilter;
+import org.apache.mina.transport.socket.nio.SocketAcceptor;
+import org.apache.mina.transport.socket.nio.SocketAcceptorConfig;
+import org.apache.mina.transport.socket.nio.SocketConnector;
+import org.apache.mina.transport.socket.nio.SocketConnectorConfig;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * The catch-up of the safe storage after an outage of the link: a backlog of entries stored while no client was
+ * connected, drained by a client connecting over loopback (MINA, as the SafeStorageServer) and acknowledging
+ * each entry. The window of 1 is the stop-and-wait protocol, the larger ones keep as many entries in flight.
+ * <p>
+ * The backlog is stored before each operation, which ends once the client received the whole backlog.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class SafeStorageDrainBenchmark {
+
+	private static final int PORT = 22972;
+
+	private static final int BACKLOG = 2000;
+
+	@Param({"1", "16", "64"})
+	public int window;
+
+	private SafeStorage ss;
+
+	private SocketAcceptor acceptor;
+
+	private SocketConnector connector;
+
+	private SocketConnectorConfig connectorConfig;
+
+	private AddressBean wrapperDetails;
+
+	private AbstractWrapper2 wrapper;
+
+	private String requester;
+
+	/** The sequence number of the last entry received by the clients. */
+	private volatile long lastReceived = -1;
+
+	private CountDownLatch drained;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		ss = new SafeStorage(PORT);
+		acceptor = new SocketAcceptor();
+		acceptor.getDefaultConfig().setThreadModel(ThreadModel.MANUAL);
+		SocketAcceptorConfig cfg = new SocketAcceptorConfig();
+		cfg.setReuseAddress(true);
+		cfg.getFilterChain().addLast("codec", new ProtocolCodecFilter(new ObjectSerializationCodecFactory()));
+		cfg.getFilterChain().addLast("threadPool", new ExecutorFilter(new ThreadPoolExecutor(0, Integer.MAX_VALUE, Long.MAX_VALUE, TimeUnit.NANOSECONDS, new LinkedBlockingQueue<Runnable>())));
+		acceptor.bind(new InetSocketAddress(PORT), new SafeStorageServerSessionHandler(ss), cfg);
+
+		connector = new SocketConnector();
+		connectorConfig = new SocketConnectorConfig();
+		connectorConfig.getFilterChain().addLast("codec", new ProtocolCodecFilter(new ObjectSerializationCodecFactory()));
+		requester = "bench-drain-" + window;
+		wrapperDetails = new AddressBean("mem2", new KeyValueImp("wrapper-name", "mem2"), new KeyValueImp("sampling-rate", "100000000"),
+				new KeyValueImp("wrapper-keep-processed-ss-entries", "false"), new KeyValueImp(SafeStorageServerSessionHandler.WINDOW_PREDICATE, Integer.toString(window)));
+		wrapper = ss.prepareWrapper(new HelloMsg(wrapperDetails, requester), null);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		acceptor.unbindAll();
+		ss.shutdown();
+		ss.getStorage().dropAllTables();
+		for (File file : new File(".").listFiles())
+			if (file.getName().startsWith("storage" + PORT + ".h2"))
+				file.delete();
+	}
+
+	@Setup(Level.Invocation)
+	public void storeBacklog() throws Exception {
+		for (int i = 0; i < BACKLOG; i++)
+			wrapper.getQueue().append(new Serializable[] {(long) i, i * 0.5, "reading"});
+		drained = new CountDownLatch(BACKLOG);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BACKLOG)
+	public void drain() throws Exception {
+		MessageHandler handler = new MessageHandler() {
+			public boolean messageToBeProcessed(DataMsg dataMessage) {
+				// The entries of the previous operation not acknowledged before its session was closed are sent again.
+				if (dataMessage.getSequenceNumber() > lastReceived) {
+					lastReceived = dataMessage.getSequenceNumber();
+					drained.countDown();
+				}
+				return true;
+			}
+
+			public void restartConnection() {
+			}
+		};
+		ConnectFuture future = connector.connect(new InetSocketAddress("localhost", PORT), new SafeStorageClientSessionHandler(wrapperDetails, handler, requester), connectorConfig);
+		future.join();
+		IoSession session = future.getSession();
+		try {
+			if (!drained.await(60, TimeUnit.SECONDS))
+				throw new IllegalStateException(drained.getCount() + " entries of the backlog not received.");
+		} finally {
+			session.close().join();
+			wakeUpReader();
+		}
+	}
+
+	/**
+	 * Once the backlog is drained, the server waits for the next entry of the wrapper on behalf of the closed
+	 * session: the entries of the backlog are stored directly in the queue, the wrapper doesn't wake it up.
+	 */
+	private void wakeUpReader() throws Exception {
+		Field field = AbstractWrapper2.class.getDeclaredField("queue");
+		field.setAccessible(true);
+		@SuppressWarnings("unchecked")
+		LinkedBlockingQueue<Long> queue = (LinkedBlockingQueue<Long>) field.get(wrapper);
+		queue.put(lastReceived);
+	}
+
+}
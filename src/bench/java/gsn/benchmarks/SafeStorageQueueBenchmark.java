@@ -0,0 +1,196 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/benchmarks/SafeStorageQueueBenchmark.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.benchmarks;
+
+import gsn.acquisition2.H2SafeStorageQueue;
+import gsn.acquisition2.SafeStorageDB;
+import gsn.acquisition2.SafeStorageQueue;
+import gsn.acquisition2.SegmentedLogQueue;
+import gsn.acquisition2.messages.DataMsg;
+
+import java.io.File;
+import java.io.Serializable;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * The two backends of the safe storage queues, the H2 table of each requester (h2) and the segmented log (log):
+ * <ul>
+ * <li>ingest: the entries appended by the wrapper, into an empty queue at each iteration;</li>
+ * <li>recover: the queue reopened after a stop (the H2 database closed and opened again, the segments scanned and
+ * their records checked) and its unacknowledged entries read by batches, as sent to a reconnecting client.</li>
+ * </ul>
+ * The segments are not forced to the disk at each write (sync=false, the default).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class SafeStorageQueueBenchmark {
+
+	private static final int PORT = 22974;
+
+	private static final int RECOVERED_ENTRIES = 10000;
+
+	private static final int READ_BATCH = 256;
+
+	private static Serializable[] entry(long i) {
+		return new Serializable[] {i, i * 0.5, "reading"};
+	}
+
+	private static void delete(File file) {
+		if (file.isDirectory())
+			for (File child : file.listFiles())
+				delete(child);
+		file.delete();
+	}
+
+	/**
+	 * The safe storage database or the directory of the segments.
+	 */
+	public abstract static class Backend {
+
+		@Param({"h2", "log"})
+		public String backend;
+
+		SafeStorageDB db;
+
+		File directory;
+
+		private int queues = 0;
+
+		@Setup(Level.Trial)
+		public void openBackend() throws Exception {
+			if (backend.equals("h2")) {
+				db = new SafeStorageDB(PORT);
+				// Created by the SafeStorage, maps the requesters to their table.
+				db.executeSQL("create table if not exists SETUP (pk INTEGER NOT NULL AUTO_INCREMENT PRIMARY KEY, table_name varchar not null unique, requester varchar not null unique,created_at TIMESTAMP default CURRENT_TIMESTAMP() not null )");
+			} else
+				directory = new File(System.getProperty("java.io.tmpdir"), "gsn-bench-segmented-log-" + System.nanoTime());
+		}
+
+		@TearDown(Level.Trial)
+		public void deleteBackend() {
+			if (db != null) {
+				db.dropAllTables();
+				for (File file : new File(".").listFiles())
+					if (file.getName().startsWith("storage" + PORT + ".h2"))
+						file.delete();
+			} else {
+				delete(directory);
+			}
+		}
+
+		/**
+		 * Creates a new queue, or opens the queue created by the previous call if <code>reopen</code> is true.
+		 */
+		SafeStorageQueue openQueue(boolean reopen) throws Exception {
+			if (!reopen)
+				queues++;
+			if (db != null) {
+				// Opens the database again after a stop.
+				db.getConnection();
+				return new H2SafeStorageQueue(db, db.prepareTableIfNeeded("bench-queue-" + queues), false);
+			}
+			return new SegmentedLogQueue(new File(directory, "queue-" + queues), SegmentedLogQueue.DEFAULT_SEGMENT_SIZE, false, false);
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class Ingest extends Backend {
+
+		SafeStorageQueue queue;
+
+		long counter = 0;
+
+		@Setup(Level.Iteration)
+		public void createQueue() throws Exception {
+			queue = openQueue(false);
+		}
+
+		@TearDown(Level.Iteration)
+		public void closeQueue() {
+			queue.close();
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class Recovery extends Backend {
+
+		@Setup(Level.Trial)
+		public void storeEntries() throws Exception {
+			SafeStorageQueue queue = openQueue(false);
+			for (long i = 0; i < RECOVERED_ENTRIES; i++)
+				queue.append(entry(i));
+			queue.close();
+		}
+
+		/**
+		 * Stops the storage as GSN does: the H2 database is closed with its last connection.
+		 */
+		void stop() throws Exception {
+			if (db != null)
+				db.getConnection().close();
+		}
+	}
+
+	@Benchmark
+	public long ingest(Ingest state) throws Exception {
+		return state.queue.append(entry(++state.counter));
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(RECOVERED_ENTRIES)
+	public long recover(Recovery state) throws Exception {
+		state.stop();
+		SafeStorageQueue queue = state.openQueue(true);
+		try {
+			long last = -1;
+			int read = 0;
+			List<DataMsg> entries;
+			while (!(entries = queue.read(last, READ_BATCH)).isEmpty()) {
+				last = entries.get(entries.size() - 1).getSequenceNumber();
+				read += entries.size();
+			}
+			if (read != RECOVERED_ENTRIES)
+				throw new IllegalStateException(read + " entries recovered instead of " + RECOVERED_ENTRIES + ".");
+			return last;
+		} finally {
+			queue.close();
+		}
+	}
+
+}
@@ -0,0 +1,96 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/benchmarks/ScriptletBenchmark.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.benchmarks;
+
+import gsn.beans.DataField;
+import gsn.beans.StreamElement;
+import gsn.processor.ScriptletProcessor;
+
+import java.io.Serializable;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * A unit conversion scriptlet evaluated by several threads, with the shared binding and in the concurrent mode.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Threads(4)
+public class ScriptletBenchmark {
+
+	private static final DataField[] INPUT = new DataField[] {new DataField("temperature", "DOUBLE", ""), new DataField("speed", "DOUBLE", "")};
+
+	private static final DataField[] OUTPUT = new DataField[] {new DataField("temperature_f", "DOUBLE", ""), new DataField("speed_kmh", "DOUBLE", "")};
+
+	@Param({"false", "true"})
+	public boolean concurrent;
+
+	private ConversionProcessor processor;
+
+	@Setup
+	public void setup() {
+		processor = new ConversionProcessor();
+		TreeMap<String, String> parameters = new TreeMap<String, String>();
+		parameters.put("scriptlet", "TEMPERATURE_F = TEMPERATURE * 1.8 + 32; SPEED_KMH = SPEED * 3.6;");
+		parameters.put("concurrent", Boolean.toString(concurrent));
+		if (!processor.initialize(OUTPUT, parameters))
+			throw new IllegalStateException("The scriptlet can not be initialized.");
+	}
+
+	@Benchmark
+	public StreamElement evaluate() {
+		processor.dataAvailable("input", new StreamElement(INPUT, new Serializable[] {21.5, 10.0}, System.currentTimeMillis()));
+		return processor.produced.get();
+	}
+
+	/**
+	 * Keeps the last StreamElement produced by each thread instead of storing it.
+	 */
+	private static class ConversionProcessor extends ScriptletProcessor {
+
+		final ThreadLocal<StreamElement> produced = new ThreadLocal<StreamElement>();
+
+		public boolean initialize(DataField[] outputStructure, TreeMap<String, String> parameters) {
+			return super.initialize(outputStructure, parameters);
+		}
+
+		protected void dataProduced(StreamElement se) {
+			produced.set(se);
+		}
+	}
+
+}
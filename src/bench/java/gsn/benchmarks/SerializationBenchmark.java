@@ -0,0 +1,105 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/benchmarks/SerializationBenchmark.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.benchmarks;
+
+import gsn.beans.StreamElement;
+import gsn.http.rest.StreamElement4Rest;
+import gsn.networking.zeromq.ZeroMQCodec;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.thoughtworks.xstream.XStream;
+
+/**
+ * The serializations of the stream elements: Kryo (the frames of the ZeroMQ delivery) and XStream (the
+ * stream elements of the REST delivery).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SerializationBenchmark {
+
+	private StreamElement se;
+
+	private ZeroMQCodec encoder;
+
+	private ZeroMQCodec decoder;
+
+	private byte[] frame;
+
+	private XStream xstream;
+
+	private String xml;
+
+	@Setup
+	public void setup() {
+		se = BenchmarkDatabase.element(42);
+		encoder = new ZeroMQCodec(new Kryo());
+		decoder = new ZeroMQCodec(new Kryo());
+		encoder.add(se);
+		encoder.finish();
+		frame = Arrays.copyOf(encoder.getBuffer(), encoder.length());
+		encoder.clear();
+		xstream = StreamElement4Rest.getXstream();
+		xml = xstream.toXML(new StreamElement4Rest(se));
+	}
+
+	@Benchmark
+	public int kryoEncode() {
+		encoder.add(se);
+		encoder.finish();
+		int length = encoder.length();
+		encoder.clear();
+		return length;
+	}
+
+	@Benchmark
+	public ArrayList<StreamElement> kryoDecode() {
+		return decoder.decode(frame);
+	}
+
+	@Benchmark
+	public String xstreamEncode() {
+		return xstream.toXML(new StreamElement4Rest(se));
+	}
+
+	@Benchmark
+	public StreamElement xstreamDecode() {
+		return ((StreamElement4Rest) xstream.fromXML(xml)).toStreamElement();
+	}
+
+}
@@ -0,0 +1,121 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/benchmarks/StorageBenchmark.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.benchmarks;
+
+import gsn.beans.StreamElement;
+import gsn.storage.DataEnumerator;
+import gsn.storage.StorageManager;
+
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The inserts of the stream elements (one by one and in batches) and the reading of the rows through a
+ * {@link DataEnumerator}, on the embedded H2 database.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class StorageBenchmark {
+
+	private static final String INSERT_TABLE = "bench_insert";
+
+	private static final String READ_TABLE = "bench_read";
+
+	private static final int BATCH_SIZE = 100;
+
+	private static final int READ_ROWS = 1000;
+
+	private StorageManager sm;
+
+	private Connection connection;
+
+	private final ArrayList<StreamElement> batch = new ArrayList<StreamElement>();
+
+	private long counter;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		sm = BenchmarkDatabase.getStorage();
+		BenchmarkDatabase.createTable(READ_TABLE, BenchmarkDatabase.STRUCTURE, READ_ROWS);
+		for (int i = 0; i < BATCH_SIZE; i++)
+			batch.add(BenchmarkDatabase.element(i));
+	}
+
+	/**
+	 * Starts each iteration with an empty table, the inserts don't slow down with the size of the table.
+	 */
+	@Setup(Level.Iteration)
+	public void emptyTable() throws Exception {
+		BenchmarkDatabase.createTable(INSERT_TABLE, BenchmarkDatabase.STRUCTURE, 0);
+		connection = sm.getConnection();
+	}
+
+	@TearDown(Level.Iteration)
+	public void closeConnection() {
+		sm.close(connection);
+	}
+
+	@Benchmark
+	public void executeInsert() throws Exception {
+		sm.executeInsert(INSERT_TABLE, BenchmarkDatabase.STRUCTURE, BenchmarkDatabase.element(++counter));
+	}
+
+	@Benchmark
+	public void executeInsertOnConnection() throws Exception {
+		sm.executeInsert(INSERT_TABLE, BenchmarkDatabase.STRUCTURE, BenchmarkDatabase.element(++counter), connection);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH_SIZE)
+	public void executeBatchInsert() throws Exception {
+		sm.executeBatchInsert(INSERT_TABLE, BenchmarkDatabase.STRUCTURE, batch, connection);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(READ_ROWS)
+	public void iterateDataEnumerator(Blackhole blackhole) throws Exception {
+		// The enumerator closes its connection, a pooled one.
+		DataEnumerator rows = sm.executeQuery(new StringBuilder("select * from ").append(READ_TABLE), false);
+		while (rows.hasMoreElements())
+			blackhole.consume(rows.nextElement());
+		rows.close();
+	}
+
+}
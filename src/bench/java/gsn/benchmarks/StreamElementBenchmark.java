@@ -0,0 +1,114 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/benchmarks/StreamElementBenchmark.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.benchmarks;
+
+import gsn.beans.StreamElement;
+import gsn.beans.StreamSchema;
+
+import java.io.Serializable;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The construction of the stream elements (with boxed values or with the slots of a schema) and the
+ * accessors of their values.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class StreamElementBenchmark {
+
+	private StreamSchema schema;
+
+	private StreamElement boxed;
+
+	private StreamElement slots;
+
+	private long counter;
+
+	@Setup
+	public void setup() {
+		schema = StreamSchema.of(BenchmarkDatabase.STRUCTURE);
+		boxed = BenchmarkDatabase.element(42);
+		slots = slotsElement(42);
+	}
+
+	private StreamElement slotsElement(long i) {
+		StreamElement se = new StreamElement(schema, i);
+		se.setDouble(0, i * 0.5);
+		se.setLong(1, i);
+		se.setData(2, "station-" + (i % 10));
+		se.setLong(3, i * 1000);
+		se.setDouble(4, (float) i / 4);
+		return se;
+	}
+
+	@Benchmark
+	public StreamElement constructBoxed() {
+		long i = counter++;
+		return new StreamElement(BenchmarkDatabase.STRUCTURE, new Serializable[] {i * 0.5, (int) i, "station", i * 1000, 0.25f}, i);
+	}
+
+	@Benchmark
+	public StreamElement constructSlots() {
+		long i = counter++;
+		StreamElement se = new StreamElement(schema, i);
+		se.setDouble(0, i * 0.5);
+		se.setLong(1, i);
+		se.setData(2, "station");
+		se.setLong(3, i * 1000);
+		se.setDouble(4, 0.25);
+		return se;
+	}
+
+	@Benchmark
+	public Serializable getDataByName() {
+		return boxed.getData("counter");
+	}
+
+	@Benchmark
+	public Serializable getDataByIndex() {
+		return boxed.getData(3);
+	}
+
+	@Benchmark
+	public long getLongFromSlot() {
+		return slots.getLong(3);
+	}
+
+	@Benchmark
+	public Serializable[] getAllData() {
+		return boxed.getData();
+	}
+
+}
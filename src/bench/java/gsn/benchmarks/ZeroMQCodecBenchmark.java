@@ -0,0 +1,112 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/benchmarks/ZeroMQCodecBenchmark.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.benchmarks;
+
+import gsn.beans.StreamElement;
+import gsn.networking.zeromq.ZeroMQCodec;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Output;
+
+/**
+ * The encoding of the stream elements published by ZeroMQDelivery: the former path (a stream, a Kryo output
+ * and a copy per element) compared with the reused buffers of ZeroMQCodec, in frames of batch elements.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ZeroMQCodecBenchmark {
+
+	private static final String VS_NAME = "bench_zeromq";
+
+	private static final int ELEMENTS = 1000;
+
+	@Param({"1", "32"})
+	public int batch;
+
+	private final StreamElement[] elements = new StreamElement[ELEMENTS];
+
+	private final Kryo kryo = new Kryo();
+
+	private ZeroMQCodec codec;
+
+	@Setup
+	public void setup() {
+		for (int i = 0; i < ELEMENTS; i++)
+			elements[i] = BenchmarkDatabase.element(i);
+		codec = new ZeroMQCodec(kryo);
+	}
+
+	/**
+	 * The former ZeroMQDelivery.writeStreamElement, without the socket.
+	 */
+	@Benchmark
+	@OperationsPerInvocation(ELEMENTS)
+	public void former(Blackhole blackhole) throws IOException {
+		for (StreamElement se : elements) {
+			ByteArrayOutputStream bais = new ByteArrayOutputStream();
+			bais.write((VS_NAME + " ").getBytes());
+			Output o = new Output(bais);
+			kryo.writeObjectOrNull(o, se, StreamElement.class);
+			o.close();
+			blackhole.consume(bais.toByteArray());
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(ELEMENTS)
+	public void reused(Blackhole blackhole) {
+		for (StreamElement se : elements) {
+			codec.add(se);
+			if (codec.size() == batch) {
+				codec.finish();
+				blackhole.consume(codec.length());
+				codec.clear();
+			}
+		}
+		if (codec.size() > 0) {
+			codec.finish();
+			blackhole.consume(codec.length());
+			codec.clear();
+		}
+	}
+
+}
@@ -29,15 +29,19 @@
 package gsn;
 
 import gsn.beans.StreamElement;
+import gsn.beans.VSensorConfig;
+import gsn.monitoring.PipelineLatency;
+import gsn.storage.InsertBatcher;
 import gsn.storage.StorageManager;
 import gsn.vsensor.AbstractVirtualSensor;
 
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.log4j.Logger;
 
-public class ContainerImpl  {
+public class ContainerImpl implements VSensorStateChangeListener {
 
 	private static transient Logger                                      logger                             = Logger.getLogger( ContainerImpl.class );
 
@@ -54,7 +58,11 @@ public class ContainerImpl  {
 	
 	private static ContainerImpl singleton;
 	
-	private static final Object                                          psLock                             = new Object( );
+	/**
+	 * One lock per output table: the inserts of a virtual sensor are kept in order while
+	 * independent virtual sensors write in parallel (up to the size of the connection pool).
+	 */
+	private final ConcurrentHashMap<String, Object>                      insertLocks                        = new ConcurrentHashMap<String, Object>( );
 
 	private ContainerImpl() {
 
@@ -68,14 +76,61 @@ public class ContainerImpl  {
 
 
 	public void publishData ( AbstractVirtualSensor sensor ,StreamElement data) throws SQLException {
-		String name = sensor.getVirtualSensorConfiguration( ).getName( ).toLowerCase();
-		StorageManager storageMan = Main.getStorage(sensor.getVirtualSensorConfiguration().getName());
-		synchronized ( psLock ) {
-			storageMan.executeInsert( name ,sensor.getVirtualSensorConfiguration().getOutputStructure(), data );
+		VSensorConfig config = sensor.getVirtualSensorConfiguration( );
+		long begin = PipelineLatency.ENABLED ? System.nanoTime() : 0;
+		publishData(Main.getStorage(config.getName()), config, data);
+		if (PipelineLatency.ENABLED)
+			PipelineLatency.record(config.getName(), PipelineLatency.Stage.PUBLISH, begin);
+	}
+
+	void publishData ( StorageManager storageMan, final VSensorConfig config, StreamElement data) throws SQLException {
+		String name = config.getName( ).toLowerCase();
+		if (storageMan.isInsertBatchingEnabled()) {
+			// The listeners read the data back from the database, they are notified once the element is committed.
+			storageMan.executeInsert( name ,config.getOutputStructure(), data, new InsertBatcher.CommitListener() {
+				public void committed(StreamElement se) {
+					notifyDataListeners(se, config);
+				}
+			});
+			return;
+		}
+		synchronized ( getInsertLock(name) ) {
+			storageMan.executeInsert( name ,config.getOutputStructure(), data );
+			// Notifying inside the lock keeps the listeners seeing the elements of a sensor in insertion order.
+			notifyDataListeners(data, config);
 		}
-		
+	}
+
+	private Object getInsertLock(String tableName) {
+		Object lock = insertLocks.get(tableName);
+		if (lock == null) {
+			Object newLock = new Object();
+			lock = insertLocks.putIfAbsent(tableName, newLock);
+			if (lock == null)
+				lock = newLock;
+		}
+		return lock;
+	}
+
+	public boolean vsLoading(VSensorConfig config) {
+		return true;
+	}
+
+	/**
+	 * Drops the insert lock of the virtual sensor, which doesn't publish anymore.
+	 */
+	public boolean vsUnLoading(VSensorConfig config) {
+		insertLocks.remove(config.getName().toLowerCase());
+		return true;
+	}
+
+	public void release() throws Exception {
+		insertLocks.clear();
+	}
+
+	private void notifyDataListeners(StreamElement data, VSensorConfig config) {
 		for (VirtualSensorDataListener listener : dataListeners) {
-			listener.consume(data, sensor.getVirtualSensorConfiguration());
+			listener.consume(data, config);
 		}
 	}
 
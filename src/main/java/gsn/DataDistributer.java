@@ -33,9 +33,12 @@ import gsn.http.rest.DefaultDistributionRequest;
 import gsn.http.rest.DeliverySystem;
 import gsn.http.rest.DistributionRequest;
 import gsn.http.rest.LocalDeliveryWrapper;
+import gsn.monitoring.Monitorable;
+import gsn.monitoring.PipelineLatency;
 import gsn.networking.zeromq.ZeroMQDelivery;
 import gsn.networking.zeromq.ZeroMQWrapper;
 import gsn.storage.DataEnumerator;
+import gsn.storage.InMemoryQuery;
 import gsn.storage.SQLValidator;
 
 import java.awt.event.ActionEvent;
@@ -44,34 +47,86 @@ import java.io.IOException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Map.Entry;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Hashtable;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import gsn.storage.StorageManager;
 import org.apache.log4j.Logger;
 import org.joda.time.format.ISODateTimeFormat;
 
-public class DataDistributer implements VirtualSensorDataListener, VSensorStateChangeListener, Runnable {
+/**
+ * Delivers the stream elements produced by the virtual sensors to the listeners of one delivery system.
+ * Each listener has its own outbound queue, served by a bounded pool of worker threads shared by all
+ * the distributers, so that a slow listener only delays itself. A worker delivers at most
+ * {@link #DELIVERY_QUANTUM} stream elements to a listener before giving the thread to the next one.
+ */
+public class DataDistributer implements VirtualSensorDataListener, VSensorStateChangeListener, Monitorable {
 
     public static final int KEEP_ALIVE_PERIOD =  15 * 1000;  // 15 sec.
 
+    public static final int DEFAULT_WORKER_THREADS = 4;
+
+    public static final int DEFAULT_QUEUE_SIZE = 1000;
+
+    /**
+     * Maximum number of stream elements delivered to a listener in a row.
+     */
+    public static final int DELIVERY_QUANTUM = 50;
+
+    /**
+     * Maximum number of rows loaded from the database at once when a listener catches up.
+     */
+    private static final int MAX_ROWS = 1000;
+
+    /**
+     * What to do when a stream element is published and the outbound queue of a listener is full.
+     */
+    public enum OverflowPolicy {
+        /** Discards the oldest queued stream element. */
+        DROP_OLDEST,
+        /** Removes the listener, which has to reconnect. */
+        DISCONNECT,
+        /** Discards all the queued stream elements, only the latest one is kept. */
+        COALESCE;
+
+        public static OverflowPolicy fromString(String value) {
+            if (value == null)
+                return DROP_OLDEST;
+            for (OverflowPolicy policy : values())
+                if (policy.name().replace('_', '-').equalsIgnoreCase(value.trim()) || policy.name().equalsIgnoreCase(value.trim()))
+                    return policy;
+            logger.warn("Unknown distributer overflow policy: " + value + ", using " + DROP_OLDEST + ".");
+            return DROP_OLDEST;
+        }
+    }
+
     private static int keepAlivePeriod = -1;
 
+    private static int queueSize = -1;
+
+    private static OverflowPolicy overflowPolicy = null;
+
+    private static ExecutorService workers = null;
+
     private javax.swing.Timer keepAliveTimer = null;
 
     private static transient Logger logger = Logger.getLogger(DataDistributer.class);
 
     private static HashMap<Class<? extends DeliverySystem>, DataDistributer> singletonMap = new HashMap<Class<? extends DeliverySystem>, DataDistributer>();
-    private Thread thread;
 
-    private DataDistributer() {
+    private final String deliveryName;
+
+    private DataDistributer(Class<? extends DeliverySystem> c) {
+        deliveryName = c.getSimpleName();
         try {
-            //conn = Main.getStorage().getConnection();
-            thread = new Thread(this);
-            thread.start();
             // Start the keep alive Timer -- Note that the implementation is backed by one single thread for all the RestDelivery instances.
             keepAliveTimer = new  javax.swing.Timer(getKeepAlivePeriod(), new ActionListener() {
                 public void actionPerformed(ActionEvent e) {
@@ -88,7 +143,6 @@ public class DataDistributer implements VirtualSensorDataListener, VSensorStateC
                 }
             });
             keepAliveTimer.start();
-        //} catch (SQLException e) {
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
@@ -97,27 +151,76 @@ public class DataDistributer implements VirtualSensorDataListener, VSensorStateC
     public static DataDistributer getInstance(Class<? extends DeliverySystem> c) {
         DataDistributer toReturn = singletonMap.get(c);
         if (toReturn == null)
-            singletonMap.put(c, (toReturn = new DataDistributer()));
+            singletonMap.put(c, (toReturn = new DataDistributer(c)));
         return toReturn;
     }
 
+    /**
+     * When enabled (-DinMemoryDistribution=true), the listeners which are up to date receive the newly published
+     * stream elements directly from memory, as long as their query can be evaluated in memory (see
+     * {@link SQLValidator#toInMemoryQuery(String, gsn.beans.DataField[])}). The database is only queried to
+     * catch up, e.g., for the new listeners or when the primary key of the published element is unknown.
+     */
+    public static boolean isInMemoryDistributionEnabled() {
+        if (inMemoryDistribution == null)
+            inMemoryDistribution = Boolean.valueOf(System.getProperty("inMemoryDistribution"));
+        return inMemoryDistribution;
+    }
+
+    private static Boolean inMemoryDistribution = null;
+
     public static int getKeepAlivePeriod() {
         if (keepAlivePeriod == -1)
             keepAlivePeriod = System.getProperty("remoteKeepAlivePeriod") == null ? KEEP_ALIVE_PERIOD : Integer.parseInt(System.getProperty("remoteKeepAlivePeriod"));
         return keepAlivePeriod;
     }
 
-    private HashMap<DistributionRequest, PreparedStatement> preparedStatements = new HashMap<DistributionRequest, PreparedStatement>();
+    /**
+     * The capacity of the outbound queue of each listener (-DdistributerQueueSize).
+     */
+    public static int getQueueSize() {
+        if (queueSize == -1)
+            queueSize = System.getProperty("distributerQueueSize") == null ? DEFAULT_QUEUE_SIZE : Math.max(1, Integer.parseInt(System.getProperty("distributerQueueSize")));
+        return queueSize;
+    }
 
-    private ArrayList<DistributionRequest> listeners = new ArrayList<DistributionRequest>();
+    /**
+     * The policy applied when the outbound queue of a listener is full
+     * (-DdistributerOverflowPolicy=drop-oldest|disconnect|coalesce). For a listener catching up from the
+     * database, the stream elements published but not loaded yet count as queued.
+     */
+    public static OverflowPolicy getOverflowPolicy() {
+        if (overflowPolicy == null)
+            overflowPolicy = OverflowPolicy.fromString(System.getProperty("distributerOverflowPolicy"));
+        return overflowPolicy;
+    }
 
-    //private Connection conn;
+    /**
+     * The worker threads shared by all the distributers (-DdistributerThreads).
+     */
+    private static synchronized ExecutorService getWorkers() {
+        if (workers == null) {
+            int threads = System.getProperty("distributerThreads") == null ? DEFAULT_WORKER_THREADS : Math.max(1, Integer.parseInt(System.getProperty("distributerThreads")));
+            workers = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                private final AtomicInteger counter = new AtomicInteger();
+
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "DataDistributer-" + counter.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return workers;
+    }
 
-    private ConcurrentHashMap<DistributionRequest, DataEnumerator> candidateListeners = new ConcurrentHashMap<DistributionRequest, DataEnumerator>();
+    private HashMap<DistributionRequest, PreparedStatement> preparedStatements = new HashMap<DistributionRequest, PreparedStatement>();
 
-    private LinkedBlockingQueue<DistributionRequest> locker = new LinkedBlockingQueue<DistributionRequest>();
+    private ArrayList<DistributionRequest> listeners = new ArrayList<DistributionRequest>();
 
-    private ConcurrentHashMap<DistributionRequest, Boolean> candidatesForNextRound = new ConcurrentHashMap<DistributionRequest, Boolean>();
+    private HashMap<DistributionRequest, ListenerState> states = new HashMap<DistributionRequest, ListenerState>();
+
+    private int listenerCounter = 0;
 
     public void addListener(DistributionRequest listener) {
         synchronized (listeners) {
@@ -133,83 +236,37 @@ public class DataDistributer implements VirtualSensorDataListener, VSensorStateC
                 PreparedStatement prepareStatement = null;
                 try {
                     prepareStatement = getPersistantConnection(listener.getVSensorConfig()).prepareStatement(query); //prepareStatement = StorageManager.getInstance().getConnection().prepareStatement(query);
-                    prepareStatement.setMaxRows(1000); // Limit the number of rows loaded in memory.
+                    prepareStatement.setMaxRows(MAX_ROWS); // Limit the number of rows loaded in memory.
                 } catch (Exception e) {
                     throw new RuntimeException(e);
                 }
                 preparedStatements.put(listener, prepareStatement);
+                InMemoryQuery inMemoryQuery = null;
+                if (isInMemoryDistributionEnabled()) {
+                    try {
+                        inMemoryQuery = SQLValidator.getInstance().toInMemoryQuery(listener.getQuery(), listener.getVSensorConfig().getOutputStructure());
+                    } catch (SQLException e) {
+                        logger.warn(e.getMessage(), e);
+                    }
+                }
                 listeners.add(listener);
-                addListenerToCandidates(listener);
-
+                ListenerState state = new ListenerState(listener, inMemoryQuery, ++listenerCounter);
+                states.put(listener, state);
+                // A new listener starts by catching up from the database.
+                state.publish(null);
             } else {
                 logger.warn("Adding a listener to Distributer failed, duplicated listener! " + listener.toString());
             }
         }
     }
 
-
-    private void addListenerToCandidates(DistributionRequest listener) {
-        /**
-         * Locker variable should be modified EXACTLY like candidateListeners variable.
-         */
-        logger.debug("Adding the listener: " + listener.toString() + " to the candidates.");
-        DataEnumerator dataEnum = makeDataEnum(listener);
-        if (dataEnum.hasMoreElements()) {
-            candidateListeners.put(listener, dataEnum);
-            locker.add(listener);
-        }
-    }
-
-    private void removeListenerFromCandidates(DistributionRequest listener) {
-        /**
-         * Locker variable should be modified EXACTLY like candidateListeners variable.
-         */
-        logger.debug("Updating the candidate list [" + listener.toString() + " (removed)].");
-        if (candidatesForNextRound.contains(listener)) {
-            candidateListeners.put(listener, makeDataEnum(listener));
-            candidatesForNextRound.remove(listener);
-        } else {
-            locker.remove(listener);
-            candidateListeners.remove(listener);
-        }
-    }
-
-    /**
-     * This method only flushes one single stream element from the provided data enumerator.
-     * Returns false if the flushing the stream element fails. This method also cleans the prepared statements by removing the listener completely.
-     *
-     * @param dataEnum
-     * @param listener
-     * @return
-     */
-    private boolean flushStreamElement(DataEnumerator dataEnum, DistributionRequest listener) {
-        if (listener.isClosed()) {
-            logger.debug("Flushing an stream element failed, isClosed=true [Listener: " + listener.toString() + "]");
-            return false;
-        }
-
-        if (!dataEnum.hasMoreElements()) {
-            logger.debug("Nothing to flush to [Listener: " + listener.toString() + "]");
-            return true;
-        }
-
-        StreamElement se = dataEnum.nextElement();
-        //		boolean success = true;
-        boolean success = listener.deliverStreamElement(se);
-        if (!success) {
-            logger.debug("FLushing an stream element failed, delivery failure [Listener: " + listener.toString() + "]");
-            return false;
-        }
-        logger.debug("Flushing an stream element succeed [Listener: " + listener.toString() + "]");
-        return true;
-    }
-
     public void removeListener(DistributionRequest listener) {
         synchronized (listeners) {
             if (listeners.remove(listener)) {
                 try {
-                    candidatesForNextRound.remove(listener);
-                    removeListenerFromCandidates(listener);
+                    ListenerState state = states.remove(listener);
+                    if (state != null)
+                        state.discard();
                     preparedStatements.get(listener).close();
                     listener.close();
                     logger.warn("Removing listener completely from Distributer [Listener: " + listener.toString() + "]");
@@ -224,44 +281,296 @@ public class DataDistributer implements VirtualSensorDataListener, VSensorStateC
 
     public void consume(StreamElement se, VSensorConfig config) {
         synchronized (listeners) {
+            ArrayList<DistributionRequest> overflowed = null;
             for (DistributionRequest listener : listeners)
                 if (listener.getVSensorConfig() == config) {
                     logger.debug("sending stream element " + (se == null ? "second-chance-se" : se.toString()) + " produced by " + config.getName() + " to listener =>" + listener.toString());
-                    if (!candidateListeners.containsKey(listener)) {
-                        addListenerToCandidates(listener);
-                    } else {
-                        candidatesForNextRound.put(listener, Boolean.TRUE);
+                    if (!states.get(listener).publish(se)) {
+                        if (overflowed == null)
+                            overflowed = new ArrayList<DistributionRequest>();
+                        overflowed.add(listener);
                     }
                 }
+            if (overflowed != null)
+                for (DistributionRequest listener : overflowed) {
+                    logger.warn("The outbound queue of the listener is full, disconnecting [Listener: " + listener.toString() + "]");
+                    removeListener(listener);
+                }
         }
     }
 
-    public void run() {
-        while (true) {
-            try {
-                if (locker.isEmpty()) {
-                    logger.debug("Waiting(locked) for requests or data items, Number of total listeners: " + listeners.size());
-                    locker.put(locker.take());
-                    logger.debug("Lock released, trying to find interest listeners (total listeners:" + listeners.size() + ")");
+    /**
+     * Loads the next rows of the listener's query from the database. The prepared statements of the
+     * listeners share one connection per storage, so the queries are serialized on it.
+     */
+    private ArrayList<StreamElement> loadFromDatabase(DistributionRequest listener, long fromPk) {
+        ArrayList<StreamElement> toReturn = new ArrayList<StreamElement>();
+        PreparedStatement prepareStatement;
+        synchronized (listeners) {
+            prepareStatement = preparedStatements.get(listener);
+        }
+        if (prepareStatement == null)
+            return toReturn;
+        try {
+            Connection conn = prepareStatement.getConnection();
+            synchronized (conn) {
+                prepareStatement.setLong(1, fromPk);
+                DataEnumerator dataEnum = new DataEnumerator(Main.getStorage(listener.getVSensorConfig().getName()), prepareStatement, false, true);
+                while (dataEnum.hasMoreElements())
+                    toReturn.add(dataEnum.nextElement());
+                dataEnum.close();
+            }
+        } catch (SQLException e) {
+            logger.error(e.getMessage(), e);
+        }
+        return toReturn;
+    }
+
+    /**
+     * Returns, for each listener, the depth of its outbound queue, its lag (in milliseconds, between the
+     * latest published and the latest delivered stream element) and the number of delivered and dropped elements.
+     */
+    public Hashtable<String, Object> getStatistics() {
+        Hashtable<String, Object> stat = new Hashtable<String, Object>();
+        synchronized (listeners) {
+            stat.put("core.distributer." + deliveryName + ".listeners.value", listeners.size());
+            for (ListenerState state : states.values())
+                state.fillStatistics(stat);
+        }
+        return stat;
+    }
+
+    /**
+     * The outbound queue of one listener, and the task delivering it. The stream elements come either from
+     * memory (see {@link #isInMemoryDistributionEnabled()}) or, when the listener has to catch up, from the database.
+     * At most one worker serves a listener at a time.
+     */
+    private class ListenerState implements Runnable {
+
+        private final DistributionRequest listener;
+
+        private final InMemoryQuery inMemoryQuery;
+
+        private final String prefix;
+
+        /** Stream elements published while the listener is up to date, already projected on its query. */
+        private final ArrayDeque<StreamElement> queue = new ArrayDeque<StreamElement>();
+
+        /** Rows loaded from the database, delivered before the queue. */
+        private final ArrayDeque<StreamElement> backlog = new ArrayDeque<StreamElement>();
+
+        /** The primary keys of the stream elements published while catching up, not loaded from the database yet. */
+        private final ArrayDeque<Long> pending = new ArrayDeque<Long>();
+
+        /** The latest primary key published when the current query started. */
+        private long queriedPk;
+
+        /** Stream elements published while the database is queried, kept if the query didn't return them. */
+        private final ArrayList<StreamElement> publishedDuringQuery = new ArrayList<StreamElement>();
+
+        /** True if some stream elements have to be read from the database. */
+        private boolean catchUp = false;
+
+        private boolean querying = false;
+
+        private boolean scheduled = false;
+
+        private boolean discarded = false;
+
+        /** The primary key of the latest stream element queued or loaded from the database. */
+        private long highestQueuedPk;
+
+        private long lastPublished = -1;
+
+        private long lastDelivered = -1;
+
+        private long deliveredCount = 0;
+
+        private long droppedCount = 0;
+
+        private ListenerState(DistributionRequest listener, InMemoryQuery inMemoryQuery, int id) {
+            this.listener = listener;
+            this.inMemoryQuery = inMemoryQuery;
+            this.highestQueuedPk = listener.getLastVisitedPk();
+            this.prefix = "vs." + listener.getVSensorConfig().getName().replaceAll("\\.", "_") + ".distributer." + deliveryName + "." + id;
+        }
+
+        /**
+         * Queues the stream element, or marks the listener for catching up from the database if the stream element
+         * can't be delivered from memory (or is null). Schedules the delivery.
+         *
+         * @return false if the queue is full and the listener has to be disconnected.
+         */
+        private synchronized boolean publish(StreamElement se) {
+            if (discarded)
+                return true;
+            if (se != null)
+                lastPublished = Math.max(lastPublished, se.getTimeStamp());
+            boolean fromMemory = se != null && inMemoryQuery != null && se.getInternalPrimayKey() > 0;
+            if (fromMemory && !catchUp && !querying) {
+                if (!enqueue(se))
+                    return false;
+            } else if (fromMemory && !catchUp && publishedDuringQuery.size() < getQueueSize()) {
+                publishedDuringQuery.add(se);
+            } else {
+                catchUp = true;
+                if (se != null && !enqueuePending(se))
+                    return false;
+            }
+            schedule();
+            return true;
+        }
+
+        private boolean enqueue(StreamElement se) {
+            if (se.getInternalPrimayKey() <= highestQueuedPk)
+                return true; // already queued or delivered.
+            highestQueuedPk = se.getInternalPrimayKey();
+            if (se.getTimeStamp() <= listener.getStartTime() || !inMemoryQuery.accept(se))
+                return true;
+            if (queue.size() >= getQueueSize()) {
+                switch (getOverflowPolicy()) {
+                    case DISCONNECT:
+                        return false;
+                    case COALESCE:
+                        droppedCount += queue.size();
+                        queue.clear();
+                        break;
+                    default:
+                        droppedCount++;
+                        queue.poll();
                 }
-            } catch (InterruptedException e) {
-                logger.error(e.getMessage(), e);
             }
+            queue.add(inMemoryQuery.project(se));
+            return true;
+        }
 
+        /**
+         * Applies the overflow policy to a stream element which will be read from the database. The stream elements
+         * published while the listener catches up count as queued until they are loaded, dropping them moves the
+         * next query past their primary keys.
+         */
+        private boolean enqueuePending(StreamElement se) {
+            long pk = se.getInternalPrimayKey();
+            if (pk <= highestQueuedPk)
+                return true; // unknown primary key, or already loaded.
+            int depth = queue.size() + pending.size();
+            if (depth >= getQueueSize()) {
+                switch (getOverflowPolicy()) {
+                    case DISCONNECT:
+                        return false;
+                    case COALESCE:
+                        droppedCount += depth;
+                        queue.clear();
+                        pending.clear();
+                        highestQueuedPk = Math.max(highestQueuedPk, pk - 1);
+                        break;
+                    default:
+                        droppedCount++;
+                        if (queue.poll() == null)
+                            highestQueuedPk = Math.max(highestQueuedPk, pending.poll());
+                }
+            }
+            pending.add(pk);
+            return true;
+        }
 
-            for (Entry<DistributionRequest, DataEnumerator> item : candidateListeners.entrySet()) {
-                boolean success = flushStreamElement(item.getValue(), item.getKey());
-                if (success == false)
-                    removeListener(item.getKey());
-                else {
-                    if (!item.getValue().hasMoreElements()) {
-                        removeListenerFromCandidates(item.getKey());
-                        // As we are limiting the number of elements returned by the JDBC driver
-                        // we consume the eventual remaining items.
-                        consume(null, item.getKey().getVSensorConfig());
+        private void schedule() {
+            if (!scheduled && !discarded) {
+                scheduled = true;
+                getWorkers().execute(this);
+            }
+        }
+
+        private synchronized void discard() {
+            discarded = true;
+            queue.clear();
+            backlog.clear();
+            pending.clear();
+            publishedDuringQuery.clear();
+        }
+
+        public void run() {
+            try {
+                for (int i = 0; i < DELIVERY_QUANTUM; i++) {
+                    StreamElement se;
+                    long fromPk;
+                    synchronized (this) {
+                        if (discarded) {
+                            scheduled = false;
+                            return;
+                        }
+                        se = backlog.poll();
+                        if (se == null)
+                            se = queue.poll();
+                        if (se == null && !catchUp) {
+                            scheduled = false;
+                            return;
+                        }
+                        fromPk = highestQueuedPk;
+                        if (se == null) {
+                            catchUp = false;
+                            querying = true;
+                            queriedPk = pending.isEmpty() ? highestQueuedPk : pending.peekLast();
+                        }
                     }
+                    if (se == null) {
+                        loaded(loadFromDatabase(listener, fromPk));
+                        continue;
+                    }
+                    long begin = PipelineLatency.ENABLED ? System.nanoTime() : 0;
+                    if (listener.isClosed() || !listener.deliverStreamElement(se)) {
+                        logger.debug("Flushing an stream element failed [Listener: " + listener.toString() + "]");
+                        removeListener(listener);
+                        return;
+                    }
+                    if (PipelineLatency.ENABLED)
+                        PipelineLatency.record(listener.getVSensorConfig().getName(), PipelineLatency.Stage.DELIVERY, begin);
+                    synchronized (this) {
+                        deliveredCount++;
+                        lastDelivered = se.getTimeStamp();
+                    }
+                }
+            } catch (RuntimeException e) {
+                logger.error(e.getMessage(), e);
+                removeListener(listener);
+                return;
+            }
+            // The quantum is over, gives the worker to the other listeners.
+            getWorkers().execute(this);
+        }
+
+        private synchronized void loaded(ArrayList<StreamElement> rows) {
+            querying = false;
+            if (discarded)
+                return;
+            long skippedPk = highestQueuedPk; // the overflow policy may have dropped rows during the query.
+            for (StreamElement se : rows)
+                if (se.getInternalPrimayKey() > skippedPk) {
+                    highestQueuedPk = Math.max(highestQueuedPk, se.getInternalPrimayKey());
+                    backlog.add(se);
                 }
+            if (rows.size() >= MAX_ROWS) {
+                // As we are limiting the number of elements returned by the JDBC driver
+                // we consume the eventual remaining items.
+                catchUp = true;
+            } else {
+                // The query has seen all the stream elements published before it started.
+                highestQueuedPk = Math.max(highestQueuedPk, queriedPk);
+                if (!catchUp)
+                    for (StreamElement se : publishedDuringQuery)
+                        enqueue(se);
             }
+            while (!pending.isEmpty() && pending.peek() <= highestQueuedPk)
+                pending.poll();
+            publishedDuringQuery.clear();
+        }
+
+        private synchronized void fillStatistics(Hashtable<String, Object> stat) {
+            int depth = queue.size() + backlog.size() + pending.size();
+            stat.put(prefix + ".queue.depth.value", depth);
+            stat.put(prefix + ".lag.value", depth == 0 && !catchUp && !querying ? 0 : Math.max(0, lastPublished - lastDelivered));
+            stat.put(prefix + ".delivered.count", deliveredCount);
+            stat.put(prefix + ".dropped.count", droppedCount);
         }
     }
 
@@ -300,21 +609,6 @@ public class DataDistributer implements VirtualSensorDataListener, VSensorStateC
         return true;
     }
 
-    private DataEnumerator makeDataEnum(DistributionRequest listener) {
-
-        PreparedStatement prepareStatement = preparedStatements.get(listener);
-        try {
-            //prepareStatement.setLong(1, listener.getStartTime());
-            prepareStatement.setLong(1, listener.getLastVisitedPk());
-        } catch (SQLException e) {
-            logger.error(e.getMessage(), e);
-            return new DataEnumerator();
-        }
-
-        DataEnumerator dataEnum = new DataEnumerator(Main.getStorage(listener.getVSensorConfig().getName()), prepareStatement, false, true);
-        return dataEnum;
-    }
-
     public void release() {
         synchronized (listeners) {
             while (!listeners.isEmpty())
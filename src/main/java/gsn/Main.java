@@ -37,6 +37,7 @@ import gsn.beans.BeansInitializer;
 import gsn.beans.ContainerConfig;
 import gsn.beans.StorageConfig;
 import gsn.beans.VSensorConfig;
+import gsn.beans.windowing.SlideTimer;
 import gsn.config.GsnConf;
 import gsn.config.VsConf;
 import gsn.data.DataStore;
@@ -47,9 +48,13 @@ import gsn.http.rest.WPPushDelivery;
 import gsn.http.rest.RestDelivery;
 import gsn.monitoring.MemoryMonitor;
 import gsn.monitoring.Monitorable;
+import gsn.monitoring.PipelineLatency;
+import gsn.networking.IngestServer;
 import gsn.networking.zeromq.ZeroMQDelivery;
 import gsn.networking.zeromq.ZeroMQProxy;
 import gsn.security.SecurityData;
+import gsn.storage.RetentionManager;
+import gsn.storage.RollupManager;
 import gsn.storage.SQLValidator;
 import gsn.storage.StorageManager;
 import gsn.storage.StorageManagerFactory;
@@ -177,6 +182,8 @@ public final class Main {
         }
 
         mainStorage = StorageManagerFactory.getInstance(containerConfig.getStorage().getJdbcDriver ( ) , containerConfig.getStorage().getJdbcUsername ( ) , containerConfig.getStorage().getJdbcPassword ( ) , containerConfig.getStorage().getJdbcURL ( ) , maxDBConnections);
+        if (containerConfig.getStorage().isInsertBatchingEnabled())
+            mainStorage.enableInsertBatching(containerConfig.getStorage().getInsertBatchSize(), containerConfig.getStorage().getInsertBatchLinger());
         
         StorageConfig sc = containerConfig.getSliding() != null ? containerConfig.getSliding().getStorage() : containerConfig.getStorage() ;
         windowStorage = StorageManagerFactory.getInstance(sc.getJdbcDriver ( ) , sc.getJdbcUsername ( ) , sc.getJdbcPassword ( ) , sc.getJdbcURL ( ), maxSlidingDBConnections);
@@ -186,6 +193,9 @@ public final class Main {
         if ( logger.isInfoEnabled ( ) ) logger.info ( "The Container Configuration file loaded successfully." );
         
         toMonitor.add(new MemoryMonitor());
+        toMonitor.add(SlideTimer.getInstance());
+        if (PipelineLatency.ENABLED)
+            toMonitor.add(PipelineLatency.getInstance());
 
 		try {
 			logger.debug("Starting the http-server @ port: "+containerConfig.getContainerPort()+" (maxDBConnections: "+maxDBConnections+", maxSlidingDBConnections: " + maxSlidingDBConnections + ", maxServlets:"+maxServlets+")"+" ...");
@@ -224,6 +234,9 @@ public final class Main {
 		vsloader.addVSensorStateChangeListener(DataDistributer.getInstance(WPPushDelivery.class));
 		vsloader.addVSensorStateChangeListener(DataDistributer.getInstance(RestDelivery.class));
 		vsloader.addVSensorStateChangeListener(ModelDistributer.getInstance(WPPushDelivery.class));
+		vsloader.addVSensorStateChangeListener(RollupManager.getInstance());
+		vsloader.addVSensorStateChangeListener(RetentionManager.getInstance());
+		vsloader.addVSensorStateChangeListener(ContainerImpl.getInstance());
 		if (containerConfig.isZMQEnabled())
 			vsloader.addVSensorStateChangeListener(DataDistributer.getInstance(ZeroMQDelivery.class));
 
@@ -232,7 +245,17 @@ public final class Main {
 		ContainerImpl.getInstance().addVSensorDataListener(DataDistributer.getInstance(WPPushDelivery.class));
 		ContainerImpl.getInstance().addVSensorDataListener(DataDistributer.getInstance(RestDelivery.class));
 		ContainerImpl.getInstance().addVSensorDataListener(ModelDistributer.getInstance(WPPushDelivery.class));
+		ContainerImpl.getInstance().addVSensorDataListener(RollupManager.getInstance());
 		ContainerImpl.getInstance().addVSensorDataListener(DataDistributer.getInstance(ZeroMQDelivery.class));
+		toMonitor.add(DataDistributer.getInstance(LocalDeliveryWrapper.class));
+		toMonitor.add(DataDistributer.getInstance(PushDelivery.class));
+		toMonitor.add(DataDistributer.getInstance(WPPushDelivery.class));
+		toMonitor.add(DataDistributer.getInstance(RestDelivery.class));
+		if (containerConfig.isZMQEnabled())
+			toMonitor.add(DataDistributer.getInstance(ZeroMQDelivery.class));
+		toMonitor.add(RetentionManager.getInstance());
+		toMonitor.add(IngestServer.getInstance());
+		toMonitor.add(vsloader);
 		vsloader.startLoading();
 
 	}
@@ -521,6 +544,8 @@ public final class Main {
             sm = storages.get(dci.hashCode());
             if (sm == null) {
                 sm = StorageManagerFactory.getInstance(config.getStorage().getJdbcDriver(), config.getStorage().getJdbcUsername(), config.getStorage().getJdbcPassword(), config.getStorage().getJdbcURL(), DEFAULT_MAX_DB_CONNECTIONS);
+                if (config.getStorage().isInsertBatchingEnabled())
+                    sm.enableInsertBatching(config.getStorage().getInsertBatchSize(), config.getStorage().getInsertBatchLinger());
                 storages.put(dci.hashCode(), sm);
                 storagesConfigs.put(config, sm);
             }
@@ -37,28 +37,68 @@ import gsn.beans.InputStream;
 import gsn.beans.Modifications;
 import gsn.beans.StreamSource;
 import gsn.beans.VSensorConfig;
+import gsn.http.rest.LocalDeliveryWrapper;
+import gsn.monitoring.Monitorable;
+import gsn.storage.SQLUtils;
 import gsn.wrappers.AbstractWrapper;
 import gsn.wrappers.WrappersUtil;
 
 import java.io.*;
+import java.nio.file.FileSystems;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
 import org.jibx.runtime.JiBXException;
 
-public class VSensorLoader extends Thread {
+/**
+ * Loads, reloads and removes the virtual sensors as their configuration files are added, modified or removed.
+ * <p/>
+ * The virtual sensors directory is watched for changes (polled every 3 seconds if it can't be watched, or with -DvsWatch=false),
+ * and scanned anyway every 30 seconds in case an event is missed. The new virtual sensors are loaded sequentially
+ * by default; with -DvsLoaderThreads=N, concurrently by N threads, a virtual sensor reading another one through the
+ * local wrapper being loaded after it.
+ */
+public class VSensorLoader extends Thread implements Monitorable {
  
 	public static final String                    VSENSOR_POOL                        = "VSENSOR-POOL";
 	public static final String                    STREAM_SOURCE                       = "STREAM-SOURCE";
 	public static final String                    INPUT_STREAM                        = "INPUT-STREAM";
+
+	public static final int                       DEFAULT_LOADER_THREADS              = 1;
+	public static final int                       POLL_PERIOD                         = 3000;
+	public static final int                       WATCH_FALLBACK_PERIOD               = 30000;
+	private static final int                      WATCH_SETTLE_DELAY                  = 200;
 	
 	private String                                pluginsDir;
 	private boolean                               isActive                            = true;
 	private ArrayList<VSensorStateChangeListener> changeListeners                     = new ArrayList<VSensorStateChangeListener>();
+	private WatchService                          watcher                             = null;
+
+	private final ConcurrentHashMap<String, Long> loadingTimes                        = new ConcurrentHashMap<String, Long>();
+	private volatile long                         startupTime                         = -1;
+	private volatile long                         lastBatchTime                       = 0;
+	private volatile int                          lastBatchSize                       = 0;
+	private final AtomicInteger                   loadedCount                         = new AtomicInteger();
+	private final AtomicInteger                   failedCount                         = new AtomicInteger();
 	
     private static int                            VSENSOR_LOADER_THREAD_COUNTER       = 0;
     private static VSensorLoader                  singleton                           = null;
@@ -74,19 +114,26 @@ public class VSensorLoader extends Thread {
 		changeListeners.remove(listener);
 	}
 	
+	/**
+	 * The listeners are notified of one virtual sensor at a time, even when the virtual sensors are loaded concurrently.
+	 */
 	public boolean fireVSensorLoading(VSensorConfig config) {
-		for (VSensorStateChangeListener listener : changeListeners)
-			if (!listener.vsLoading(config))
-				return false;
+		synchronized (changeListeners) {
+			for (VSensorStateChangeListener listener : changeListeners)
+				if (!listener.vsLoading(config))
+					return false;
+		}
 		return true;
 	}
 	
 	public boolean fireVSensorUnLoading(VSensorConfig config) {
-		for (VSensorStateChangeListener listener : changeListeners)
-			if (!listener.vsUnLoading(config)) {
-				logger.error("Unloading failed !",new RuntimeException("Unloading : "+config.getName()+" is failed."));
-				return false;
-			}
+		synchronized (changeListeners) {
+			for (VSensorStateChangeListener listener : changeListeners)
+				if (!listener.vsUnLoading(config)) {
+					logger.error("Unloading failed !",new RuntimeException("Unloading : "+config.getName()+" is failed."));
+					return false;
+				}
+		}
 		return true;
 	}
 
@@ -113,6 +160,7 @@ public class VSensorLoader extends Thread {
 			logger.fatal ( "The Storage Manager shouldn't be null, possible a BUG." );
 			return;
 		}
+		watcher = createWatcher ( );
 		while ( isActive ) {
 			try {
 				loadPlugin ( );
@@ -120,11 +168,60 @@ public class VSensorLoader extends Thread {
 				logger.error ( e.getMessage ( ) , e );
 			}
 			try {
-				Thread.sleep ( 3000 );
+				if ( watcher == null )
+					Thread.sleep ( POLL_PERIOD );
+				else
+					waitForChanges ( );
 			} catch ( InterruptedException e ) {
 				logger.error ( e.getMessage ( ) , e );
 			} 
 		}
+		closeWatcher ( );
+	}
+
+	private WatchService createWatcher ( ) {
+		if ( "false".equalsIgnoreCase ( System.getProperty ( "vsWatch" ) ) )
+			return null;
+		try {
+			WatchService watchService = FileSystems.getDefault ( ).newWatchService ( );
+			Paths.get ( pluginsDir ).register ( watchService , StandardWatchEventKinds.ENTRY_CREATE , StandardWatchEventKinds.ENTRY_DELETE , StandardWatchEventKinds.ENTRY_MODIFY );
+			if ( logger.isInfoEnabled ( ) ) logger.info ( "Watching the " + pluginsDir + " directory for changes." );
+			return watchService;
+		} catch ( Exception e ) {
+			logger.warn ( "Watching the " + pluginsDir + " directory failed, it is polled every " + POLL_PERIOD + " ms instead: " + e.getMessage ( ) );
+			return null;
+		}
+	}
+
+	/**
+	 * Waits for a change in the virtual sensors directory (at most WATCH_FALLBACK_PERIOD ms), and then for the
+	 * events to settle, an editor usually writing a file in several steps.
+	 */
+	private void waitForChanges ( ) throws InterruptedException {
+		WatchKey key = watcher.poll ( WATCH_FALLBACK_PERIOD , TimeUnit.MILLISECONDS );
+		long deadline = System.currentTimeMillis ( ) + POLL_PERIOD;
+		while ( key != null ) {
+			key.pollEvents ( );
+			if ( !key.reset ( ) ) {
+				logger.warn ( "The " + pluginsDir + " directory can't be watched anymore, it is polled every " + POLL_PERIOD + " ms instead." );
+				closeWatcher ( );
+				return;
+			}
+			if ( System.currentTimeMillis ( ) > deadline )
+				return;
+			key = watcher.poll ( WATCH_SETTLE_DELAY , TimeUnit.MILLISECONDS );
+		}
+	}
+
+	private void closeWatcher ( ) {
+		if ( watcher == null )
+			return;
+		try {
+			watcher.close ( );
+		} catch ( IOException e ) {
+			logger.debug ( e.getMessage ( ) , e );
+		}
+		watcher = null;
 	}
 
     public synchronized void loadVirtualSensor(String vsConfigurationFileContent, String fileName) throws Exception {
@@ -165,14 +262,196 @@ public class VSensorLoader extends Thread {
         for (VSensorConfig configFile : removeIt) {
             removeVirtualSensor(configFile);
         }
-        for (VSensorConfig vs : addIt) {
-        	try{
-                loadPlugin(vs);
-        	}catch(Exception e){
-        		logger.error("Unable to load VSensor " + vs.getName() + ", retrying later...");
-        		e.printStackTrace();
-        	}
+        loadPlugins(addIt);
+    }
+
+    /**
+     * Loads the virtual sensors, concurrently when more than one thread is configured, and reports the loading times.
+     */
+    private void loadPlugins(ArrayList<VSensorConfig> configs) {
+        if (configs.isEmpty())
+            return;
+        long begin = System.currentTimeMillis();
+        int loaded;
+        int threads = System.getProperty("vsLoaderThreads") == null ? DEFAULT_LOADER_THREADS : Math.max(1, Integer.parseInt(System.getProperty("vsLoaderThreads")));
+        if (threads <= 1 || configs.size() == 1) {
+            loaded = 0;
+            for (VSensorConfig vs : configs)
+                if (loadTimed(vs))
+                    loaded++;
+        } else
+            loaded = loadConcurrently(configs, threads, new Loader() {
+                public boolean load(VSensorConfig vs) {
+                    return loadTimed(vs);
+                }
+            });
+        long elapsed = System.currentTimeMillis() - begin;
+        lastBatchTime = elapsed;
+        lastBatchSize = configs.size();
+        if (startupTime < 0)
+            startupTime = elapsed;
+        logger.warn("Loaded " + loaded + " of " + configs.size() + " virtual sensor(s) in " + elapsed + " ms.");
+    }
+
+    private boolean loadTimed(VSensorConfig vs) {
+        long begin = System.currentTimeMillis();
+        boolean loaded = false;
+        try {
+            loaded = loadPlugin(vs);
+        } catch (Exception e) {
+            logger.error("Unable to load VSensor " + vs.getName() + ", retrying later...");
+            e.printStackTrace();
+        }
+        long elapsed = System.currentTimeMillis() - begin;
+        if (loaded) {
+            loadedCount.incrementAndGet();
+            loadingTimes.put(vs.getName(), elapsed);
+            if (logger.isInfoEnabled()) logger.info("Loading the " + vs.getName() + " virtual sensor took " + elapsed + " ms.");
+        } else
+            failedCount.incrementAndGet();
+        return loaded;
+    }
+
+    /**
+     * Loads one virtual sensor of a batch, see {@link VSensorLoader#loadConcurrently(ArrayList, int, Loader)}.
+     */
+    interface Loader {
+        boolean load(VSensorConfig vs);
+    }
+
+    /**
+     * Loads the virtual sensors on a pool of threads, each virtual sensor being submitted once the virtual sensors it depends on
+     * (in this batch) are loaded or failed. The virtual sensors which depend on each other in a cycle are loaded as if they were independent.
+     * Called by the loading thread, which holds the lock of the loader until the batch is done: the workers do not take it.
+     * @return the number of virtual sensors loaded.
+     */
+    static int loadConcurrently(ArrayList<VSensorConfig> configs, int threads, final Loader loader) {
+        // VSensorConfig.equals compares the names, two configurations with the same name are two entries here.
+        final Map<VSensorConfig, ArrayList<VSensorConfig>> dependants = new IdentityHashMap<VSensorConfig, ArrayList<VSensorConfig>>();
+        final Map<VSensorConfig, Integer> pending = new IdentityHashMap<VSensorConfig, Integer>();
+        Map<String, VSensorConfig> byName = new HashMap<String, VSensorConfig>();
+        for (VSensorConfig vs : configs) {
+            dependants.put(vs, new ArrayList<VSensorConfig>());
+            pending.put(vs, 0);
+        }
+        Map<String, VSensorConfig> lastByName = new HashMap<String, VSensorConfig>();
+        for (VSensorConfig vs : configs) {
+            // The virtual sensors with the same name are loaded one after the other, so that all but the first are rejected as before.
+            VSensorConfig sameName = lastByName.put(vs.getName().toLowerCase(), vs);
+            if (sameName != null)
+                addDependency(dependants, pending, vs, sameName);
+            else
+                byName.put(vs.getName().toLowerCase(), vs);
+        }
+        for (VSensorConfig vs : configs)
+            for (String name : getLocalSources(vs)) {
+                VSensorConfig source = byName.get(name);
+                if (source != null && source != vs)
+                    addDependency(dependants, pending, vs, source);
+            }
+        breakCycles(configs, dependants, pending);
+
+        final ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, configs.size()), new ThreadFactory() {
+            private int counter = 0;
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "VSensorLoader-Worker-" + counter++);
+            }
+        });
+        final CountDownLatch done = new CountDownLatch(configs.size());
+        final AtomicInteger loaded = new AtomicInteger();
+        final Object lock = new Object();
+        class LoadTask implements Runnable {
+            private final VSensorConfig vs;
+            LoadTask(VSensorConfig vs) {
+                this.vs = vs;
+            }
+            public void run() {
+                try {
+                    if (loader.load(vs))
+                        loaded.incrementAndGet();
+                } finally {
+                    synchronized (lock) {
+                        for (VSensorConfig dependant : dependants.get(vs)) {
+                            int remaining = pending.get(dependant) - 1;
+                            pending.put(dependant, remaining);
+                            if (remaining == 0)
+                                pool.execute(new LoadTask(dependant));
+                        }
+                    }
+                    done.countDown();
+                }
+            }
+        }
+        synchronized (lock) {
+            for (VSensorConfig vs : configs)
+                if (pending.get(vs) == 0)
+                    pool.execute(new LoadTask(vs));
+        }
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            logger.error(e.getMessage(), e);
+        } finally {
+            pool.shutdown();
+        }
+        return loaded.get();
+    }
+
+    private static void addDependency(Map<VSensorConfig, ArrayList<VSensorConfig>> dependants, Map<VSensorConfig, Integer> pending, VSensorConfig vs, VSensorConfig dependency) {
+        for (VSensorConfig dependant : dependants.get(dependency))
+            if (dependant == vs)
+                return;
+        dependants.get(dependency).add(vs);
+        pending.put(vs, pending.get(vs) + 1);
+    }
+
+    /**
+     * Removes the dependencies of the virtual sensors which can't be ordered (those in or after a cycle).
+     */
+    private static void breakCycles(ArrayList<VSensorConfig> configs, Map<VSensorConfig, ArrayList<VSensorConfig>> dependants, Map<VSensorConfig, Integer> pending) {
+        Map<VSensorConfig, Integer> remaining = new IdentityHashMap<VSensorConfig, Integer>(pending);
+        ArrayList<VSensorConfig> ready = new ArrayList<VSensorConfig>();
+        for (VSensorConfig vs : configs)
+            if (remaining.get(vs) == 0)
+                ready.add(vs);
+        for (int i = 0; i < ready.size(); i++)
+            for (VSensorConfig dependant : dependants.get(ready.get(i))) {
+                remaining.put(dependant, remaining.get(dependant) - 1);
+                if (remaining.get(dependant) == 0)
+                    ready.add(dependant);
+            }
+        if (ready.size() == configs.size())
+            return;
+        for (VSensorConfig vs : configs)
+            if (remaining.get(vs) > 0) {
+                logger.warn("The " + vs.getName() + " virtual sensor reads a cycle of virtual sensors reading each other, it is loaded without waiting for them.");
+                for (ArrayList<VSensorConfig> list : dependants.values())
+                    for (Iterator<VSensorConfig> it = list.iterator(); it.hasNext(); )
+                        if (it.next() == vs)
+                            it.remove();
+                pending.put(vs, 0);
+            }
+    }
+
+    /**
+     * @return the (lower case) names of the virtual sensors read through the local wrapper.
+     */
+    private static ArrayList<String> getLocalSources(VSensorConfig vs) {
+        ArrayList<String> names = new ArrayList<String>();
+        for (InputStream inputStream : vs.getInputStreams()) {
+            for (StreamSource streamSource : inputStream.getSources()) {
+                for (AddressBean addressBean : streamSource.getAddressing()) {
+                    if (!LocalDeliveryWrapper.class.equals(Main.getWrapperClass(addressBean.getWrapper())))
+                        continue;
+                    String name = addressBean.getPredicateValue("name");
+                    if (name == null && addressBean.getPredicateValue("query") != null)
+                        name = SQLUtils.getTableName(addressBean.getPredicateValue("query"));
+                    if (name != null)
+                        names.add(name.trim().toLowerCase());
+                }
+            }
         }
+        return names;
     }
 
     public synchronized boolean loadPlugin(String fileFilterName) throws SQLException, JiBXException {
@@ -193,7 +472,12 @@ public class VSensorLoader extends Thread {
     }
 
 
-    private synchronized boolean loadPlugin(VSensorConfig vs) throws SQLException, JiBXException {
+    /**
+     * Loads a single virtual sensor. Called with the lock of the loader held, or by the workers of
+     * {@link #loadConcurrently(ArrayList, int, Loader)} while the loading thread holds it (the independent
+     * virtual sensors of a batch then being loaded concurrently).
+     */
+    private boolean loadPlugin(VSensorConfig vs) throws SQLException, JiBXException {
 
         if (!isVirtualSensorValid(vs))
             return false;
@@ -250,6 +534,7 @@ public class VSensorLoader extends Thread {
     
 	private void removeVirtualSensor(VSensorConfig configFile) {
 		logger.warn ("removing : " + configFile.getName ( ));
+		loadingTimes.remove ( configFile.getName ( ) );
 		VirtualSensor sensorInstance = Mappings.getVSensorInstanceByFileName ( configFile.getFileName ( ) );
 		Mappings.removeFilename ( configFile.getFileName ( ) );
 		removeAllVSResources ( sensorInstance );
@@ -302,6 +587,8 @@ public class VSensorLoader extends Thread {
 	public void removeAllVSResources ( VirtualSensor pool ) {
 		VSensorConfig config = pool.getConfig ( );
 		pool.closePool ( );
+		// The rows of the virtual sensor still buffered by the batched inserts.
+		Main.getStorage ( config ).flushInserts ( );
 		final String vsensorName = config.getName ( );
 		if ( logger.isInfoEnabled ( ) ) logger.info ("Releasing previously used resources used by [" + vsensorName + "].");
 		for ( InputStream inputStream : config.getInputStreams ( ) ) {
@@ -458,6 +745,22 @@ public class VSensorLoader extends Thread {
 		return true;
 	}
 
+	/**
+	 * Returns the number of virtual sensors loaded and failed, the time taken to load the virtual sensors found at startup
+	 * and the last ones, and the time each virtual sensor took to load (in milliseconds).
+	 */
+	public Hashtable<String, Object> getStatistics() {
+		Hashtable<String, Object> stat = new Hashtable<String, Object>();
+		stat.put("core.vsloader.loaded.count", loadedCount.get());
+		stat.put("core.vsloader.failed.count", failedCount.get());
+		stat.put("core.vsloader.startup.time.value", Math.max(0, startupTime));
+		stat.put("core.vsloader.lastBatch.time.value", lastBatchTime);
+		stat.put("core.vsloader.lastBatch.size.value", lastBatchSize);
+		for (Map.Entry<String, Long> entry : loadingTimes.entrySet())
+			stat.put("vs." + entry.getKey().replaceAll("\\.", "_") + ".loading.time.value", entry.getValue());
+		return stat;
+	}
+
 	public void stopLoading ( ) {
 		this.isActive = false;
 		this.interrupt ( );
@@ -28,21 +28,19 @@ package gsn;
 import gsn.beans.InputStream;
 import gsn.beans.StreamSource;
 import gsn.beans.VSensorConfig;
+import gsn.storage.RetentionManager;
 import gsn.vsensor.AbstractVirtualSensor;
 import org.apache.log4j.Logger;
 
 import java.io.File;
-import java.sql.SQLException;
 
 public class VirtualSensor {
 
     private static final transient Logger logger = Logger.getLogger(VirtualSensor.class);
-    private static final int GARBAGE_COLLECTOR_INTERVAL = 2;
 
     private AbstractVirtualSensor virtualSensor = null;
     private VSensorConfig config = null;
     private long lastModified = -1;
-    private int noOfCallsToReturnVS = 0;
 
     public VirtualSensor(VSensorConfig config) {
         this.config = config;
@@ -74,8 +72,7 @@ public class VirtualSensor {
      */
     public synchronized void returnVS(AbstractVirtualSensor o) {
         if (o == null) return;
-        if (++noOfCallsToReturnVS % GARBAGE_COLLECTOR_INTERVAL == 0)
-            DoUselessDataRemoval();
+        // The storage size is enforced in the background by the RetentionManager.
     }
 
     public synchronized void closePool() {
@@ -115,27 +112,6 @@ public class VirtualSensor {
 
     // apply the storage size parameter to the virtual sensor table
     public void DoUselessDataRemoval() {
-        if (config.getParsedStorageSize() == VSensorConfig.STORAGE_SIZE_NOT_SET) return;
-        StringBuilder query;
-
-        if (config.isStorageCountBased()) {
-            query = Main.getStorage(config.getName()).getStatementRemoveUselessDataCountBased(config.getName(), config.getParsedStorageSize());
-        }
-        else {
-            query = Main.getStorage(config.getName()).getStatementRemoveUselessDataTimeBased(config.getName(), config.getParsedStorageSize());
-        }
-
-        int effected = 0;
-        try {
-            if (logger.isDebugEnabled())
-                logger.debug("Enforcing the limit size on the VS table by : " + query);
-            effected = Main.getStorage(config.getName()).executeUpdate(query);
-        } catch (SQLException e) {
-            logger.error("Error in executing: " + query);
-            logger.error(e.getMessage(), e);
-        }
-        if (logger.isDebugEnabled())
-            logger.debug("There were " + effected + " old rows dropped from " + config.getName());
+        RetentionManager.getInstance().enforce(config);
     }
 }
-
@@ -0,0 +1,116 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+* 
+* This file is part of GSN.
+* 
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+* 
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+* 
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+* 
+* File: src/gsn/acquisition2/H2SafeStorageQueue.java
+*
+* @author gsn_devs
+*
+*/
+
+
+package gsn.acquisition2;
+
+import gsn.acquisition2.messages.DataMsg;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Stores the entries as rows of a table of the safe storage database, the sequence number being the pk.
+ * The acknowledged rows are flagged as processed, or deleted.
+ */
+public class H2SafeStorageQueue implements SafeStorageQueue {
+
+  private static transient Logger logger = Logger.getLogger ( H2SafeStorageQueue.class );
+
+  private PreparedStatement insertPS;
+
+  private PreparedStatement readerPS;
+
+  private PreparedStatement markerPS;
+
+  public H2SafeStorageQueue(SafeStorageDB storage, String tableName, boolean keepProcessedEntries) throws SQLException {
+    insertPS = storage.createPreparedStatement("insert into "+tableName+" (stream_element) values (?)");
+    readerPS = storage.createBatchReaderStatement(tableName);
+    markerPS = storage.createProcessedMarkerStatement(tableName, keepProcessedEntries);
+  }
+
+  public synchronized long append(Serializable[] values) throws IOException {
+    try {
+      insertPS.clearParameters();
+      insertPS.setObject(1,values);
+      insertPS.executeUpdate();
+      final ResultSet generatedKeys = insertPS.getGeneratedKeys();
+      generatedKeys.next();
+      long pk = generatedKeys.getLong(1);
+      generatedKeys.close();
+      return pk;
+    } catch (SQLException e) {
+      throw new IOException(e.getMessage(), e);
+    }
+  }
+
+  public synchronized List<DataMsg> read(long afterSequenceNumber, int max) throws IOException {
+    ArrayList<DataMsg> entries = new ArrayList<DataMsg>();
+    try {
+      readerPS.clearParameters();
+      readerPS.setLong(1, afterSequenceNumber);
+      readerPS.setInt(2, max);
+      ResultSet rs = readerPS.executeQuery();
+      while (rs.next()) {
+        long pk =rs.getLong(1);
+        Object[]  se = (Object[]) rs.getArray(2).getArray();
+        long ts = rs.getTimestamp(3).getTime();
+        entries.add(new DataMsg(se,pk,ts));
+      }
+      rs.close();
+    } catch (SQLException e) {
+      throw new IOException(e.getMessage(), e);
+    }
+    return entries;
+  }
+
+  public synchronized void acknowledge(long sequenceNumber) throws IOException {
+    try {
+      markerPS.clearParameters();
+      markerPS.setLong(1, sequenceNumber);
+      markerPS.executeUpdate();
+    } catch (SQLException e) {
+      throw new IOException(e.getMessage(), e);
+    }
+  }
+
+  public synchronized void close() {
+    for (PreparedStatement ps : new PreparedStatement[] {insertPS, readerPS, markerPS}) {
+      try {
+        ps.close();
+      } catch (SQLException e) {
+        logger.error(e.getMessage());
+      }
+    }
+  }
+
+}
@@ -31,6 +31,7 @@ import gsn.acquisition2.wrappers.AbstractWrapper2;
 import gsn.beans.AddressBean;
 import gsn.wrappers.WrappersUtil;
 
+import java.io.IOException;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -140,14 +141,16 @@ public class SafeStorage {
       pis.close();
       rs.close();
 	  
-      PreparedStatement ps = storage.createPreparedStatement("insert into "+table_name+" (stream_element) values (?)");
       wrapper.setTableName(table_name);
       wrapper.setNetwork(network);
-      wrapper.setPreparedStatement(ps);
+      wrapper.setQueue(storage.createQueue(table_name, keepProcessed));
       wrapper.setKeepProcessedSafeStorageEntries(keepProcessed) ;
     } catch ( SQLException e ) {
       logger.error ( e.getMessage ( ) , e );
       return null;
+    } catch ( IOException e ) {
+      logger.error ( e.getMessage ( ) , e );
+      return null;
     } 
     wrapper.start ( );
     loadedWrappers.put(helloMsg.getRequster(), wrapper);
@@ -177,5 +180,19 @@ public class SafeStorage {
     return storage;
   }
   
+  /**
+   * Stops the loaded wrappers and closes their queues.
+   */
+  public void shutdown() {
+    for (AbstractWrapper2 wrapper : loadedWrappers.values()) {
+      try {
+        wrapper.releaseResources();
+      } catch (Exception e) {
+        logger.error(e.getMessage(), e);
+      }
+    }
+    loadedWrappers.clear();
+  }
+  
   
 }
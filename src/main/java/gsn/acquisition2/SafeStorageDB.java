@@ -27,6 +27,7 @@
 
 package gsn.acquisition2;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.sql.Connection;
@@ -50,11 +51,49 @@ public class SafeStorageDB {
   private static final String SAFESTORAGE_PROPERTIES_FILE = "conf/safestorage.properties";
   private static final String DEFAULT_SAFESTORAGE_PATH = "."; //by default db files are saved in GSN's default directory
 
+  public static final String BACKEND_H2 = "h2";
+  public static final String BACKEND_LOG = "log";
+
+  private String backend = BACKEND_H2;
+
+  private File logDirectory = null;
+
+  private int segmentSize = SegmentedLogQueue.DEFAULT_SEGMENT_SIZE;
+
+  private boolean sync = false;
+
   public SafeStorageDB(int safeStoragePort) throws ClassNotFoundException, SQLException {
     Class.forName("org.h2.Driver");
     dbUrl = getDBUrl(SAFESTORAGE_PROPERTIES_FILE, "storage" + safeStoragePort);
     logger.warn("Connecting to : " + dbUrl);
     connection = getConnection();
+    Properties props = new Properties();
+    try {
+      props.load(new FileInputStream(SAFESTORAGE_PROPERTIES_FILE));
+    } catch (IOException e) {
+      // the defaults are used, see getDBUrl.
+    }
+    backend = props.getProperty("backend", BACKEND_H2).trim().toLowerCase();
+    if (BACKEND_LOG.equals(backend)) {
+      String dbPath = props.getProperty("path", DEFAULT_SAFESTORAGE_PATH);
+      logDirectory = new File(dbPath.isEmpty() ? DEFAULT_SAFESTORAGE_PATH : dbPath, "storage" + safeStoragePort + ".log");
+      segmentSize = Integer.parseInt(props.getProperty("segment-size", Integer.toString(SegmentedLogQueue.DEFAULT_SEGMENT_SIZE)).trim());
+      sync = Boolean.parseBoolean(props.getProperty("sync", "false").trim());
+      logger.warn("The entries are stored in segment files in : " + logDirectory);
+    }
+    else if (!BACKEND_H2.equals(backend)) {
+      logger.error("Unknown safe storage backend >" + backend + "<, using " + BACKEND_H2 + ".");
+      backend = BACKEND_H2;
+    }
+  }
+
+  /**
+   * Opens the queue storing the entries of a wrapper, with the configured backend (the >backend< property: h2 or log).
+   */
+  public SafeStorageQueue createQueue(String tableName, boolean keepProcessedEntries) throws SQLException, IOException {
+    if (BACKEND_LOG.equals(backend))
+      return new SegmentedLogQueue(new File(logDirectory, tableName), segmentSize, keepProcessedEntries, sync);
+    return new H2SafeStorageQueue(this, tableName, keepProcessedEntries);
   }
 
   private void close(Connection c) {
@@ -128,6 +167,24 @@ public class SafeStorageDB {
     return ps;
   }
 
+  /**
+   * Reads the next entries to send: the parameters are the pk of the latest entry sent and the maximum
+   * number of entries to read.
+   */
+  public PreparedStatement createBatchReaderStatement(String tableName) throws SQLException {
+    return createPreparedStatement("select pk,stream_element,created_at from "+tableName+" where processed = false and pk > ? order by pk asc limit ?");
+  }
+
+  /**
+   * Marks as processed (or deletes) all the entries up to the pk given as parameter, so that a cumulative
+   * acknowledgment is applied with a single statement.
+   */
+  public PreparedStatement createProcessedMarkerStatement(String tableName, boolean keepProcessedEntries) throws SQLException {
+    if (keepProcessedEntries)
+      return createPreparedStatement("update "+tableName+" set PROCESSED = true where processed = false and pk <= ? ");
+    return createPreparedStatement("delete from "+tableName+" where pk <= ? ");
+  }
+
     /*
     * Creates a well-formed h2 jdb url
     * using the path given in properties file 
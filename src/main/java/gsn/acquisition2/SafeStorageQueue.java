@@ -0,0 +1,60 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+* 
+* This file is part of GSN.
+* 
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+* 
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+* 
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+* 
+* File: src/gsn/acquisition2/SafeStorageQueue.java
+*
+* @author gsn_devs
+*
+*/
+
+
+package gsn.acquisition2;
+
+import gsn.acquisition2.messages.DataMsg;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * The entries acquired by a safe storage wrapper for one requester, kept until the requester acknowledges them.
+ * The sequence numbers are increasing, and an acknowledgment covers all the entries up to its sequence number.
+ */
+public interface SafeStorageQueue {
+
+  /**
+   * Stores the entry.
+   * @return the sequence number of the entry.
+   */
+  public long append(Serializable[] values) throws IOException;
+
+  /**
+   * Reads the unacknowledged entries following the given sequence number, in order.
+   * @param max the maximum number of entries returned.
+   */
+  public List<DataMsg> read(long afterSequenceNumber, int max) throws IOException;
+
+  /**
+   * Acknowledges all the entries up to the sequence number (included).
+   */
+  public void acknowledge(long sequenceNumber) throws IOException;
+
+  public void close();
+
+}
@@ -0,0 +1,356 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+* 
+* This file is part of GSN.
+* 
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+* 
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+* 
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+* 
+* File: src/gsn/acquisition2/SegmentedLogQueue.java
+*
+* @author gsn_devs
+*
+*/
+
+
+package gsn.acquisition2;
+
+import gsn.acquisition2.messages.DataMsg;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Stores the entries in append-only segment files of fixed size, memory mapped, in one directory per requester.
+ * Each record is:
+ * <pre>
+ * length (int) | sequence number (long) | created at (long) | crc32 of the sequence number, created at and data (int) | data (serialized values)
+ * </pre>
+ * The length is written last, so a record is either complete or ends the segment. Instead of flagging each entry,
+ * the sequence number of the latest acknowledged entry is persisted in the >offset< file, and the segments
+ * whose entries are all acknowledged are deleted (unless the processed entries are kept).
+ * When the queue is opened, the records are checked against their crc, and the segment being written is
+ * truncated after the latest valid record.
+ */
+public class SegmentedLogQueue implements SafeStorageQueue {
+
+  private static transient Logger logger = Logger.getLogger ( SegmentedLogQueue.class );
+
+  public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+  private static final int HEADER_SIZE = 4 + 8 + 8 + 4;
+
+  private static final String SEGMENT_SUFFIX = ".seg";
+
+  private static final String OFFSET_FILE = "offset";
+
+  private final File directory;
+
+  private final int segmentSize;
+
+  private final boolean keepProcessedEntries;
+
+  private final boolean sync;
+
+  /** The segments, by the sequence number of their first record. */
+  private final TreeMap<Long, Segment> segments = new TreeMap<Long, Segment>();
+
+  private Segment active = null;
+
+  private long nextSequenceNumber = 1;
+
+  private long acknowledged = 0;
+
+  private FileChannel offsetChannel;
+
+  private final ByteBuffer offsetBuffer = ByteBuffer.allocate(12);
+
+  /** The reading position: the record of the sequence number readSequenceNumber in the segment readSegment. */
+  private Segment readSegment = null;
+
+  private int readPosition;
+
+  private long readSequenceNumber;
+
+  /**
+   * Opens the queue stored in the directory, recovering the valid records.
+   * @param sync if true, the segments and the offset are forced to the disk at each write.
+   */
+  public SegmentedLogQueue(File directory, int segmentSize, boolean keepProcessedEntries, boolean sync) throws IOException {
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+    this.keepProcessedEntries = keepProcessedEntries;
+    this.sync = sync;
+    if (!directory.isDirectory() && !directory.mkdirs())
+      throw new IOException("Can't create the directory >" + directory + "<");
+    offsetChannel = new RandomAccessFile(new File(directory, OFFSET_FILE), "rw").getChannel();
+    acknowledged = readOffset();
+    recover();
+  }
+
+  private long readOffset() throws IOException {
+    offsetBuffer.clear();
+    offsetChannel.read(offsetBuffer, 0);
+    if (offsetBuffer.position() < offsetBuffer.capacity())
+      return 0;
+    long offset = offsetBuffer.getLong(0);
+    CRC32 crc = new CRC32();
+    crc.update(offsetBuffer.array(), 0, 8);
+    if ((int) crc.getValue() != offsetBuffer.getInt(8)) {
+      logger.warn("The offset of >" + directory + "< is corrupted, the entries are sent again from the beginning.");
+      return 0;
+    }
+    return offset;
+  }
+
+  private void writeOffset(long offset) throws IOException {
+    offsetBuffer.clear();
+    offsetBuffer.putLong(0, offset);
+    CRC32 crc = new CRC32();
+    crc.update(offsetBuffer.array(), 0, 8);
+    offsetBuffer.putInt(8, (int) crc.getValue());
+    offsetChannel.write(offsetBuffer, 0);
+    if (sync)
+      offsetChannel.force(false);
+  }
+
+  private void recover() throws IOException {
+    File[] files = directory.listFiles(new FilenameFilter() {
+      public boolean accept(File dir, String name) {
+        return name.endsWith(SEGMENT_SUFFIX);
+      }
+    });
+    Arrays.sort(files);
+    for (File file : files) {
+      long base = Long.parseLong(file.getName().substring(0, file.getName().length() - SEGMENT_SUFFIX.length()));
+      Segment segment = new Segment(file, base, (int) file.length());
+      boolean corrupted = segment.scan();
+      segments.put(base, segment);
+      if (corrupted) {
+        logger.warn("The segment >" + file + "< is truncated after the entry " + segment.last + ".");
+        segment.clearFrom(segment.end);
+      }
+      nextSequenceNumber = Math.max(nextSequenceNumber, segment.last + 1);
+      active = segment;
+    }
+    nextSequenceNumber = Math.max(nextSequenceNumber, acknowledged + 1);
+    deleteAcknowledgedSegments();
+  }
+
+  public synchronized long append(Serializable[] values) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream oos = new ObjectOutputStream(bytes);
+    oos.writeObject(values);
+    oos.close();
+    byte[] data = bytes.toByteArray();
+    if (active == null || active.end + HEADER_SIZE + data.length > active.capacity) {
+      active = new Segment(new File(directory, String.format("%020d", nextSequenceNumber) + SEGMENT_SUFFIX), nextSequenceNumber, Math.max(segmentSize, HEADER_SIZE + data.length));
+      segments.put(active.base, active);
+    }
+    long sequenceNumber = nextSequenceNumber++;
+    long createdAt = System.currentTimeMillis();
+    CRC32 crc = new CRC32();
+    ByteBuffer buffer = active.buffer;
+    int position = active.end;
+    buffer.putLong(position + 4, sequenceNumber);
+    buffer.putLong(position + 12, createdAt);
+    crc.update(longToBytes(sequenceNumber, createdAt));
+    crc.update(data);
+    buffer.putInt(position + 20, (int) crc.getValue());
+    buffer.position(position + HEADER_SIZE);
+    buffer.put(data);
+    buffer.putInt(position, data.length); // the record is complete.
+    if (sync)
+      active.buffer.force();
+    active.end = position + HEADER_SIZE + data.length;
+    active.last = sequenceNumber;
+    return sequenceNumber;
+  }
+
+  public synchronized List<DataMsg> read(long afterSequenceNumber, int max) throws IOException {
+    ArrayList<DataMsg> entries = new ArrayList<DataMsg>();
+    long from = Math.max(afterSequenceNumber, acknowledged) + 1;
+    if (readSegment == null || readSequenceNumber != from || !segments.containsKey(readSegment.base)) {
+      Map.Entry<Long, Segment> floor = segments.floorEntry(from);
+      readSegment = floor != null ? floor.getValue() : (segments.isEmpty() ? null : segments.firstEntry().getValue());
+      readPosition = 0;
+      readSequenceNumber = readSegment == null ? from : readSegment.base;
+    }
+    while (readSegment != null && entries.size() < max) {
+      if (readPosition >= readSegment.end) {
+        if (readSegment == active)
+          break;
+        Map.Entry<Long, Segment> next = segments.higherEntry(readSegment.base);
+        if (next == null)
+          break;
+        readSegment = next.getValue();
+        readPosition = 0;
+        continue;
+      }
+      ByteBuffer buffer = readSegment.buffer;
+      int length = buffer.getInt(readPosition);
+      long sequenceNumber = buffer.getLong(readPosition + 4);
+      if (sequenceNumber >= from) {
+        byte[] data = new byte[length];
+        ByteBuffer view = buffer.duplicate();
+        view.position(readPosition + HEADER_SIZE);
+        view.get(data);
+        entries.add(new DataMsg(deserialize(data), sequenceNumber, buffer.getLong(readPosition + 12)));
+      }
+      readPosition += HEADER_SIZE + length;
+      readSequenceNumber = sequenceNumber + 1;
+    }
+    if (readSequenceNumber < from)
+      readSequenceNumber = from;
+    return entries;
+  }
+
+  public synchronized void acknowledge(long sequenceNumber) throws IOException {
+    if (sequenceNumber <= acknowledged)
+      return;
+    acknowledged = sequenceNumber;
+    writeOffset(sequenceNumber);
+    deleteAcknowledgedSegments();
+  }
+
+  private void deleteAcknowledgedSegments() {
+    if (keepProcessedEntries)
+      return;
+    Iterator<Segment> iter = segments.values().iterator();
+    while (iter.hasNext()) {
+      Segment segment = iter.next();
+      if (segment == active || segment.last > acknowledged)
+        break;
+      iter.remove();
+      if (segment == readSegment)
+        readSegment = null;
+      if (!segment.file.delete())
+        logger.warn("Can't delete the segment >" + segment.file + "<");
+    }
+  }
+
+  public synchronized void close() {
+    try {
+      offsetChannel.close();
+    } catch (IOException e) {
+      logger.error(e.getMessage());
+    }
+    for (Segment segment : segments.values())
+      segment.buffer.force();
+  }
+
+  private static byte[] longToBytes(long a, long b) {
+    return ByteBuffer.allocate(16).putLong(a).putLong(b).array();
+  }
+
+  private static Object[] deserialize(byte[] data) throws IOException {
+    ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(data));
+    try {
+      return (Object[]) ois.readObject();
+    } catch (ClassNotFoundException e) {
+      throw new IOException(e.getMessage(), e);
+    } finally {
+      ois.close();
+    }
+  }
+
+  /**
+   * A segment file, mapped in memory.
+   */
+  private class Segment {
+
+    private final File file;
+
+    private final long base;
+
+    private final int capacity;
+
+    private final MappedByteBuffer buffer;
+
+    /** The position following the latest record. */
+    private int end = 0;
+
+    /** The sequence number of the latest record. */
+    private long last;
+
+    private Segment(File file, long base, int capacity) throws IOException {
+      this.file = file;
+      this.base = base;
+      this.capacity = capacity;
+      this.last = base - 1;
+      RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      try {
+        raf.setLength(capacity);
+        buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+      } finally {
+        raf.close();
+      }
+    }
+
+    /**
+     * Finds the valid records.
+     * @return true if the segment ends with an invalid record.
+     */
+    private boolean scan() {
+      CRC32 crc = new CRC32();
+      while (end + HEADER_SIZE <= capacity) {
+        int length = buffer.getInt(end);
+        if (length == 0)
+          return false;
+        if (length < 0 || end + HEADER_SIZE + length > capacity)
+          return true;
+        long sequenceNumber = buffer.getLong(end + 4);
+        long createdAt = buffer.getLong(end + 12);
+        byte[] data = new byte[length];
+        ByteBuffer view = buffer.duplicate();
+        view.position(end + HEADER_SIZE);
+        view.get(data);
+        crc.reset();
+        crc.update(longToBytes(sequenceNumber, createdAt));
+        crc.update(data);
+        if ((int) crc.getValue() != buffer.getInt(end + 20) || sequenceNumber != last + 1)
+          return true;
+        last = sequenceNumber;
+        end += HEADER_SIZE + length;
+      }
+      return false;
+    }
+
+    private void clearFrom(int position) {
+      for (int i = position; i < capacity; i++)
+        buffer.put(i, (byte) 0);
+      buffer.force();
+    }
+  }
+
+}
@@ -44,6 +44,9 @@ public class SafeStorageClientSessionHandler extends IoHandlerAdapter {
   
   private MessageHandler handler;
   
+  /** Set once a message is refused: the messages already in flight are then ignored, they are sent again after the reconnection. */
+  private boolean nackSent = false;
+  
   public SafeStorageClientSessionHandler(AddressBean wrapprDetails,MessageHandler handler,String requester) {
     this.handler=handler;
     helloMsg = new HelloMsg(wrapprDetails,requester);
@@ -56,11 +59,16 @@ public class SafeStorageClientSessionHandler extends IoHandlerAdapter {
   public void messageReceived(IoSession session, Object message) throws Exception {
     logger.debug("Received data from the server");
     DataMsg dataMsg = (DataMsg) message;
+    if (nackSent) {
+      logger.debug("Ignoring data received after a Nack");
+      return;
+    }
     if (handler.messageToBeProcessed(dataMsg)) {
       session.write(new AcknowledgmentMsg(AcknowledgmentMsg.SUCCESS,dataMsg.getSequenceNumber()));
       logger.debug("Sending Success Ack");
     }else {
       session.write(new AcknowledgmentMsg(AcknowledgmentMsg.FAILURE,dataMsg.getSequenceNumber()));
+      nackSent = true;
       logger.debug("Sending Success Nack");
     }
     
@@ -57,8 +57,10 @@ public class SafeStorageServer {
 	
 	private IoAcceptor acceptor;
 	
+	private SafeStorage ss;
+	
 	public SafeStorageServer(int portNo) throws IOException, ClassNotFoundException, SQLException {
-		SafeStorage ss  = new SafeStorage(portNo);
+		ss  = new SafeStorage(portNo);
 		acceptor = new SocketAcceptor();
 		acceptor.getDefaultConfig().setThreadModel(ThreadModel.MANUAL);
 				
@@ -82,6 +84,7 @@ public class SafeStorageServer {
   
   public void shutdown () {
 	  acceptor.unbindAll();
+	  ss.shutdown();
   }
   
   public static void main(String[] args) throws Exception {
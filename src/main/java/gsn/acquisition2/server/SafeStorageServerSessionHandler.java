@@ -32,17 +32,27 @@ import gsn.acquisition2.messages.DataMsg;
 import gsn.acquisition2.messages.HelloMsg;
 import gsn.acquisition2.wrappers.AbstractWrapper2;
 
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
+import java.io.IOException;
 import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.List;
 
 import org.apache.log4j.Logger;
 import org.apache.mina.common.IoHandlerAdapter;
 import org.apache.mina.common.IoSession;
 
+/**
+ * Sends the entries of the safe storage to the client. By default, one DataMsg is sent at a time and the next one
+ * is only sent once it is acknowledged (stop-and-wait). If the wrapper sets the >ss-window< predicate to N > 1,
+ * up to N DataMsgs are in flight: the entries are read by batches, an acknowledgment of a sequence number
+ * acknowledges all the entries up to it, and the acknowledged entries are marked as processed by batches
+ * (see {@link gsn.acquisition2.SafeStorageQueue}).
+ */
 public class SafeStorageServerSessionHandler extends IoHandlerAdapter{
 	
 	private static final String SESSION_STATE_KEY = "ssk";
+
+	public static final String WINDOW_PREDICATE = "ss-window";
 	
 	private SafeStorage ss;
 
@@ -70,29 +80,25 @@ public class SafeStorageServerSessionHandler extends IoHandlerAdapter{
 			}
 			SessionState sstate = new SessionState () ;
 			sstate.setWrapper(wrapper);
-			sstate.setReaderPS(ss.getStorage().createPreparedStatement("select pk,stream_element,created_at from "+wrapper.getTableName()+" where processed = false order by pk asc limit 1"));	
 			logger.debug("isKeepProcessedSafeStorageEntries: " + wrapper.isKeepProcessedSafeStorageEntries());
-			if (wrapper.isKeepProcessedSafeStorageEntries()) {
-				sstate.setSuccessAckUpdatePS(ss.getStorage().createPreparedStatement("update "+wrapper.getTableName()+" set PROCESSED  = true where pk = ? "));
-			}
-			else {
-				sstate.setSuccessAckUpdatePS(ss.getStorage().createPreparedStatement("delete from " + wrapper.getTableName() + " where pk = ? "));
+			int window = hello.getWrapperDetails().getPredicateValueAsInt(WINDOW_PREDICATE, 1);
+			if (window > 1) {
+				logger.debug("Sending with a window of " + window + " messages");
+				sstate.setWindow(window);
 			}
 			session.setAttribute(SESSION_STATE_KEY, sstate);
 		}
 		if (message instanceof AcknowledgmentMsg) {
 			AcknowledgmentMsg ack = (AcknowledgmentMsg)message;
 			if (!ack.isAck()) {
-				logger.error("Recieved Nack for Hello Message sent for "+((HelloMsg) message).getWrapperDetails().toString());
+				logger.error("Recieved Nack for the message "+ack.getSeqNumber());
 				logger.error("Closing the connection to the SafeStorageServer...");
 				session.close();
 				return;
 			}else {
 				SessionState sstate = (SessionState) session.getAttribute(SESSION_STATE_KEY);
 				if (sstate != null) {
-					sstate.getSuccessAckUpdatePS().clearParameters();
-					sstate.getSuccessAckUpdatePS().setLong(1, ack.getSeqNumber());
-					sstate.getSuccessAckUpdatePS().executeUpdate();
+					sstate.acknowledge(ack.getSeqNumber());
 				}
 				else {
 					logger.error("No Session State found for session >" + session + "<");
@@ -105,30 +111,37 @@ public class SafeStorageServerSessionHandler extends IoHandlerAdapter{
 	}
 
 	/**
-	 * Send one (block until one available to be sent).
+	 * Fills the window with the next entries (block until one available to be sent if none is in flight). The
+	 * window is only filled again once half of it is free, so that the entries are read by batches.
 	 * @param session
 	 * @throws InterruptedException 
 	 */
-	private void postData(IoSession session) throws SQLException, InterruptedException{
+	private void postData(IoSession session) throws IOException, InterruptedException{
 		
 		SessionState sstate = (SessionState) session.getAttribute(SESSION_STATE_KEY);
 		if (sstate == null) {
 			logger.error("No Session State found for session >" + session + "<");
 			return ;
 		}
-		ResultSet rs = sstate.getReaderPS().executeQuery();
-		if (rs.next()) {
-			long pk =rs.getLong(1);
-			Object[]  se = (Object[]) rs.getArray(2).getArray();
-			long ts = rs.getTimestamp(3).getTime();
-			rs.close();
-			session.write(new DataMsg(se,pk,ts));
-			logger.debug("Sending data");
-		}
-		else { 
+		while (true) {
+			int free = sstate.getWindow() - sstate.inFlight.size();
+			if (free <= 0 || (!sstate.inFlight.isEmpty() && free < Math.max(1, sstate.getWindow() / 2)))
+				return;
+			List<DataMsg> entries = sstate.getWrapper().getQueue().read(sstate.lastSentPk, free);
+			for (DataMsg entry : entries) {
+				sstate.inFlight.add(entry.getSequenceNumber());
+				sstate.lastSentPk = entry.getSequenceNumber();
+				session.write(entry);
+			}
+			logger.debug("Sending " + entries.size() + " data, " + sstate.inFlight.size() + " in flight");
+			if (entries.size() == free)
+				return;
+			if (!sstate.inFlight.isEmpty())
+				return; // the acknowledgments fill the window again.
 			logger.debug("Blocking for the wrapper's until a new data have generated.");
 			sstate.getWrapper().canReaderDB();
-			postData(session);
+			if (!session.isConnected())
+				return; // the thread of a closed session stops waiting for new entries.
 		}
 	}
 
@@ -140,8 +153,11 @@ public class SafeStorageServerSessionHandler extends IoHandlerAdapter{
 			return ;
 		}
 		
-		if (sstate.getReaderPS() != null) sstate.getReaderPS().close();
-		if (sstate.getSuccessAckUpdatePS() != null) sstate.getSuccessAckUpdatePS().close();
+		try {
+			sstate.markProcessed();
+		} catch (IOException e) {
+			logger.error(e.getMessage(), e);
+		}
 		
 		logger.warn("Session >" + session + "< is closed");
 		
@@ -158,35 +174,59 @@ public class SafeStorageServerSessionHandler extends IoHandlerAdapter{
 	private class SessionState {
 
 		private AbstractWrapper2 wrapper;
-		
-		private PreparedStatement readerPS = null;
-		
-		private PreparedStatement successAckUpdatePS;
+
+		/** The maximum number of messages in flight, 1 for stop-and-wait. */
+		private int window = 1;
+
+		/** The pks of the messages sent and not yet acknowledged, in the order they were sent. */
+		private final ArrayDeque<Long> inFlight = new ArrayDeque<Long>();
+
+		private long lastSentPk = -1;
+
+		private long lastAckedPk = -1;
+
+		private long lastMarkedPk = -1;
+
+		/** The number of messages acknowledged since the entries were last marked as processed. */
+		private int unmarked = 0;
 
 		public SessionState () {}
 
-		public AbstractWrapper2 getWrapper() {
-			return wrapper;
+		public int getWindow() {
+			return window;
 		}
 
-		public void setWrapper(AbstractWrapper2 wrapper) {
-			this.wrapper = wrapper;
+		public void setWindow(int window) {
+			this.window = window;
 		}
 
-		public PreparedStatement getReaderPS() {
-			return readerPS;
+		/**
+		 * Acknowledges all the messages in flight up to the sequence number. The entries are marked as processed
+		 * once half a window is acknowledged, or when no message is in flight anymore.
+		 */
+		public void acknowledge(long seqNumber) throws IOException {
+			while (!inFlight.isEmpty() && inFlight.peekFirst() <= seqNumber) {
+				lastAckedPk = inFlight.pollFirst();
+				unmarked++;
+			}
+			if (inFlight.isEmpty() || unmarked >= window / 2)
+				markProcessed();
 		}
 
-		public void setReaderPS(PreparedStatement readerPS) {
-			this.readerPS = readerPS;
+		public void markProcessed() throws IOException {
+			if (lastAckedPk <= lastMarkedPk)
+				return;
+			wrapper.getQueue().acknowledge(lastAckedPk);
+			lastMarkedPk = lastAckedPk;
+			unmarked = 0;
 		}
 
-		public PreparedStatement getSuccessAckUpdatePS() {
-			return successAckUpdatePS;
+		public AbstractWrapper2 getWrapper() {
+			return wrapper;
 		}
 
-		public void setSuccessAckUpdatePS(PreparedStatement successAckUpdatePS) {
-			this.successAckUpdatePS = successAckUpdatePS;
+		public void setWrapper(AbstractWrapper2 wrapper) {
+			this.wrapper = wrapper;
 		}
 	}
 }
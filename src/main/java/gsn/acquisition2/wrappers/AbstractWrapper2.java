@@ -27,11 +27,10 @@
 
 package gsn.acquisition2.wrappers;
 
+import gsn.acquisition2.SafeStorageQueue;
 import gsn.beans.AddressBean;
 
 import java.io.Serializable;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.util.concurrent.LinkedBlockingQueue;
 
 import org.apache.log4j.Logger;
@@ -49,7 +48,7 @@ public abstract class AbstractWrapper2  extends Thread{
   
   private IoSession network;
  
-  private PreparedStatement insertPS;
+  private SafeStorageQueue storage;
   
   private boolean keepProcessedSafeStorageEntries = true;
  
@@ -93,16 +92,9 @@ public abstract class AbstractWrapper2  extends Thread{
    */
   protected void postStreamElement(Serializable... values)  {
     try {
-      insertPS.clearParameters();
-      insertPS.setObject(1,values);
-      insertPS.executeUpdate();
-
+      long seqNo = storage.append(values);
       if (queue.isEmpty()) {
-        final ResultSet generatedKeys = insertPS.getGeneratedKeys();
-        generatedKeys.next();
-        Long sqlNo = generatedKeys.getLong(1);// Getting the SEQ_NO
-        generatedKeys.close();
-        queue.put(sqlNo);
+        queue.put(seqNo);
       }
     }catch (Exception e) {
       logger.fatal(e.getMessage(),e);
@@ -110,8 +102,12 @@ public abstract class AbstractWrapper2  extends Thread{
     }
   }
   
-  public void setPreparedStatement(PreparedStatement preparedStatement) {
-    this.insertPS = preparedStatement;
+  public void setQueue(SafeStorageQueue storage) {
+    this.storage = storage;
+  }
+
+  public SafeStorageQueue getQueue() {
+    return storage;
   }
   /**
    * Only called by the handler once handler has consumed every non-processed entries from the db.
@@ -135,6 +131,15 @@ public abstract class AbstractWrapper2  extends Thread{
   
   public abstract void dispose ( ); // TODO, the safe storage should stop the acquisition part.
   
+  /**
+   * Stops the acquisition part, then closes the queue of the entries.
+   */
+  public void releaseResources ( ) {
+    dispose();
+    if (storage != null)
+      storage.close();
+  }
+  
   public abstract String getWrapperName ( ); 
   
   public abstract void run();
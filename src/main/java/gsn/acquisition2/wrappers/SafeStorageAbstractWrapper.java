@@ -47,6 +47,9 @@ import org.apache.mina.transport.socket.nio.SocketConnectorConfig;
  * ss-port
  * ss-host
  * wrapper-name
+ * 
+ * Optional parameters:
+ * ss-window (the number of messages the safe storage sends without waiting for their acknowledgment, 1 by default)
  *
  */
 public abstract class SafeStorageAbstractWrapper extends AbstractWrapper implements MessageHandler{
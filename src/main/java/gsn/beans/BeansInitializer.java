@@ -39,6 +39,10 @@ public class BeansInitializer {
 	 con.setJdbcURL(st.url());
 	 con.setJdbcUsername(st.user());
 	 con.setJdbcPassword(st.pass());
+	 if (st.batchSize().isDefined())
+	   con.setInsertBatchSize((Integer)st.batchSize().get());
+	 if (st.batchLinger().isDefined())
+	   con.setInsertBatchLinger((Integer)st.batchLinger().get());
 	 return con;
   }
   
@@ -167,6 +171,8 @@ public class BeansInitializer {
 	  StorageConfig st=new StorageConfig();
 	  if (vs.storageSize().isDefined())
 		  st.setStorageSize(vs.storageSize().get());
+	  if (vs.rollups().isDefined())
+		  st.setRollups(vs.rollups().get());
 	  if (vs.storage().isDefined()){
 		StorageConf sc=vs.storage().get();
 		if (sc.identifier().isDefined())
@@ -175,8 +181,12 @@ public class BeansInitializer {
 		st.setJdbcURL(sc.url());
 		st.setJdbcUsername(sc.user());
 		st.setJdbcPassword(sc.pass());		
+		if (sc.batchSize().isDefined())
+		  st.setInsertBatchSize((Integer)sc.batchSize().get());
+		if (sc.batchLinger().isDefined())
+		  st.setInsertBatchLinger((Integer)sc.batchLinger().get());
 	  }
-	  if (st.getStorageSize()!=null || st.getJdbcURL()!=null)
+	  if (st.getStorageSize()!=null || st.getJdbcURL()!=null || st.getRollups()!=null)
 		v.setStorage(st);
 	  return v;
   }
@@ -31,13 +31,16 @@ package gsn.beans;
 import gsn.Main;
 import gsn.VirtualSensor;
 import gsn.VirtualSensorInitializationFailedException;
+import gsn.monitoring.PipelineLatency;
 import gsn.utils.CaseInsensitiveComparator;
 import gsn.vsensor.AbstractVirtualSensor;
 
 import java.io.Serializable;
 import java.sql.SQLException;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.List;
 import java.util.TreeMap;
 
 import org.apache.log4j.Logger;
@@ -265,6 +268,52 @@ public class InputStream implements Serializable{
 	}
 
 	public boolean executeQuery( final CharSequence alias ) throws SQLException{
+		if ( !isAccepting( alias ) )
+			return false;
+
+		if ( !queryCached ) {
+			rewriteQuery();
+			if ( logger.isDebugEnabled( ) && queryCached)
+				logger.debug( new StringBuilder( ).append( "Rewritten SQL: " ).append( this.rewrittenSQL ).append( "(" ).append( Main.getWindowStorage().isThereAnyResult( this.rewrittenSQL ) ).append( ")" )
+						.toString( ) );
+		}
+		int elementCounterForDebugging = 0;
+		long begin = PipelineLatency.ENABLED ? System.nanoTime( ) : 0;
+		if ( queryCached && Main.getWindowStorage().isThereAnyResult( this.rewrittenSQL ) ) {
+			if ( logger.isDebugEnabled( ) ) logger.debug( new StringBuilder( ).append( "Executing the main query for InputStream : " ).append( this.getInputStreamName( ) ).toString( ) );
+			elementCounterForDebugging = deliver( Main.getWindowStorage().executeQuery( this.rewrittenSQL , false ) );
+		}
+		if ( PipelineLatency.ENABLED )
+			PipelineLatency.record( pool.getConfig( ).getName( ) , PipelineLatency.Stage.INPUT_QUERY , begin );
+		if ( logger.isDebugEnabled( ) ) {
+			logger.debug( new StringBuilder( ).append( "Input Stream's result has *" ).append( elementCounterForDebugging ).append( "* stream elements" ).toString( ) );
+		}
+		return true;
+	}
+
+	/**
+	 * Same as {@link #executeQuery(CharSequence)} for the stream sources evaluated in memory
+	 * (see {@link gsn.beans.windowing.InMemoryQueryRewriter}): the result of the query is provided by the caller.
+	 */
+	public boolean executeQuery( final CharSequence alias , final List < StreamElement > result ) throws SQLException{
+		if ( !isAccepting( alias ) )
+			return false;
+		int elementCounterForDebugging = 0;
+		long begin = PipelineLatency.ENABLED ? System.nanoTime( ) : 0;
+		if ( !result.isEmpty( ) )
+			elementCounterForDebugging = deliver( Collections.enumeration( result ) );
+		if ( PipelineLatency.ENABLED )
+			PipelineLatency.record( pool.getConfig( ).getName( ) , PipelineLatency.Stage.INPUT_QUERY , begin );
+		if ( logger.isDebugEnabled( ) ) {
+			logger.debug( new StringBuilder( ).append( "Input Stream's result has *" ).append( elementCounterForDebugging ).append( "* stream elements" ).toString( ) );
+		}
+		return true;
+	}
+
+	/**
+	 * Checks the virtual sensor is set and the count and rate limits of the input stream.
+	 */
+	private boolean isAccepting( final CharSequence alias ) {
 		if ( logger.isDebugEnabled( ) ) logger.debug( new StringBuilder( ).append( "Notified by StreamSource on the alias: " ).append( alias ).toString( ) );
 		if ( this.pool == null ) {
 			logger.debug( "The input is dropped b/c the VSensorInstance is not set yet." );
@@ -282,43 +331,34 @@ public class InputStream implements Serializable{
 			return false;
 		}
 		this.lastVisited = currentTimeMillis;
+		return true;
+	}
 
-		if ( !queryCached ) {
-			rewriteQuery();
-			if ( logger.isDebugEnabled( ) && queryCached)
-				logger.debug( new StringBuilder( ).append( "Rewritten SQL: " ).append( this.rewrittenSQL ).append( "(" ).append( Main.getWindowStorage().isThereAnyResult( this.rewrittenSQL ) ).append( ")" )
-						.toString( ) );
-		}
+	/**
+	 * Gives the result of the query to the virtual sensor, returns the number of stream elements.
+	 */
+	private int deliver( final Enumeration < StreamElement > resultOfTheQuery ) {
+		this.currentCount++;
 		int elementCounterForDebugging = 0;
-		if ( queryCached && Main.getWindowStorage().isThereAnyResult( this.rewrittenSQL ) ) {
-			this.currentCount++;
-			AbstractVirtualSensor sensor = null;
-			if ( logger.isDebugEnabled( ) ) logger.debug( new StringBuilder( ).append( "Executing the main query for InputStream : " ).append( this.getInputStreamName( ) ).toString( ) );
-
-			final Enumeration < StreamElement > resultOfTheQuery = Main.getWindowStorage().executeQuery( this.rewrittenSQL , false );
-			try {
-				sensor = pool.borrowVS( );
-				while ( resultOfTheQuery.hasMoreElements( ) ) {
-					elementCounterForDebugging++;
-					StreamElement element= resultOfTheQuery.nextElement( );
-					sensor.dataAvailable_decorated( this.getInputStreamName( ) , element );
-				}
-			} catch ( final UnsupportedOperationException e ) {
-				logger.warn( "The stream element produced by the virtual sensor is dropped because of the following error : " );
-				logger.warn( e.getMessage( ) , e );
-			} catch ( final VirtualSensorInitializationFailedException e ) {
-				logger.error( "The stream element can't deliver its data to the virtual sensor " + sensor.getVirtualSensorConfiguration( ).getName( )
-						+ " because initialization of that virtual sensor failed" );
-				logger.error(e.getMessage(),e);
-			} finally {
-				this.pool.returnVS( sensor );
+		AbstractVirtualSensor sensor = null;
+		try {
+			sensor = pool.borrowVS( );
+			while ( resultOfTheQuery.hasMoreElements( ) ) {
+				elementCounterForDebugging++;
+				StreamElement element= resultOfTheQuery.nextElement( );
+				sensor.dataAvailable_decorated( this.getInputStreamName( ) , element );
 			}
-
-		}
-		if ( logger.isDebugEnabled( ) ) {
-			logger.debug( new StringBuilder( ).append( "Input Stream's result has *" ).append( elementCounterForDebugging ).append( "* stream elements" ).toString( ) );
+		} catch ( final UnsupportedOperationException e ) {
+			logger.warn( "The stream element produced by the virtual sensor is dropped because of the following error : " );
+			logger.warn( e.getMessage( ) , e );
+		} catch ( final VirtualSensorInitializationFailedException e ) {
+			logger.error( "The stream element can't deliver its data to the virtual sensor " + sensor.getVirtualSensorConfiguration( ).getName( )
+					+ " because initialization of that virtual sensor failed" );
+			logger.error(e.getMessage(),e);
+		} finally {
+			this.pool.returnVS( sensor );
 		}
-		return true;
+		return elementCounterForDebugging;
 	}
 
 	private void rewriteQuery() {
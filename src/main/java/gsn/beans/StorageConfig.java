@@ -39,6 +39,14 @@ public class StorageConfig {
 
     private String storageSize;
 
+    private int insertBatchSize = 0;
+
+    private String rollups;
+
+    private int insertBatchLinger = DEFAULT_INSERT_BATCH_LINGER;
+
+    public static final int DEFAULT_INSERT_BATCH_LINGER = 100; // milliseconds
+
     public String getJdbcDriver() {
         return jdbcDriver;
     }
@@ -87,6 +95,43 @@ public class StorageConfig {
         this.storageSize = storageSize;
     }
 
+    /**
+     * @return the maximum number of rows written in one batch, batched inserts are disabled if lower than 2.
+     */
+    public int getInsertBatchSize() {
+        return insertBatchSize;
+    }
+
+    public void setInsertBatchSize(int insertBatchSize) {
+        this.insertBatchSize = insertBatchSize;
+    }
+
+    /**
+     * @return the maximum time (in milliseconds) a row can wait in a batch before being written.
+     */
+    public int getInsertBatchLinger() {
+        return insertBatchLinger;
+    }
+
+    public void setInsertBatchLinger(int insertBatchLinger) {
+        this.insertBatchLinger = insertBatchLinger;
+    }
+
+    public boolean isInsertBatchingEnabled() {
+        return insertBatchSize > 1;
+    }
+
+    /**
+     * @return the resolutions of the rollup tables of the virtual sensor (e.g., "1m,1h,1d"), or null.
+     */
+    public String getRollups() {
+        return rollups;
+    }
+
+    public void setRollups(String rollups) {
+        this.rollups = rollups;
+    }
+
     public boolean isStorageSize() {
         return storageSize != null;
     }
@@ -35,6 +35,7 @@ import gsn.utils.CaseInsensitiveComparator;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.TreeMap;
 
 import org.apache.commons.codec.binary.Base64;
@@ -52,7 +53,10 @@ public final class StreamElement implements Serializable {
 
 	private String [ ]                             fieldNames;
 
-	private Serializable [ ]                       fieldValues;
+	/**
+	 * The boxed values, null while the values of a schema backed stream element are only in its slots.
+	 */
+	private volatile Serializable [ ]              fieldValues;
 
 	private transient Byte [ ]                               fieldTypes;
 
@@ -62,8 +66,37 @@ public final class StreamElement implements Serializable {
 
 	private boolean timestampProvided = false;
 
+	/**
+	 * The shared structure of the stream element, null if it was built from field names and types.
+	 */
+	private transient StreamSchema                 schema            = null;
+
+	/**
+	 * The primitive slots (the bits of the long or double values) and the object slots of a schema
+	 * backed stream element, see {@link StreamSchema}.
+	 */
+	private transient long [ ]                     primitiveValues   = null;
+
+	private transient Serializable [ ]             objectValues      = null;
+
+	/**
+	 * One bit per primitive slot, set if the value is null.
+	 */
+	private transient long [ ]                     nullValues        = null;
 
 	public StreamElement (StreamElement other) {
+		if (other.fieldValues == null && other.primitiveValues != null) {
+			this.schema = other.schema;
+			this.fieldNames = other.fieldNames;
+			this.fieldTypes = other.fieldTypes;
+			this.primitiveValues = other.primitiveValues.clone();
+			this.objectValues = other.objectValues.clone();
+			this.nullValues = other.nullValues.clone();
+			this.timeStamp = other.timeStamp;
+			this.timestampProvided = other.timestampProvided;
+			this.internalPrimayKey = other.internalPrimayKey;
+			return;
+		}
 		this.fieldNames=new String[other.fieldNames.length];
 		this.fieldValues=new Serializable[other.fieldValues.length];
 		this.fieldTypes=new Byte[other.fieldTypes.length];
@@ -83,18 +116,34 @@ public final class StreamElement implements Serializable {
 		this(outputStructure,data,System.currentTimeMillis());
 	}
 	public StreamElement ( DataField [ ] outputStructure , final Serializable [ ] data , final long timeStamp ) {
-		this.fieldNames = new String [ outputStructure.length ];
-		this.fieldTypes = new Byte [ outputStructure.length ];
+		this.schema = StreamSchema.of( outputStructure );
+		this.fieldNames = schema.getElementFieldNames( );
+		this.fieldTypes = schema.getElementFieldTypes( );
 		this.timeStamp = timeStamp;
-		for ( int i = 0 ; i < this.fieldNames.length ; i++ ) {
-			this.fieldNames[ i ] = outputStructure[ i ].getName( ).toLowerCase( );
-			this.fieldTypes[ i ] = outputStructure[ i ].getDataTypeID( );
-		}
 		if ( this.fieldNames.length != data.length ) throw new IllegalArgumentException( "The length of dataFileNames and the actual data provided in the constructor of StreamElement doesn't match." );
 		this.verifyTypesCompatibility( this.fieldTypes , data );
 		this.fieldValues = data;
 	}
 
+	/**
+	 * Creates a stream element whose values are stored in primitive and object slots (see {@link StreamSchema}),
+	 * all the fields are null. The values are set with {@link #setLong(int, long)}, {@link #setDouble(int, double)}
+	 * and {@link #setData(int, Serializable)}, and read without boxing with {@link #getLong(int)} and
+	 * {@link #getDouble(int)}. The values are boxed on the first call to {@link #getData()} (or on serialization),
+	 * the boxed array is then the only copy of the values.
+	 */
+	public StreamElement ( final StreamSchema schema , final long timeStamp ) {
+		this.schema = schema;
+		this.fieldNames = schema.getElementFieldNames( );
+		this.fieldTypes = schema.getElementFieldTypes( );
+		this.timeStamp = timeStamp;
+		this.timestampProvided = true;
+		this.primitiveValues = new long [ schema.getPrimitiveCount( ) ];
+		this.objectValues = new Serializable [ schema.getObjectCount( ) ];
+		this.nullValues = new long [ ( schema.getPrimitiveCount( ) + 63 ) >>> 6 ];
+		Arrays.fill( nullValues , -1L );
+	}
+
 	public StreamElement ( final String [ ] dataFieldNames , final Byte [ ] dataFieldTypes , final Serializable [ ] data ) {
 		this( dataFieldNames , dataFieldTypes , data , System.currentTimeMillis( ) );
 	}
@@ -221,10 +270,13 @@ public final class StreamElement implements Serializable {
 		final StringBuffer output = new StringBuffer( "timed = " );
 		output.append( this.getTimeStamp( ) ).append( "\t" );
 		for ( int i = 0 ; i < this.fieldNames.length ; i++ )
-			output.append( "," ).append( this.fieldNames[ i ] ).append( "/" ).append( this.fieldTypes[ i ] ).append( " = " ).append( this.fieldValues[ i ] );
+			output.append( "," ).append( this.fieldNames[ i ] ).append( "/" ).append( this.fieldTypes[ i ] ).append( " = " ).append( this.getData( i ) );
 		return output.toString( );
 	}
 
+	/**
+	 * Returns the field names. The stream elements of a schema share the array, it must not be modified.
+	 */
 	public final String [ ] getFieldNames ( ) {
 		return this.fieldNames;
 	}
@@ -237,13 +289,180 @@ public final class StreamElement implements Serializable {
 	}
 
 	public final Serializable [ ] getData ( ) {
-		return this.fieldValues;
+		Serializable [ ] values = this.fieldValues;
+		if ( values == null )
+			values = box( );
+		return values;
 	}
 
 	public void setData (int index,Serializable data ) {
+		if ( this.fieldValues == null ) {
+			verifyTypeCompatibility( fieldTypes[ index ] , data );
+			if ( !schema.isPrimitive( index ) )
+				objectValues[ schema.getSlot( index ) ] = data;
+			else if ( data == null )
+				setNullSlot( schema.getSlot( index ) , true );
+			else if ( fieldTypes[ index ] == DataTypes.DOUBLE || fieldTypes[ index ] == DataTypes.FLOAT )
+				setDouble( index , ( ( Number ) data ).doubleValue( ) );
+			else
+				setLong( index , ( ( Number ) data ).longValue( ) );
+			return;
+		}
 		this.fieldValues[index]=data;
 	}
 
+	/**
+	 * Returns the value of the field at the index, boxed.
+	 */
+	public final Serializable getData ( final int index ) {
+		Serializable [ ] values = this.fieldValues;
+		if ( values != null )
+			return values[ index ];
+		int slot = schema.getSlot( index );
+		if ( !schema.isPrimitive( index ) )
+			return objectValues[ slot ];
+		if ( isNullSlot( slot ) )
+			return null;
+		long bits = primitiveValues[ slot ];
+		switch ( fieldTypes[ index ] ) {
+		case DataTypes.DOUBLE :
+			return Double.longBitsToDouble( bits );
+		case DataTypes.FLOAT :
+			return ( float ) Double.longBitsToDouble( bits );
+		case DataTypes.INTEGER :
+			return ( int ) bits;
+		case DataTypes.SMALLINT :
+			return ( short ) bits;
+		case DataTypes.TINYINT :
+			return ( byte ) bits;
+		default :
+			return bits;
+		}
+	}
+
+	/**
+	 * Returns the value of the numeric field at the index, or 0 if it is null.
+	 */
+	public final long getLong ( final int index ) {
+		Serializable [ ] values = this.fieldValues;
+		if ( values != null )
+			return values[ index ] == null ? 0 : ( ( Number ) values[ index ] ).longValue( );
+		int slot = schema.getSlot( index );
+		if ( fieldTypes[ index ] == DataTypes.DOUBLE || fieldTypes[ index ] == DataTypes.FLOAT )
+			return ( long ) Double.longBitsToDouble( primitiveValues[ slot ] );
+		return primitiveValues[ slot ];
+	}
+
+	/**
+	 * Returns the value of the numeric field at the index, or 0 if it is null.
+	 */
+	public final double getDouble ( final int index ) {
+		Serializable [ ] values = this.fieldValues;
+		if ( values != null )
+			return values[ index ] == null ? 0 : ( ( Number ) values[ index ] ).doubleValue( );
+		int slot = schema.getSlot( index );
+		if ( fieldTypes[ index ] == DataTypes.DOUBLE || fieldTypes[ index ] == DataTypes.FLOAT )
+			return Double.longBitsToDouble( primitiveValues[ slot ] );
+		return primitiveValues[ slot ];
+	}
+
+	/**
+	 * Sets the value of the integer field (tinyint, smallint, integer or bigint) at the index.
+	 */
+	public void setLong ( final int index , final long value ) {
+		if ( this.fieldValues != null ) {
+			switch ( fieldTypes[ index ] ) {
+			case DataTypes.INTEGER :
+				this.fieldValues[ index ] = ( int ) value;
+				break;
+			case DataTypes.SMALLINT :
+				this.fieldValues[ index ] = ( short ) value;
+				break;
+			case DataTypes.TINYINT :
+				this.fieldValues[ index ] = ( byte ) value;
+				break;
+			default :
+				this.fieldValues[ index ] = value;
+			}
+			return;
+		}
+		if ( fieldTypes[ index ] == DataTypes.DOUBLE || fieldTypes[ index ] == DataTypes.FLOAT ) {
+			setDouble( index , value );
+			return;
+		}
+		primitiveValues[ schema.getSlot( index ) ] = value;
+		setNullSlot( schema.getSlot( index ) , false );
+	}
+
+	/**
+	 * Sets the value of the double or float field at the index.
+	 */
+	public void setDouble ( final int index , final double value ) {
+		if ( this.fieldValues != null ) {
+			if ( fieldTypes[ index ] == DataTypes.FLOAT )
+				this.fieldValues[ index ] = ( float ) value;
+			else
+				this.fieldValues[ index ] = value;
+			return;
+		}
+		if ( fieldTypes[ index ] == DataTypes.FLOAT )
+			primitiveValues[ schema.getSlot( index ) ] = Double.doubleToRawLongBits( ( float ) value );
+		else
+			primitiveValues[ schema.getSlot( index ) ] = Double.doubleToRawLongBits( value );
+		setNullSlot( schema.getSlot( index ) , false );
+	}
+
+	/**
+	 * Returns true if the value of the field at the index is null.
+	 */
+	public final boolean isNull ( final int index ) {
+		Serializable [ ] values = this.fieldValues;
+		if ( values != null )
+			return values[ index ] == null;
+		if ( !schema.isPrimitive( index ) )
+			return objectValues[ schema.getSlot( index ) ] == null;
+		return isNullSlot( schema.getSlot( index ) );
+	}
+
+	private boolean isNullSlot ( int slot ) {
+		return ( nullValues[ slot >>> 6 ] & ( 1L << slot ) ) != 0;
+	}
+
+	private void setNullSlot ( int slot , boolean isNull ) {
+		if ( isNull )
+			nullValues[ slot >>> 6 ] |= 1L << slot;
+		else
+			nullValues[ slot >>> 6 ] &= ~( 1L << slot );
+	}
+
+	/**
+	 * Boxes the values of the slots, the boxed array is then the only copy of the values.
+	 */
+	private synchronized Serializable [ ] box ( ) {
+		if ( this.fieldValues == null ) {
+			Serializable [ ] values = new Serializable [ fieldNames.length ];
+			for ( int i = 0 ; i < values.length ; i++ )
+				values[ i ] = getData( i );
+			this.fieldValues = values;
+		}
+		return this.fieldValues;
+	}
+
+	/**
+	 * The serialized form (Java serialization, XStream) only contains the boxed values.
+	 */
+	private Object writeReplace ( ) {
+		getData( );
+		return this;
+	}
+
+	/**
+	 * Returns the shared structure of the stream element, or null if it was built from field names and types.
+	 */
+	public StreamSchema getSchema ( ) {
+		return schema;
+	}
+
 	public long getTimeStamp ( ) {
 		return this.timeStamp;
 	}
@@ -286,13 +505,12 @@ public final class StreamElement implements Serializable {
 	 * @return The value corresponding to the named tuple.
 	 */
 	public final Serializable getData ( final String fieldName ) {
-		generateIndex();
-		Integer index = indexedFieldNames.get( fieldName );
-		if (index == null) {
+		int index = indexOf( fieldName );
+		if (index == -1) {
 			logger.info("There is a request for field "+fieldName+" for StreamElement: "+this.toString()+". As the requested field doesn't exist, GSN returns Null to the callee.");
 			return null;
 		}
-		return this.fieldValues[ index ];
+		return getData( index );
 	}
 	
 	/**
@@ -303,9 +521,8 @@ public final class StreamElement implements Serializable {
 	 * @return The type of the value corresponding to the named tuple.
 	 */
 	public final Byte getType ( final String fieldName ) {
-		generateIndex();
-		Integer index = indexedFieldNames.get( fieldName );
-		if (index == null) {
+		int index = indexOf( fieldName );
+		if (index == -1) {
 			logger.warn("There is a request for type of field "+fieldName+" for StreamElement: "+this.toString()+". As the requested field doesn't exist, GSN returns Null to the callee.");
 			return null;
 		}
@@ -324,33 +541,34 @@ public final class StreamElement implements Serializable {
 	 * @return
 	 */
 	public Object [ ] getDataInRPCFriendly ( ) {
-		Object [ ] toReturn = new Object [ fieldValues.length ];
+		Serializable [ ] values = getData( );
+		Object [ ] toReturn = new Object [ values.length ];
 		for ( int i = 0 ; i < toReturn.length ; i++ ) {
 			//process null values
-			if (fieldValues[i]==null) {
+			if (values[i]==null) {
 				toReturn[i] = NULL_ENCODING;
 				continue;
 			}
 			switch ( fieldTypes[ i ] ) {
 			case DataTypes.DOUBLE :
 			case DataTypes.FLOAT :
-				toReturn[ i ] = fieldValues[ i ];
+				toReturn[ i ] = values[ i ];
 				break;
 			case DataTypes.BIGINT :
-				toReturn[ i ] = Long.toString( ( Long ) fieldValues[ i ] );
+				toReturn[ i ] = Long.toString( ( Long ) values[ i ] );
 				break;
 				//        case DataTypes.TIME :
-				//        toReturn[ i ] = Long.toString( ( Long ) fieldValues[ i ] );
+				//        toReturn[ i ] = Long.toString( ( Long ) values[ i ] );
 				//        break;
 			case DataTypes.TINYINT :
 			case DataTypes.SMALLINT :
 			case DataTypes.INTEGER :
-				toReturn[ i ] = new Integer( ( Integer ) fieldValues[ i ] );
+				toReturn[ i ] = new Integer( ( Integer ) values[ i ] );
 				break;
 			case DataTypes.CHAR :
 			case DataTypes.VARCHAR :
 			case DataTypes.BINARY :
-				toReturn[ i ] = fieldValues[ i ];
+				toReturn[ i ] = values[ i ];
 				break;
 			default :
 				logger.error( "Type can't be converted : TypeID : " + fieldTypes[ i ] );
@@ -481,6 +699,18 @@ public final class StreamElement implements Serializable {
 		return toReturn;
 	}
 	
+	/**
+	 * Returns the position of the field, or -1 if the field doesn't exist. The stream elements sharing a schema
+	 * use its index.
+	 */
+	public int indexOf ( final String fieldName ) {
+		if ( schema != null )
+			return schema.indexOf( fieldName );
+		generateIndex();
+		Integer index = indexedFieldNames.get( fieldName );
+		return index == null ? -1 : index;
+	}
+
 	/**
 	 * Build the index for mapping field name to their positions in the array if it is not yet built
 	 * This assumes that StreamElements cannot change their structure
@@ -500,10 +730,10 @@ public final class StreamElement implements Serializable {
 	 * @throws IllegalArgumentException
 	 */
 	protected void setData(String fieldName, Serializable data) throws IllegalArgumentException {
-		generateIndex();
-		Integer index = indexedFieldNames.get( fieldName );
-		if (index == null) {
+		int index = indexOf( fieldName );
+		if (index == -1) {
 			logger.warn("There is a request for setting field "+fieldName+" for StreamElement: "+this.toString()+". But the requested field doesn't exist.");
+			return;
 		}
 		verifyTypeCompatibility(fieldTypes[index], data);
 		setData(index,data);		
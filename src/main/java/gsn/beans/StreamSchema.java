@@ -0,0 +1,229 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/beans/StreamSchema.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.beans;
+
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The immutable structure (field names and types) shared by the stream elements of a stream. The schemas are
+ * interned, all the stream elements created from the same output structure reference the same instance.
+ * <p>
+ * The numeric fields of the stream elements are stored in primitive slots (the bits of a long or a double), the
+ * varchar, char and binary fields in object slots. The schema maps each field to its slot.
+ * <p>
+ * {@link #getFieldNames()} and {@link #getFieldTypes()} return copies. The stream elements of the schema share a
+ * separate pair of arrays, the schema never reads them.
+ */
+public final class StreamSchema {
+
+	private static final ConcurrentHashMap<String, StreamSchema> schemas = new ConcurrentHashMap<String, StreamSchema>();
+
+	private static final int CACHED_STRUCTURES = 64;
+
+	/**
+	 * The schemas of the output structures already seen (by identity, slot chosen by the identity hash code), to
+	 * avoid building the key on each call. Read and replaced without locking, a collision only costs a lookup by key.
+	 */
+	private static final AtomicReferenceArray<CachedStructure> structures = new AtomicReferenceArray<CachedStructure>(CACHED_STRUCTURES);
+
+	private final String[] fieldNames;
+
+	private final Byte[] fieldTypes;
+
+	private final String[] elementFieldNames;
+
+	private final Byte[] elementFieldTypes;
+
+	private final boolean[] primitive;
+
+	private final int[] slots;
+
+	private final int primitiveCount;
+
+	private final int objectCount;
+
+	private final HashMap<String, Integer> index;
+
+	private StreamSchema(String[] fieldNames, Byte[] fieldTypes) {
+		this.fieldNames = fieldNames;
+		this.fieldTypes = fieldTypes;
+		this.elementFieldNames = fieldNames.clone();
+		this.elementFieldTypes = fieldTypes.clone();
+		this.primitive = new boolean[fieldNames.length];
+		this.slots = new int[fieldNames.length];
+		this.index = new HashMap<String, Integer>();
+		int primitives = 0;
+		int objects = 0;
+		for (int i = 0; i < fieldNames.length; i++) {
+			primitive[i] = isPrimitive(fieldTypes[i]);
+			slots[i] = primitive[i] ? primitives++ : objects++;
+			if (!index.containsKey(fieldNames[i].trim().toLowerCase()))
+				index.put(fieldNames[i].trim().toLowerCase(), i);
+		}
+		this.primitiveCount = primitives;
+		this.objectCount = objects;
+	}
+
+	/**
+	 * Returns the schema of the output structure, the field names are in lower case.
+	 */
+	public static StreamSchema of(DataField[] outputStructure) {
+		int slot = System.identityHashCode(outputStructure) & (CACHED_STRUCTURES - 1);
+		CachedStructure cached = structures.get(slot);
+		if (cached != null && cached.structure == outputStructure && cached.schema.matches(outputStructure))
+			return cached.schema;
+		String[] names = new String[outputStructure.length];
+		Byte[] types = new Byte[outputStructure.length];
+		for (int i = 0; i < outputStructure.length; i++) {
+			names[i] = outputStructure[i].getName().toLowerCase();
+			types[i] = outputStructure[i].getDataTypeID();
+		}
+		StreamSchema schema = of(names, types);
+		structures.set(slot, new CachedStructure(outputStructure, schema));
+		return schema;
+	}
+
+	/**
+	 * Returns the schema of the field names and types, as provided.
+	 */
+	public static StreamSchema of(String[] fieldNames, Byte[] fieldTypes) {
+		if (fieldNames.length != fieldTypes.length)
+			throw new IllegalArgumentException("The length of dataFileNames and dataFileTypes provided in the constructor of StreamSchema doesn't match.");
+		StringBuilder key = new StringBuilder();
+		for (int i = 0; i < fieldNames.length; i++)
+			key.append(fieldNames[i]).append('/').append(fieldTypes[i]).append(',');
+		StreamSchema schema = schemas.get(key.toString());
+		if (schema == null) {
+			StreamSchema created = new StreamSchema(fieldNames.clone(), fieldTypes.clone());
+			schema = schemas.putIfAbsent(key.toString(), created);
+			if (schema == null)
+				schema = created;
+		}
+		return schema;
+	}
+
+	/**
+	 * True if the values of the type are stored in a primitive slot.
+	 */
+	public static boolean isPrimitive(byte type) {
+		switch (type) {
+			case DataTypes.TINYINT:
+			case DataTypes.SMALLINT:
+			case DataTypes.INTEGER:
+			case DataTypes.BIGINT:
+			case DataTypes.DOUBLE:
+			case DataTypes.FLOAT:
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	private boolean matches(DataField[] outputStructure) {
+		if (outputStructure.length != fieldNames.length)
+			return false;
+		for (int i = 0; i < outputStructure.length; i++)
+			if (outputStructure[i].getDataTypeID() != fieldTypes[i] || !outputStructure[i].getName().equalsIgnoreCase(fieldNames[i]))
+				return false;
+		return true;
+	}
+
+	/**
+	 * Returns the index of the field (case insensitive), or -1 if the field doesn't exist.
+	 */
+	public int indexOf(String fieldName) {
+		Integer i = index.get(fieldName);
+		if (i == null)
+			i = index.get(fieldName.trim().toLowerCase());
+		return i == null ? -1 : i;
+	}
+
+	/**
+	 * Returns a copy of the field names.
+	 */
+	public String[] getFieldNames() {
+		return fieldNames.clone();
+	}
+
+	/**
+	 * Returns a copy of the field types.
+	 */
+	public Byte[] getFieldTypes() {
+		return fieldTypes.clone();
+	}
+
+	/**
+	 * The field names shared by the stream elements of the schema.
+	 */
+	String[] getElementFieldNames() {
+		return elementFieldNames;
+	}
+
+	/**
+	 * The field types shared by the stream elements of the schema.
+	 */
+	Byte[] getElementFieldTypes() {
+		return elementFieldTypes;
+	}
+
+	public int getFieldCount() {
+		return fieldNames.length;
+	}
+
+	public boolean isPrimitive(int index) {
+		return primitive[index];
+	}
+
+	/**
+	 * Returns the index of the field in the primitive or the object slots.
+	 */
+	public int getSlot(int index) {
+		return slots[index];
+	}
+
+	public int getPrimitiveCount() {
+		return primitiveCount;
+	}
+
+	public int getObjectCount() {
+		return objectCount;
+	}
+
+	private static final class CachedStructure {
+
+		private final DataField[] structure;
+
+		private final StreamSchema schema;
+
+		private CachedStructure(DataField[] structure, StreamSchema schema) {
+			this.structure = structure;
+			this.schema = schema;
+		}
+	}
+
+}
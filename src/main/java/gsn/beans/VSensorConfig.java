@@ -359,6 +359,39 @@ public class VSensorConfig implements Serializable {
 		return this.parsedStorageSize;
 	}
 
+	private transient long[] rollupResolutions = null;
+
+	/**
+	 * @return the resolutions (in milliseconds, ascending) of the rollup tables declared by the rollups attribute
+	 * of the storage element, empty if there is none. The invalid resolutions are ignored.
+	 */
+	public long[] getRollupResolutions ( ) {
+		if (rollupResolutions == null) {
+			TreeSet<Long> resolutions = new TreeSet<Long>();
+			if (storage != null && storage.getRollups() != null) {
+				for (String rollup : storage.getRollups().split(",")) {
+					if (rollup.trim().length() == 0)
+						continue;
+					try {
+						Pair<Boolean,Long> p = Utils.parseWindowSize(rollup);
+						if (p.getFirst() && p.getSecond() > 0)
+							resolutions.add(p.getSecond());
+						else
+							logger.warn("The rollup resolution " + rollup + " of the virtual sensor " + name + " is not a duration, ignored.");
+					} catch (NumberFormatException e) {
+						logger.warn("The rollup resolution " + rollup + " of the virtual sensor " + name + " is not valid, ignored.");
+					}
+				}
+			}
+			long[] toReturn = new long[resolutions.size()];
+			int i = 0;
+			for (Long resolution : resolutions)
+				toReturn[i++] = resolution;
+			rollupResolutions = toReturn;
+		}
+		return rollupResolutions;
+	}
+
 	public String getDirectoryQuery() {
 		return directoryQuery;
 	}
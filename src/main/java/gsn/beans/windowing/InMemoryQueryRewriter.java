@@ -0,0 +1,183 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/beans/windowing/InMemoryQueryRewriter.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.beans.windowing;
+
+import gsn.beans.DataField;
+import gsn.beans.InputStream;
+import gsn.beans.StreamElement;
+import gsn.beans.StreamSource;
+import gsn.beans.windowing.WindowBuffer.Rows;
+import gsn.storage.SQLUtils;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Evaluates the window of a stream source on the {@link WindowBuffer} of its wrapper instead of a SQL view.
+ * Only used when enabled (-DinMemoryWindows=true), for the input streams having a single stream source and
+ * whose queries (the one of the stream source and the one of the input stream) can be evaluated by
+ * {@link InMemoryWindowQuery}. The other stream sources keep using the {@link SQLViewQueryRewriter}s.
+ * The aggregate queries of the stream sources are maintained incrementally as the window slides.
+ */
+public class InMemoryQueryRewriter extends QueryRewriter {
+
+    private static final transient Logger logger = Logger.getLogger(InMemoryQueryRewriter.class);
+
+    private static Boolean enabled = null;
+
+    private final WindowBuffer buffer;
+
+    private final InMemoryWindowQuery streamSourceQuery;
+
+    private final InMemoryWindowQuery inputStreamQuery;
+
+    private final boolean remoteTimestamps;
+
+    /** The aggregates of the stream source, maintained incrementally (null if the query is not an aggregate). */
+    private final InMemoryWindowQuery.SlidingAggregate slidingAggregate;
+
+    private InMemoryQueryRewriter(StreamSource streamSource, WindowBuffer buffer, InMemoryWindowQuery streamSourceQuery, InMemoryWindowQuery inputStreamQuery, boolean remoteTimestamps) {
+        super(streamSource);
+        this.buffer = buffer;
+        this.streamSourceQuery = streamSourceQuery;
+        this.inputStreamQuery = inputStreamQuery;
+        this.remoteTimestamps = remoteTimestamps;
+        this.slidingAggregate = streamSourceQuery.isAggregate() ? streamSourceQuery.newSlidingAggregate() : null;
+    }
+
+    public static boolean isEnabled() {
+        if (enabled == null)
+            enabled = Boolean.valueOf(System.getProperty("inMemoryWindows"));
+        return enabled;
+    }
+
+    /**
+     * Returns the in-memory rewriter of the stream source, already initialized, or null if the
+     * stream source has to be evaluated through the window storage.
+     *
+     * @param remoteTimestamps true if the windows are relative to the timestamps of the stream elements
+     *                         (see {@link RemoteTimeBasedSlidingHandler}) instead of the local time.
+     */
+    public static InMemoryQueryRewriter create(StreamSource streamSource, boolean remoteTimestamps) {
+        if (!isEnabled())
+            return null;
+        InputStream inputStream = streamSource.getInputStream();
+        if (inputStream == null || inputStream.getSources() == null || inputStream.getSources().length != 1)
+            return null;
+        DataField[] structure = streamSource.getWrapper().getOutputFormat();
+        String[] names = new String[structure.length];
+        Byte[] types = new Byte[structure.length];
+        for (int i = 0; i < structure.length; i++) {
+            names[i] = structure[i].getName();
+            types[i] = structure[i].getDataTypeID();
+        }
+        InMemoryWindowQuery streamSourceQuery = InMemoryWindowQuery.parse(streamSource.getSqlQuery(), "wrapper", names, types, true);
+        if (streamSourceQuery == null)
+            return null;
+        InMemoryWindowQuery inputStreamQuery = InMemoryWindowQuery.parse(inputStream.getQuery(), streamSource.getAlias().toString(), streamSourceQuery.getFieldNames(),
+                streamSourceQuery.getFieldTypes(), streamSourceQuery.isWithTimed());
+        if (inputStreamQuery == null)
+            return null;
+        InMemoryQueryRewriter rewriter = new InMemoryQueryRewriter(streamSource, streamSource.getWrapper().getWindowBuffer(), streamSourceQuery, inputStreamQuery, remoteTimestamps);
+        rewriter.initialize();
+        if (logger.isDebugEnabled())
+            logger.debug("The window of the stream source " + streamSource.getAlias() + " of the input stream " + inputStream.getInputStreamName() + " is evaluated in memory.");
+        return rewriter;
+    }
+
+    @Override
+    public boolean initialize() {
+        if (streamSource.getParsedStorageSize() == StreamSource.STORAGE_SIZE_NOT_SET || streamSource.isStorageCountBased())
+            buffer.require(streamSource, getTupleCount(), -1);
+        else
+            buffer.require(streamSource, 0, streamSource.getParsedStorageSize());
+        return true;
+    }
+
+    private long getTupleCount() {
+        // Without storage size, the SQL windows only contain the latest stream element.
+        return streamSource.getParsedStorageSize() == StreamSource.STORAGE_SIZE_NOT_SET ? 1 : streamSource.getParsedStorageSize();
+    }
+
+    @Override
+    public StringBuilder rewrite(String query) {
+        return SQLUtils.newRewrite(query, streamSource.getAlias(), streamSource.getUIDStr());
+    }
+
+    @Override
+    public void dispose() {
+        buffer.release(streamSource);
+    }
+
+    @Override
+    public boolean dataAvailable(long timestamp) {
+        ArrayList<StreamElement> window;
+        synchronized (buffer) {
+            if (slidingAggregate != null)
+                window = slidingAggregate.slide(getWindow(timestamp), streamSource.getSamplingRate());
+            else
+                window = streamSourceQuery.evaluate(getWindow(timestamp), streamSource.getSamplingRate());
+        }
+        if (window.isEmpty())
+            return false;
+        if (logger.isDebugEnabled())
+            logger.debug(streamSource.getWrapper().getWrapperName() + " - Output stream produced/received from a wrapper " + streamSource.toString());
+        try {
+            return streamSource.getInputStream().executeQuery(streamSource.getUIDStr(), inputStreamQuery.evaluate(InMemoryWindowQuery.asRows(window), 1));
+        } catch (SQLException e) {
+            logger.error(e.getMessage(), e);
+            return false;
+        }
+    }
+
+    /**
+     * Selects the rows of the window, as the SQL views of the sliding handlers do.
+     * Must be called while holding the lock on the buffer.
+     *
+     * @param timestamp the time of the slide, the windows never include the later stream elements (e.g., the
+     *                  rest of a batch of stream elements appended at once).
+     */
+    private Rows getWindow(long timestamp) {
+        long size = streamSource.getParsedStorageSize();
+        if (streamSource.getSamplingRate() == 0 || size == 0)
+            return buffer.range(1, 0);
+        switch (streamSource.getWindowingType()) {
+            case TUPLE_BASED_SLIDE_ON_EACH_TUPLE:
+            case TUPLE_BASED:
+            case TUPLE_BASED_WIN_TIME_BASED_SLIDE:
+                return buffer.lastTuples(getTupleCount(), timestamp);
+            case TIME_BASED_SLIDE_ON_EACH_TUPLE:
+                if (remoteTimestamps)
+                    return buffer.range(timestamp - size, timestamp);
+                return buffer.range(System.currentTimeMillis() - size + 1, timestamp);
+            default: // TIME_BASED and TIME_BASED_WIN_TUPLE_BASED_SLIDE
+                return buffer.range(timestamp - size, timestamp);
+        }
+    }
+
+}
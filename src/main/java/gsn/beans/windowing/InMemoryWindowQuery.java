@@ -0,0 +1,631 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/beans/windowing/InMemoryWindowQuery.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.beans.windowing;
+
+import gsn.beans.DataTypes;
+import gsn.beans.StreamElement;
+import gsn.beans.windowing.WindowBuffer.Rows;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A query of the form <code>select f1, f2 as x, timed from wrapper where f3 &gt; 10 and f4 = 'abc'</code> or
+ * <code>select count(*), avg(f1) as average from wrapper where ...</code>, evaluated on the rows of a window.
+ * {@link #parse(String, String, String[], Byte[], boolean)} returns null for the queries which have to be
+ * executed by the database (joins, nested queries, or, group by, functions other than the aggregates, ...).
+ * The results follow the conventions of {@link gsn.storage.DataEnumerator}: the field names are upper case,
+ * a <code>timed</code> column gives the timestamp of the stream element, otherwise the current time is used.
+ * The aggregates have the types and the values returned by H2: the sums of the integers are exact (bigint,
+ * or double for the sums of bigints, which H2 returns as decimals), the averages of the integers are
+ * integers of the input type (truncated, or rounded half up for bigints) and the average of a float is a float.
+ */
+public class InMemoryWindowQuery {
+
+    private static final Pattern SELECT = Pattern.compile("^\\s*select\\s+(.+?)\\s+from\\s+(\\w+)(?:\\s+where\\s+(.+?))?\\s*;?\\s*$", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    private static final Pattern COLUMN = Pattern.compile("^(?:(\\w+)\\.)?(\\*|\\w+)(?:\\s+as\\s+(\\w+))?$", Pattern.CASE_INSENSITIVE);
+
+    private static final Pattern AGGREGATE = Pattern.compile("^(count|sum|avg|min|max)\\s*\\(\\s*(?:(\\w+)\\.)?(\\*|\\w+)\\s*\\)(?:\\s+as\\s+(\\w+))?$", Pattern.CASE_INSENSITIVE);
+
+    private static final Pattern CONDITION = Pattern.compile("^(?:(\\w+)\\.)?(\\w+)\\s*(<=|>=|<>|!=|=|<|>)\\s*(-?\\d+(?:\\.\\d+)?|'[^']*')$", Pattern.CASE_INSENSITIVE);
+
+    private static final Pattern UNSUPPORTED = Pattern.compile("\\b(or|not|like|between|in|is|null|join|union|group|having|order|limit|offset|distinct|top|case)\\b|\"", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    private static final Pattern STRING_LITERAL = Pattern.compile("'[^']*'");
+
+    private static final byte EQ = 0, NE = 1, LT = 2, LE = 3, GT = 4, GE = 5;
+
+    private static final byte COUNT = 0, SUM = 1, AVG = 2, MIN = 3, MAX = 4;
+
+    /** The column index used for the timestamp. */
+    private static final int TIMED = -1;
+
+    private final String[] fieldNames;
+
+    private final Byte[] fieldTypes;
+
+    /** Index of the input column of each output field (or TIMED). */
+    private final int[] fieldColumns;
+
+    /** The aggregate of each output field, null if the query is not an aggregate. */
+    private final byte[] aggregates;
+
+    /** The type of the input column of each aggregate, null if the query is not an aggregate. */
+    private final byte[] aggregateInputTypes;
+
+    private final boolean withTimed;
+
+    private final int[] conditionColumns;
+
+    private final byte[] conditionOperators;
+
+    private final Serializable[] conditionValues;
+
+    private InMemoryWindowQuery(String[] fieldNames, Byte[] fieldTypes, int[] fieldColumns, byte[] aggregates, byte[] aggregateInputTypes, boolean withTimed, int[] conditionColumns, byte[] conditionOperators, Serializable[] conditionValues) {
+        this.fieldNames = fieldNames;
+        this.fieldTypes = fieldTypes;
+        this.fieldColumns = fieldColumns;
+        this.aggregates = aggregates;
+        this.aggregateInputTypes = aggregateInputTypes;
+        this.withTimed = withTimed;
+        this.conditionColumns = conditionColumns;
+        this.conditionOperators = conditionOperators;
+        this.conditionValues = conditionValues;
+    }
+
+    /**
+     * Returns the query evaluated on the given input, or null if the query can't be evaluated in memory.
+     *
+     * @param tableName the name used in the from clause of the query for the input (e.g., wrapper or the stream source alias).
+     * @param inputHasTimed true if the input has the <code>timed</code> column.
+     */
+    public static InMemoryWindowQuery parse(String query, String tableName, String[] inputNames, Byte[] inputTypes, boolean inputHasTimed) {
+        if (query == null)
+            return null;
+        if (UNSUPPORTED.matcher(STRING_LITERAL.matcher(query).replaceAll("''")).find())
+            return null;
+        Matcher select = SELECT.matcher(query);
+        if (!select.matches() || !select.group(2).equalsIgnoreCase(tableName))
+            return null;
+
+        ArrayList<String> names = new ArrayList<String>();
+        ArrayList<Byte> types = new ArrayList<Byte>();
+        ArrayList<Integer> columns = new ArrayList<Integer>();
+        ArrayList<Byte> functions = new ArrayList<Byte>();
+        ArrayList<Byte> functionInputTypes = new ArrayList<Byte>();
+        boolean withTimed = false;
+        boolean plainColumns = false;
+        for (String item : select.group(1).split(",")) {
+            item = item.trim();
+            Matcher aggregate = AGGREGATE.matcher(item);
+            Matcher column = COLUMN.matcher(item);
+            if (aggregate.matches()) {
+                if (!isQualifierValid(aggregate.group(2), tableName))
+                    return null;
+                byte function = toAggregate(aggregate.group(1));
+                int index = aggregate.group(3).equals("*") ? TIMED : indexOf(aggregate.group(3), inputNames, inputHasTimed);
+                if (index == Integer.MIN_VALUE || (aggregate.group(3).equals("*") && function != COUNT))
+                    return null;
+                byte inputType = index == TIMED ? DataTypes.BIGINT : inputTypes[index];
+                byte type;
+                if (function == COUNT) {
+                    type = DataTypes.BIGINT;
+                } else if (function == MIN || function == MAX) {
+                    if (inputType == DataTypes.BINARY)
+                        return null;
+                    type = inputType;
+                } else if (function == AVG && (isInteger(inputType) || inputType == DataTypes.FLOAT)) {
+                    type = inputType;
+                } else if (function == SUM && isInteger(inputType) && inputType != DataTypes.BIGINT) {
+                    type = DataTypes.BIGINT;
+                } else if (isInteger(inputType) || inputType == DataTypes.DOUBLE || inputType == DataTypes.FLOAT) {
+                    type = DataTypes.DOUBLE;
+                } else {
+                    return null;
+                }
+                names.add((aggregate.group(4) != null ? aggregate.group(4) : aggregate.group(1) + "(" + aggregate.group(3) + ")").toUpperCase());
+                types.add(type);
+                columns.add(index);
+                functions.add(function);
+                functionInputTypes.add(inputType);
+            } else if (column.matches()) {
+                if (!isQualifierValid(column.group(1), tableName))
+                    return null;
+                plainColumns = true;
+                if (column.group(2).equals("*")) {
+                    if (column.group(3) != null)
+                        return null;
+                    for (int i = 0; i < inputNames.length; i++) {
+                        names.add(inputNames[i].toUpperCase());
+                        types.add(inputTypes[i]);
+                        columns.add(i);
+                    }
+                    withTimed |= inputHasTimed;
+                    continue;
+                }
+                int index = indexOf(column.group(2), inputNames, inputHasTimed);
+                if (index == Integer.MIN_VALUE)
+                    return null;
+                String name = column.group(3) != null ? column.group(3) : column.group(2);
+                if (name.equalsIgnoreCase("timed")) {
+                    if (index != TIMED)
+                        return null;
+                    withTimed = true;
+                } else if (name.equalsIgnoreCase("pk")) {
+                    return null;
+                } else {
+                    names.add(name.toUpperCase());
+                    types.add(index == TIMED ? DataTypes.BIGINT : inputTypes[index]);
+                    columns.add(index);
+                }
+            } else {
+                return null;
+            }
+        }
+        if (plainColumns && !functions.isEmpty())
+            return null; // would need a group by.
+
+        ArrayList<Integer> conditionColumns = new ArrayList<Integer>();
+        ArrayList<Byte> conditionOperators = new ArrayList<Byte>();
+        ArrayList<Serializable> conditionValues = new ArrayList<Serializable>();
+        if (select.group(3) != null) {
+            for (String condition : select.group(3).split("(?i)\\s+and\\s+")) {
+                Matcher matcher = CONDITION.matcher(condition.trim());
+                if (!matcher.matches() || !isQualifierValid(matcher.group(1), tableName))
+                    return null;
+                int index = indexOf(matcher.group(2), inputNames, inputHasTimed);
+                if (index == Integer.MIN_VALUE)
+                    return null;
+                String operator = matcher.group(3);
+                String constant = matcher.group(4);
+                Serializable value;
+                if (constant.startsWith("'")) {
+                    if (!operator.equals("=") && !operator.equals("<>") && !operator.equals("!="))
+                        return null;
+                    value = constant.substring(1, constant.length() - 1);
+                } else {
+                    value = Double.valueOf(constant);
+                }
+                conditionColumns.add(index);
+                conditionOperators.add(toOperator(operator));
+                conditionValues.add(value);
+            }
+        }
+
+        byte[] aggregates = null;
+        byte[] aggregateInputTypes = null;
+        if (!functions.isEmpty()) {
+            aggregates = new byte[functions.size()];
+            aggregateInputTypes = new byte[functions.size()];
+            for (int i = 0; i < aggregates.length; i++) {
+                aggregates[i] = functions.get(i);
+                aggregateInputTypes[i] = functionInputTypes.get(i);
+            }
+        }
+        byte[] operators = new byte[conditionOperators.size()];
+        for (int i = 0; i < operators.length; i++)
+            operators[i] = conditionOperators.get(i);
+        return new InMemoryWindowQuery(names.toArray(new String[names.size()]), types.toArray(new Byte[types.size()]), toIntArray(columns), aggregates, aggregateInputTypes, withTimed,
+                toIntArray(conditionColumns), operators, conditionValues.toArray(new Serializable[conditionValues.size()]));
+    }
+
+    private static boolean isQualifierValid(String qualifier, String tableName) {
+        return qualifier == null || qualifier.equalsIgnoreCase(tableName);
+    }
+
+    private static boolean isInteger(byte type) {
+        return type == DataTypes.TINYINT || type == DataTypes.SMALLINT || type == DataTypes.INTEGER || type == DataTypes.BIGINT;
+    }
+
+    /**
+     * Returns the index of the column, TIMED for the timestamp or Integer.MIN_VALUE if the column doesn't exist.
+     */
+    private static int indexOf(String name, String[] inputNames, boolean inputHasTimed) {
+        if (name.equalsIgnoreCase("timed"))
+            return inputHasTimed ? TIMED : Integer.MIN_VALUE;
+        for (int i = 0; i < inputNames.length; i++)
+            if (inputNames[i].equalsIgnoreCase(name))
+                return i;
+        return Integer.MIN_VALUE;
+    }
+
+    private static byte toAggregate(String function) {
+        if (function.equalsIgnoreCase("count"))
+            return COUNT;
+        if (function.equalsIgnoreCase("sum"))
+            return SUM;
+        if (function.equalsIgnoreCase("avg"))
+            return AVG;
+        if (function.equalsIgnoreCase("min"))
+            return MIN;
+        return MAX;
+    }
+
+    private static byte toOperator(String operator) {
+        if (operator.equals("="))
+            return EQ;
+        if (operator.equals("<>") || operator.equals("!="))
+            return NE;
+        if (operator.equals("<"))
+            return LT;
+        if (operator.equals("<="))
+            return LE;
+        if (operator.equals(">"))
+            return GT;
+        return GE;
+    }
+
+    private static int[] toIntArray(List<Integer> list) {
+        int[] toReturn = new int[list.size()];
+        for (int i = 0; i < toReturn.length; i++)
+            toReturn[i] = list.get(i);
+        return toReturn;
+    }
+
+    public String[] getFieldNames() {
+        return fieldNames;
+    }
+
+    public Byte[] getFieldTypes() {
+        return fieldTypes;
+    }
+
+    /**
+     * True if the results have a meaningful timestamp (i.e., the <code>timed</code> column is selected).
+     */
+    public boolean isWithTimed() {
+        return withTimed;
+    }
+
+    public boolean isAggregate() {
+        return aggregates != null;
+    }
+
+    /**
+     * Evaluates the query on the rows. Like in SQL, an aggregate query always returns one stream element.
+     *
+     * @param samplingRate the rows whose <code>timed % 100</code> is not lower than <code>samplingRate * 100</code> are ignored.
+     */
+    public ArrayList<StreamElement> evaluate(Rows rows, float samplingRate) {
+        ArrayList<StreamElement> toReturn = new ArrayList<StreamElement>();
+        int size = rows.size();
+        if (aggregates == null) {
+            for (int row = 0; row < size; row++) {
+                if (!accept(rows, row, samplingRate))
+                    continue;
+                Serializable[] values = new Serializable[fieldColumns.length];
+                for (int i = 0; i < fieldColumns.length; i++)
+                    values[i] = value(rows, fieldColumns[i], row);
+                toReturn.add(new StreamElement(fieldNames, fieldTypes, values, withTimed ? rows.timed(row) : System.currentTimeMillis()));
+            }
+            return toReturn;
+        }
+        Partial total = new Partial();
+        for (int row = 0; row < size; row++)
+            if (accept(rows, row, samplingRate))
+                total.add(rows, row);
+        toReturn.add(total.toStreamElement());
+        return toReturn;
+    }
+
+    /**
+     * Returns the state maintaining the result of this aggregate query incrementally, as the window slides.
+     */
+    public SlidingAggregate newSlidingAggregate() {
+        if (aggregates == null)
+            throw new IllegalStateException("The query is not an aggregate.");
+        return new SlidingAggregate();
+    }
+
+    /**
+     * The partial result of the aggregates over some rows. The sums of the integers are accumulated in longs, the
+     * sums of the bigints in big decimals and the sums of the floating point numbers in doubles.
+     */
+    private class Partial {
+
+        private final long[] counts = new long[aggregates.length];
+
+        private final double[] sums = new double[aggregates.length];
+
+        private final long[] longSums = new long[aggregates.length];
+
+        private final BigDecimal[] decimalSums = new BigDecimal[aggregates.length];
+
+        private final Serializable[] extremes = new Serializable[aggregates.length];
+
+        void add(Rows rows, int row) {
+            for (int i = 0; i < aggregates.length; i++) {
+                if (aggregates[i] == COUNT && fieldColumns[i] == TIMED) {
+                    counts[i]++; // count(*)
+                    continue;
+                }
+                Serializable value = value(rows, fieldColumns[i], row);
+                if (value == null)
+                    continue;
+                counts[i]++;
+                if (aggregates[i] != SUM && aggregates[i] != AVG)
+                    addExtreme(i, value);
+                else if (aggregateInputTypes[i] == DataTypes.BIGINT)
+                    addDecimal(i, BigDecimal.valueOf(((Number) value).longValue()));
+                else if (isInteger(aggregateInputTypes[i]))
+                    longSums[i] += ((Number) value).longValue();
+                else
+                    sums[i] += ((Number) value).doubleValue();
+            }
+        }
+
+        void add(Partial other) {
+            for (int i = 0; i < aggregates.length; i++) {
+                counts[i] += other.counts[i];
+                sums[i] += other.sums[i];
+                longSums[i] += other.longSums[i];
+                if (other.decimalSums[i] != null)
+                    addDecimal(i, other.decimalSums[i]);
+                if (other.extremes[i] != null)
+                    addExtreme(i, other.extremes[i]);
+            }
+        }
+
+        private void addDecimal(int i, BigDecimal value) {
+            decimalSums[i] = decimalSums[i] == null ? value : decimalSums[i].add(value);
+        }
+
+        private void addExtreme(int i, Serializable value) {
+            if (extremes[i] == null || (aggregates[i] == MIN && compare(value, extremes[i]) < 0) || (aggregates[i] == MAX && compare(value, extremes[i]) > 0))
+                extremes[i] = value;
+        }
+
+        private StreamElement toStreamElement() {
+            Serializable[] values = new Serializable[aggregates.length];
+            for (int i = 0; i < aggregates.length; i++) {
+                switch (aggregates[i]) {
+                    case COUNT:
+                        values[i] = counts[i];
+                        break;
+                    case SUM:
+                        values[i] = counts[i] == 0 ? null : sum(i);
+                        break;
+                    case AVG:
+                        values[i] = counts[i] == 0 ? null : average(i);
+                        break;
+                    default:
+                        values[i] = extremes[i];
+                }
+            }
+            return new StreamElement(fieldNames, fieldTypes, values, System.currentTimeMillis());
+        }
+
+        private Serializable sum(int i) {
+            if (aggregateInputTypes[i] == DataTypes.BIGINT)
+                return decimalSums[i].doubleValue();
+            if (isInteger(aggregateInputTypes[i]))
+                return longSums[i];
+            return sums[i];
+        }
+
+        private Serializable average(int i) {
+            switch (aggregateInputTypes[i]) {
+                case DataTypes.BIGINT:
+                    return decimalSums[i].divide(BigDecimal.valueOf(counts[i]), 0, RoundingMode.HALF_UP).longValue();
+                case DataTypes.INTEGER:
+                    return (int) (longSums[i] / counts[i]);
+                case DataTypes.SMALLINT:
+                    return (short) (longSums[i] / counts[i]);
+                case DataTypes.TINYINT:
+                    return (byte) (longSums[i] / counts[i]);
+                case DataTypes.FLOAT:
+                    return (float) (sums[i] / counts[i]);
+                default:
+                    return sums[i] / counts[i];
+            }
+        }
+    }
+
+    private class Node extends Partial {
+
+        private final long sequence;
+
+        private Node(long sequence) {
+            this.sequence = sequence;
+        }
+    }
+
+    /**
+     * Maintains the aggregates of a sliding window with two stacks: the new rows are pushed on the back stack,
+     * whose total is kept up to date, and the old rows are evicted from the front stack, where each node holds
+     * the total of itself and of the newer nodes of the front stack. When the front stack is empty, the back
+     * stack is moved into it. Each row is added, moved and evicted once, so a slide costs O(1) per new row
+     * instead of O(window size), and min/max don't need to be recomputed on eviction.
+     * The windows must move forward (as all the window types do), otherwise the state is rebuilt from the rows.
+     */
+    public class SlidingAggregate {
+
+        /** Oldest node first. */
+        private final ArrayDeque<Node> front = new ArrayDeque<Node>();
+
+        /** Newest node last. */
+        private final ArrayList<Node> back = new ArrayList<Node>();
+
+        private Partial backTotal = new Partial();
+
+        private long firstSequence = -1;
+
+        private long lastSequence = -1;
+
+        private SlidingAggregate() {
+        }
+
+        /**
+         * Slides to the given window and returns the aggregates, as {@link InMemoryWindowQuery#evaluate(Rows, float)} does.
+         */
+        public ArrayList<StreamElement> slide(Rows rows, float samplingRate) {
+            ArrayList<StreamElement> toReturn = new ArrayList<StreamElement>();
+            int size = rows.size();
+            if (size == 0) {
+                clear();
+                toReturn.add(new Partial().toStreamElement());
+                return toReturn;
+            }
+            long first = rows.sequence(size - 1);
+            long last = rows.sequence(0);
+            if (first < firstSequence || last < lastSequence)
+                clear();
+            firstSequence = first;
+
+            while (true) {
+                if (front.isEmpty()) {
+                    if (back.isEmpty() || back.get(0).sequence >= first)
+                        break;
+                    flip();
+                }
+                if (front.peekFirst().sequence >= first)
+                    break;
+                front.pollFirst();
+            }
+
+            for (long sequence = Math.max(lastSequence + 1, first); sequence <= last; sequence++) {
+                int row = (int) (last - sequence);
+                if (!accept(rows, row, samplingRate))
+                    continue;
+                Node node = new Node(sequence);
+                node.add(rows, row);
+                back.add(node);
+                backTotal.add(node);
+            }
+            lastSequence = last;
+
+            Partial total = new Partial();
+            if (!front.isEmpty())
+                total.add(front.peekFirst());
+            total.add(backTotal);
+            toReturn.add(total.toStreamElement());
+            return toReturn;
+        }
+
+        private void flip() {
+            Node newer = null;
+            for (int i = back.size() - 1; i >= 0; i--) {
+                Node node = back.get(i);
+                if (newer != null)
+                    node.add(newer);
+                front.addFirst(node);
+                newer = node;
+            }
+            back.clear();
+            backTotal = new Partial();
+        }
+
+        private void clear() {
+            front.clear();
+            back.clear();
+            backTotal = new Partial();
+            firstSequence = -1;
+            lastSequence = -1;
+        }
+    }
+
+    private static Serializable value(Rows rows, int column, int row) {
+        return column == TIMED ? rows.timed(row) : rows.value(column, row);
+    }
+
+    private boolean accept(Rows rows, int row, float samplingRate) {
+        if (samplingRate < 1 && rows.timed(row) % 100 >= samplingRate * 100)
+            return false;
+        for (int i = 0; i < conditionColumns.length; i++) {
+            Serializable value = value(rows, conditionColumns[i], row);
+            if (value == null)
+                return false; // comparing to null is never true in SQL.
+            int cmp;
+            if (conditionValues[i] instanceof Double) {
+                if (!(value instanceof Number))
+                    return false;
+                cmp = Double.compare(((Number) value).doubleValue(), (Double) conditionValues[i]);
+            } else {
+                cmp = value.toString().compareTo((String) conditionValues[i]);
+            }
+            if (!matches(conditionOperators[i], cmp))
+                return false;
+        }
+        return true;
+    }
+
+    private static int compare(Serializable a, Serializable b) {
+        if (a instanceof Number && b instanceof Number)
+            return Double.compare(((Number) a).doubleValue(), ((Number) b).doubleValue());
+        return a.toString().compareTo(b.toString());
+    }
+
+    private static boolean matches(byte operator, int cmp) {
+        switch (operator) {
+            case EQ:
+                return cmp == 0;
+            case NE:
+                return cmp != 0;
+            case LT:
+                return cmp < 0;
+            case LE:
+                return cmp <= 0;
+            case GT:
+                return cmp > 0;
+            case GE:
+                return cmp >= 0;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * The stream elements produced by another query (e.g., the one of the stream source, when evaluating
+     * the query of the input stream), in the order of the list.
+     */
+    public static Rows asRows(final List<StreamElement> elements) {
+        return new Rows() {
+            public int size() {
+                return elements.size();
+            }
+
+            public long timed(int row) {
+                return elements.get(row).getTimeStamp();
+            }
+
+            public Serializable value(int column, int row) {
+                return elements.get(row).getData()[column];
+            }
+
+            public long sequence(int row) {
+                return elements.size() - 1 - row;
+            }
+        };
+    }
+
+}
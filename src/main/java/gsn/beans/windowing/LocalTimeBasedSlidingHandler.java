@@ -47,58 +47,36 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.TreeMap;
 
 import org.apache.log4j.Logger;
 
-public class LocalTimeBasedSlidingHandler implements SlidingHandler {
+public class LocalTimeBasedSlidingHandler implements SlidingHandler, SlideTimer.SlideListener {
 
     private static final transient Logger logger = Logger.getLogger(LocalTimeBasedSlidingHandler.class);
-    private static int timerCount = 0;
     private List<StreamSource> streamSources;
     private AbstractWrapper wrapper;
-    private Timer timer;
-    private long timerTick = -1;
-    private Map<StreamSource, Long> slidingHashMap;
+    private Map<StreamSource, SlideTimer.Slide> slidingHashMap;
 
     public LocalTimeBasedSlidingHandler(AbstractWrapper wrapper) {
         streamSources = Collections.synchronizedList(new ArrayList<StreamSource>());
-        slidingHashMap = Collections.synchronizedMap(new HashMap<StreamSource, Long>());
-        timer = new Timer("LocalTimeBasedSlidingHandlerTimer" + (++timerCount));
+        slidingHashMap = Collections.synchronizedMap(new HashMap<StreamSource, SlideTimer.Slide>());
         this.wrapper = wrapper;
     }
 
     public void addStreamSource(StreamSource streamSource) {
-        SQLViewQueryRewriter rewriter = new LTBSQLViewQueryRewriter();
-        rewriter.setStreamSource(streamSource);
-        rewriter.initialize();
+        if (InMemoryQueryRewriter.create(streamSource, false) == null) {
+            SQLViewQueryRewriter rewriter = new LTBSQLViewQueryRewriter();
+            rewriter.setStreamSource(streamSource);
+            rewriter.initialize();
+        }
         if (streamSource.getWindowingType() != WindowType.TIME_BASED_SLIDE_ON_EACH_TUPLE) {
-            long oldTimerTick = timerTick;
-            if (streamSource.getWindowingType() == WindowType.TIME_BASED) {
-                slidingHashMap.put(streamSource, streamSource.getParsedSlideValue() - streamSource.getParsedStorageSize());
-                if (timerTick == -1) {
-                    timerTick = GCD(streamSource.getParsedStorageSize(), streamSource.getParsedSlideValue());
-                } else {
-                    timerTick = GCD(timerTick, GCD(streamSource.getParsedStorageSize(), streamSource.getParsedSlideValue()));
-                }
-            } else {
-                slidingHashMap.put(streamSource, 0L);
-                if (timerTick == -1) {
-                    timerTick = streamSource.getParsedSlideValue();
-                } else {
-                    timerTick = GCD(timerTick, streamSource.getParsedSlideValue());
-                }
-            }
-            if (oldTimerTick != timerTick) {
-                timer.cancel();
-                timer = new Timer();
-                if (logger.isDebugEnabled()) {
-                    logger.debug("About to schedule new timer task at period " + timerTick + "ms in the " + wrapper.getDBAliasInStr() + " wrapper");
-                }
-                timer.schedule(new LTBTimerTask(), 500, timerTick);
+            // The first slide of a time based window happens once the window is full.
+            long delay = streamSource.getWindowingType() == WindowType.TIME_BASED ? streamSource.getParsedStorageSize() : streamSource.getParsedSlideValue();
+            if (logger.isDebugEnabled()) {
+                logger.debug("About to schedule the slides at period " + streamSource.getParsedSlideValue() + "ms in the " + wrapper.getDBAliasInStr() + " wrapper");
             }
+            slidingHashMap.put(streamSource, SlideTimer.getInstance().schedule(this, streamSource, delay, streamSource.getParsedSlideValue()));
         } else {
             streamSources.add(streamSource);
         }
@@ -108,18 +86,14 @@ public class LocalTimeBasedSlidingHandler implements SlidingHandler {
         return WindowingUtil.GCD(a, b);
     }
 
-    private class LTBTimerTask extends TimerTask {
-
-        @Override
-        public void run() {
-            synchronized (slidingHashMap) {
-                for (StreamSource streamSource : slidingHashMap.keySet()) {
-                    long slideVar = slidingHashMap.get(streamSource) + timerTick;
-                    if (slideVar >= streamSource.getParsedSlideValue()) {
-                        slideVar = 0;
-                        streamSource.getQueryRewriter().dataAvailable(System.currentTimeMillis());
-                    }
-                    slidingHashMap.put(streamSource, slideVar);
+    /**
+     * Called by the {@link SlideTimer} with the stream sources whose slide is due.
+     */
+    public void slide(ArrayList<StreamSource> dueStreamSources, long timestamp) {
+        synchronized (slidingHashMap) {
+            for (StreamSource streamSource : dueStreamSources) {
+                if (slidingHashMap.containsKey(streamSource)) {
+                    streamSource.getQueryRewriter().dataAvailable(timestamp);
                 }
             }
         }
@@ -203,42 +177,11 @@ public class LocalTimeBasedSlidingHandler implements SlidingHandler {
 
     public void removeStreamSource(StreamSource streamSource) {
         streamSources.remove(streamSource);
-        slidingHashMap.remove(streamSource);
-        streamSource.getQueryRewriter().dispose();
-        updateTimerTick();
-    }
-
-    private void updateTimerTick() {
-        long oldTimerTick = timerTick;
-        // recalculating timer tick
-        timerTick = -1;
-        synchronized (slidingHashMap) {
-            for (StreamSource streamSource : slidingHashMap.keySet()) {
-                if (streamSource.getWindowingType() == WindowType.TIME_BASED) {
-                    slidingHashMap.put(streamSource, streamSource.getParsedSlideValue() - streamSource.getParsedStorageSize());
-                    if (timerTick == -1) {
-                        timerTick = GCD(streamSource.getParsedStorageSize(), streamSource.getParsedSlideValue());
-                    } else {
-                        timerTick = GCD(timerTick, GCD(streamSource.getParsedStorageSize(), streamSource.getParsedSlideValue()));
-                    }
-                } else {
-                    slidingHashMap.put(streamSource, 0L);
-                    if (timerTick == -1) {
-                        timerTick = streamSource.getParsedSlideValue();
-                    } else {
-                        timerTick = GCD(timerTick, streamSource.getParsedSlideValue());
-                    }
-                }
-            }
-        }
-        if (oldTimerTick != timerTick && timerTick > 0) {
-            timer.cancel();
-            timer = new Timer();
-            if (logger.isDebugEnabled()) {
-                logger.debug("About to schedule new timer task at period " + timerTick + "ms in the " + wrapper.getDBAliasInStr() + " wrapper");
-            }
-            timer.schedule(new LTBTimerTask(), 500, timerTick);
+        SlideTimer.Slide slide = slidingHashMap.remove(streamSource);
+        if (slide != null) {
+            slide.cancel();
         }
+        streamSource.getQueryRewriter().dispose();
     }
 
     public void dispose() {
@@ -249,8 +192,9 @@ public class LocalTimeBasedSlidingHandler implements SlidingHandler {
             streamSources.clear();
         }
         synchronized (slidingHashMap) {
-            for (StreamSource streamSource : slidingHashMap.keySet()) {
-                streamSource.getQueryRewriter().dispose();
+            for (Map.Entry<StreamSource, SlideTimer.Slide> entry : slidingHashMap.entrySet()) {
+                entry.getValue().cancel();
+                entry.getKey().getQueryRewriter().dispose();
             }
             slidingHashMap.clear();
         }
@@ -309,7 +253,9 @@ public class LocalTimeBasedSlidingHandler implements SlidingHandler {
             WindowType windowingType = streamSource.getWindowingType();
             if (windowingType == WindowType.TIME_BASED_SLIDE_ON_EACH_TUPLE) {
 
-                toReturn.append("(wrapper.timed >");
+                // Bounded by the stream element of the slide as well, for the stream elements of a batch inserted at once.
+                toReturn.append("(wrapper.timed <= (select timed from ").append(SQLViewQueryRewriter.VIEW_HELPER_TABLE).append(" where U_ID='").append(
+                        streamSource.getUIDStr()).append("') and wrapper.timed >");
                 if (Main.getWindowStorage().isH2()) {
                     toReturn.append(" (NOW_MILLIS()");
                 } else if (Main.getWindowStorage().isMysqlDB()) {
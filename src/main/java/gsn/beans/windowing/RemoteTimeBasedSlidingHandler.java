@@ -66,10 +66,12 @@ public class RemoteTimeBasedSlidingHandler implements SlidingHandler {
 	}
 
 	public void addStreamSource(StreamSource streamSource) {
-		SQLViewQueryRewriter rewriter = new RTBSQLViewQueryRewriter();
-		rewriter.setStreamSource(streamSource);
-		streamSource.setQueryRewriter(rewriter);
-		rewriter.initialize();
+		if (InMemoryQueryRewriter.create(streamSource, true) == null) {
+			SQLViewQueryRewriter rewriter = new RTBSQLViewQueryRewriter();
+			rewriter.setStreamSource(streamSource);
+			streamSource.setQueryRewriter(rewriter);
+			rewriter.initialize();
+		}
 		if (streamSource.getWindowingType() != WindowType.TIME_BASED_SLIDE_ON_EACH_TUPLE) {
 			slidingHashMap.put(streamSource, -1L);
 		}
@@ -250,7 +252,10 @@ public class RemoteTimeBasedSlidingHandler implements SlidingHandler {
 			}
 			WindowType windowingType = streamSource.getWindowingType();
 			if (windowingType == WindowType.TIME_BASED_SLIDE_ON_EACH_TUPLE) {
-				toReturn.append("(wrapper.timed >= (select timed from ").append(VIEW_HELPER_TABLE).append(" where U_ID='").append(
+				// Bounded by the time of the slide as well, for the stream elements of a batch inserted at once.
+				toReturn.append("(wrapper.timed <= (select timed from ").append(VIEW_HELPER_TABLE).append(" where U_ID='").append(
+						streamSource.getUIDStr()).append("') and ");
+				toReturn.append("wrapper.timed >= (select timed from ").append(VIEW_HELPER_TABLE).append(" where U_ID='").append(
 						streamSource.getUIDStr());
 				toReturn.append("') - ").append(windowSize).append(") ");
 				if (Main.getWindowStorage().isH2() || Main.getWindowStorage().isMysqlDB() || Main.getWindowStorage().isPostgres()) {
@@ -0,0 +1,371 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/beans/windowing/SlideTimer.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.beans.windowing;
+
+import gsn.beans.StreamSource;
+import gsn.monitoring.Monitorable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Drives the time based slides of all the wrappers with a single hashed timer wheel, instead of one
+ * {@link java.util.Timer} per wrapper. The wheel is advanced by one thread every tick (-DslideTimerTick,
+ * in milliseconds). The slides due at the same tick are batched per {@link SlideListener} and run on a
+ * small pool of threads (-DslideTimerThreads), so that a slow window query only delays its own wrapper.
+ * The slides of a listener never run concurrently: while a batch runs, the next slides of its listener are
+ * merged into one pending batch, run once the current one is over.
+ * A slide is late when it runs after its deadline; if a slide is more than a period late, the missed
+ * slides are skipped (as the former timers did) and counted.
+ */
+public class SlideTimer implements Monitorable {
+
+    private static final transient Logger logger = Logger.getLogger(SlideTimer.class);
+
+    public static final int DEFAULT_TICK = 10;
+
+    public static final int DEFAULT_THREADS = 2;
+
+    private static final int WHEEL_SIZE = 512;
+
+    private static SlideTimer singleton = null;
+
+    /**
+     * Receives the slides of its stream sources.
+     */
+    public interface SlideListener {
+
+        /**
+         * Slides the windows of the stream sources, all due at the same tick.
+         *
+         * @param timestamp the time of the slide.
+         */
+        public void slide(ArrayList<StreamSource> streamSources, long timestamp);
+    }
+
+    /**
+     * A periodic slide of a stream source, registered in the wheel.
+     */
+    public class Slide {
+
+        private final SlideListener listener;
+
+        private final StreamSource streamSource;
+
+        private final long period;
+
+        private long deadline;
+
+        /** Index of the tick at which the slide is due. */
+        private long tickIndex;
+
+        private boolean cancelled = false;
+
+        private Slide(SlideListener listener, StreamSource streamSource, long deadline, long period) {
+            this.listener = listener;
+            this.streamSource = streamSource;
+            this.deadline = deadline;
+            this.period = period;
+        }
+
+        public void cancel() {
+            synchronized (SlideTimer.this) {
+                if (!cancelled) {
+                    cancelled = true;
+                    scheduled--;
+                }
+            }
+        }
+    }
+
+    private final long tick;
+
+    private final ArrayList<Slide>[] wheel;
+
+    /** Index of the next tick to process. */
+    private long nextTick;
+
+    private int scheduled = 0;
+
+    private ScheduledExecutorService ticker = null;
+
+    private ExecutorService workers = null;
+
+    private final int threads;
+
+    /**
+     * The listeners whose slides are running, with their pending batch (or null).
+     */
+    private final HashMap<SlideListener, Batch> running = new HashMap<SlideListener, Batch>();
+
+    private long slideCount = 0;
+
+    private long skippedCount = 0;
+
+    private long totalLateness = 0;
+
+    private long maxLateness = 0;
+
+    @SuppressWarnings("unchecked")
+    private SlideTimer(long tick, int threads) {
+        this.tick = tick;
+        this.threads = threads;
+        wheel = new ArrayList[WHEEL_SIZE];
+        for (int i = 0; i < WHEEL_SIZE; i++)
+            wheel[i] = new ArrayList<Slide>();
+        nextTick = System.currentTimeMillis() / tick;
+    }
+
+    public static synchronized SlideTimer getInstance() {
+        if (singleton == null) {
+            long tick = System.getProperty("slideTimerTick") == null ? DEFAULT_TICK : Math.max(1, Long.parseLong(System.getProperty("slideTimerTick")));
+            int threads = System.getProperty("slideTimerThreads") == null ? DEFAULT_THREADS : Math.max(1, Integer.parseInt(System.getProperty("slideTimerThreads")));
+            singleton = new SlideTimer(tick, threads);
+        }
+        return singleton;
+    }
+
+    /**
+     * Schedules the periodic slides of the stream source.
+     *
+     * @param delay time before the first slide, in milliseconds.
+     * @param period time between two slides, in milliseconds.
+     */
+    public synchronized Slide schedule(SlideListener listener, StreamSource streamSource, long delay, long period) {
+        start();
+        Slide slide = new Slide(listener, streamSource, System.currentTimeMillis() + Math.max(0, delay), Math.max(1, period));
+        insert(slide);
+        scheduled++;
+        return slide;
+    }
+
+    private void start() {
+        if (ticker != null)
+            return;
+        workers = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger counter = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "SlideTimer-" + counter.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        ticker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "SlideTimer");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        nextTick = System.currentTimeMillis() / tick;
+        ticker.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                try {
+                    advance();
+                } catch (Throwable e) {
+                    logger.error(e.getMessage(), e);
+                }
+            }
+        }, tick, tick, TimeUnit.MILLISECONDS);
+    }
+
+    private void insert(Slide slide) {
+        // Rounded up, so a slide never runs before its deadline.
+        slide.tickIndex = Math.max(nextTick, (slide.deadline + tick - 1) / tick);
+        wheel[(int) (slide.tickIndex % WHEEL_SIZE)].add(slide);
+    }
+
+    /**
+     * Processes the ticks elapsed since the last call, and hands the due slides to the workers.
+     */
+    private void advance() {
+        LinkedHashMap<SlideListener, Batch> batches = new LinkedHashMap<SlideListener, Batch>();
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            long currentTick = now / tick;
+            ArrayList<Slide> rescheduled = new ArrayList<Slide>();
+            for (; nextTick <= currentTick; nextTick++) {
+                Iterator<Slide> bucket = wheel[(int) (nextTick % WHEEL_SIZE)].iterator();
+                while (bucket.hasNext()) {
+                    Slide slide = bucket.next();
+                    if (slide.cancelled) {
+                        bucket.remove();
+                        continue;
+                    }
+                    if (slide.tickIndex > nextTick)
+                        continue; // due in a later round of the wheel.
+                    bucket.remove();
+                    Batch batch = batches.get(slide.listener);
+                    if (batch == null)
+                        batches.put(slide.listener, batch = new Batch(slide.listener));
+                    batch.add(slide);
+                    rescheduled.add(slide);
+                }
+            }
+            for (Slide slide : rescheduled) {
+                slide.deadline += slide.period;
+                while (slide.deadline <= now) {
+                    slide.deadline += slide.period;
+                    skippedCount++;
+                }
+                insert(slide);
+            }
+        }
+        for (Batch batch : batches.values())
+            submit(batch);
+    }
+
+    /**
+     * Runs the batch, or merges it into the pending batch of its listener if its slides are running.
+     */
+    private void submit(Batch batch) {
+        synchronized (this) {
+            if (running.containsKey(batch.listener)) {
+                Batch pending = running.get(batch.listener);
+                if (pending == null)
+                    running.put(batch.listener, batch);
+                else
+                    pending.merge(batch);
+                return;
+            }
+            running.put(batch.listener, null);
+        }
+        workers.execute(batch);
+    }
+
+    /**
+     * Called once the slides of the batch have run, runs the pending batch of the listener.
+     */
+    private void done(Batch batch) {
+        Batch pending;
+        synchronized (this) {
+            pending = running.remove(batch.listener);
+            if (pending != null)
+                running.put(batch.listener, null);
+        }
+        if (pending != null)
+            workers.execute(pending);
+    }
+
+    /**
+     * The slides of one listener due at the same tick.
+     */
+    private class Batch implements Runnable {
+
+        private final SlideListener listener;
+
+        private final ArrayList<Slide> slides = new ArrayList<Slide>();
+
+        private final ArrayList<Long> deadlines = new ArrayList<Long>();
+
+        private Batch(SlideListener listener) {
+            this.listener = listener;
+        }
+
+        private void add(Slide slide) {
+            slides.add(slide);
+            deadlines.add(slide.deadline);
+        }
+
+        /**
+         * Adds the slides of the other batch, a slide already pending is skipped (the window slides once, to
+         * the latest time). Called while holding the lock on the timer.
+         */
+        private void merge(Batch other) {
+            for (int i = 0; i < other.slides.size(); i++) {
+                if (slides.contains(other.slides.get(i))) {
+                    skippedCount++;
+                } else {
+                    slides.add(other.slides.get(i));
+                    deadlines.add(other.deadlines.get(i));
+                }
+            }
+        }
+
+        public void run() {
+            try {
+                slide();
+            } finally {
+                done(this);
+            }
+        }
+
+        private void slide() {
+            long timestamp = System.currentTimeMillis();
+            ArrayList<StreamSource> streamSources = new ArrayList<StreamSource>(slides.size());
+            synchronized (SlideTimer.this) {
+                for (int i = 0; i < slides.size(); i++) {
+                    if (slides.get(i).cancelled)
+                        continue;
+                    streamSources.add(slides.get(i).streamSource);
+                    long lateness = Math.max(0, timestamp - deadlines.get(i));
+                    slideCount++;
+                    totalLateness += lateness;
+                    maxLateness = Math.max(maxLateness, lateness);
+                }
+            }
+            if (streamSources.isEmpty())
+                return;
+            try {
+                listener.slide(streamSources, timestamp);
+            } catch (Exception e) {
+                logger.error(e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of scheduled slides, the number of slides run and skipped, and their lateness
+     * (in milliseconds, the maximum being reset at each call).
+     */
+    public Hashtable<String, Object> getStatistics() {
+        Hashtable<String, Object> stat = new Hashtable<String, Object>();
+        synchronized (this) {
+            stat.put("core.slides.scheduled.value", scheduled);
+            stat.put("core.slides.count", slideCount);
+            stat.put("core.slides.skipped.count", skippedCount);
+            stat.put("core.slides.lateness.avg.value", slideCount == 0 ? 0 : totalLateness / slideCount);
+            stat.put("core.slides.lateness.max.value", maxLateness);
+            maxLateness = 0;
+        }
+        return stat;
+    }
+
+}
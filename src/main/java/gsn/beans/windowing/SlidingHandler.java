@@ -35,6 +35,10 @@ public interface SlidingHandler {
 	
 	public void removeStreamSource(StreamSource streamSource);
 
+	/**
+	 * Slides the windows due at the stream element. The windows only include the stream elements up to it,
+	 * the stream elements of a batch can be inserted at once and then notified one by one.
+	 */
 	public boolean dataAvailable(StreamElement streamElement);
 
 	public boolean isInterestedIn(StreamSource streamSource);
@@ -73,9 +73,11 @@ public class TupleBasedSlidingHandler implements SlidingHandler {
 		} else {
 			streamSources.add(streamSource);
 		}
-		SQLViewQueryRewriter rewriter = new TupleBasedSQLViewQueryRewriter();
-		rewriter.setStreamSource(streamSource);
-		rewriter.initialize();
+		if (InMemoryQueryRewriter.create(streamSource, false) == null) {
+			SQLViewQueryRewriter rewriter = new TupleBasedSQLViewQueryRewriter();
+			rewriter.setStreamSource(streamSource);
+			rewriter.initialize();
+		}
 	}
 
 	public boolean dataAvailable(StreamElement streamElement) {
@@ -292,63 +294,48 @@ public class TupleBasedSlidingHandler implements SlidingHandler {
 				}
 			}
 			WindowType windowingType = streamSource.getWindowingType();
-			if (windowingType == WindowType.TUPLE_BASED_SLIDE_ON_EACH_TUPLE) {
+			CharSequence viewHelperTableName =Main.getWindowStorage().tableNameGeneratorInString(SQLViewQueryRewriter.VIEW_HELPER_TABLE);
+			// The windows sliding on each tuple are also bounded by the time of the slide, which is the time of the
+			// latest stream element unless a batch of stream elements is inserted at once.
+			if (windowingType == WindowType.TUPLE_BASED || windowingType == WindowType.TUPLE_BASED_SLIDE_ON_EACH_TUPLE) {
 				if (Main.getWindowStorage().isMysqlDB() || Main.getWindowStorage().isPostgres()) {
-					toReturn.append("timed >= (select timed from ").append(wrapperAlias).append(" order by timed desc limit 1 offset ").append(windowSize - 1).append(" ) order by timed desc ");
+					toReturn.append("timed <= (select timed from ").append(viewHelperTableName).append(
+					" where U_ID='").append(streamSource.getUIDStr()).append("') and timed >= (select timed from ");
+					toReturn.append(wrapperAlias).append(" where timed <= (select timed from ");
+					toReturn.append(viewHelperTableName).append(" where U_ID='").append(streamSource.getUIDStr());
+					toReturn.append("') ").append(" order by timed desc limit 1 offset ").append(windowSize - 1).append(" )");
+					toReturn.append(" order by timed desc ");
 				} else if (Main.getWindowStorage().isH2()) {
-					toReturn.append("timed >= (select distinct(timed) from ").append(wrapperAlias).append(" where timed in (select timed from ").append(wrapperAlias).append(" order by timed desc limit 1 offset ").append(windowSize - 1).append(
-					" )) order by timed desc ");
+					toReturn.append("timed <= (select timed from ").append(viewHelperTableName).append(
+					" where U_ID='").append(streamSource.getUIDStr()).append("') and timed >= (select distinct(timed) from ");
+					toReturn.append(wrapperAlias).append(" where timed in (select timed from ").append(wrapperAlias).append(
+					" where timed <= (select timed from ");
+					toReturn.append(viewHelperTableName).append(" where U_ID='").append(streamSource.getUIDStr());
+					toReturn.append("') ").append(" order by timed desc limit 1 offset ").append(windowSize - 1).append(" ))");
+					toReturn.append(" order by timed desc ");
 				} else if (Main.getWindowStorage().isSqlServer()) {
-					toReturn.append("timed >= (select min(timed) from (select TOP ").append(windowSize).append(" timed from ").append(
-							wrapperAlias).append(" order by timed desc ) as y )");
+					toReturn.append("timed in (select TOP ").append(windowSize).append(" timed from ").append(wrapperAlias).append(
+					" where timed <= (select timed from ").append(viewHelperTableName).append(" where U_ID='").append(streamSource.getUIDStr()).append("') order by timed desc) ");
 				}else if (Main.getWindowStorage().isOracle()) {
-					toReturn.append("(timed >= (select timed from (select timed from "+Main.getWindowStorage().tableNameGeneratorInString(wrapperAlias)+" order by timed desc ) where rownum="+windowSize+") )");
+					toReturn.append("timed <= (select timed from ").append(Main.getWindowStorage().tableNameGeneratorInString(viewHelperTableName)).append(
+					" where U_ID='").append(streamSource.getUIDStr()).append("') and timed >= (select timed from ");
+					toReturn.append(wrapperAlias).append(" where timed <= (select * from (select timed from ");
+					toReturn.append(viewHelperTableName).append(" where U_ID='").append(Main.getWindowStorage().tableNameGeneratorInString(streamSource.getUIDStr()));
+					toReturn.append("' order by timed desc  ) where rownum = "+windowSize+")  ").append(" )");
+					toReturn.append(" order by timed desc ");
+					// Note, in oracle rownum starts with 1.
 				}else {
 					logger.fatal("Not supported DB!");
 				}
-			} else {
-				CharSequence viewHelperTableName =Main.getWindowStorage().tableNameGeneratorInString(SQLViewQueryRewriter.VIEW_HELPER_TABLE);
-				if (windowingType == WindowType.TUPLE_BASED) {
-					if (Main.getWindowStorage().isMysqlDB() || Main.getWindowStorage().isPostgres()) {
-						toReturn.append("timed <= (select timed from ").append(viewHelperTableName).append(
-						" where U_ID='").append(streamSource.getUIDStr()).append("') and timed >= (select timed from ");
-						toReturn.append(wrapperAlias).append(" where timed <= (select timed from ");
-						toReturn.append(viewHelperTableName).append(" where U_ID='").append(streamSource.getUIDStr());
-						toReturn.append("') ").append(" order by timed desc limit 1 offset ").append(windowSize - 1).append(" )");
-						toReturn.append(" order by timed desc ");
-					} else if (Main.getWindowStorage().isH2()) {
-						toReturn.append("timed <= (select timed from ").append(viewHelperTableName).append(
-						" where U_ID='").append(streamSource.getUIDStr()).append("') and timed >= (select distinct(timed) from ");
-						toReturn.append(wrapperAlias).append(" where timed in (select timed from ").append(wrapperAlias).append(
-						" where timed <= (select timed from ");
-						toReturn.append(viewHelperTableName).append(" where U_ID='").append(streamSource.getUIDStr());
-						toReturn.append("') ").append(" order by timed desc limit 1 offset ").append(windowSize - 1).append(" ))");
-						toReturn.append(" order by timed desc ");
-					} else if (Main.getWindowStorage().isSqlServer()) {
-						toReturn.append("timed in (select TOP ").append(windowSize).append(" timed from ").append(wrapperAlias).append(
-						" where timed <= (select timed from ").append(viewHelperTableName).append(" where U_ID='").append(streamSource.getUIDStr()).append("') order by timed desc) ");
-					}else if (Main.getWindowStorage().isOracle()) {
-						toReturn.append("timed <= (select timed from ").append(Main.getWindowStorage().tableNameGeneratorInString(viewHelperTableName)).append(
-						" where U_ID='").append(streamSource.getUIDStr()).append("') and timed >= (select timed from ");
-						toReturn.append(wrapperAlias).append(" where timed <= (select * from (select timed from ");
-						toReturn.append(viewHelperTableName).append(" where U_ID='").append(Main.getWindowStorage().tableNameGeneratorInString(streamSource.getUIDStr()));
-						toReturn.append("' order by timed desc  ) where rownum = "+windowSize+")  ").append(" )");
-						toReturn.append(" order by timed desc ");
-						// Note, in oracle rownum starts with 1.
-					}else {
-						logger.fatal("Not supported DB!");
-					}
-				} else { // WindowType.TIME_BASED_WIN_TUPLE_BASED_SLIDE
-					toReturn.append("timed in (select timed from ").append(wrapperAlias).append(" where timed <= (select timed from ").append(viewHelperTableName).append(" where U_ID='").append(Main.getWindowStorage().tableNameGeneratorInString(streamSource.getUIDStr())).append(
-					"') and timed >= (select timed from ").append(viewHelperTableName).append(
-					" where U_ID='").append(Main.getWindowStorage().tableNameGeneratorInString(streamSource.getUIDStr())).append("') - ").append(windowSize).append(" ) ");
-					//					if (StorageManager.isH2() || StorageManager.isMysqlDB()) {
-					toReturn.append(" order by timed desc ");
-					//					} else if (StorageManager.isOracle()) {
-					//						 TODO
-					//					}
-				}
-
+			} else { // WindowType.TIME_BASED_WIN_TUPLE_BASED_SLIDE
+				toReturn.append("timed in (select timed from ").append(wrapperAlias).append(" where timed <= (select timed from ").append(viewHelperTableName).append(" where U_ID='").append(Main.getWindowStorage().tableNameGeneratorInString(streamSource.getUIDStr())).append(
+				"') and timed >= (select timed from ").append(viewHelperTableName).append(
+				" where U_ID='").append(Main.getWindowStorage().tableNameGeneratorInString(streamSource.getUIDStr())).append("') - ").append(windowSize).append(" ) ");
+				//					if (StorageManager.isH2() || StorageManager.isMysqlDB()) {
+				toReturn.append(" order by timed desc ");
+				//					} else if (StorageManager.isOracle()) {
+				//						 TODO
+				//					}
 			}
 			
 			if(Main.getWindowStorage().isH2() && fromIndex > -1){
@@ -0,0 +1,237 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/beans/windowing/WindowBuffer.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.beans.windowing;
+
+import gsn.beans.DataField;
+import gsn.beans.StreamElement;
+import gsn.beans.StreamSource;
+
+import java.io.Serializable;
+import java.util.IdentityHashMap;
+
+/**
+ * The recent stream elements of a wrapper, stored column by column in a ring buffer ordered by timestamp.
+ * Used by the {@link InMemoryQueryRewriter}s instead of the wrapper table of the window storage.
+ * The buffer only keeps what the registered windows need: the last <code>n</code> stream elements
+ * for the tuple based windows and the last <code>t</code> milliseconds for the time based windows.
+ * The callers reading the buffer (through {@link #lastTuples(long, long)} or {@link #range(long, long)})
+ * must synchronize on it.
+ */
+public class WindowBuffer {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final DataField[] structure;
+
+    private long[] timestamps = new long[INITIAL_CAPACITY];
+
+    private Serializable[][] columns;
+
+    /** Physical index of the oldest stream element. */
+    private int head = 0;
+
+    private int size = 0;
+
+    /** The number of stream elements appended so far, used to number them. */
+    private long appended = 0;
+
+    private final IdentityHashMap<StreamSource, long[]> requirements = new IdentityHashMap<StreamSource, long[]>();
+
+    private long maxTuples = 0;
+
+    private long maxMillis = -1;
+
+    public WindowBuffer(DataField[] structure) {
+        this.structure = structure;
+        columns = new Serializable[structure.length][INITIAL_CAPACITY];
+    }
+
+    public DataField[] getStructure() {
+        return structure;
+    }
+
+    /**
+     * Declares the history needed by the window of the stream source.
+     *
+     * @param tuples number of stream elements, 0 if the window is not tuple based.
+     * @param millis duration before the latest stream element, -1 if the window is not time based.
+     */
+    public synchronized void require(StreamSource streamSource, long tuples, long millis) {
+        requirements.put(streamSource, new long[]{tuples, millis});
+        updateRequirements();
+    }
+
+    public synchronized void release(StreamSource streamSource) {
+        requirements.remove(streamSource);
+        updateRequirements();
+        trim();
+    }
+
+    private void updateRequirements() {
+        maxTuples = 0;
+        maxMillis = -1;
+        for (long[] requirement : requirements.values()) {
+            maxTuples = Math.max(maxTuples, requirement[0]);
+            maxMillis = Math.max(maxMillis, requirement[1]);
+        }
+    }
+
+    /**
+     * Appends the stream element, its timestamp must be greater than the ones already in the buffer
+     * (the out of order stream elements are discarded by the wrapper).
+     */
+    public synchronized void append(StreamElement se) {
+        if (size == timestamps.length)
+            grow();
+        int slot = (head + size) % timestamps.length;
+        timestamps[slot] = se.getTimeStamp();
+        Serializable[] data = se.getData();
+        for (int c = 0; c < columns.length; c++)
+            columns[c][slot] = data[c];
+        size++;
+        appended++;
+        trim();
+    }
+
+    private void grow() {
+        int capacity = timestamps.length * 2;
+        long[] newTimestamps = new long[capacity];
+        Serializable[][] newColumns = new Serializable[columns.length][capacity];
+        for (int i = 0; i < size; i++) {
+            int slot = (head + i) % timestamps.length;
+            newTimestamps[i] = timestamps[slot];
+            for (int c = 0; c < columns.length; c++)
+                newColumns[c][i] = columns[c][slot];
+        }
+        timestamps = newTimestamps;
+        columns = newColumns;
+        head = 0;
+    }
+
+    private void trim() {
+        if (size == 0)
+            return;
+        long latest = timestamp(size - 1);
+        while (size > maxTuples && (maxMillis < 0 || timestamp(0) < latest - maxMillis)) {
+            for (int c = 0; c < columns.length; c++)
+                columns[c][head] = null;
+            head = (head + 1) % timestamps.length;
+            size--;
+        }
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @param index logical index, 0 being the oldest stream element.
+     */
+    private long timestamp(int index) {
+        return timestamps[(head + index) % timestamps.length];
+    }
+
+    /**
+     * Returns the logical index of the first stream element whose timestamp is greater or equal to <code>timed</code>.
+     */
+    private int lowerBound(long timed) {
+        int low = 0, high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (timestamp(middle) < timed)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        return low;
+    }
+
+    /**
+     * The last <code>count</code> stream elements whose timestamp is lower or equal to <code>upTo</code>.
+     */
+    public Rows lastTuples(long count, long upTo) {
+        int to = upTo == Long.MAX_VALUE ? size - 1 : lowerBound(upTo + 1) - 1;
+        int from = (int) Math.max(0, to - count + 1);
+        return new BufferRows(from, to);
+    }
+
+    /**
+     * The stream elements whose timestamp is between <code>from</code> and <code>to</code> (both inclusive).
+     */
+    public Rows range(long from, long to) {
+        int toIndex = to == Long.MAX_VALUE ? size - 1 : lowerBound(to + 1) - 1;
+        return new BufferRows(lowerBound(from), toIndex);
+    }
+
+    /**
+     * A window over the buffer, the newest stream element first. Only valid while holding the lock on the buffer.
+     */
+    private class BufferRows implements Rows {
+
+        private final int from;
+
+        private final int to;
+
+        private BufferRows(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        public int size() {
+            return Math.max(0, to - from + 1);
+        }
+
+        public long timed(int row) {
+            return timestamp(to - row);
+        }
+
+        public Serializable value(int column, int row) {
+            return columns[column][(head + to - row) % timestamps.length];
+        }
+
+        public long sequence(int row) {
+            return appended - size + to - row;
+        }
+    }
+
+    /**
+     * The rows a query is evaluated on, the newest first (like the <code>order by timed desc</code> of the SQL windows).
+     */
+    public interface Rows {
+
+        public int size();
+
+        public long timed(int row);
+
+        public Serializable value(int column, int row);
+
+        /**
+         * The number of the row, increasing with the timestamps and stable as long as the row is in the buffer.
+         */
+        public long sequence(int row);
+    }
+
+}
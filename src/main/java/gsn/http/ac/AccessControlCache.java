@@ -0,0 +1,214 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+* 
+* This file is part of GSN.
+* 
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+* 
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+* 
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+* 
+* File: src/gsn/http/ac/AccessControlCache.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.http.ac;
+
+import org.apache.log4j.Logger;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An in-process cache of the access control decisions, so that the requests don't query the access control tables.
+ * <p>
+ * The cache holds an immutable snapshot of the virtual sensors managed by the access control and, for each successful
+ * login, the access rights (data sources and groups) of the user. The snapshot is dropped on each write to the access
+ * control tables through {@link ConnectToDB} (i.e., by the admin servlets) and at the latest -DacCacheTtl milliseconds
+ * (60000 by default) after it was loaded, for the changes made directly in the database. The failed logins are not
+ * cached.
+ * <p>
+ * A single thread reloads the snapshot, the other requests keep using the previous one meanwhile (but not its logins
+ * after a write). Without any snapshot, e.g. if the access control tables can't be read, the virtual sensors are
+ * considered managed.
+ */
+public class AccessControlCache
+{
+    public static final int DEFAULT_TTL = 60000;
+
+    private static AccessControlCache singleton = new AccessControlCache();
+    private static transient Logger logger = Logger.getLogger(AccessControlCache.class);
+
+    private static int ttl = -1;
+
+    /* incremented by each write, a snapshot loaded during a write is not kept */
+    private final AtomicLong generation = new AtomicLong();
+
+    private volatile Snapshot snapshot = null;
+
+    /* held by the thread reloading the snapshot */
+    private final ReentrantLock loading = new ReentrantLock();
+
+    AccessControlCache()
+    {
+    }
+
+    public static AccessControlCache getInstance()
+    {
+        return singleton;
+    }
+
+    public static int getTtl()
+    {
+        if (ttl == -1)
+            ttl = System.getProperty("acCacheTtl") == null ? DEFAULT_TTL : Math.max(0, Integer.parseInt(System.getProperty("acCacheTtl")));
+        return ttl;
+    }
+
+    /* outdates the snapshot, called after each write to the access control tables */
+    public void invalidate()
+    {
+        generation.incrementAndGet();
+    }
+
+    /* returns true if the virtual sensor is managed by the access control (it has a row in ACDATASOURCE) or if the
+       managed virtual sensors can't be loaded, the names are case insensitive */
+    public boolean isVSManaged(String vsname)
+    {
+        if (vsname == null)
+            return false;
+        Snapshot s = getSnapshot();
+        return s == null || s.managed.contains(vsname.toLowerCase());
+    }
+
+    /* returns the user if the (encrypted) password is correct, or null to check the login against the database */
+    User getUser(String username, String encryptedPassword)
+    {
+        Snapshot s = getSnapshot();
+        // the logins of a snapshot outdated by a write are not used
+        if (s == null || s.generation != generation.get())
+            return null;
+        Rights rights = s.logins.get(username + "\n" + encryptedPassword);
+        // each call gets its own user, the lists of rights are shared and never modified
+        return rights == null ? null : new User(username, encryptedPassword, new Vector(rights.dataSources), new Vector(rights.groups));
+    }
+
+    /* keeps the rights of a successful login, until the snapshot is dropped */
+    void putUser(User user, long loadedGeneration)
+    {
+        Snapshot s = snapshot;
+        if (s != null && s.generation == loadedGeneration && generation.get() == loadedGeneration)
+            s.logins.put(user.getUserName() + "\n" + user.getPassword(), new Rights(user.getDataSourceList(), user.getGroupList()));
+    }
+
+    /* the generation to pass to putUser, read before loading the rights of a user */
+    long getGeneration()
+    {
+        return generation.get();
+    }
+
+    private boolean isFresh(Snapshot s)
+    {
+        return s != null && s.generation == generation.get() && System.currentTimeMillis() - s.loadedAt < getTtl();
+    }
+
+    /* returns the current snapshot, or the previous one while another thread reloads it, or null if none could be loaded */
+    private Snapshot getSnapshot()
+    {
+        Snapshot previous = snapshot;
+        if (isFresh(previous))
+            return previous;
+        // without any snapshot, waits for the thread loading the first one
+        if (previous == null)
+            loading.lock();
+        else if (!loading.tryLock())
+            return previous;
+        try
+        {
+            Snapshot s = snapshot;
+            if (s != previous && isFresh(s))
+                return s;
+            long loadedGeneration = generation.get();
+            s = new Snapshot(loadManaged(), loadedGeneration);
+            if (generation.get() == loadedGeneration)
+                snapshot = s;
+            return s;
+        }
+        catch (Exception e)
+        {
+            logger.error("ERROR IN LOADING THE ACCESS CONTROL CACHE");
+            logger.error(e.getMessage(), e);
+            return previous;
+        }
+        finally
+        {
+            loading.unlock();
+        }
+    }
+
+    /* reads the names of the virtual sensors managed by the access control */
+    List<String> loadManaged() throws Exception
+    {
+        ConnectToDB ctdb = null;
+        try
+        {
+            ctdb = new ConnectToDB();
+            return ctdb.getValuesVectorForOneColumn(new Column("DATASOURCENAME"), "ACDATASOURCE");
+        }
+        finally
+        {
+            if (ctdb != null)
+            {
+                ctdb.closeStatement();
+                ctdb.closeConnection();
+            }
+        }
+    }
+
+    private static class Snapshot
+    {
+        private final Set<String> managed;
+        private final ConcurrentHashMap<String, Rights> logins = new ConcurrentHashMap<String, Rights>();
+        private final long generation;
+        private final long loadedAt = System.currentTimeMillis();
+
+        private Snapshot(List<String> managed, long generation)
+        {
+            HashSet<String> names = new HashSet<String>();
+            for (String name : managed)
+                if (name != null)
+                    names.add(name.toLowerCase());
+            this.managed = Collections.unmodifiableSet(names);
+            this.generation = generation;
+        }
+    }
+
+    private static class Rights
+    {
+        private final List dataSources;
+        private final List groups;
+
+        private Rights(Vector dataSources, Vector groups)
+        {
+            this.dataSources = Collections.unmodifiableList(new Vector(dataSources));
+            this.groups = Collections.unmodifiableList(new Vector(groups));
+        }
+    }
+}
@@ -38,6 +38,7 @@ package gsn.http.ac;
 
 import java.text.SimpleDateFormat;
 
+import org.apache.commons.dbcp.BasicDataSource;
 import org.apache.log4j.Logger;
 
 import javax.servlet.http.HttpSessionBindingEvent;
@@ -66,6 +67,13 @@ public class ConnectToDB
 	private static String dbPassword;
     private static Vector ACTables;//list of AC tables
 
+    public static final int DEFAULT_MAX_CONNECTIONS = 2;
+
+    public static final int DEFAULT_MAX_WAIT = 10000;
+
+    /* the connections to the AC tables, a pool separate from the one of the GSN storage */
+    private static BasicDataSource pool = null;
+
 	private Connection con ;
 	private Statement stmt ;
     private PreparedStatement pstmt ;
@@ -80,10 +88,8 @@ public class ConnectToDB
     
 	public ConnectToDB()throws ClassNotFoundException,SQLException
 	{
-        //Load and register the MySQL driver
-        Class.forName(driverName);
-        //Get a connection to the database
-        con = DriverManager.getConnection(connectionname,dbUser,dbPassword);
+        //Get a connection to the database, from the pool of the access control
+        con = getPool().getConnection();
         //create a statement object
         stmt= con.createStatement();  ///// changed 20.03.2013
         meta= this.con.getMetaData();
@@ -100,8 +106,48 @@ public class ConnectToDB
         dbUser=jdbcUsername;
         dbPassword= jdbcPassword;
         connectionname=jdbcURL;
+        closePool();
         checkACTables();
     }
+
+    /*
+    * The pool of the connections to the AC tables, bounded to -DacMaxDBConnections connections (2 by default) so that the
+    * access control never takes the connections of the GSN storage. A request waits at most -DacMaxDBWait milliseconds
+    * (10000 by default) for a connection.
+    * */
+    static synchronized BasicDataSource getPool()
+    {
+        if (pool == null)
+        {
+            int maxConnections = System.getProperty("acMaxDBConnections") == null ? DEFAULT_MAX_CONNECTIONS : Math.max(1, Integer.parseInt(System.getProperty("acMaxDBConnections")));
+            int maxWait = System.getProperty("acMaxDBWait") == null ? DEFAULT_MAX_WAIT : Integer.parseInt(System.getProperty("acMaxDBWait"));
+            pool = new BasicDataSource();
+            pool.setDriverClassName(driverName);
+            pool.setUsername(dbUser);
+            pool.setPassword(dbPassword);
+            pool.setUrl(connectionname);
+            pool.setMaxActive(maxConnections);
+            pool.setMaxIdle(maxConnections);
+            pool.setMaxWait(maxWait);
+        }
+        return pool;
+    }
+
+    static synchronized void closePool()
+    {
+        if (pool != null)
+        {
+            try
+            {
+                pool.close();
+            }
+            catch (SQLException e)
+            {
+                logger.error(e.getMessage(), e);
+            }
+            pool = null;
+        }
+    }
      /* Check if AC tables exist , and create them otherwise*/
      static void checkACTables()
     {
@@ -646,7 +692,7 @@ public class ConnectToDB
 	{
         boolean insertOK=false;
         String request = "INSERT INTO "+tableName+"("+col.columnLabel+") VALUES ('" + col.columnValue +"')";
-        int t =stmt.executeUpdate(request);
+        int t =executeUpdate(request);
 		if(t!=0)
 		{
             insertOK=true;
@@ -657,7 +703,7 @@ public class ConnectToDB
 	{
 		boolean insertOK=false;
         String request = "INSERT INTO "+tableName+"("+firstCol.columnLabel+","+secondCol.columnLabel+") VALUES ('" + firstCol.columnValue + "','"+ secondCol.columnValue+"')";
-        int f =stmt.executeUpdate(request);
+        int f =executeUpdate(request);
         if(f!=0)
         {
             insertOK=true;
@@ -669,7 +715,7 @@ public class ConnectToDB
 	{
 		boolean insertOK=false;
         String request = "INSERT INTO "+tableName+"("+firstCol.columnLabel+","+secondCol.columnLabel+","+thirdCol.columnLabel+") VALUES ('" + firstCol.columnValue + "','"+ secondCol.columnValue+ "','"+thirdCol.columnValue+"')";
-        int f =stmt.executeUpdate(request);
+        int f =executeUpdate(request);
         if(f!=0)
         {
             insertOK=true;
@@ -681,7 +727,7 @@ public class ConnectToDB
     {
         boolean insertOK=false;
         String request = "INSERT INTO "+tableName+" VALUES ('" + firstCol + "','"+ secondCol+ "','"+thirdCol+"')";
-        int f =stmt.executeUpdate(request);
+        int f =executeUpdate(request);
         if(f!=0)
         {
             insertOK=true;
@@ -693,7 +739,7 @@ public class ConnectToDB
     {
         boolean insertOK=false;
         String request = "INSERT INTO "+tableName+"("+firstCol.columnLabel+","+secondCol.columnLabel+","+thirdCol.columnLabel+","+fourthCol.columnLabel+") VALUES ('" + firstCol.columnValue + "','"+ secondCol.columnValue+ "','"+thirdCol.columnValue+"','"+ fourthCol.columnValue+"')";
-        int f =stmt.executeUpdate(request);
+        int f =executeUpdate(request);
         if(f!=0)
         {
             insertOK=true;
@@ -705,7 +751,7 @@ public class ConnectToDB
     {
         boolean insertOK=false;
         String request = "INSERT INTO "+tableName+"("+firstCol.columnLabel+","+secondCol.columnLabel+","+thirdCol.columnLabel+","+fourthCol.columnLabel+","+fifthCol.columnLabel+","+sixthCol.columnLabel+") VALUES ('" + firstCol.columnValue + "','"+ secondCol.columnValue+ "','"+thirdCol.columnValue+"','"+ fourthCol.columnValue+ "','"+fifthCol.columnValue+ "','"+sixthCol.columnValue+"')";
-        int f =stmt.executeUpdate(request);
+        int f =executeUpdate(request);
         if(f!=0)
         {
             insertOK=true;
@@ -717,7 +763,7 @@ public class ConnectToDB
     {
         boolean insertOK=false;
         String request = "INSERT INTO "+tableName+"("+firstCol.columnLabel+","+secondCol.columnLabel+","+thirdCol.columnLabel+","+fourthCol.columnLabel+","+fifthCol.columnLabel+","+sixthCol.columnLabel+","+seventhCol.columnLabel+") VALUES ('" + firstCol.columnValue + "','"+ secondCol.columnValue+ "','"+thirdCol.columnValue+"','"+fourthCol.columnValue+ "','"+fifthCol.columnValue+ "','"+sixthCol.columnValue+ "','"+seventhCol.columnValue+"')";
-        int f =stmt.executeUpdate(request);
+        int f =executeUpdate(request);
         if(f!=0)
         {
             insertOK=true;
@@ -1284,12 +1330,25 @@ public class ConnectToDB
         return this.insertThreeColumnsValues(new Column("GROUPNAME",group.getGroupName()), new Column("DATASOURCENAME",ds.getDataSourceName()),  new Column("DATASOURCETYPE",ds.getDataSourceType()),"ACGROUP_ACDATASOURCE");
 
     }
+    /* executes a write to the AC tables, the cached access control decisions are dropped */
+    private int executeUpdate(String query) throws SQLException
+    {
+        try
+        {
+            return stmt.executeUpdate(query);
+        }
+        finally
+        {
+            AccessControlCache.getInstance().invalidate();
+        }
+    }
+
     /****************************************** DB update methods *********************************************/
    /************************************************************************************************************/
     boolean updateOneColumnUnderOneCondition(Column col,Column cond,String tableName)throws SQLException
    {
        String query = "UPDATE "+tableName+" SET "+col.columnLabel+"= '"+col.columnValue+"' WHERE "+cond.columnLabel+"= '"+cond.columnValue+"'";
-       if(stmt.executeUpdate(query) !=0)
+       if(executeUpdate(query) !=0)
            return true;
        else
            return false;
@@ -1297,7 +1356,7 @@ public class ConnectToDB
     boolean updateOneColumnUnderTwoConditions(Column col,Column firstCond,Column secondCond,String tableName)throws SQLException
    {
        String query = "UPDATE "+tableName+" SET "+col.columnLabel+"= '"+col.columnValue+"' WHERE "+firstCond.columnLabel+"= '"+firstCond.columnValue+"' AND "+secondCond.columnLabel+"= '"+secondCond.columnValue+"'";
-       if(stmt.executeUpdate(query) !=0)
+       if(executeUpdate(query) !=0)
            return true;
        else
            return false;
@@ -1343,7 +1402,7 @@ public class ConnectToDB
             .append("' WHERE USERNAME='")
             .append(user.getUserName())
             .append("'");
-       if(stmt.executeUpdate(query.toString()) !=0)
+       if(executeUpdate(query.toString()) !=0)
            return true;
        else
            return false;
@@ -1359,13 +1418,13 @@ public class ConnectToDB
     int deleteUnderOneCondition(Column cond,String tableName)throws SQLException
    {
        String query = "DELETE FROM "+tableName+" WHERE "+cond.columnLabel+"= '"+cond.columnValue+"'";
-       return stmt.executeUpdate(query);
+       return executeUpdate(query);
       
    }
     int deleteUnderTwoConditions(Column firstCond,Column secondCond,String tableName)throws SQLException
    {
        String query = "DELETE FROM "+tableName+" WHERE "+firstCond.columnLabel+"= '"+firstCond.columnValue+"' AND "+secondCond.columnLabel+"= '"+secondCond.columnValue+"'";
-       return stmt.executeUpdate(query);
+       return executeUpdate(query);
    }
     void deleteUserCandidate(String userName)throws SQLException
     {
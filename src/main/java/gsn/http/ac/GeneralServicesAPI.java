@@ -54,10 +54,16 @@ public class GeneralServicesAPI
         ConnectToDB ctdb = null;
         try
         {
+            String enc= Protector.encrypt(password);
+            user = AccessControlCache.getInstance().getUser(username,enc);
+            if(user != null)
+            {
+                return user;
+            }
+            long generation = AccessControlCache.getInstance().getGeneration();
             ctdb = new ConnectToDB();
             if(ctdb.valueExistsForThisColumnUnderOneCondition(new Column("USERNAME",username),new Column("ISCANDIDATE","no"),"ACUSER")==true)
             {
-                String enc= Protector.encrypt(password);
                 if((ctdb.isPasswordCorrectForThisUser(username,enc)== false))
                 {
                    //throws exception
@@ -67,6 +73,7 @@ public class GeneralServicesAPI
                 else
                 {
                     user = new User(username,enc,ctdb.getDataSourceListForUserLogin(username),ctdb.getGroupListForUser(username));
+                    AccessControlCache.getInstance().putUser(user,generation);
                 }
             }
             else
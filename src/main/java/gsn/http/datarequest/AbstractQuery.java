@@ -26,6 +26,8 @@
 
 package gsn.http.datarequest;
 
+import gsn.storage.RollupManager;
+import gsn.storage.StorageManager;
 import org.apache.log4j.Logger;
 
 import java.util.ArrayList;
@@ -50,7 +52,52 @@ public class AbstractQuery {
         this.criteria = criteria;
 	}
 	
+	/**
+	 * The order of the rows (or of the aggregation intervals) of the generated queries.
+	 */
+	private enum Order {
+		DESCENDING, ASCENDING, NONE
+	}
+
+	/**
+	 * Returns the query, the latest rows first. The limit criterion is not applied.
+	 */
 	public StringBuilder getStandardQuery() {
+		return getQuery(Order.DESCENDING);
+	}
+
+	/**
+	 * Returns the query with the limit criterion applied (on the latest rows, as {@link #getStandardQuery()}),
+	 * the rows in chronological order: they can be written as they are fetched.
+	 */
+	public StringBuilder getAscendingQuery(StorageManager storage) {
+		if (limitCriterion == null)
+			return getQuery(Order.ASCENDING);
+		String latest = storage.addLimit(getStandardQuery().toString(), limitCriterion.getSize(), limitCriterion.getOffset());
+		return new StringBuilder("select * from (").append(latest).append(") latest order by ").append(aggregation == null ? "timed" : "aggregation_interval").append(" asc");
+	}
+
+	/**
+	 * Returns the query counting the rows of the query, see {@link #getLimitedCount(long)} for the limit criterion.
+	 */
+	public StringBuilder getCountQuery() {
+		return new StringBuilder("select count(*) from (").append(getQuery(Order.NONE)).append(") counted");
+	}
+
+	/**
+	 * Returns the number of rows left by the limit criterion out of the count.
+	 */
+	public long getLimitedCount(long count) {
+		if (limitCriterion == null)
+			return count;
+		return Math.max(0, Math.min(limitCriterion.getSize(), count - limitCriterion.getOffset()));
+	}
+
+	private StringBuilder getQuery(Order order) {
+		if (aggregation != null) {
+			StringBuilder rollupQuery = getRollupQuery(order);
+			if (rollupQuery != null) return rollupQuery;
+		}
 		    // Standard Criteria
 			StringBuilder partStandardCriteria = new StringBuilder () ;
 			if (criteria != null) {
@@ -105,12 +152,96 @@ public class AbstractQuery {
 			sqlQuery.append(partFields);
 			sqlQuery.append("from ").append(vsName).append(" ");
 			sqlQuery.append(partStandardCriteria);
-			if (aggregation == null)	sqlQuery.append("order by timed desc ");
-			else 								sqlQuery.append("group by aggregation_interval desc ");
+			if (aggregation == null)	sqlQuery.append(getOrderBy(order));
+			else 								sqlQuery.append(getGroupBy(order));
 
 			logger.debug("SQL Query built >" + sqlQuery.toString() + "<");
         return sqlQuery;
 	}
+
+	/**
+	 * Builds the aggregation query on the coarsest rollup table of the virtual sensor giving the same result,
+	 * i.e., when the only criteria are ranges on timed, aligned with the resolution of the rollup table as the
+	 * aggregation interval. Returns null if there is no such rollup table.
+	 */
+	private StringBuilder getRollupQuery(Order order) {
+		long interval;
+		try {
+			interval = Long.parseLong(aggregation.getTimeRange());
+		} catch (NumberFormatException e) {
+			return null;
+		}
+		StringBuilder partStandardCriteria = new StringBuilder();
+		ArrayList<Long> boundaries = new ArrayList<Long>();
+		if (criteria != null) {
+			for (StandardCriterion cc : criteria) {
+				if (cc.getVsname().compareTo("") != 0 && cc.getVsname().compareToIgnoreCase(vsName) != 0)
+					continue;
+				if (!cc.getField().equalsIgnoreCase("timed") || (cc.getNegation() != null && cc.getNegation().length() > 0) || !"and".equalsIgnoreCase(cc.getCritJoin()))
+					return null;
+				long value;
+				try {
+					value = Long.parseLong(cc.getValue().trim());
+				} catch (NumberFormatException e) {
+					return null;
+				}
+				// The first timestamp included (for > and >=) or excluded (for < and <=) by the criterion.
+				if (cc.getOperator().equals("<") || cc.getOperator().equals(">="))
+					boundaries.add(value);
+				else if (cc.getOperator().equals("<=") || cc.getOperator().equals(">"))
+					boundaries.add(value + 1);
+				else
+					return null;
+				partStandardCriteria.append(partStandardCriteria.length() == 0 ? "where " : "and ").append("timed ").append(cc.getOperator()).append(" ").append(value).append(" ");
+			}
+		}
+		long[] aligned = new long[boundaries.size()];
+		for (int i = 0; i < aligned.length; i++)
+			aligned[i] = boundaries.get(i);
+		long resolution = RollupManager.getInstance().getResolution(vsName, fields, interval, aligned);
+		if (resolution == -1)
+			return null;
+		// The current periods are still in memory.
+		RollupManager.getInstance().flush(vsName);
+
+		StringBuilder sqlQuery = new StringBuilder("select ");
+		String operator = aggregation.getGroupOperator();
+		for (String field : fields) {
+			if (operator.equalsIgnoreCase("avg"))
+				sqlQuery.append("sum(").append(field).append(RollupManager.SUM_SUFFIX).append(")/sum(").append(field).append(RollupManager.COUNT_SUFFIX).append(")");
+			else if (operator.equalsIgnoreCase("sum"))
+				sqlQuery.append("sum(").append(field).append(RollupManager.SUM_SUFFIX).append(")");
+			else if (operator.equalsIgnoreCase("min"))
+				sqlQuery.append("min(").append(field).append(RollupManager.MIN_SUFFIX).append(")");
+			else
+				sqlQuery.append("max(").append(field).append(RollupManager.MAX_SUFFIX).append(")");
+			sqlQuery.append(" as ").append(field).append(", ");
+		}
+		sqlQuery.append("floor(timed/").append(interval).append(") as aggregation_interval ");
+		sqlQuery.append("from ").append(RollupManager.getTableName(vsName, resolution)).append(" ");
+		sqlQuery.append(partStandardCriteria);
+		sqlQuery.append(getGroupBy(order));
+
+		logger.debug("SQL Query built on the rollup table >" + sqlQuery.toString() + "<");
+		return sqlQuery;
+	}
+
+	private static String getOrderBy(Order order) {
+		if (order == Order.DESCENDING)
+			return "order by timed desc ";
+		if (order == Order.ASCENDING)
+			return "order by timed asc ";
+		return "";
+	}
+
+	private static String getGroupBy(Order order) {
+		if (order == Order.DESCENDING)
+			return "group by aggregation_interval desc ";
+		if (order == Order.ASCENDING)
+			return "group by aggregation_interval order by aggregation_interval asc ";
+		return "group by aggregation_interval ";
+	}
+
 	/*public void setStandardQuery(StringBuilder standardQuery) {
 		this.standardQuery = standardQuery;
 	}*/
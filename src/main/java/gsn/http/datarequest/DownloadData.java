@@ -36,15 +36,23 @@ import gsn.beans.DataField;
 import gsn.http.MultiDataDownload;
 import gsn.reports.beans.Stream;
 import gsn.storage.DataEnumerator;
+import gsn.storage.StorageManager;
 
 import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.Serializable;
 import java.sql.Connection;
+import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.LinkedList;
 import java.util.Map.Entry;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.collections.KeyValue;
 import org.apache.commons.lang.StringEscapeUtils;
@@ -58,6 +66,16 @@ public class DownloadData extends AbstractDataRequest {
 
     private static final double MAX_SAMPLE_VALUES = 20000.0;
 
+    public static final int DEFAULT_PARALLEL_FETCHES = 1;
+
+    public static final int DEFAULT_FETCH_THREADS = 2;
+
+    /**
+     * The fetches of all the downloads hold at most this fraction of the connections of a storage pool, the
+     * other connections are left to the wrappers and the virtual sensors.
+     */
+    public static final int FETCH_CONNECTIONS_DIVISOR = 4;
+
     public enum AllowedOutputType {
         csv,
         xml
@@ -113,134 +131,303 @@ public class DownloadData extends AbstractDataRequest {
     public void outputResult(OutputStream os) {
 
         PrintWriter respond = new PrintWriter(os);
-        Iterator<Entry<String, AbstractQuery>> iter = qbuilder.getSqlQueries().entrySet().iterator();
-        Entry<String, AbstractQuery> nextSqlQuery;
-        DataEnumerator de = null;
+        // The order of the virtual sensors in the output, their rows are fetched in parallel.
+        ArrayList<Entry<String, AbstractQuery>> sqlQueries = new ArrayList<Entry<String, AbstractQuery>>(qbuilder.getSqlQueries().entrySet());
+        boolean sampling = requestParameters.containsKey("sample") && "true".equalsIgnoreCase(requestParameters.get("sample")[0]);
+        int parallelFetches = getParallelFetches();
+        Fetch[] fetches = new Fetch[sqlQueries.size()];
         try {
+            for (int i = 0; i < fetches.length && i < parallelFetches; i++)
+                fetches[i] = startFetch(sqlQueries.get(i), sampling);
+
             if (ot == AllowedOutputType.xml) {
                 respond.println("<result>");
             }
 
-            while (iter.hasNext()) {
-                nextSqlQuery = iter.next();
-                Connection connection = null;
+            for (int i = 0; i < fetches.length; i++) {
+                boolean written = outputSensor(respond, sqlQueries.get(i), fetches[i], sampling);
+                if (i + parallelFetches < fetches.length)
+                    fetches[i + parallelFetches] = startFetch(sqlQueries.get(i + parallelFetches), sampling);
+                if (!written) {
+                    logger.debug("The client closed the connection, the download of " + sqlQueries.get(i).getKey() + " is interrupted.");
+                    return;
+                }
+            }
+            if (ot == AllowedOutputType.xml) {
+                respond.println("</result>");
+            }
 
-                connection = Main.getStorage(nextSqlQuery.getKey()).getConnection();
-                de = Main.getStorage(nextSqlQuery.getKey()).streamedExecuteQuery(nextSqlQuery.getValue(), true, connection);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            respond.flush();
+            for (Fetch fetch : fetches)
+                if (fetch != null)
+                    fetch.cancel();
+        }
+    }
 
-                //get units in hash map
-                HashMap<String, String> fieldToUnitMap = new HashMap<String, String>();
-                VSensorConfig sensorConfig = Mappings.getVSensorConfig(nextSqlQuery.getKey());
-                DataField[] dataFieldArray = sensorConfig.getOutputStructure();
-                for (DataField df: dataFieldArray){
-                    String unit = df.getUnit();
-                    if (unit == null || unit.trim().length() == 0)
-                        unit = "";
+    /**
+     * Writes the rows of a virtual sensor as they are fetched, sampled in a single pass if requested.
+     *
+     * @return false if the client closed the connection.
+     */
+    private boolean outputSensor(PrintWriter respond, Entry<String, AbstractQuery> nextSqlQuery, Fetch fetch, boolean sampling) throws InterruptedException {
+        //get units in hash map
+        HashMap<String, String> fieldToUnitMap = new HashMap<String, String>();
+        VSensorConfig sensorConfig = Mappings.getVSensorConfig(nextSqlQuery.getKey());
+        DataField[] dataFieldArray = sensorConfig.getOutputStructure();
+        for (DataField df: dataFieldArray){
+            String unit = df.getUnit();
+            if (unit == null || unit.trim().length() == 0)
+                unit = "";
+
+            fieldToUnitMap.put(df.getName().toLowerCase(), unit);
+        }
 
-                    fieldToUnitMap.put(df.getName().toLowerCase(), unit);
-                }
+        if (ot == AllowedOutputType.csv) {
+            respond.println("# vsname:" + nextSqlQuery.getKey());
+            respond.println("# query:" + nextSqlQuery.getValue().getStandardQuery() + (nextSqlQuery.getValue().getLimitCriterion() == null ? "" : "(" + nextSqlQuery.getValue().getLimitCriterion() + ")"));
+            for ( KeyValue df : sensorConfig.getAddressing()){
+                respond.println("# " + df.getKey().toString().toLowerCase() + ":" + df.getValue().toString());
+            }
+            respond.println("# description:" + sensorConfig.getDescription());
+        } else if (ot == AllowedOutputType.xml) {
+            respond.println("\t<!-- " + nextSqlQuery.getValue().getStandardQuery() + " -->");
+            for ( KeyValue df : sensorConfig.getAddressing()){
+                respond.println("\t<!-- " + StringEscapeUtils.escapeXml(df.getKey().toString().toLowerCase()) + ":" + StringEscapeUtils.escapeXml(df.getValue().toString()) + " -->");
+            }
+            respond.println("\t<!-- description:" + StringEscapeUtils.escapeXml(sensorConfig.getDescription()) + " -->");
+            respond.println("\t<data vsname=\"" + nextSqlQuery.getKey() + "\">");
+        }
 
-                logger.debug("Data Enumerator: " + de);
-                if (ot == AllowedOutputType.csv) {
-                    respond.println("# vsname:" + nextSqlQuery.getKey());
-                    respond.println("# query:" + nextSqlQuery.getValue().getStandardQuery() + (nextSqlQuery.getValue().getLimitCriterion() == null ? "" : "(" + nextSqlQuery.getValue().getLimitCriterion() + ")"));
-                    for ( KeyValue df : sensorConfig.getAddressing()){
-                        respond.println("# " + df.getKey().toString().toLowerCase() + ":" + df.getValue().toString());
-                    }
-                    respond.println("# description:" + sensorConfig.getDescription());
-                } else if (ot == AllowedOutputType.xml) {
-                    respond.println("\t<!-- " + nextSqlQuery.getValue().getStandardQuery() + " -->");
-                    for ( KeyValue df : sensorConfig.getAddressing()){
-                        respond.println("\t<!-- " + StringEscapeUtils.escapeXml(df.getKey().toString().toLowerCase()) + ":" + StringEscapeUtils.escapeXml(df.getValue().toString()) + " -->");
+        boolean wantTimed = true;
+        boolean firstLine = true;
+        StreamElement se = fetch.next();
+
+        // Without sampling, all the rows are written. With sampling, as long as there are more rows than the
+        // number of values left, each group of valsForAvg rows is replaced by its latest row.
+        long numOfVals = fetch.getCount();
+        long left = Long.MAX_VALUE;
+        long valsForAvg = 1;
+        double valsPerVS = MAX_SAMPLE_VALUES / numberOfFieldsInRequest();
+        if (sampling && numOfVals > valsPerVS) {
+            left = (long) valsPerVS;
+            valsForAvg = (long) Math.ceil(numOfVals / valsPerVS);
+
+            if (requestParameters.containsKey("sampling_percentage")){
+                try{
+                    String percentageString = requestParameters.get("sampling_percentage")[0];
+                    int percentage = Integer.parseInt(percentageString);
+
+                    if (percentage > 0 && percentage <= 100 && numOfVals*percentage > 100){
+                        left = numOfVals*percentage/100;
+                        valsForAvg = (long) Math.ceil(numOfVals / left);
                     }
-                    respond.println("\t<!-- description:" + StringEscapeUtils.escapeXml(sensorConfig.getDescription()) + " -->");
-                    respond.println("\t<data vsname=\"" + nextSqlQuery.getKey() + "\">");
-                 }
-
-                FieldsCollection fc = qbuilder.getVsnamesAndStreams().get(nextSqlQuery.getKey());
-                boolean wantTimed = true;
-                boolean firstLine = true;
-                LinkedList<StreamElement> streamElements = new LinkedList<StreamElement>();
-                while (de.hasMoreElements()) {
-                    streamElements.add(de.nextElement());
+                } catch (Exception e) {}
+            }
+        }
+
+        long written = 0;
+        while (se != null) {
+            if (numOfVals > left) {
+                for (int i = 1; i < valsForAvg; i++) {
+                    StreamElement next = fetch.next();
+                    if (next == null)
+                        break;
+                    se = next;
                 }
+                numOfVals -= valsForAvg;
+                left--;
+            }
 
-                double valsPerVS = MAX_SAMPLE_VALUES / numberOfFieldsInRequest();
-                if (requestParameters.containsKey("sample")
-                        && "true".equalsIgnoreCase(requestParameters.get("sample")[0])
-                        && streamElements.size() > valsPerVS){
-                    //sampling
-                    int numOfVals = streamElements.size();
-                    int left = (int)valsPerVS;
-                    int valsForAvg = (int)Math.ceil(numOfVals / valsPerVS);
-
-                    if (requestParameters.containsKey("sampling_percentage")){
-                        try{
-                            String percentageString = requestParameters.get("sampling_percentage")[0];
-                            int percentage = Integer.parseInt(percentageString);
-
-                            if (percentage > 0 && percentage <= 100 && numOfVals*percentage > 100){
-                                left = numOfVals*percentage/100;
-                                valsForAvg = (int)Math.ceil(numOfVals / left);
-                            }
-                        } catch (Exception e) {}
-                    }
+            if (ot == AllowedOutputType.csv) {
+                formatCSVElement(respond, se, wantTimed, csvDelimiter, firstLine, fieldToUnitMap);
+            } else if (ot == AllowedOutputType.xml) {
+                formatXMLElement(respond, se, wantTimed, firstLine, fieldToUnitMap);
+            }
+            firstLine = false;
+            if (++written % Fetch.QUEUE_SIZE == 0 && respond.checkError())
+                return false;
+            se = fetch.next();
+        }
+        if (fetch.getFailure() != null)
+            logger.warn("The download of " + nextSqlQuery.getKey() + " failed: " + fetch.getFailure().getMessage());
 
+        if (ot == AllowedOutputType.xml)
+            respond.println("\t</data>");
+        return !respond.checkError();
+    }
 
-                    while (!streamElements.isEmpty()) {
+    private Fetch startFetch(Entry<String, AbstractQuery> sqlQuery, boolean counting) {
+        Fetch fetch = new Fetch(sqlQuery.getKey(), sqlQuery.getValue(), counting);
+        getFetchers().execute(fetch);
+        return fetch;
+    }
 
-                        StreamElement se = null;
-                        if (numOfVals > left) {
-                            StreamElement [] seForSampling = new StreamElement[valsForAvg];
-                            for (int i = 0; i < valsForAvg; i++) {
-                                seForSampling[i] = streamElements.removeLast();
-                            }
-                            numOfVals -= valsForAvg;
-                            left--;
-                            se = sampleSkip(seForSampling);
-                        } else {
-                            se = streamElements.removeLast();
-                        }
+    /**
+     * The number of virtual sensors fetched in parallel by a download (-DdownloadParallelFetches), at most the
+     * number of fetch threads.
+     */
+    public static int getParallelFetches() {
+        if (parallelFetches == -1)
+            parallelFetches = getParallelFetches(System.getProperty("downloadParallelFetches"), getFetchThreads());
+        return parallelFetches;
+    }
 
+    static int getParallelFetches(String property, int fetchThreads) {
+        int fetches = property == null ? DEFAULT_PARALLEL_FETCHES : Math.max(1, Integer.parseInt(property));
+        return Math.min(fetches, fetchThreads);
+    }
 
+    private static int parallelFetches = -1;
+
+    /**
+     * The number of threads fetching the rows of all the downloads (-DdownloadFetchThreads), at most a quarter of
+     * the connections of the storage pools (-DmaxDBConnections).
+     */
+    public static int getFetchThreads() {
+        if (fetchThreads == -1)
+            fetchThreads = getFetchThreads(System.getProperty("downloadFetchThreads"),
+                    System.getProperty("maxDBConnections") == null ? Main.DEFAULT_MAX_DB_CONNECTIONS : Integer.parseInt(System.getProperty("maxDBConnections")));
+        return fetchThreads;
+    }
 
-                        if (ot == AllowedOutputType.csv) {
-                            formatCSVElement(respond, se, wantTimed, csvDelimiter, firstLine, fieldToUnitMap);
-                        } else if (ot == AllowedOutputType.xml) {
-                            formatXMLElement(respond, se, wantTimed, firstLine, fieldToUnitMap);
-                        }
-                        firstLine = false;
-                    }
-                } else {
-                    while (!streamElements.isEmpty()) {
-                        if (ot == AllowedOutputType.csv) {
-                            formatCSVElement(respond, streamElements.removeLast(), wantTimed, csvDelimiter, firstLine, fieldToUnitMap);
-                        } else if (ot == AllowedOutputType.xml) {
-                            formatXMLElement(respond, streamElements.removeLast(), wantTimed, firstLine, fieldToUnitMap);
-                        }
-                        firstLine = false;
-                    }
+    static int getFetchThreads(String property, int maxDBConnections) {
+        int threads = property == null ? DEFAULT_FETCH_THREADS : Math.max(1, Integer.parseInt(property));
+        return Math.min(threads, Math.max(1, maxDBConnections / FETCH_CONNECTIONS_DIVISOR));
+    }
+
+    private static int fetchThreads = -1;
+
+    /**
+     * The threads fetching the rows, shared by all the downloads. The fetches of a download are started in the
+     * order they are written, a fetch waiting for its rows to be written never blocks an earlier one.
+     */
+    static synchronized ExecutorService getFetchers() {
+        if (fetchers == null) {
+            int threads = getFetchThreads();
+            fetchers = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                private final AtomicInteger counter = new AtomicInteger();
+
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "DownloadData-" + counter.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
                 }
+            });
+        }
+        return fetchers;
+    }
+
+    private static ExecutorService fetchers = null;
+
+    /**
+     * Reads the rows of a virtual sensor in chronological order, with a forward only cursor, into a bounded
+     * queue: the memory used by a download doesn't depend on the number of rows. If requested, the rows are
+     * counted first, for the sampling.
+     */
+    private static class Fetch implements Runnable {
+
+        private static final int QUEUE_SIZE = 1000;
+
+        /** Marks the end of the rows. */
+        private static final StreamElement END = new StreamElement(new DataField[0], new Serializable[0], -1);
+
+        private final String vsName;
+
+        private final AbstractQuery query;
+
+        private final boolean counting;
+
+        private final ArrayBlockingQueue<StreamElement> rows = new ArrayBlockingQueue<StreamElement>(QUEUE_SIZE);
+
+        private volatile long count = -1;
+
+        private volatile Exception failure = null;
+
+        private volatile boolean cancelled = false;
+
+        private boolean ended = false;
 
+        private Fetch(String vsName, AbstractQuery query, boolean counting) {
+            this.vsName = vsName;
+            this.query = query;
+            this.counting = counting;
+        }
 
-                if (ot == AllowedOutputType.xml)
-                    respond.println("\t</data>");
+        public void run() {
+            StorageManager storage = null;
+            Connection connection = null;
+            DataEnumerator de = null;
+            try {
+                storage = Main.getStorage(vsName);
+                connection = storage.getConnection();
+                if (counting) {
+                    ResultSet rs = storage.executeQueryWithResultSet(query.getCountQuery(), connection);
+                    rs.next();
+                    count = query.getLimitedCount(rs.getLong(1));
+                    storage.close(rs);
+                }
+                de = storage.streamedExecuteQuery(query.getAscendingQuery(storage).toString(), true, connection);
+                logger.debug("Data Enumerator: " + de);
+                while (de.hasMoreElements() && put(de.nextElement()))
+                    ;
+            } catch (SQLException e) {
+                failure = e;
+            } catch (RuntimeException e) {
+                failure = e;
+            } catch (InterruptedException e) {
+                cancelled = true;
+            } finally {
+                // The data enumerator closes the connection.
+                if (de != null)
+                    de.close();
+                else if (connection != null)
+                    storage.close(connection);
+                try {
+                    put(END);
+                } catch (InterruptedException e) {
+                    cancelled = true;
+                }
             }
-            if (ot == AllowedOutputType.xml) {
-                respond.println("</result>");
+        }
+
+        private boolean put(StreamElement se) throws InterruptedException {
+            while (!cancelled)
+                if (rows.offer(se, 100, TimeUnit.MILLISECONDS))
+                    return true;
+            return false;
+        }
+
+        /**
+         * Returns the next row, or null after the last one.
+         */
+        private StreamElement next() throws InterruptedException {
+            if (ended)
+                return null;
+            StreamElement se = rows.take();
+            if (se == END) {
+                ended = true;
+                return null;
             }
+            return se;
+        }
 
-        } catch (SQLException e) {
-            logger.debug(e.getMessage());
-        } finally {
-            respond.flush();
-            if (de != null)
-                de.close();
+        /**
+         * Returns the number of rows, known once the first row (or the end) is returned by {@link #next()}.
+         */
+        private long getCount() {
+            return count;
+        }
+
+        private Exception getFailure() {
+            return failure;
         }
-    }
 
-    private StreamElement sampleSkip (StreamElement [] seForSampling){
-        return seForSampling[seForSampling.length - 1];
+        private void cancel() {
+            cancelled = true;
+        }
     }
 
     private int numberOfFieldsInRequest(){
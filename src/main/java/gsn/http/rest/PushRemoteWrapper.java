@@ -220,7 +220,7 @@ public class PushRemoteWrapper extends AbstractWrapper{
             // Otherwise, we first try to insert the stream element.
             // If the stream element was inserted succesfully, we wait for the next,
             // otherwise, we return false.
-            boolean status = postStreamElement(streamElement);
+            boolean status = postStreamElementAndWait(streamElement);
             if (status)
                 lastReceivedTimestamp = streamElement.getTimeStamp();
             return status;
@@ -30,10 +30,16 @@ package gsn.http.rest;
 import gsn.beans.DataField;
 import gsn.beans.StreamElement;
 
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.log4j.Logger;
 import org.eclipse.jetty.continuation.Continuation;
@@ -41,28 +47,97 @@ import org.eclipse.jetty.io.WriterOutputStream;
 
 import com.thoughtworks.xstream.XStream;
 
+/**
+ * Streams the stream elements to a RestRemoteWrapper, in XML or with the binary framing of {@link RestStreamCodec}.
+ * <p>
+ * In XML, each stream element is written and flushed on its own, then the servlet checks the connection before the
+ * next one. In binary, the stream elements are batched and written from the delivery thread: a batch is flushed
+ * once it reaches -DrestFrameSize bytes (16384 by default) or at the latest -DrestFlushDelay milliseconds (50 by
+ * default) after the previous flush, and a failed write closes the delivery.
+ */
 public class RestDelivery implements DeliverySystem {
 
+    public static final int DEFAULT_FRAME_SIZE = 16384;
+
+    public static final int DEFAULT_FLUSH_DELAY = 50;
+
+    private static int frameSize = -1;
+
+    private static ScheduledExecutorService flusher = null;
+
     private Continuation continuation;
     private ObjectOutputStream objectStream;
 
+    private DataOutputStream dataStream;
+    private RestStreamCodec codec;
+    private ScheduledFuture<?> flush = null;
+    private volatile boolean closed = false;
+
     private static final StreamElement keepAliveMsg = new StreamElement(new DataField[]{new DataField("keepalive", "string")}, new Serializable[]{"keep-alive message"}, Long.MIN_VALUE);
 
     public RestDelivery(Continuation connection) throws IOException {
+        this(connection, false);
+    }
+
+    /**
+     * @param binary true to use the binary framing, as negotiated with {@link RestStreamCodec#isAccepted(String)}.
+     */
+    public RestDelivery(Continuation connection, boolean binary) throws IOException {
         this.continuation = connection;
-        XStream dataStream = StreamElement4Rest.getXstream();
-        objectStream = dataStream.createObjectOutputStream((new WriterOutputStream(continuation.getServletResponse().getWriter())));
+        if (binary) {
+            continuation.getServletResponse().setContentType(RestStreamCodec.CONTENT_TYPE);
+            dataStream = new DataOutputStream(continuation.getServletResponse().getOutputStream());
+            codec = new RestStreamCodec();
+            long delay = System.getProperty("restFlushDelay") == null ? DEFAULT_FLUSH_DELAY : Math.max(1, Long.parseLong(System.getProperty("restFlushDelay")));
+            flush = getFlusher().scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    flush(false);
+                }
+            }, delay, delay, TimeUnit.MILLISECONDS);
+        } else {
+            XStream dataStream = StreamElement4Rest.getXstream();
+            objectStream = dataStream.createObjectOutputStream((new WriterOutputStream(continuation.getServletResponse().getWriter())));
+        }
     }
 
     private static transient Logger logger = Logger.getLogger(RestDelivery.class);
 
-    public void writeStructure(DataField[] fields) throws IOException {
-        objectStream.writeObject(fields);
-        objectStream.flush();
+    public static int getFrameSize() {
+        if (frameSize == -1)
+            frameSize = System.getProperty("restFrameSize") == null ? DEFAULT_FRAME_SIZE : Math.max(1, Integer.parseInt(System.getProperty("restFrameSize")));
+        return frameSize;
+    }
+
+    private static synchronized ScheduledExecutorService getFlusher() {
+        if (flusher == null)
+            flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "RestDelivery-Flusher");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        return flusher;
+    }
+
+    public synchronized void writeStructure(DataField[] fields) throws IOException {
+        if (codec != null) {
+            codec.writeStructure(dataStream, fields);
+            dataStream.flush();
+        } else {
+            objectStream.writeObject(fields);
+            objectStream.flush();
+        }
         continuation.getServletResponse().flushBuffer();
     }
 
     public synchronized boolean writeStreamElement(StreamElement se) {
+        if (codec != null) {
+            if (closed)
+                return false;
+            codec.add(se);
+            return codec.length() < getFrameSize() || flush(false);
+        }
         try {
             objectStream.writeObject(new StreamElement4Rest(se));
             objectStream.flush();
@@ -74,14 +149,44 @@ public class RestDelivery implements DeliverySystem {
         }
     }
 
+    /**
+     * Writes the pending stream elements of the binary framing, if any, or an empty batch for a keep alive message.
+     *
+     * @return false if the connection is closed.
+     */
+    private synchronized boolean flush(boolean keepAlive) {
+        if (closed)
+            return false;
+        if (codec.size() == 0 && !keepAlive)
+            return true;
+        try {
+            codec.writeBatch(dataStream);
+            dataStream.flush();
+            continuation.getServletResponse().flushBuffer();
+            return true;
+        } catch (Exception e) {
+            logger.debug(e.getMessage(), e);
+            closed = true;
+            return false;
+        }
+    }
+
     public boolean writeKeepAliveStreamElement() {
         logger.debug("Sending the keepalive message.");
+        if (codec != null)
+            return flush(true);
         return writeStreamElement(keepAliveMsg);
     }
 
-    public void close() {
+    public synchronized void close() {
         try {
-            if (objectStream != null){
+            if (codec != null) {
+                flush.cancel(false);
+                flush(false);
+                closed = true;
+                dataStream.close();
+                continuation.complete();
+            } else if (objectStream != null){
                 objectStream.close();
                 continuation.complete();
             }
@@ -91,6 +196,8 @@ public class RestDelivery implements DeliverySystem {
     }
 
     public boolean isClosed() {
+        if (codec != null)
+            return closed;
         try {
             return continuation.getServletResponse().getWriter().checkError();
         } catch (IOException e) {
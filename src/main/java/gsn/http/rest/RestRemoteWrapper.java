@@ -33,14 +33,18 @@ import gsn.beans.DataField;
 import gsn.beans.StreamElement;
 import gsn.wrappers.AbstractWrapper;
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.security.KeyStore;
 import java.sql.SQLException;
+import java.util.ArrayList;
 
 import org.apache.commons.httpclient.protocol.Protocol;
+import org.apache.http.Header;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.HttpVersion;
@@ -79,6 +83,15 @@ public class RestRemoteWrapper extends AbstractWrapper {
 
     private ObjectInputStream inputStream;
 
+    /**
+     * The stream of the binary framing, when the remote GSN answers with it (the XML input stream is then null).
+     */
+    private DataInputStream dataStream;
+
+    private RestStreamCodec codec;
+
+    private boolean binary;
+
     private HttpResponse response;
 
     private HttpParams getHttpClientParams(int timeout) {
@@ -108,6 +121,8 @@ public class RestRemoteWrapper extends AbstractWrapper {
     public boolean initialize() {
         try {
             initParams = new RemoteWrapperParamParser(getActiveAddressBean(), false);
+            // Asks for the binary framing, unless binary=false. The remote GSN may still answer in XML.
+            binary = Boolean.parseBoolean(getActiveAddressBean().getPredicateValueWithDefault("binary", "true"));
             httpclient = new DefaultHttpClient(getHttpClientParams(initParams.getTimeout()));
             // Init the http client
             if (initParams.isSSLRequired()) {
@@ -135,6 +150,8 @@ public class RestRemoteWrapper extends AbstractWrapper {
     public DataField[] connectToRemote() throws IOException, ClassNotFoundException {
         // Create the GET request
         HttpGet httpget = new HttpGet(initParams.getRemoteContactPointEncoded(lastReceivedTimestamp));
+        if (binary)
+            httpget.setHeader("Accept", RestStreamCodec.CONTENT_TYPE + ", */*");
         // Create local execution context
         HttpContext localContext = new BasicHttpContext();
         //
@@ -142,13 +159,12 @@ public class RestRemoteWrapper extends AbstractWrapper {
         int tries = 0;
         AuthState authState = null;
         //
-        if (inputStream != null) {
+        if (inputStream != null || dataStream != null) {
             try {
                 if(response != null && response.getEntity() != null) {
                         response.getEntity().consumeContent();
                 }
-                inputStream.close();
-                inputStream = null;
+                closeStreams();
             }
             catch (Exception e) {
                 logger.debug(e.getMessage(), e);
@@ -165,8 +181,15 @@ public class RestRemoteWrapper extends AbstractWrapper {
                 //
                 if (sc == HttpStatus.SC_OK) {
                     logger.debug(new StringBuilder().append("Wants to consume the structure packet from ").append(initParams.getRemoteContactPoint()));
-                    inputStream = XSTREAM.createObjectInputStream(response.getEntity().getContent());
-                    structure = (DataField[]) inputStream.readObject();
+                    Header contentType = response.getFirstHeader("Content-Type");
+                    if (contentType != null && RestStreamCodec.isBinary(contentType.getValue())) {
+                        codec = new RestStreamCodec();
+                        dataStream = new DataInputStream(new BufferedInputStream(response.getEntity().getContent()));
+                        structure = codec.readStructure(dataStream);
+                    } else {
+                        inputStream = XSTREAM.createObjectInputStream(response.getEntity().getContent());
+                        structure = (DataField[]) inputStream.readObject();
+                    }
                     logger.warn("Connection established for: " + initParams.getRemoteContactPoint());
                     break;
                 } else {
@@ -225,10 +248,23 @@ public class RestRemoteWrapper extends AbstractWrapper {
         }
     }
 
+    private void closeStreams() throws IOException {
+        if (inputStream != null)
+            inputStream.close();
+        if (dataStream != null)
+            dataStream.close();
+        inputStream = null;
+        dataStream = null;
+    }
+
     public void run() {
         StreamElement4Rest se = null;
         while (isActive()) {
             try {
+                if (dataStream != null) {
+                    readBatches();
+                    continue;
+                }
                 while (isActive() && (se = (StreamElement4Rest) inputStream.readObject()) != null) {
                     StreamElement streamElement = se.toStreamElement();
                     if ( ! (streamElement.getFieldNames().length == 1 && streamElement.getFieldNames()[0].equals("keepalive"))) {
@@ -257,6 +293,24 @@ public class RestRemoteWrapper extends AbstractWrapper {
         }
     }
 
+    /**
+     * Reads the binary framing until the connection is lost, a failed insertion closes the connection.
+     */
+    private void readBatches() throws IOException {
+        while (isActive()) {
+            ArrayList<StreamElement> batch = codec.readBatch(dataStream);
+            if (batch.isEmpty())
+                logger.debug("Received a keep alive message.");
+            for (StreamElement streamElement : batch) {
+                if (!manualDataInsertion(streamElement)) {
+                    response.getEntity().consumeContent();
+                    closeStreams();
+                    throw new IOException("Failed to insert a stream element from " + initParams.getRemoteContactPoint());
+                }
+            }
+        }
+    }
+
     public boolean manualDataInsertion(StreamElement se) {
         try {
             // If the stream element is out of order, we accept the stream element and wait for the next (update the last received time and return true)
@@ -267,7 +321,7 @@ public class RestRemoteWrapper extends AbstractWrapper {
             // Otherwise, we first try to insert the stream element.
             // If the stream element was inserted succesfully, we wait for the next,
             // otherwise, we return false.
-            boolean status = postStreamElement(se);
+            boolean status = postStreamElementAndWait(se);
             if (status)
                 lastReceivedTimestamp = se.getTimeStamp();
             return status;
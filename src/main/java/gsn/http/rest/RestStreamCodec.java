@@ -0,0 +1,152 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/http/rest/RestStreamCodec.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.http.rest;
+
+import gsn.beans.DataField;
+import gsn.beans.StreamElement;
+import gsn.networking.zeromq.ZeroMQCodec;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+/**
+ * The binary framing of the streaming protocol between RestDelivery and RestRemoteWrapper. The client asks for it
+ * with the Accept header of the streaming request and the server answers with the {@link #CONTENT_TYPE} content
+ * type; the XML framing is used with the peers which don't.
+ * <p>
+ * Each frame is its length (an int) followed by its content: the first frame holds the output structure, the next
+ * ones a batch of stream elements encoded as the ZeroMQ frames (see {@link ZeroMQCodec}). An empty batch is a keep
+ * alive message. The buffers are reused, so an instance must not be shared between threads.
+ */
+public class RestStreamCodec {
+
+	public static final String CONTENT_TYPE = "application/x-gsn-stream";
+
+	/**
+	 * The largest frame accepted by the decoder.
+	 */
+	public static final int MAX_FRAME_LENGTH = 64 * 1024 * 1024;
+
+	private final Kryo kryo = new Kryo();
+
+	private final ZeroMQCodec codec = new ZeroMQCodec(kryo);
+
+	private final Output output = new Output(ZeroMQCodec.INITIAL_BUFFER_SIZE, -1);
+
+	/**
+	 * The output structure read by {@link #readStructure(DataInputStream)}.
+	 */
+	private DataField[] structure = null;
+
+	/**
+	 * True if the value of the Accept header of a request asks for the binary framing.
+	 */
+	public static boolean isAccepted(String accept) {
+		return accept != null && accept.contains(CONTENT_TYPE);
+	}
+
+	/**
+	 * True if the value of the Content-Type header of a response announces the binary framing.
+	 */
+	public static boolean isBinary(String contentType) {
+		return contentType != null && contentType.trim().startsWith(CONTENT_TYPE);
+	}
+
+	public void writeStructure(DataOutputStream out, DataField[] fields) throws IOException {
+		output.clear();
+		kryo.writeObjectOrNull(output, fields, DataField[].class);
+		out.writeInt(output.position());
+		out.write(output.getBuffer(), 0, output.position());
+	}
+
+	/**
+	 * Appends the stream element to the current batch.
+	 */
+	public void add(StreamElement se) {
+		codec.add(se);
+	}
+
+	/**
+	 * @return the number of stream elements in the current batch.
+	 */
+	public int size() {
+		return codec.size();
+	}
+
+	/**
+	 * @return the length in bytes of the current batch.
+	 */
+	public int length() {
+		return codec.length();
+	}
+
+	/**
+	 * Writes the current batch (possibly empty) as a frame and starts a new one.
+	 */
+	public void writeBatch(DataOutputStream out) throws IOException {
+		try {
+			codec.finish();
+			out.writeInt(codec.length());
+			out.write(codec.getBuffer(), 0, codec.length());
+		} finally {
+			codec.clear();
+		}
+	}
+
+	public DataField[] readStructure(DataInputStream in) throws IOException {
+		structure = kryo.readObjectOrNull(new Input(readFrame(in)), DataField[].class);
+		return structure;
+	}
+
+	/**
+	 * Reads the next batch of stream elements, empty for a keep alive message. The field types are not in the
+	 * frames, the stream elements get them from the output structure read before.
+	 */
+	public ArrayList<StreamElement> readBatch(DataInputStream in) throws IOException {
+		ArrayList<StreamElement> elements = codec.decode(readFrame(in));
+		if (structure != null)
+			for (int i = 0; i < elements.size(); i++)
+				if (elements.get(i) != null)
+					elements.set(i, new StreamElement(structure, elements.get(i).getData(), elements.get(i).getTimeStamp()));
+		return elements;
+	}
+
+	private static byte[] readFrame(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0 || length > MAX_FRAME_LENGTH)
+			throw new IOException("Invalid frame length: " + length);
+		byte[] frame = new byte[length];
+		in.readFully(frame);
+		return frame;
+	}
+
+}
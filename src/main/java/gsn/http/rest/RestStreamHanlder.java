@@ -121,7 +121,7 @@ public class RestStreamHanlder extends HttpServlet {
                     }
                 }
                 //
-                RestDelivery deliverySystem = new RestDelivery(continuation);
+                RestDelivery deliverySystem = new RestDelivery(continuation, RestStreamCodec.isAccepted(request.getHeader("Accept")));
                 streamingReq = DefaultDistributionRequest.create(deliverySystem, parser.getVSensorConfig(), parser.getQuery(), parser.getStartTime());
                 DataDistributer.getInstance(deliverySystem.getClass()).addListener(streamingReq);
 			}catch (Exception e) {
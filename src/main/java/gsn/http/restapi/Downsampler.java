@@ -0,0 +1,305 @@
+/**
+ * Global Sensor Networks (GSN) Source Code
+ * Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+ *
+ * This file is part of GSN.
+ *
+ * GSN is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GSN is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * File: src/gsn/http/restapi/Downsampler.java
+ *
+ * @author gsn_devs
+ *
+ */
+
+package gsn.http.restapi;
+
+import java.util.List;
+import java.util.Vector;
+
+/**
+ * Reduces a time series to about <code>size</code> points, in one pass over the points sorted by timestamp.
+ * The range [from, to] is split in buckets of equal duration, and each bucket is reduced according to the {@link Mode}.
+ * Only the points of the current and of the previous bucket are kept in memory. The null values are ignored.
+ */
+public class Downsampler {
+
+    public static enum Mode {
+        /** Largest-Triangle-Three-Buckets: the point of each bucket forming the largest triangle with the previously
+         * selected point and the average of the next bucket, plus the first and the last points. */
+        LTTB,
+        /** The minimum and the maximum of each bucket, in their time order, so that the spikes are kept. */
+        MINMAX,
+        /** The average of each bucket, at the average timestamp of its points. */
+        AVG;
+
+        /**
+         * @return the mode, or null if the value is unknown.
+         */
+        public static Mode fromString(String value) {
+            for (Mode mode : values())
+                if (mode.name().equalsIgnoreCase(value.trim()))
+                    return mode;
+            return null;
+        }
+    }
+
+    private final Mode mode;
+
+    private final long from;
+
+    private final double bucketDuration;
+
+    private final Vector<Long> timestamps;
+
+    private final List<Vector<Double>> elements;
+
+    private int bucket = -1;
+
+    private Bucket current;
+
+    /** LTTB: the bucket waiting for the average of the next one. */
+    private Bucket previous = null;
+
+    /** LTTB: the first point, and the latest selected one. */
+    private long selectedTimestamp;
+
+    private double selectedValue;
+
+    private boolean first = true;
+
+    /** LTTB: the latest point, always selected. */
+    private boolean held = false;
+
+    private long lastTimestamp;
+
+    private double lastValue;
+
+    /**
+     * @param size the maximum number of points returned.
+     * @param timestamps receives the timestamps of the selected points.
+     * @param elements receives the values of the selected points.
+     */
+    public Downsampler(Mode mode, long from, long to, long size, Vector<Long> timestamps, List<Vector<Double>> elements) {
+        this.mode = mode;
+        this.from = from;
+        this.timestamps = timestamps;
+        this.elements = elements;
+        current = new Bucket();
+        long buckets;
+        if (mode == Mode.LTTB)
+            buckets = Math.max(1, size - 2); // the first and the last points are always selected.
+        else if (mode == Mode.MINMAX)
+            buckets = Math.max(1, size / 2);
+        else
+            buckets = Math.max(1, size);
+        bucketDuration = Math.max(1.0, (to - from + 1) / (double) buckets);
+    }
+
+    /**
+     * Adds the next point, its timestamp must not be lower than the one of the previous point.
+     */
+    public void add(long timestamp, Double value) {
+        if (value == null || value.isNaN())
+            return;
+        if (mode == Mode.LTTB) {
+            if (first) {
+                first = false;
+                selectedTimestamp = timestamp;
+                selectedValue = value;
+                emit(timestamp, value);
+                return;
+            }
+            // The latest point is held back, it is either added to its bucket or selected as the last point.
+            if (held)
+                addToBucket(lastTimestamp, lastValue);
+            held = true;
+            lastTimestamp = timestamp;
+            lastValue = value;
+            return;
+        }
+        addToBucket(timestamp, value);
+    }
+
+    /**
+     * Adds the aggregates of the points of a period (e.g., a row of a rollup table), which must be shorter than
+     * the buckets (see {@link #getBucketDuration()}). LTTB selects the average of the period as a point, MINMAX keeps
+     * its minimum and maximum, and AVG weights its average by the number of points.
+     *
+     * @param timestamp the middle of the period.
+     */
+    public void addAggregate(long timestamp, double min, double max, double sum, long count) {
+        if (count <= 0)
+            return;
+        switch (mode) {
+            case LTTB:
+                add(timestamp, sum / count);
+                break;
+            case MINMAX:
+                addToBucket(timestamp, min, 1);
+                addToBucket(timestamp, max, 1);
+                break;
+            default:
+                addToBucket(timestamp, sum / count, count);
+        }
+    }
+
+    /**
+     * @return the duration of the buckets, in milliseconds.
+     */
+    public double getBucketDuration() {
+        return bucketDuration;
+    }
+
+    private void addToBucket(long timestamp, double value) {
+        addToBucket(timestamp, value, 1);
+    }
+
+    private void addToBucket(long timestamp, double value, long weight) {
+        int index = (int) Math.max(0, (timestamp - from) / bucketDuration);
+        if (index != bucket && current.count > 0)
+            closeBucket();
+        bucket = index;
+        current.add(timestamp, value, weight);
+    }
+
+    private void closeBucket() {
+        switch (mode) {
+            case LTTB:
+                if (previous != null)
+                    select(previous, current.sumTimestamps / current.count, current.sumValues / current.count);
+                previous = current;
+                current = new Bucket();
+                return;
+            case MINMAX:
+                if (current.minTimestamp <= current.maxTimestamp) {
+                    emit(current.minTimestamp, current.min);
+                    if (current.count > 1 && (current.maxTimestamp != current.minTimestamp || current.max != current.min))
+                        emit(current.maxTimestamp, current.max);
+                } else {
+                    emit(current.maxTimestamp, current.max);
+                    emit(current.minTimestamp, current.min);
+                }
+                break;
+            default:
+                emit(Math.round(current.sumTimestamps / current.count), current.sumValues / current.count);
+        }
+        current.clear();
+    }
+
+    /**
+     * LTTB: selects the point of the bucket forming the largest triangle with the previously selected point
+     * and the given point (the average of the next bucket).
+     */
+    private void select(Bucket bucket, double nextTimestamp, double nextValue) {
+        int best = 0;
+        double bestArea = -1;
+        for (int i = 0; i < bucket.count; i++) {
+            double area = Math.abs((selectedTimestamp - nextTimestamp) * (bucket.values[i] - selectedValue)
+                    - (selectedTimestamp - bucket.timestamps[i]) * (nextValue - selectedValue));
+            if (area > bestArea) {
+                bestArea = area;
+                best = i;
+            }
+        }
+        selectedTimestamp = bucket.timestamps[best];
+        selectedValue = bucket.values[best];
+        emit(selectedTimestamp, selectedValue);
+    }
+
+    /**
+     * Flushes the last buckets, must be called after the last point.
+     */
+    public void finish() {
+        if (mode == Mode.LTTB) {
+            if (!held)
+                return; // no point, or only the first one.
+            if (current.count > 0)
+                closeBucket();
+            if (previous != null)
+                select(previous, lastTimestamp, lastValue);
+            emit(lastTimestamp, lastValue);
+            return;
+        }
+        if (current.count > 0)
+            closeBucket();
+    }
+
+    private void emit(long timestamp, double value) {
+        Vector<Double> stream = new Vector<Double>(1);
+        stream.add(value);
+        timestamps.add(timestamp);
+        elements.add(stream);
+    }
+
+    /**
+     * The points of a bucket (only stored for LTTB) and their aggregates.
+     */
+    private class Bucket {
+
+        private long[] timestamps = mode == Mode.LTTB ? new long[16] : null;
+
+        private double[] values = mode == Mode.LTTB ? new double[16] : null;
+
+        private long count = 0;
+
+        private double sumTimestamps = 0;
+
+        private double sumValues = 0;
+
+        private double min = Double.POSITIVE_INFINITY;
+
+        private double max = Double.NEGATIVE_INFINITY;
+
+        private long minTimestamp;
+
+        private long maxTimestamp;
+
+        private void add(long timestamp, double value, long weight) {
+            if (timestamps != null) {
+                int n = (int) count; // the weight is always 1 for LTTB.
+                if (n == timestamps.length) {
+                    long[] newTimestamps = new long[n * 2];
+                    double[] newValues = new double[n * 2];
+                    System.arraycopy(timestamps, 0, newTimestamps, 0, n);
+                    System.arraycopy(values, 0, newValues, 0, n);
+                    timestamps = newTimestamps;
+                    values = newValues;
+                }
+                timestamps[n] = timestamp;
+                values[n] = value;
+            }
+            count += weight;
+            sumTimestamps += (double) timestamp * weight;
+            sumValues += value * weight;
+            if (value < min) {
+                min = value;
+                minTimestamp = timestamp;
+            }
+            if (value > max) {
+                max = value;
+                maxTimestamp = timestamp;
+            }
+        }
+
+        private void clear() {
+            count = 0;
+            sumTimestamps = 0;
+            sumValues = 0;
+            min = Double.POSITIVE_INFINITY;
+            max = Double.NEGATIVE_INFINITY;
+        }
+    }
+
+}
@@ -36,6 +36,7 @@ import gsn.beans.VSensorConfig;
 import gsn.http.ac.DataSource;
 import gsn.http.ac.User;
 import gsn.storage.DataEnumerator;
+import gsn.storage.RollupManager;
 import gsn.utils.geo.GridTools;
 import gsn.xpr.XprConditions;
 
@@ -60,7 +61,7 @@ public class RequestHandler {
 
     public static enum ErrorType {NO_SUCH_SENSOR, NO_SUCH_USER, NO_SENSOR_ACCESS, UNKNOWN_REQUEST, 
     	MALFORMED_DATE_FROM_TO, MALFORMED_DATE_DATE_FIELD, MALFORMED_SIZE, MALFORMED_FILTER,MALFORMED_FIELD_SELECT, 
-    	ERROR_IN_REQUEST, OUT_OF_MEMORY_ERROR}
+    	ERROR_IN_REQUEST, OUT_OF_MEMORY_ERROR, MALFORMED_DOWNSAMPLING}
 
     private String format = RestServlet.FORMAT_GEOJSON;
     
@@ -227,7 +228,12 @@ public class RequestHandler {
         return restResponse;
     }
     
-    public RestResponse getMeasurementsForSensorField(User user, String sensor, String field, String from, String to, String size) {
+    /**
+     * Returns the values of the field between from and to. Without downsampling, size limits the response to the
+     * latest values. With downsampling (lttb, minmax or avg), the values of the whole range are reduced to about
+     * size points (1000 by default), see {@link Downsampler}.
+     */
+    public RestResponse getMeasurementsForSensorField(User user, String sensor, String field, String from, String to, String size, String downsampling) {
         RestResponse restResponse = userHasAccessToVirtualSensor(user, sensor);
         if (restResponse != null) { //error occured
             return restResponse;
@@ -241,6 +247,13 @@ public class RequestHandler {
         long fromAsLong = 0;
         long toAsLong = 0;
         int window = -1;
+        Downsampler.Mode mode = null;
+        if (downsampling != null) {
+            mode = Downsampler.Mode.fromString(downsampling);
+            if (mode == null) {
+                return errorResponse(ErrorType.MALFORMED_DOWNSAMPLING, user, sensor);
+            }
+        }
         try {
             fromAsLong = new java.text.SimpleDateFormat(stringConstantsProperties.getProperty("ISO_FORMAT")).parse(from).getTime();
             toAsLong = new java.text.SimpleDateFormat(stringConstantsProperties.getProperty("ISO_FORMAT")).parse(to).getTime();
@@ -271,10 +284,14 @@ public class RequestHandler {
         ArrayList<Vector<Double>> elements  = new ArrayList<Vector<Double>>();
         Vector<Long> timestamps = new Vector<Long>();
         
-        ArrayList<String> fieldList = new ArrayList<String>();
-        fieldList.add(field);
-
-        boolean errorFlag = !getData(sensor, fieldList, fromAsLong, toAsLong, window, elements, timestamps);
+        boolean errorFlag;
+        if (mode != null) {
+            errorFlag = !getDownsampledData(sensor, field, fromAsLong, toAsLong, window > 0 ? window : DEFAULT_PREVIEW_SIZE, mode, elements, timestamps);
+        } else {
+            ArrayList<String> fieldList = new ArrayList<String>();
+            fieldList.add(field);
+            errorFlag = !getData(sensor, fieldList, fromAsLong, toAsLong, window, elements, timestamps);
+        }
         
         if (errorFlag){
         	return errorResponse(ErrorType.ERROR_IN_REQUEST, user, sensor);
@@ -367,7 +384,11 @@ public class RequestHandler {
         return restResponse;
     }
 
-    public RestResponse getPreviewMeasurementsForSensorField(User user, String sensor, String field, String from, String to, String size) {
+    /**
+     * Returns about size points (1000 by default) summarizing the values of the field between from and to,
+     * downsampled with lttb (default), minmax or avg, see {@link Downsampler}.
+     */
+    public RestResponse getPreviewMeasurementsForSensorField(User user, String sensor, String field, String from, String to, String size, String downsampling) {
         /* open
     	RestResponse restResponse = userHasAccessToVirtualSensor(user, sensor);
         if (restResponse != null) { //error occured
@@ -399,6 +420,14 @@ public class RequestHandler {
 
         if (n < 1) n = DEFAULT_PREVIEW_SIZE; // size should be strictly larger than 0
 
+        Downsampler.Mode mode = Downsampler.Mode.LTTB;
+        if (downsampling != null) {
+            mode = Downsampler.Mode.fromString(downsampling);
+            if (mode == null) {
+                return errorResponse(ErrorType.MALFORMED_DOWNSAMPLING, user, sensor);
+            }
+        }
+
         if (from == null) { // no lower bound provided
             fromAsLong = getMinTimestampForSensorField(sensor, field);
         } else try {
@@ -421,7 +450,7 @@ public class RequestHandler {
             return errorResponse(ErrorType.MALFORMED_DATE_FROM_TO, user, sensor);
         }
 
-        errorFlag = !getDataPreview(sensor, field, fromAsLong, toAsLong, elements, timestamps, n);
+        errorFlag = !getDownsampledData(sensor, field, fromAsLong, toAsLong, n, mode, elements, timestamps);
 
         if (errorFlag) {
             return errorResponse(ErrorType.ERROR_IN_REQUEST, user, sensor);
@@ -504,6 +533,10 @@ public class RequestHandler {
             	errorMessage = stringConstantsProperties.getProperty("ERROR_OUT_OF_MEMORY_ERROR_MSG");
                 filename = stringConstantsProperties.getProperty("ERROR_OUT_OF_MEMORY_ERROR_FILENAME");
                 break;
+            case MALFORMED_DOWNSAMPLING:
+            	errorMessage = stringConstantsProperties.getProperty("ERROR_MALFORMED_DOWNSAMPLING_MSG");
+                filename = stringConstantsProperties.getProperty("ERROR_MALFORMED_DOWNSAMPLING_FILENAME");
+                break;
         }
 
     	
@@ -740,43 +773,64 @@ public class RequestHandler {
         return toReturn;
     }
 
-    private boolean getDataPreview(String sensor, String field, long from, long to, List<Vector<Double>> elements, Vector<Long> timestamps, long size) {
+    /**
+     * Scans the values of the field between from and to in time order (using the index on timed), and reduces
+     * them on the fly to about size points.
+     */
+    private boolean getDownsampledData(String sensor, String field, long from, long to, long size, Downsampler.Mode mode, List<Vector<Double>> elements, Vector<Long> timestamps) {
         Connection conn = null;
         ResultSet resultSet = null;
 
         boolean result = true;
 
-        long skip = getTableSize(sensor) / size;
+        Downsampler downsampler = new Downsampler(mode, from, to, size, timestamps, elements);
 
-        /*
-        logger.warn("skip = " + skip);
-        logger.warn("size = " + size);
-        logger.warn("getTableSize(sensor) = " + getTableSize(sensor));
-        */
+        // A rollup table is used when its periods are small enough compared to the buckets (LTTB needs several points per bucket).
+        long maxResolution = (long) (mode == Downsampler.Mode.LTTB ? downsampler.getBucketDuration() / 4 : downsampler.getBucketDuration());
+        long resolution = RollupManager.getInstance().getResolutionAtMost(sensor, field, maxResolution);
+        if (resolution > 0)
+            RollupManager.getInstance().flush(sensor); // the current periods are still in memory.
 
         try {
             conn = Main.getStorage(sensor).getConnection();
-            StringBuilder query = new StringBuilder("select timed, ")
-                    .append(field)
-                    .append(" from ")
-                    .append(sensor);
-            if (skip > 1)
-                query.append(" where mod(pk,")
-                        .append(skip)
-                        .append(")=1");
+            StringBuilder query;
+            if (resolution > 0) {
+                query = new StringBuilder("select timed, ")
+                        .append(field).append(RollupManager.MIN_SUFFIX).append(", ")
+                        .append(field).append(RollupManager.MAX_SUFFIX).append(", ")
+                        .append(field).append(RollupManager.SUM_SUFFIX).append(", ")
+                        .append(field).append(RollupManager.COUNT_SUFFIX)
+                        .append(" from ")
+                        .append(RollupManager.getTableName(sensor, resolution))
+                        .append(" where timed >=")
+                        .append(from - ((from % resolution) + resolution) % resolution)
+                        .append(" and timed <=")
+                        .append(to)
+                        .append(" order by timed asc");
+            } else {
+                query = new StringBuilder("select timed, ")
+                        .append(field)
+                        .append(" from ")
+                        .append(sensor)
+                        .append(" where timed >=")
+                        .append(from)
+                        .append(" and timed <=")
+                        .append(to)
+                        .append(" order by timed asc");
+            }
 
-            resultSet = Main.getStorage(sensor).executeQueryWithResultSet(query, conn);
+            resultSet = Main.getStorage(sensor).streamedExecuteQueryWithResultSet(query, conn);
 
             while (resultSet.next()) {
-                //int ncols = resultSet.getMetaData().getColumnCount();
                 long timestamp = resultSet.getLong(1);
-                double value = resultSet.getDouble(2);
-                //logger.warn(ncols + " cols, value: " + value + " ts: " + timestamp);
-                Vector<Double> stream = new  Vector<Double>();
-                stream.add(value);
-                timestamps.add(timestamp);
-                elements.add(stream);
+                if (resolution > 0) {
+                    downsampler.addAggregate(Math.max(from, Math.min(to, timestamp + resolution / 2)), resultSet.getDouble(2), resultSet.getDouble(3), resultSet.getDouble(4), resultSet.getLong(5));
+                } else {
+                    double value = resultSet.getDouble(2);
+                    downsampler.add(timestamp, resultSet.wasNull() ? null : value);
+                }
             }
+            downsampler.finish();
 
         } catch (SQLException e) {
             logger.error(e.getMessage(), e);
@@ -789,35 +843,6 @@ public class RequestHandler {
         return result;
     }
 
-    private long getTableSize(String sensor) {
-        Connection conn = null;
-        ResultSet resultSet = null;
-
-        //boolean result = true;
-        long timestamp = -1;
-
-        try {
-            conn = Main.getDefaultStorage().getConnection();
-            StringBuilder query = new StringBuilder("select count(*) from ").append(sensor);
-
-            resultSet = Main.getStorage(sensor).executeQueryWithResultSet(query, conn);
-
-            if (resultSet.next()) {
-
-                timestamp = resultSet.getLong(1);
-            }
-
-        } catch (SQLException e) {
-            logger.error(e.getMessage(), e);
-            //result = false;
-        } finally {
-            Main.getStorage(sensor).close(resultSet);
-            Main.getStorage(sensor).close(conn);
-        }
-
-        return timestamp;
-    }
-
     private Double getDouble(ResultSet rs,String fieldName) throws SQLException{
         Double d=rs.getDouble(fieldName);
         if (rs.wasNull()) return null;
@@ -68,6 +68,7 @@ public class RestServlet extends HttpServlet {
     private static final String PARAMETER_LATEST_VALS = "latest_values";//default without, possible values "true"  or "false"
     private static final String PARAMETER_FILTER = "filter";
     private static final String PARAMETER_FIELDS = "fields";
+    private static final String PARAMETER_DOWNSAMPLING = "downsampling";//lttb, minmax or avg
     
 
     public static final String FORMAT_JSON = "json";
@@ -129,7 +130,7 @@ public class RestServlet extends HttpServlet {
                 str_to = request.getParameter(PARAMETER_TO);
                 str_size = request.getParameter(PARAMETER_SIZE);
 
-                restResponse = requestHandler.getMeasurementsForSensorField(user, sensor, field, str_from, str_to, str_size);
+                restResponse = requestHandler.getMeasurementsForSensorField(user, sensor, field, str_from, str_to, str_size, request.getParameter(PARAMETER_DOWNSAMPLING));
                 break;
             case REQUEST_GET_PREVIEW_MEASUREMENTS_FOR_SENSOR_FIELD:
                 sensor = parseURI(request.getRequestURI())[3];
@@ -138,7 +139,7 @@ public class RestServlet extends HttpServlet {
                 str_to = request.getParameter(PARAMETER_TO);
                 str_size = request.getParameter(PARAMETER_SIZE);
 
-                restResponse = requestHandler.getPreviewMeasurementsForSensorField(user, sensor, field, str_from, str_to, str_size);
+                restResponse = requestHandler.getPreviewMeasurementsForSensorField(user, sensor, field, str_from, str_to, str_size, request.getParameter(PARAMETER_DOWNSAMPLING));
                 break;
             case REQUEST_GET_MINMAX_FOR_SENSOR_FIELD:
                 sensor = parseURI(request.getRequestURI())[3];
@@ -49,6 +49,9 @@ public class MonitoringServlet extends HttpServlet {
      * 
      * the protocol is similar to the carbon protocol used by Graphite, except the timestamp
      * http://matt.aimonetti.net/posts/2013/06/26/practical-guide-to-graphite-monitoring/
+     * 
+     * with the parameter format=prometheus, the numeric statistics and the latency histograms
+     * (see PipelineLatency) are returned in the Prometheus text format.
      */
     public void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
 
@@ -58,6 +61,21 @@ public class MonitoringServlet extends HttpServlet {
 
         StringBuilder values = new StringBuilder();
         
+        if ("prometheus".equalsIgnoreCase(request.getParameter("format"))) {
+            response.setContentType("text/plain; version=0.0.4");
+            for (Monitorable m : Main.getInstance().getToMonitor()){
+                for (Map.Entry<String,Object> e : m.getStatistics().entrySet()){
+                    if (!(e.getValue() instanceof Number))
+                        continue;
+                    values.append("gsn_").append(e.getKey().replaceAll("[^a-zA-Z0-9_]", "_")).append(" ");
+                    values.append(e.getValue()).append("\n");
+                }
+            }
+            PipelineLatency.writeHistograms(values);
+            response.getWriter().write(values.toString());
+            return;
+        }
+
         for (Monitorable m : Main.getInstance().getToMonitor()){
         	Hashtable<String,Object> h = m.getStatistics();
         	for (Map.Entry<String,Object> e : h.entrySet()){
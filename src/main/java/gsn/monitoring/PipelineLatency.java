@@ -0,0 +1,169 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/monitoring/PipelineLatency.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.monitoring;
+
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The time spent by the stream elements in each stage of the processing pipeline, recorded per virtual sensor
+ * in {@link LatencyHistogram}s (in microseconds). Enabled with -DlatencyHistograms=true, when disabled the
+ * instrumented code only tests the {@link #ENABLED} constant.
+ * <p>
+ * Each stage measures the whole call, including the stages it triggers: for example, the time of
+ * {@link Stage#WRAPPER_POST} contains the window insert and the sliding handlers.
+ */
+public class PipelineLatency implements Monitorable {
+
+	public static final boolean ENABLED = Boolean.getBoolean("latencyHistograms");
+
+	public enum Stage {
+		/** AbstractWrapper.postStreamElement, or the writing of a batch by the ingest queue of the wrapper. */
+		WRAPPER_POST("wrapper_post"),
+		/** The insert of the stream elements into the window table. */
+		WINDOW_INSERT("window_insert"),
+		/** The notification of the sliding handlers. */
+		SLIDING_HANDLER("sliding_handler"),
+		/** InputStream.executeQuery, the evaluation of the query of an input stream and the delivery of its result. */
+		INPUT_QUERY("input_query"),
+		/** AbstractVirtualSensor.dataAvailable. */
+		VIRTUAL_SENSOR("virtual_sensor"),
+		/** ContainerImpl.publishData, the insert of the output and the notification of the listeners. */
+		PUBLISH("publish"),
+		/** The delivery of a stream element to a remote or local listener by the DataDistributer. */
+		DELIVERY("delivery");
+
+		private final String label;
+
+		private Stage(String label) {
+			this.label = label;
+		}
+
+		public String getLabel() {
+			return label;
+		}
+	}
+
+	/**
+	 * The upper bounds (in microseconds) of the histogram buckets exported in the text format.
+	 */
+	private static final long[] EXPORTED_BOUNDS = new long[] {10, 50, 100, 500, 1000, 5000, 10000, 50000, 100000, 500000, 1000000, 5000000, 10000000};
+
+	private static final ConcurrentHashMap<String, LatencyHistogram[]> histograms = new ConcurrentHashMap<String, LatencyHistogram[]>();
+
+	private static final PipelineLatency instance = new PipelineLatency();
+
+	private PipelineLatency() {}
+
+	public static PipelineLatency getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Records the time elapsed since <code>beginNanos</code> (from {@link System#nanoTime()}).
+	 */
+	public static void record(String vsName, Stage stage, long beginNanos) {
+		getHistograms(vsName)[stage.ordinal()].record((System.nanoTime() - beginNanos) / 1000);
+	}
+
+	public static LatencyHistogram getHistogram(String vsName, Stage stage) {
+		return getHistograms(vsName)[stage.ordinal()];
+	}
+
+	private static LatencyHistogram[] getHistograms(String vsName) {
+		LatencyHistogram[] stages = histograms.get(vsName);
+		if (stages == null) {
+			// The names are not always in the same case, all of them share the histograms of the lower case name.
+			String name = vsName.toLowerCase();
+			stages = histograms.get(name);
+			if (stages == null) {
+				LatencyHistogram[] created = new LatencyHistogram[Stage.values().length];
+				for (int i = 0; i < created.length; i++)
+					created[i] = new LatencyHistogram();
+				stages = histograms.putIfAbsent(name, created);
+				if (stages == null)
+					stages = created;
+			}
+			histograms.putIfAbsent(vsName, stages);
+		}
+		return stages;
+	}
+
+	private static TreeMap<String, LatencyHistogram[]> getVirtualSensors() {
+		TreeMap<String, LatencyHistogram[]> sensors = new TreeMap<String, LatencyHistogram[]>();
+		for (Map.Entry<String, LatencyHistogram[]> e : histograms.entrySet())
+			if (e.getKey().equals(e.getKey().toLowerCase()))
+				sensors.put(e.getKey(), e.getValue());
+		return sensors;
+	}
+
+	public Hashtable<String, Object> getStatistics() {
+		Hashtable<String, Object> stat = new Hashtable<String, Object>();
+		for (Map.Entry<String, LatencyHistogram[]> e : getVirtualSensors().entrySet()) {
+			for (Stage stage : Stage.values()) {
+				LatencyHistogram histogram = e.getValue()[stage.ordinal()];
+				if (histogram.getCount() == 0)
+					continue;
+				String prefix = "vs." + e.getKey().replaceAll("\\.", "_") + ".latency." + stage.getLabel();
+				stat.put(prefix + ".count", histogram.getCount());
+				stat.put(prefix + ".p50.value", histogram.getValueAtPercentile(50));
+				stat.put(prefix + ".p99.value", histogram.getValueAtPercentile(99));
+				stat.put(prefix + ".max.value", histogram.getMax());
+			}
+		}
+		return stat;
+	}
+
+	/**
+	 * Writes the histograms in the Prometheus text format, one cumulative histogram per virtual sensor and stage.
+	 */
+	public static void writeHistograms(StringBuilder output) {
+		TreeMap<String, LatencyHistogram[]> sensors = getVirtualSensors();
+		if (sensors.isEmpty())
+			return;
+		output.append("# HELP gsn_pipeline_latency_microseconds Time spent in each stage of the processing pipeline.\n");
+		output.append("# TYPE gsn_pipeline_latency_microseconds histogram\n");
+		for (Map.Entry<String, LatencyHistogram[]> e : sensors.entrySet()) {
+			for (Stage stage : Stage.values()) {
+				LatencyHistogram histogram = e.getValue()[stage.ordinal()];
+				// Counted from the buckets, which are consistent with each other while the values are recorded.
+				long count = histogram.getCountAtOrBelow(Long.MAX_VALUE);
+				if (count == 0)
+					continue;
+				String labels = "vs=\"" + e.getKey().replace("\\", "\\\\").replace("\"", "\\\"") + "\",stage=\"" + stage.getLabel() + "\"";
+				for (long bound : EXPORTED_BOUNDS)
+					output.append("gsn_pipeline_latency_microseconds_bucket{").append(labels).append(",le=\"").append(bound).append("\"} ")
+							.append(histogram.getCountAtOrBelow(bound)).append("\n");
+				output.append("gsn_pipeline_latency_microseconds_bucket{").append(labels).append(",le=\"+Inf\"} ").append(count).append("\n");
+				output.append("gsn_pipeline_latency_microseconds_sum{").append(labels).append("} ").append(histogram.getSum()).append("\n");
+				output.append("gsn_pipeline_latency_microseconds_count{").append(labels).append("} ").append(count).append("\n");
+			}
+		}
+	}
+
+}
@@ -0,0 +1,499 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/networking/IngestServer.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.networking;
+
+import gsn.beans.StreamElement;
+import gsn.monitoring.Monitorable;
+import gsn.wrappers.AbstractWrapper;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The server receiving the packets of the network wrappers. The UDP and TCP ports of all the wrappers are
+ * multiplexed on a few event loop threads (-DingestServerThreads), each port being served by a single loop.
+ * <p>
+ * The datagrams are received in a direct buffer of the loop and decoded in place by the {@link PacketDecoder} of
+ * the port, each TCP connection has its own buffer. The stream elements are handed to the {@link Listener} of the
+ * port in batches: the elements decoded during one pass over the ready ports, at most -DwrapperBatchSize at a time.
+ * At most -DwrapperBatchSize datagrams are read from a port in one pass, which keeps the other ports of the loop
+ * served under load.
+ */
+public class IngestServer implements Monitorable {
+
+	private static final transient Logger logger = Logger.getLogger(IngestServer.class);
+
+	public static final int DEFAULT_THREADS = 2;
+
+	public static final int DEFAULT_SOCKET_BUFFER_SIZE = 1 << 20;
+
+	/**
+	 * The size of the receive buffer of each loop and each TCP connection, larger than any datagram. A TCP frame
+	 * can't be longer.
+	 */
+	public static final int BUFFER_SIZE = 65536;
+
+	private static IngestServer singleton = null;
+
+	private static int threads = -1;
+
+	private static int socketBufferSize = -1;
+
+	private EventLoop[] loops = null;
+
+	private int nextLoop = 0;
+
+	private final AtomicInteger portCount = new AtomicInteger();
+
+	private final AtomicInteger connectionCount = new AtomicInteger();
+
+	private final AtomicLong packetCount = new AtomicLong();
+
+	private final AtomicLong byteCount = new AtomicLong();
+
+	private final AtomicLong elementCount = new AtomicLong();
+
+	private final AtomicLong errorCount = new AtomicLong();
+
+	/**
+	 * Receives the stream elements decoded from the packets of a port.
+	 */
+	public interface Listener {
+
+		/**
+		 * Called by the event loop of the port, the list is cleared after the call. The listeners must not block
+		 * the loop: the stream elements are handed to another thread to be written.
+		 */
+		public void packetsReceived(List<StreamElement> elements);
+
+	}
+
+	private IngestServer() {
+	}
+
+	public static synchronized IngestServer getInstance() {
+		if (singleton == null)
+			singleton = new IngestServer();
+		return singleton;
+	}
+
+	public static int getThreads() {
+		if (threads == -1)
+			threads = System.getProperty("ingestServerThreads") == null ? DEFAULT_THREADS : Math.max(1, Integer.parseInt(System.getProperty("ingestServerThreads")));
+		return threads;
+	}
+
+	/**
+	 * The receive buffer of the sockets (-DingestSocketBufferSize), which absorbs the bursts of datagrams.
+	 */
+	public static int getSocketBufferSize() {
+		if (socketBufferSize == -1)
+			socketBufferSize = System.getProperty("ingestSocketBufferSize") == null ? DEFAULT_SOCKET_BUFFER_SIZE : Math.max(1024, Integer.parseInt(System.getProperty("ingestSocketBufferSize")));
+		return socketBufferSize;
+	}
+
+	/**
+	 * Receives the datagrams sent to the UDP port (0 for any free port).
+	 */
+	public Binding bindDatagram(int port, PacketDecoder decoder, Listener listener) throws IOException {
+		DatagramChannel channel = DatagramChannel.open();
+		try {
+			channel.configureBlocking(false);
+			channel.socket().setReceiveBufferSize(getSocketBufferSize());
+			channel.socket().bind(new InetSocketAddress(port));
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		return register(channel, SelectionKey.OP_READ, channel.socket().getLocalPort(), decoder, listener);
+	}
+
+	/**
+	 * Accepts the TCP connections to the port (0 for any free port), the bytes of each connection are decoded as
+	 * a stream of frames.
+	 */
+	public Binding bindStream(int port, PacketDecoder decoder, Listener listener) throws IOException {
+		ServerSocketChannel channel = ServerSocketChannel.open();
+		try {
+			channel.configureBlocking(false);
+			channel.socket().setReuseAddress(true);
+			channel.socket().setReceiveBufferSize(getSocketBufferSize());
+			channel.socket().bind(new InetSocketAddress(port));
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		return register(channel, SelectionKey.OP_ACCEPT, channel.socket().getLocalPort(), decoder, listener);
+	}
+
+	private synchronized Binding register(SelectableChannel channel, int ops, int port, PacketDecoder decoder, Listener listener) throws IOException {
+		if (loops == null) {
+			EventLoop[] created = new EventLoop[getThreads()];
+			for (int i = 0; i < created.length; i++) {
+				created[i] = new EventLoop(i + 1);
+				created[i].start();
+			}
+			loops = created;
+		}
+		EventLoop loop = loops[nextLoop++ % loops.length];
+		Binding binding = new Binding(loop, channel, ops, port, decoder, listener);
+		portCount.incrementAndGet();
+		loop.register(binding);
+		return binding;
+	}
+
+	public Hashtable<String, Object> getStatistics() {
+		Hashtable<String, Object> stat = new Hashtable<String, Object>();
+		stat.put("core.ingest.ports.value", portCount.get());
+		stat.put("core.ingest.connections.value", connectionCount.get());
+		stat.put("core.ingest.packets.count", packetCount.get());
+		stat.put("core.ingest.bytes.count", byteCount.get());
+		stat.put("core.ingest.elements.count", elementCount.get());
+		stat.put("core.ingest.errors.count", errorCount.get());
+		return stat;
+	}
+
+	/**
+	 * A port served by the server, closed by the wrapper when it is disposed.
+	 */
+	public class Binding {
+
+		private final EventLoop loop;
+
+		private final SelectableChannel channel;
+
+		private final int ops;
+
+		private final int port;
+
+		private final PacketDecoder decoder;
+
+		private final Listener listener;
+
+		private final Set<Connection> connections = Collections.newSetFromMap(new ConcurrentHashMap<Connection, Boolean>());
+
+		/**
+		 * The stream elements decoded and not handed to the listener yet, only used by the event loop.
+		 */
+		private final ArrayList<StreamElement> elements = new ArrayList<StreamElement>();
+
+		private boolean ready = false;
+
+		private volatile boolean closed = false;
+
+		private Binding(EventLoop loop, SelectableChannel channel, int ops, int port, PacketDecoder decoder, Listener listener) {
+			this.loop = loop;
+			this.channel = channel;
+			this.ops = ops;
+			this.port = port;
+			this.decoder = decoder;
+			this.listener = listener;
+		}
+
+		public int getPort() {
+			return port;
+		}
+
+		/**
+		 * The bytes are stamped with the time of the pass: the packets received in the same pass share the same
+		 * reception time.
+		 *
+		 * @return false if the decoder failed, the bytes of the buffer are then dropped.
+		 */
+		private boolean decode(ByteBuffer buffer, long now) {
+			try {
+				decoder.decode(buffer, now, elements);
+			} catch (RuntimeException e) {
+				errorCount.incrementAndGet();
+				logger.warn("The packet received on port " + port + " couldn't be decoded : " + e.getMessage());
+				if (logger.isDebugEnabled())
+					logger.debug(e.getMessage(), e);
+				return false;
+			}
+			if (elements.size() >= AbstractWrapper.getIngestBatchSize())
+				flush();
+			else if (!ready && !elements.isEmpty()) {
+				ready = true;
+				loop.ready.add(this);
+			}
+			return true;
+		}
+
+		private void flush() {
+			if (elements.isEmpty())
+				return;
+			try {
+				elementCount.addAndGet(elements.size());
+				if (!closed)
+					listener.packetsReceived(elements);
+			} catch (RuntimeException e) {
+				logger.error(e.getMessage(), e);
+			} finally {
+				elements.clear();
+			}
+		}
+
+		/**
+		 * Closes the port and its connections, the stream elements not handed to the listener yet are dropped.
+		 */
+		public synchronized void close() {
+			if (closed)
+				return;
+			closed = true;
+			portCount.decrementAndGet();
+			try {
+				channel.close();
+			} catch (IOException e) {
+				logger.warn(e.getMessage(), e);
+			}
+			for (Connection connection : connections)
+				connection.close();
+			// The port is only released once the closed channel is deregistered from the selector of the loop.
+			final CountDownLatch released = new CountDownLatch(1);
+			loop.execute(new Runnable() {
+				public void run() {
+					try {
+						loop.selector.selectNow();
+					} catch (IOException e) {
+						logger.warn(e.getMessage(), e);
+					} finally {
+						released.countDown();
+					}
+				}
+			});
+			if (Thread.currentThread() != loop) {
+				try {
+					released.await(1, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+
+	}
+
+	/**
+	 * A TCP connection accepted on a port.
+	 */
+	private class Connection {
+
+		private final Binding binding;
+
+		private final SocketChannel channel;
+
+		private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+		private Connection(Binding binding, SocketChannel channel) {
+			this.binding = binding;
+			this.channel = channel;
+		}
+
+		private void close() {
+			if (binding.connections.remove(this))
+				connectionCount.decrementAndGet();
+			try {
+				channel.close();
+			} catch (IOException e) {
+				logger.debug(e.getMessage(), e);
+			}
+		}
+
+	}
+
+	private class EventLoop extends Thread {
+
+		private final Selector selector;
+
+		/**
+		 * The receive buffer of the datagrams.
+		 */
+		private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+		/**
+		 * The registrations and the releases of the ports, run by the loop between two selects.
+		 */
+		private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+		/**
+		 * The ports with decoded stream elements, handed to their listener at the end of the pass.
+		 */
+		private final ArrayList<Binding> ready = new ArrayList<Binding>();
+
+		private EventLoop(int id) throws IOException {
+			super("IngestServer-" + id);
+			setDaemon(true);
+			selector = Selector.open();
+		}
+
+		private void register(final Binding binding) {
+			execute(new Runnable() {
+				public void run() {
+					try {
+						binding.channel.register(selector, binding.ops, binding);
+					} catch (ClosedChannelException e) {
+						// Closed before being registered.
+					}
+				}
+			});
+		}
+
+		private void execute(Runnable task) {
+			tasks.offer(task);
+			selector.wakeup();
+		}
+
+		public void run() {
+			while (true) {
+				try {
+					selector.select();
+					Runnable task;
+					while ((task = tasks.poll()) != null)
+						task.run();
+					long now = System.currentTimeMillis();
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						process(key, now);
+					}
+					for (Binding b : ready) {
+						b.ready = false;
+						b.flush();
+					}
+					ready.clear();
+				} catch (Exception e) {
+					logger.error(e.getMessage(), e);
+				}
+			}
+		}
+
+		private void process(SelectionKey key, long now) {
+			Object attachment = key.attachment();
+			try {
+				if (!key.isValid())
+					return;
+				if (attachment instanceof Connection)
+					read((Connection) attachment, now);
+				else if (key.isAcceptable())
+					accept((Binding) attachment, (ServerSocketChannel) key.channel());
+				else
+					receive((Binding) attachment, (DatagramChannel) key.channel(), now);
+			} catch (CancelledKeyException e) {
+				// The port or the connection was closed by another thread.
+			} catch (IOException e) {
+				if (attachment instanceof Connection) {
+					if (logger.isDebugEnabled())
+						logger.debug("Closing the connection on port " + ((Connection) attachment).binding.port + " : " + e.getMessage());
+					((Connection) attachment).close();
+				} else if (!((Binding) attachment).closed) {
+					errorCount.incrementAndGet();
+					logger.warn("Error while receiving data on port " + ((Binding) attachment).port + " : " + e.getMessage());
+				}
+			}
+		}
+
+		private void receive(Binding binding, DatagramChannel channel, long now) throws IOException {
+			for (int i = 0; i < AbstractWrapper.getIngestBatchSize(); i++) {
+				buffer.clear();
+				if (channel.receive(buffer) == null)
+					return;
+				buffer.flip();
+				packetCount.incrementAndGet();
+				byteCount.addAndGet(buffer.remaining());
+				binding.decode(buffer, now);
+			}
+		}
+
+		private void accept(Binding binding, ServerSocketChannel server) throws IOException {
+			SocketChannel channel;
+			while ((channel = server.accept()) != null) {
+				Connection connection = new Connection(binding, channel);
+				binding.connections.add(connection);
+				connectionCount.incrementAndGet();
+				if (binding.closed) {
+					connection.close();
+					continue;
+				}
+				try {
+					channel.configureBlocking(false);
+					channel.socket().setTcpNoDelay(true);
+					channel.register(selector, SelectionKey.OP_READ, connection);
+				} catch (IOException e) {
+					logger.warn("Error while accepting a connection on port " + binding.port + " : " + e.getMessage());
+					connection.close();
+				}
+			}
+		}
+
+		private void read(Connection connection, long now) throws IOException {
+			int read = connection.channel.read(connection.buffer);
+			if (read == -1) {
+				connection.close();
+				return;
+			}
+			if (read == 0)
+				return;
+			packetCount.incrementAndGet();
+			byteCount.addAndGet(read);
+			connection.buffer.flip();
+			boolean decoded = connection.binding.decode(connection.buffer, now);
+			connection.buffer.compact();
+			if (!decoded) {
+				// The framing of the stream is lost.
+				connection.close();
+			} else if (!connection.buffer.hasRemaining()) {
+				errorCount.incrementAndGet();
+				logger.warn("A frame received on port " + connection.binding.port + " is longer than " + BUFFER_SIZE + " bytes, closing the connection.");
+				connection.close();
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,71 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/networking/PacketDecoder.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.networking;
+
+import gsn.beans.AddressBean;
+import gsn.beans.DataField;
+import gsn.beans.StreamElement;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Decodes the packets received by the {@link IngestServer} into stream elements. The decoders read the bytes
+ * directly from the receive buffer of the server, which is reused for the next packets: the decoded values
+ * must not keep a reference to the buffer.
+ * <p>
+ * A datagram is decoded alone, the buffer contains the whole datagram and the bytes left in the buffer are
+ * dropped. For a TCP connection, the buffer contains the bytes received and not decoded yet: the decoder
+ * consumes the complete frames only, the bytes left are kept and decoded again with the next bytes received.
+ * <p>
+ * The timestamps of the stream elements of a port must not decrease, the wrapper drops the out of order ones
+ * and accepts the equal ones: the packets received in the same pass of the server share the same reception time.
+ * The decoders using the time carried by the packets must keep it from decreasing.
+ * <p>
+ * The decoders of a port are called by a single thread. The implementations have a public constructor without
+ * argument and are configured from the predicates of the wrapper.
+ */
+public interface PacketDecoder {
+
+	/**
+	 * @return false if the decoder can't be configured with these predicates.
+	 */
+	public boolean initialize(AddressBean addressBean);
+
+	/**
+	 * The structure of the stream elements produced by the decoder.
+	 */
+	public DataField[] getOutputFormat();
+
+	/**
+	 * Decodes the bytes between the position and the limit of the buffer, and adds the stream elements to the
+	 * list. The position of the buffer is left after the last byte consumed.
+	 *
+	 * @param timestamp the reception time of the bytes.
+	 */
+	public void decode(ByteBuffer buffer, long timestamp, List<StreamElement> elements);
+
+}
@@ -0,0 +1,64 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/networking/RawPacketDecoder.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.networking;
+
+import gsn.beans.AddressBean;
+import gsn.beans.DataField;
+import gsn.beans.StreamElement;
+import gsn.beans.StreamSchema;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * The default decoder of the network wrappers: each datagram, or the bytes read at once from a TCP connection,
+ * are produced as a single binary RAW_PACKET field of their exact length.
+ */
+public class RawPacketDecoder implements PacketDecoder {
+
+	public static final String RAW_PACKET = "RAW_PACKET";
+
+	private static final DataField[] outputFormat = new DataField[] {new DataField(RAW_PACKET, "BINARY", "The packet contains raw data received from the network.")};
+
+	public boolean initialize(AddressBean addressBean) {
+		return true;
+	}
+
+	public DataField[] getOutputFormat() {
+		return outputFormat;
+	}
+
+	public void decode(ByteBuffer buffer, long timestamp, List<StreamElement> elements) {
+		if (!buffer.hasRemaining())
+			return;
+		byte[] packet = new byte[buffer.remaining()];
+		buffer.get(packet);
+		StreamElement se = new StreamElement(StreamSchema.of(outputFormat), timestamp);
+		se.setData(0, packet);
+		elements.add(se);
+	}
+
+}
@@ -0,0 +1,111 @@
+package gsn.networking.zeromq;
+
+import java.util.ArrayList;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+import gsn.beans.StreamElement;
+
+/**
+ * Encodes and decodes the data frames exchanged by ZeroMQDelivery and ZeroMQWrapper.
+ * A message has two parts: the topic (the name of the virtual sensor followed by a space, so that
+ * a subscription matches a single virtual sensor) and the data frame, which holds the number of
+ * stream elements followed by the elements serialized with Kryo.
+ * The peers running a former version only decode single-part messages (the topic directly followed by one
+ * element serialized with Kryo), see {@link #encodeSinglePart(byte[], StreamElement)}.
+ * The buffers are reused from one frame to the next, so an instance must not be shared between threads.
+ */
+public class ZeroMQCodec {
+
+	public static final int INITIAL_BUFFER_SIZE = 4096;
+
+	private final Kryo kryo;
+
+	private final Output output = new Output(INITIAL_BUFFER_SIZE, -1);
+
+	private final Input input = new Input();
+
+	private int count = 0;
+
+	public ZeroMQCodec(Kryo kryo) {
+		this.kryo = kryo;
+		clear();
+	}
+
+	public static byte[] getTopic(String vsName) {
+		return (vsName + " ").getBytes();
+	}
+
+	/**
+	 * Appends the stream element to the current frame.
+	 */
+	public void add(StreamElement se) {
+		if (se != null)
+			se.getData(); // Kryo reads the fields, the values of a schema backed element have to be boxed.
+		kryo.writeObjectOrNull(output, se, StreamElement.class);
+		count++;
+	}
+
+	/**
+	 * @return the number of stream elements in the current frame.
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Completes the current frame, its content is the first {@link #length()} bytes of {@link #getBuffer()}
+	 * until the next call to {@link #clear()}.
+	 */
+	public void finish() {
+		int end = output.position();
+		output.setPosition(0);
+		output.writeInt(count);
+		output.setPosition(end);
+	}
+
+	public byte[] getBuffer() {
+		return output.getBuffer();
+	}
+
+	public int length() {
+		return output.position();
+	}
+
+	/**
+	 * Starts a new frame.
+	 */
+	public void clear() {
+		output.clear();
+		output.writeInt(0); // the number of elements, written by finish().
+		count = 0;
+	}
+
+	/**
+	 * Replaces the current frame by a single-part message of the former format: the topic followed by the
+	 * stream element, its content is the first {@link #length()} bytes of {@link #getBuffer()}.
+	 */
+	public void encodeSinglePart(byte[] topic, StreamElement se) {
+		output.clear();
+		output.writeBytes(topic);
+		if (se != null)
+			se.getData();
+		kryo.writeObjectOrNull(output, se, StreamElement.class);
+		count = 0;
+	}
+
+	/**
+	 * Decodes a data frame.
+	 */
+	public ArrayList<StreamElement> decode(byte[] frame) {
+		input.setBuffer(frame);
+		int n = input.readInt();
+		ArrayList<StreamElement> elements = new ArrayList<StreamElement>(n);
+		for (int i = 0; i < n; i++)
+			elements.add(kryo.readObjectOrNull(input, StreamElement.class));
+		return elements;
+	}
+
+}
@@ -1,33 +1,61 @@
 package gsn.networking.zeromq;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
+import org.apache.log4j.Logger;
 import org.zeromq.ZMQ;
 import org.zeromq.ZMQ.Context;
 import org.zeromq.ZMQ.Socket;
 
 import com.esotericsoftware.kryo.Kryo;
-import com.esotericsoftware.kryo.io.Output;
 
 import gsn.Main;
 import gsn.beans.DataField;
 import gsn.beans.StreamElement;
 import gsn.beans.VSensorConfig;
 import gsn.http.rest.DeliverySystem;
-import gsn.http.rest.StreamElement4Rest;
 
+/**
+ * Publishes the stream elements of a virtual sensor as two-part messages (topic, data frame), see {@link ZeroMQCodec}.
+ * With -DzmqBatchSize=N (default 1), up to N elements are packed in each data frame, the pending elements
+ * being sent at the latest after -DzmqBatchDelay milliseconds (default 50).
+ * <p>
+ * The wrappers of the former versions can not decode the two-part messages: when such peers subscribe to
+ * this node, -DzmqSinglePart=true sends each element in a single-part message of the former format instead
+ * (and disables the batching).
+ */
 public class ZeroMQDelivery implements DeliverySystem{
-	
+
+	private static final transient Logger logger = Logger.getLogger(ZeroMQDelivery.class);
+
+	public static final int DEFAULT_BATCH_SIZE = 1;
+
+	public static final int DEFAULT_BATCH_DELAY = 50;
+
+	private static ScheduledExecutorService flusher = null;
+
 	private Context context;
 	private Socket publisher;
 	private boolean closed = true;
 	private Kryo kryo = new Kryo();
 	private VSensorConfig config;
-	
+	private final byte[] topic;
+	private final ZeroMQCodec codec = new ZeroMQCodec(kryo);
+	private final int batchSize;
+	private final boolean singlePart;
+	private ScheduledFuture<?> flush = null;
+
 	public ZeroMQDelivery(VSensorConfig config){
         this.config = config;
-        
+        topic = ZeroMQCodec.getTopic(config.getName());
+        singlePart = Boolean.parseBoolean(System.getProperty("zmqSinglePart"));
+        batchSize = singlePart || System.getProperty("zmqBatchSize") == null ? DEFAULT_BATCH_SIZE : Math.max(1, Integer.parseInt(System.getProperty("zmqBatchSize")));
+
 		context = Main.getZmqContext();
 		// Socket to talk to clients
 		publisher = context.socket(ZMQ.PUB);
@@ -37,7 +65,27 @@ public class ZeroMQDelivery implements DeliverySystem{
 		//System.out.println("Delivery bind on inproc://stream/"+config.getName());
 		Main.getZmqProxy().connectTo(config.getName());
 		closed = false;
-		
+
+		if (batchSize > 1) {
+			long delay = System.getProperty("zmqBatchDelay") == null ? DEFAULT_BATCH_DELAY : Math.max(1, Long.parseLong(System.getProperty("zmqBatchDelay")));
+			flush = getFlusher().scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					flush();
+				}
+			}, delay, delay, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private static synchronized ScheduledExecutorService getFlusher() {
+		if (flusher == null)
+			flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "ZeroMQ-Flusher");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		return flusher;
 	}
 
 	@Override
@@ -46,21 +94,39 @@ public class ZeroMQDelivery implements DeliverySystem{
 	}
 
 	@Override
-	public boolean writeStreamElement(StreamElement se) {
+	public synchronized boolean writeStreamElement(StreamElement se) {
+		if (closed)
+			return false;
+		if (singlePart) {
+			try {
+				codec.encodeSinglePart(topic, se);
+				return publisher.send(codec.getBuffer(), 0, codec.length(), 0);
+			} catch (Exception e) {
+				logger.error(e.getMessage(), e);
+				return false;
+			}
+		}
+		codec.add(se);
+		if (codec.size() < batchSize)
+			return true;
+		return flush();
+	}
+
+	/**
+	 * Sends the pending stream elements, if any.
+	 */
+	private synchronized boolean flush() {
+		if (closed || codec.size() == 0)
+			return true;
 		try {
-			ByteArrayOutputStream bais = new ByteArrayOutputStream();
-            bais.write((config.getName() + " ").getBytes());
-            //StreamElement4Rest.getXstream().toXML(se.toRest(),bais);
-            Output o = new Output(bais);
-            kryo.writeObjectOrNull(o,se,StreamElement.class);
-            o.close();
-            byte[] b = bais.toByteArray();
-            //System.out.println(config.getName()+" sending on Delivery");
-            return publisher.send(b);
-		} catch (IOException e) {
-			e.printStackTrace();
+			codec.finish();
+			return publisher.sendMore(topic) && publisher.send(codec.getBuffer(), 0, codec.length(), 0);
+		} catch (Exception e) {
+			logger.error(e.getMessage(), e);
+			return false;
+		} finally {
+			codec.clear();
 		}
-		return false;
 	}
 
 	@Override
@@ -69,9 +135,12 @@ public class ZeroMQDelivery implements DeliverySystem{
 	}
 
 	@Override
-	public void close() {
+	public synchronized void close() {
+		if (flush != null)
+			flush.cancel(false);
+		flush();
 		publisher.close();
-		closed = true;	
+		closed = true;
 	}
 
 	@Override
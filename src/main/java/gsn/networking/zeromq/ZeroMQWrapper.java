@@ -113,7 +113,9 @@ public class ZeroMQWrapper extends AbstractWrapper {
         boolean connected = subscriber.base().connect(remoteContactPoint_DATA);
 		subscriber.setReceiveTimeOut(3000);
 
-		subscriber.subscribe(vsensor.getBytes());
+		byte[] topic = ZeroMQCodec.getTopic(vsensor);
+		ZeroMQCodec codec = new ZeroMQCodec(kryo);
+		subscriber.subscribe(topic);
 		//System.out.println("connected to Queue: "+ remoteContactPoint + " and subscribe to " + vsensor);
 
 		while (isActive()) {
@@ -121,19 +123,26 @@ public class ZeroMQWrapper extends AbstractWrapper {
 				byte[] rec = subscriber.recv();
 				if (rec != null){
 					//System.out.println("read from wrapper");
-					ByteArrayInputStream bais = new ByteArrayInputStream(rec);
-					bais.skip(vsensor.getBytes().length + 1);
-					//StreamElement se = ((StreamElement4Rest)(StreamElement4Rest.getXstream().fromXML(bais))).toStreamElement();
-					StreamElement se = kryo.readObjectOrNull(new Input(bais),StreamElement.class);
-			        //maybe queuing would be better here...
-			        boolean status = postStreamElement(se);
+					if (subscriber.hasReceiveMore()) {
+						// topic, then the data frame with one or more elements.
+						for (StreamElement se : codec.decode(subscriber.recv()))
+							postStreamElement(se);
+					} else {
+						// single part message of the former publishers: the topic followed by the element.
+						ByteArrayInputStream bais = new ByteArrayInputStream(rec);
+						bais.skip(topic.length);
+						//StreamElement se = ((StreamElement4Rest)(StreamElement4Rest.getXstream().fromXML(bais))).toStreamElement();
+						StreamElement se = kryo.readObjectOrNull(new Input(bais),StreamElement.class);
+						//maybe queuing would be better here...
+						boolean status = postStreamElement(se);
+					}
 				}else{
 					if (isLocal && !connected){
 						subscriber.disconnect(remoteContactPoint_DATA);
 						connected = subscriber.base().connect(remoteContactPoint_DATA);
 					}
 					//System.out.println("timeout on wrapper, subscribing to "+ vsensor);
-					subscriber.subscribe(vsensor.getBytes());
+					subscriber.subscribe(topic);
 				}
 			}catch (Exception e)
 			{
@@ -31,11 +31,35 @@ import gsn.beans.DataField;
 import gsn.beans.StreamElement;
 import gsn.vsensor.AbstractVirtualSensor;
 import org.apache.log4j.Logger;
+import org.codehaus.groovy.ast.ClassCodeExpressionTransformer;
+import org.codehaus.groovy.ast.ClassNode;
+import org.codehaus.groovy.ast.DynamicVariable;
+import org.codehaus.groovy.ast.expr.BinaryExpression;
+import org.codehaus.groovy.ast.expr.ClosureExpression;
+import org.codehaus.groovy.ast.expr.ConstantExpression;
+import org.codehaus.groovy.ast.expr.Expression;
+import org.codehaus.groovy.ast.expr.MethodCallExpression;
+import org.codehaus.groovy.ast.expr.VariableExpression;
+import org.codehaus.groovy.classgen.GeneratorContext;
+import org.codehaus.groovy.control.CompilePhase;
+import org.codehaus.groovy.control.CompilerConfiguration;
+import org.codehaus.groovy.control.SourceUnit;
+import org.codehaus.groovy.control.customizers.CompilationCustomizer;
+import org.codehaus.groovy.runtime.InvokerHelper;
+import org.codehaus.groovy.syntax.Token;
+import org.codehaus.groovy.syntax.Types;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * This Processor (processing class) executes a scriptlet upon reception of a new  StreamElement and can be used to
@@ -96,7 +120,26 @@ import java.util.TreeMap;
  *      period, long, mandatoryif scriptlet-periodic is specified<br/>
  *      Define the period (in ms) between two execution of the scriptlet-periodic script.
  *      </li>
+ *      <li>
+ *      concurrent, boolean, optional (default false)<br/>
+ *      Enables the concurrent execution mode described below.
+ *      </li>
  * </ul>
+ * CONCURRENT EXECUTION
+ * --------------------
+ * <p>
+ * By default, all the evaluations share one binding and are thus executed one at a time. With concurrent=true, the
+ * scriptlet is compiled once and the concurrent evaluations run distinct instances of it, each with its own binding.
+ * The variables of the scriptlet are resolved to slots of the binding when it is compiled, the fields of the
+ * StreamElement being copied to their slots by index, and the variables set by an evaluation are discarded before the
+ * next one. The state to keep between evaluations must be stored explicitly in the predefined
+ * <code>state</code> map (a java.util.concurrent.ConcurrentHashMap shared by all the instances and by the
+ * 'scriplet-periodic' script), for instance:
+ * <p/>
+ * state.putIfAbsent('counter', new java.util.concurrent.atomic.AtomicLong()); COUNT = state.counter.incrementAndGet();
+ * <p/>
+ * Note that isdef only sees the variables of the current evaluation in this mode.
+ * </p>
  * PERIODICAL EXECUTION
  * --------------------
  * <p>
@@ -133,6 +176,13 @@ public class ScriptletProcessor extends AbstractVirtualSensor {
 
     private static final String PARAM_PERSITANT = "persistant";
 
+    private static final String PARAM_CONCURRENT = "concurrent";
+
+    /**
+     * The name of the variable holding the explicit state in the concurrent mode.
+     */
+    public static final String STATE = "state";
+
     private Timer timer = null;
 
     /**
@@ -154,10 +204,34 @@ public class ScriptletProcessor extends AbstractVirtualSensor {
 
     protected DataField[] outputStructure = null;
 
+    /**
+     * The upper case names of the output fields, as bound to the scriptlet.
+     */
+    private String[] outputNames = null;
+
+    /**
+     * The field names of the last StreamElement bound in the shared context and their upper case version.
+     */
+    private volatile String[][] inputNames = null;
+
     private long period = -1;
 
     private boolean persistant = true;
 
+    private boolean concurrent = false;
+
+    /**
+     * The state shared by the scriptlet instances in the concurrent mode.
+     */
+    protected final ConcurrentHashMap<String, Object> state = new ConcurrentHashMap<String, Object>();
+
+    /**
+     * The instances of the scriptlets in the concurrent mode.
+     */
+    protected ScriptInstances scriptletInstances = null;
+
+    protected ScriptInstances scriptletPeriodicInstances = null;
+
     private TimerTask periodicalTask = null;
 
     @Override
@@ -172,11 +246,18 @@ public class ScriptletProcessor extends AbstractVirtualSensor {
     public void dispose() {
         if (periodicalTask != null)
             periodicalTask.cancel();
+        if (scriptletInstances != null)
+            scriptletInstances.clear();
+        if (scriptletPeriodicInstances != null)
+            scriptletPeriodicInstances.clear();
     }
 
     @Override
     public void dataAvailable(String inputStreamName, StreamElement se) {
-        evaluate(scriptlet, se, persistant);
+        if (concurrent)
+            evaluateConcurrently(scriptletInstances, se, persistant);
+        else
+            evaluate(scriptlet, se, persistant);
     }
 
     protected boolean initialize(DataField[] outputStructure, TreeMap<String, String> parameters) {
@@ -185,6 +266,12 @@ public class ScriptletProcessor extends AbstractVirtualSensor {
             return false;
         } else
             this.outputStructure = outputStructure;
+        outputNames = new String[outputStructure.length];
+        for (int i = 0; i < outputStructure.length; i++)
+            outputNames[i] = outputStructure[i].getName().toUpperCase();
+
+        if (parameters.containsKey(PARAM_CONCURRENT))
+            concurrent = Boolean.parseBoolean(parameters.get(PARAM_CONCURRENT));
 
         // Mandatory Parameters
 
@@ -200,16 +287,22 @@ public class ScriptletProcessor extends AbstractVirtualSensor {
 
         String ps1 = parameters.get(PARAM_SCRIPTLET);
         if (ps1 != null) {
-            scriptlet = initScriptlet(ps1);
+            ArrayList<String> slots = concurrent ? getFixedSlots() : null;
+            scriptlet = initScriptlet(ps1, slots);
             if (scriptlet == null)
                 return false;
+            if (concurrent)
+                scriptletInstances = new ScriptInstances(scriptlet.getClass(), slots);
         }
 
         String ps2 = parameters.get(PARAM_SCRIPTLETPERIODIC);
         if (ps2 != null) {
-            scriptletPeriodic = initScriptlet(ps2);
+            ArrayList<String> slots = concurrent ? getFixedSlots() : null;
+            scriptletPeriodic = initScriptlet(ps2, slots);
             if (scriptletPeriodic == null)
                 return false;
+            if (concurrent)
+                scriptletPeriodicInstances = new ScriptInstances(scriptletPeriodic.getClass(), slots);
         }
 
         // At least one of the following is mandatory: {scriptlet,  scriptlet-periodic}.
@@ -237,7 +330,10 @@ public class ScriptletProcessor extends AbstractVirtualSensor {
         if (scriptletPeriodic != null && period >= 0) {
             periodicalTask = new TimerTask() {
                 public void run() {
-                    evaluate(scriptletPeriodic, null, false);
+                    if (concurrent)
+                        evaluateConcurrently(scriptletPeriodicInstances, null, false);
+                    else
+                        evaluate(scriptletPeriodic, null, false);
                 }
             };
             getTimer().schedule(periodicalTask, 0, period);
@@ -246,18 +342,46 @@ public class ScriptletProcessor extends AbstractVirtualSensor {
     }
 
     protected Script initScriptlet(String ps) {
+        return initScriptlet(ps, null);
+    }
+
+    /**
+     * @return the slots of the output fields, TIMED and the state, the first slots of the bindings in the concurrent mode.
+     */
+    private ArrayList<String> getFixedSlots() {
+        ArrayList<String> slots = new ArrayList<String>(Arrays.asList(outputNames));
+        slots.add("TIMED");
+        slots.add(STATE);
+        return slots;
+    }
+
+    /**
+     * Compiles the scriptlet. In the concurrent mode (slots not null), the variables of the scriptlet are resolved to
+     * slots of its {@link IndexedBinding}, the names of the slots being appended to the given ones.
+     */
+    protected Script initScriptlet(String ps, ArrayList<String> slots) {
+        boolean concurrent = slots != null;
         StringBuilder scriptlet = new StringBuilder();
         scriptlet.append("// start auto generated part --\n");
         // Add the static import (for predefined services)
         scriptlet.append("import static ").append(gsn.utils.services.EmailService.class.getCanonicalName()).append(".*;\n");
         scriptlet.append("import static ").append(gsn.utils.services.TwitterService.class.getCanonicalName()).append(".*;\n");
         // Add the syntactic sugars
-        scriptlet.append("def isdef(var){(binding.getVariables().containsKey(var))}\n");
+        if (concurrent)
+            scriptlet.append("def isdef(var){(binding.hasVariable(var))}\n");
+        else
+            scriptlet.append("def isdef(var){(binding.getVariables().containsKey(var))}\n");
         scriptlet.append("// end auto generated part --\n");
         // Append the scriplet from the parameter
         scriptlet.append(ps);
         //
-        GroovyShell shell = new GroovyShell();
+        GroovyShell shell;
+        if (concurrent) {
+            CompilerConfiguration configuration = new CompilerConfiguration();
+            configuration.addCompilationCustomizers(new SlotCustomizer(slots));
+            shell = new GroovyShell(configuration);
+        } else
+            shell = new GroovyShell();
         Script script = null;
         try {
             script = shell.parse(scriptlet.toString());
@@ -276,7 +400,7 @@ public class ScriptletProcessor extends AbstractVirtualSensor {
             DataField df = outputStructure[i];
             Object o = null;
             try {
-                o = binding.getVariable(df.getName().toUpperCase());
+                o = binding.getVariable(outputNames[i]);
             }
             catch (MissingPropertyException e) {
                 // ...   
@@ -296,14 +420,31 @@ public class ScriptletProcessor extends AbstractVirtualSensor {
 
     protected Binding updateContext(StreamElement se) {
         if (se != null) {
-            for (String fieldName : se.getFieldNames()) {
-                context.setVariable(fieldName.toUpperCase(), se.getData(fieldName));
+            String[] names = getUpperCaseNames(se.getFieldNames());
+            Serializable[] data = se.getData();
+            for (int i = 0; i < names.length; i++) {
+                context.setVariable(names[i], data[i]);
             }
             context.setVariable("TIMED", se.getTimeStamp());
         }
         return context;
     }
 
+    /**
+     * @return the upper case field names, computed again only when the structure of the input changes.
+     */
+    private String[] getUpperCaseNames(String[] fieldNames) {
+        String[][] names = inputNames;
+        if (names == null || (names[0] != fieldNames && !Arrays.equals(names[0], fieldNames))) {
+            String[] upperCase = new String[fieldNames.length];
+            for (int i = 0; i < fieldNames.length; i++)
+                upperCase[i] = fieldNames[i].toUpperCase();
+            names = new String[][]{fieldNames, upperCase};
+            inputNames = names;
+        }
+        return names[1];
+    }
+
     protected void evaluate(Script script, StreamElement se, boolean persist) {
         StreamElement seo = null;
         synchronized (context) {
@@ -319,6 +460,250 @@ public class ScriptletProcessor extends AbstractVirtualSensor {
         }
     }
 
+    /**
+     * Evaluates an instance of the scriptlet which is not used by another thread, without any lock.
+     */
+    protected void evaluateConcurrently(ScriptInstances instances, StreamElement se, boolean persist) {
+        Script script = instances.borrow();
+        try {
+            IndexedBinding binding = (IndexedBinding) script.getBinding();
+            binding.bind(se);
+            script.run();
+            if (persist) {
+                dataProduced(binding.toStreamElement(outputStructure));
+            }
+        } finally {
+            instances.release(script);
+        }
+    }
+
+    /**
+     * The idle instances of a scriptlet in the concurrent mode, as many being created as there are concurrent evaluations.
+     * They are dropped when the processor is disposed.
+     */
+    protected class ScriptInstances {
+
+        private final Class<? extends Script> scriptClass;
+
+        private final String[] slots;
+
+        private final ConcurrentLinkedQueue<Script> idle = new ConcurrentLinkedQueue<Script>();
+
+        ScriptInstances(Class<? extends Script> scriptClass, ArrayList<String> slots) {
+            this.scriptClass = scriptClass;
+            this.slots = slots.toArray(new String[slots.size()]);
+        }
+
+        Script borrow() {
+            Script script = idle.poll();
+            if (script == null)
+                script = InvokerHelper.createScript(scriptClass, new IndexedBinding(slots, outputNames.length, state));
+            return script;
+        }
+
+        void release(Script script) {
+            idle.offer(script);
+        }
+
+        void clear() {
+            idle.clear();
+        }
+    }
+
+    /**
+     * Resolves the variables of a scriptlet to slots of its binding when it is compiled: a variable which is neither
+     * declared in the scriptlet nor a property of the script becomes <code>getBinding()[slot]</code>, read and written
+     * with {@link IndexedBinding#getAt(int)} and {@link IndexedBinding#putAt(int, Object)}. The variables used in the
+     * closures keep the usual resolution, a closure possibly having a delegate.
+     */
+    private static class SlotCustomizer extends CompilationCustomizer {
+
+        private final ArrayList<String> slots;
+
+        SlotCustomizer(ArrayList<String> slots) {
+            super(CompilePhase.CANONICALIZATION);
+            this.slots = slots;
+        }
+
+        @Override
+        public void call(final SourceUnit source, GeneratorContext context, ClassNode classNode) {
+            if (!classNode.isScript())
+                return;
+            new ClassCodeExpressionTransformer() {
+                protected SourceUnit getSourceUnit() {
+                    return source;
+                }
+
+                public Expression transform(Expression expression) {
+                    if (expression instanceof ClosureExpression)
+                        return expression;
+                    if (expression instanceof VariableExpression && ((VariableExpression) expression).getAccessedVariable() instanceof DynamicVariable) {
+                        String name = ((VariableExpression) expression).getName();
+                        if (name.equals("binding") || name.equals("metaClass") || name.equals("class"))
+                            return expression;
+                        int slot = slots.indexOf(name);
+                        if (slot < 0) {
+                            slot = slots.size();
+                            slots.add(name);
+                        }
+                        Expression binding = new MethodCallExpression(VariableExpression.THIS_EXPRESSION, "getBinding", MethodCallExpression.NO_ARGUMENTS);
+                        Expression access = new BinaryExpression(binding, Token.newSymbol(Types.LEFT_SQUARE_BRACKET, expression.getLineNumber(), expression.getColumnNumber()), new ConstantExpression(slot));
+                        access.setSourcePosition(expression);
+                        return access;
+                    }
+                    return expression.transformExpression(this);
+                }
+            }.visitClass(classNode);
+        }
+    }
+
+    /**
+     * The binding of a scriptlet instance in the concurrent mode. The variables of the scriptlet (the output fields,
+     * TIMED and the state among them) are stored in an array, at the slots resolved when the scriptlet was compiled,
+     * and the fields of the input are copied to their slots by index. The other variables (those set through their
+     * name only) are stored as usual. All of them are discarded when the next StreamElement is bound.
+     */
+    protected static class IndexedBinding extends Binding {
+
+        private final HashMap<String, Integer> slots = new HashMap<String, Integer>();
+
+        private String[] names;
+
+        private Object[] values;
+
+        private boolean[] defined;
+
+        private final int outputs;
+
+        private final Map<String, Object> state;
+
+        /**
+         * The field names of the last StreamElement bound and the slots of its fields.
+         */
+        private String[] fieldNames = null;
+
+        private int[] fieldSlots = null;
+
+        /**
+         * @param names the names of the slots, the output fields first, then TIMED and the state.
+         */
+        public IndexedBinding(String[] names, int outputs, Map<String, Object> state) {
+            this.state = state;
+            this.outputs = outputs;
+            this.names = names;
+            for (int i = 0; i < names.length; i++)
+                slots.put(names[i], i);
+            values = new Object[names.length];
+            defined = new boolean[names.length];
+        }
+
+        /**
+         * Reads the variable at the slot, resolved when the scriptlet was compiled.
+         */
+        public Object getAt(int slot) {
+            if (!defined[slot])
+                throw new MissingPropertyException(names[slot], getClass());
+            return values[slot];
+        }
+
+        /**
+         * Writes the variable at the slot, resolved when the scriptlet was compiled.
+         */
+        public void putAt(int slot, Object value) {
+            values[slot] = value;
+            defined[slot] = true;
+        }
+
+        public void bind(StreamElement se) {
+            Arrays.fill(values, null);
+            Arrays.fill(defined, false);
+            values[outputs + 1] = state;
+            defined[outputs + 1] = true;
+            if (!super.getVariables().isEmpty())
+                super.getVariables().clear();
+            if (se == null)
+                return;
+            String[] names = se.getFieldNames();
+            if (names != fieldNames && !Arrays.equals(names, fieldNames))
+                mapFields(names);
+            fieldNames = names;
+            Serializable[] data = se.getData();
+            for (int i = 0; i < fieldSlots.length; i++) {
+                values[fieldSlots[i]] = data[i];
+                defined[fieldSlots[i]] = true;
+            }
+            values[outputs] = se.getTimeStamp();
+            defined[outputs] = true;
+        }
+
+        private void mapFields(String[] names) {
+            fieldSlots = new int[names.length];
+            for (int i = 0; i < names.length; i++) {
+                String name = names[i].toUpperCase();
+                Integer slot = slots.get(name);
+                if (slot == null) {
+                    // Not used by the scriptlet, except through its name.
+                    slot = values.length;
+                    slots.put(name, slot);
+                    this.names = Arrays.copyOf(this.names, slot + 1);
+                    this.names[slot] = name;
+                    values = Arrays.copyOf(values, slot + 1);
+                    defined = Arrays.copyOf(defined, slot + 1);
+                }
+                fieldSlots[i] = slot;
+            }
+        }
+
+        public StreamElement toStreamElement(DataField[] outputStructure) {
+            Serializable[] data = new Serializable[outputs];
+            for (int i = 0; i < outputs; i++)
+                data[i] = (Serializable) values[i];
+            StreamElement seo = new StreamElement(outputStructure, data);
+            if (values[outputs] instanceof Number)
+                seo.setTimeStamp(((Number) values[outputs]).longValue());
+            return seo;
+        }
+
+        @Override
+        public Object getVariable(String name) {
+            Integer slot = slots.get(name);
+            if (slot == null)
+                return super.getVariable(name);
+            if (!defined[slot])
+                throw new MissingPropertyException(name, getClass());
+            return values[slot];
+        }
+
+        @Override
+        public void setVariable(String name, Object value) {
+            Integer slot = slots.get(name);
+            if (slot == null) {
+                super.setVariable(name, value);
+            } else {
+                values[slot] = value;
+                defined[slot] = true;
+            }
+        }
+
+        @Override
+        public boolean hasVariable(String name) {
+            Integer slot = slots.get(name);
+            return slot == null ? super.hasVariable(name) : defined[slot];
+        }
+
+        /**
+         * @return a copy of the variables, including those stored in the array.
+         */
+        @Override
+        public Map getVariables() {
+            Map<Object, Object> variables = new LinkedHashMap<Object, Object>(super.getVariables());
+            for (Map.Entry<String, Integer> slot : slots.entrySet())
+                if (defined[slot.getValue()])
+                    variables.put(slot.getKey(), values[slot.getValue()]);
+            return variables;
+        }
+    }
+
     private synchronized Timer getTimer() {
         if (timer == null)
             timer = new Timer(false);
@@ -0,0 +1,127 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/storage/InMemoryQuery.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.storage;
+
+import gsn.beans.StreamElement;
+
+import java.io.Serializable;
+
+/**
+ * A query of the form <code>select f1, f2 from vs where f3 &gt; 10 and f4 = 'abc'</code>
+ * evaluated directly on a stream element, without going through the database.
+ * Instances are created by {@link SQLValidator#toInMemoryQuery(String, gsn.beans.DataField[])}
+ * which only accepts the queries it can evaluate with the same result as the database.
+ */
+public class InMemoryQuery {
+
+    public static final byte EQ = 0, NE = 1, LT = 2, LE = 3, GT = 4, GE = 5;
+
+    private final String[] fieldNames;
+
+    private final Byte[] fieldTypes;
+
+    private final String[] conditionFields;
+
+    private final byte[] conditionOperators;
+
+    private final Serializable[] conditionValues;
+
+    /**
+     * @param fieldNames the projected fields, in order (without timed and pk).
+     * @param conditionValues either Double or String constants, the conditions are and-ed.
+     */
+    InMemoryQuery(String[] fieldNames, Byte[] fieldTypes, String[] conditionFields, byte[] conditionOperators, Serializable[] conditionValues) {
+        this.fieldNames = fieldNames;
+        this.fieldTypes = fieldTypes;
+        this.conditionFields = conditionFields;
+        this.conditionOperators = conditionOperators;
+        this.conditionValues = conditionValues;
+    }
+
+    /**
+     * Returns true if the stream element satisfies the where clause of the query.
+     */
+    public boolean accept(StreamElement se) {
+        for (int i = 0; i < conditionFields.length; i++) {
+            Serializable value;
+            if (conditionFields[i].equalsIgnoreCase("timed"))
+                value = se.getTimeStamp();
+            else if (conditionFields[i].equalsIgnoreCase("pk"))
+                value = se.getInternalPrimayKey();
+            else
+                value = se.getData(conditionFields[i]);
+            if (value == null)
+                return false; // comparing to null is never true in SQL.
+            int cmp;
+            if (conditionValues[i] instanceof Double) {
+                if (!(value instanceof Number))
+                    return false;
+                cmp = Double.compare(((Number) value).doubleValue(), (Double) conditionValues[i]);
+            } else {
+                cmp = value.toString().compareTo((String) conditionValues[i]);
+            }
+            if (!matches(conditionOperators[i], cmp))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns a new stream element only containing the selected fields, with the same timestamp and primary key.
+     */
+    public StreamElement project(StreamElement se) {
+        Serializable[] values = new Serializable[fieldNames.length];
+        for (int i = 0; i < fieldNames.length; i++)
+            values[i] = se.getData(fieldNames[i]);
+        StreamElement toReturn = new StreamElement(fieldNames, fieldTypes, values, se.getTimeStamp());
+        toReturn.setInternalPrimayKey(se.getInternalPrimayKey());
+        return toReturn;
+    }
+
+    private static boolean matches(byte operator, int cmp) {
+        switch (operator) {
+            case EQ:
+                return cmp == 0;
+            case NE:
+                return cmp != 0;
+            case LT:
+                return cmp < 0;
+            case LE:
+                return cmp <= 0;
+            case GT:
+                return cmp > 0;
+            case GE:
+                return cmp >= 0;
+            default:
+                return false;
+        }
+    }
+
+    public String[] getFieldNames() {
+        return fieldNames;
+    }
+
+}
@@ -0,0 +1,366 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/storage/InsertBatcher.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.storage;
+
+import gsn.beans.DataField;
+import gsn.beans.StreamElement;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Groups the inserts of a {@link StorageManager} into JDBC batches.
+ * One prepared statement is cached per table on a connection owned by the batcher,
+ * a batch is flushed when it reaches <code>maxBatchSize</code> rows or when its oldest
+ * row is older than <code>maxLingerMillis</code>. All the pending batches are written
+ * in a single transaction.
+ * <p>
+ * The commit listeners are called in commit order, outside of the lock of the batcher. If a
+ * stream element can't be inserted, the failure is thrown by the next call to
+ * {@link #add(CharSequence, DataField[], StreamElement, CommitListener)} for the same table.
+ */
+public class InsertBatcher {
+
+    private static final transient Logger logger = Logger.getLogger(InsertBatcher.class);
+
+    /**
+     * Notified once the stream element is committed to the database.
+     */
+    public interface CommitListener {
+        public void committed(StreamElement se);
+    }
+
+    private final StorageManager storageManager;
+
+    private final int maxBatchSize;
+
+    private final long maxLingerMillis;
+
+    private final HashMap<String, TableBatch> batches = new HashMap<String, TableBatch>();
+
+    private final ScheduledExecutorService flusher;
+
+    private Connection connection;
+
+    private int pending = 0;
+
+    private long oldestPending = -1;
+
+    private boolean batchUpdatesSupported = true;
+
+    /**
+     * The stream elements committed and not notified yet, in commit order.
+     */
+    private final ConcurrentLinkedQueue<Committed> committed = new ConcurrentLinkedQueue<Committed>();
+
+    private final AtomicBoolean notifying = new AtomicBoolean(false);
+
+    public InsertBatcher(StorageManager storageManager, int maxBatchSize, long maxLingerMillis) {
+        this.storageManager = storageManager;
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.maxLingerMillis = Math.max(1, maxLingerMillis);
+        flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "InsertBatcher-" + InsertBatcher.this.storageManager.getJDBCPrefix());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        flusher.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                flushIfLingering();
+            }
+        }, this.maxLingerMillis, this.maxLingerMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    public long getMaxLingerMillis() {
+        return maxLingerMillis;
+    }
+
+    public synchronized int getPendingCount() {
+        return pending;
+    }
+
+    /**
+     * Queues the stream element for insertion into the given table, the element is written
+     * on the next flush.
+     *
+     * @param listener can be null, otherwise called after the element is committed.
+     * @throws SQLException if a stream element previously queued for this table couldn't be
+     *         inserted, the stream element of this call is queued anyway.
+     */
+    public void add(CharSequence tableName, DataField[] fields, StreamElement se, CommitListener listener) throws SQLException {
+        SQLException failure;
+        synchronized (this) {
+            String key = tableName.toString();
+            TableBatch batch = batches.get(key);
+            SQLException previous = null;
+            if (batch != null && batch.fields != fields) {
+                // The structure changed (e.g., the virtual sensor has been reloaded).
+                flushPending();
+                batch.closeStatement();
+                previous = batch.failure;
+                batch = null;
+            }
+            if (batch == null) {
+                batch = new TableBatch(key, fields);
+                batch.failure = previous;
+                batches.put(key, batch);
+            }
+            batch.elements.add(se);
+            batch.listeners.add(listener);
+            if (pending++ == 0)
+                oldestPending = System.currentTimeMillis();
+            if (pending >= maxBatchSize)
+                flushPending();
+            failure = batch.failure;
+            batch.failure = null;
+        }
+        notifyCommitted();
+        if (failure != null)
+            throw new SQLException("A previous insert into " + tableName + " failed: " + failure.getMessage(), failure.getSQLState(), failure.getErrorCode(), failure);
+    }
+
+    /**
+     * Writes all the pending stream elements in one transaction. Returns when the data is visible
+     * to the other connections, so it can be used by callers which need to read their writes.
+     */
+    public void flush() {
+        synchronized (this) {
+            flushPending();
+        }
+        notifyCommitted();
+    }
+
+    private void flushPending() {
+        if (pending == 0)
+            return;
+        long start = System.currentTimeMillis();
+        int count = pending;
+        try {
+            Connection conn = getBatchConnection();
+            if (batchUpdatesSupported) {
+                for (TableBatch batch : batches.values()) {
+                    if (batch.elements.isEmpty())
+                        continue;
+                    PreparedStatement ps = batch.getStatement(conn);
+                    for (StreamElement se : batch.elements) {
+                        storageManager.bindInsertParameters(ps, batch.fields, se);
+                        ps.addBatch();
+                    }
+                    ps.executeBatch();
+                    storageManager.readGeneratedKeys(ps, batch.elements.toArray(new StreamElement[batch.elements.size()]), batch.elements.size());
+                }
+                conn.commit();
+                for (TableBatch batch : batches.values())
+                    batch.committed();
+            } else {
+                replayOneByOne();
+            }
+        } catch (SQLException e) {
+            logger.warn("Flushing a batch of " + count + " stream elements failed (" + e.getMessage() + "), inserting them one by one.");
+            if (logger.isDebugEnabled())
+                logger.debug(e.getMessage(), e);
+            rollbackAndReset();
+            replayOneByOne();
+        } catch (RuntimeException e) {
+            logger.error(e.getMessage(), e);
+            rollbackAndReset();
+            replayOneByOne();
+        } finally {
+            pending = 0;
+            oldestPending = -1;
+        }
+        if (logger.isDebugEnabled())
+            logger.debug("Flushed " + count + " stream elements in " + (System.currentTimeMillis() - start) + " ms.");
+    }
+
+    private void flushIfLingering() {
+        synchronized (this) {
+            if (pending > 0 && System.currentTimeMillis() - oldestPending >= maxLingerMillis)
+                flushPending();
+        }
+        notifyCommitted();
+    }
+
+    /**
+     * Flushes the pending elements and releases the connection and the statements.
+     */
+    public void close() {
+        synchronized (this) {
+            flusher.shutdown();
+            flushPending();
+            closeStatements();
+            storageManager.close(connection);
+            connection = null;
+        }
+        notifyCommitted();
+    }
+
+    /**
+     * Calls the listeners of the committed stream elements. A single thread notifies at a time, which keeps
+     * the commit order, the listeners can queue new stream elements.
+     */
+    private void notifyCommitted() {
+        while (!committed.isEmpty() && notifying.compareAndSet(false, true)) {
+            try {
+                Committed c;
+                while ((c = committed.poll()) != null) {
+                    try {
+                        c.listener.committed(c.se);
+                    } catch (RuntimeException e) {
+                        logger.error(e.getMessage(), e);
+                    }
+                }
+            } finally {
+                notifying.set(false);
+            }
+        }
+    }
+
+    /**
+     * Inserts the pending elements through the regular (non batched) path, so that
+     * a single faulty element (e.g., a duplicated timestamp) does not drop the whole batch.
+     */
+    private void replayOneByOne() {
+        for (TableBatch batch : batches.values()) {
+            for (int i = 0; i < batch.elements.size(); i++) {
+                try {
+                    storageManager.executeInsertDirectly(batch.table, batch.fields, batch.elements.get(i));
+                    batch.committed(i);
+                } catch (SQLException e) {
+                    // Thrown by the next add for this table.
+                    batch.failure = e;
+                }
+            }
+            batch.elements.clear();
+            batch.listeners.clear();
+        }
+    }
+
+    private Connection getBatchConnection() throws SQLException {
+        if (connection == null || connection.isClosed()) {
+            connection = storageManager.getConnection();
+            connection.setAutoCommit(false);
+            batchUpdatesSupported = connection.getMetaData().supportsBatchUpdates();
+            if (!batchUpdatesSupported)
+                logger.warn("The JDBC driver " + storageManager.getJDBCDriverClass() + " doesn't support batch updates, inserting one by one.");
+        }
+        return connection;
+    }
+
+    private void rollbackAndReset() {
+        try {
+            if (connection != null && !connection.isClosed())
+                connection.rollback();
+        } catch (SQLException e) {
+            logger.debug(e.getMessage(), e);
+        }
+        closeStatements();
+        storageManager.close(connection);
+        connection = null;
+    }
+
+    private void closeStatements() {
+        for (TableBatch batch : batches.values())
+            batch.closeStatement();
+    }
+
+    private class TableBatch {
+
+        private final String table;
+
+        private final DataField[] fields;
+
+        private final ArrayList<StreamElement> elements = new ArrayList<StreamElement>();
+
+        private final ArrayList<CommitListener> listeners = new ArrayList<CommitListener>();
+
+        private PreparedStatement statement;
+
+        /**
+         * The last insert failure not reported yet.
+         */
+        private SQLException failure;
+
+        private TableBatch(String table, DataField[] fields) {
+            this.table = table;
+            this.fields = fields;
+        }
+
+        private PreparedStatement getStatement(Connection conn) throws SQLException {
+            if (statement == null)
+                statement = conn.prepareStatement(storageManager.getStatementInsert(table, fields).toString(), Statement.RETURN_GENERATED_KEYS);
+            return statement;
+        }
+
+        private void committed() {
+            for (int i = 0; i < elements.size(); i++)
+                committed(i);
+            elements.clear();
+            listeners.clear();
+        }
+
+        private void committed(int i) {
+            if (listeners.get(i) != null)
+                committed.offer(new Committed(listeners.get(i), elements.get(i)));
+        }
+
+        private void closeStatement() {
+            storageManager.close(statement);
+            statement = null;
+        }
+    }
+
+    private static class Committed {
+
+        private final CommitListener listener;
+
+        private final StreamElement se;
+
+        private Committed(CommitListener listener, StreamElement se) {
+            this.listener = listener;
+            this.se = se;
+        }
+    }
+
+}
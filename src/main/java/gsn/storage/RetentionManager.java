@@ -0,0 +1,303 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/storage/RetentionManager.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.storage;
+
+import gsn.Main;
+import gsn.VSensorStateChangeListener;
+import gsn.beans.VSensorConfig;
+import gsn.monitoring.Monitorable;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Hashtable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Enforces the storage size of the virtual sensor tables in the background, every -DretentionPeriod milliseconds.
+ * <p>
+ * Each pass computes the cutoff of each table once: the timed of the Nth newest row for the count based storage
+ * sizes (read backward on the timed index), the latest timed minus the storage size for the time based ones. The
+ * rows older than the cutoff are then deleted by chunks of about -DretentionChunkSize rows, each chunk being a
+ * range of timed, and the deletes of all the tables are paced to at most -DretentionRowsPerSecond rows per second
+ * (0 for no limit). The rows left by a pass are deleted by the next ones. The periods of the rollup tables of the
+ * virtual sensor (see {@link RollupManager}) which ended before the cutoff are deleted at the end of each pass.
+ */
+public class RetentionManager implements VSensorStateChangeListener, Monitorable {
+
+    private static final transient Logger logger = Logger.getLogger(RetentionManager.class);
+
+    public static final int DEFAULT_PERIOD = 10000;
+
+    public static final int DEFAULT_CHUNK_SIZE = 1000;
+
+    public static final int DEFAULT_ROWS_PER_SECOND = 20000;
+
+    private static RetentionManager singleton = null;
+
+    private static int period = -1;
+
+    private static int chunkSize = -1;
+
+    private static int rowsPerSecond = -1;
+
+    private final ConcurrentHashMap<String, Retention> sensors = new ConcurrentHashMap<String, Retention>();
+
+    private ScheduledExecutorService scheduler = null;
+
+    private RetentionManager() {
+    }
+
+    public static synchronized RetentionManager getInstance() {
+        if (singleton == null)
+            singleton = new RetentionManager();
+        return singleton;
+    }
+
+    public static int getPeriod() {
+        if (period == -1)
+            period = System.getProperty("retentionPeriod") == null ? DEFAULT_PERIOD : Math.max(1, Integer.parseInt(System.getProperty("retentionPeriod")));
+        return period;
+    }
+
+    public static int getChunkSize() {
+        if (chunkSize == -1)
+            chunkSize = System.getProperty("retentionChunkSize") == null ? DEFAULT_CHUNK_SIZE : Math.max(1, Integer.parseInt(System.getProperty("retentionChunkSize")));
+        return chunkSize;
+    }
+
+    public static int getRowsPerSecond() {
+        if (rowsPerSecond == -1)
+            rowsPerSecond = System.getProperty("retentionRowsPerSecond") == null ? DEFAULT_ROWS_PER_SECOND : Math.max(0, Integer.parseInt(System.getProperty("retentionRowsPerSecond")));
+        return rowsPerSecond;
+    }
+
+    public boolean vsLoading(VSensorConfig config) {
+        if (config.getParsedStorageSize() == VSensorConfig.STORAGE_SIZE_NOT_SET)
+            return true;
+        sensors.put(config.getName().toLowerCase(), new Retention(config));
+        startScheduler();
+        return true;
+    }
+
+    public boolean vsUnLoading(VSensorConfig config) {
+        sensors.remove(config.getName().toLowerCase());
+        return true;
+    }
+
+    public synchronized void release() {
+        if (scheduler != null)
+            scheduler.shutdownNow();
+        scheduler = null;
+        sensors.clear();
+    }
+
+    private synchronized void startScheduler() {
+        if (scheduler != null)
+            return;
+        scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "RetentionManager");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                for (Retention retention : sensors.values()) {
+                    if (Thread.currentThread().isInterrupted())
+                        return;
+                    try {
+                        retention.enforce(true);
+                    } catch (RuntimeException e) {
+                        logger.error("Enforcing the storage size of " + retention.config.getName() + " failed: " + e.getMessage(), e);
+                    }
+                }
+            }
+        }, getPeriod(), getPeriod(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Deletes right away (without pacing) the rows of the virtual sensor table beyond its storage size.
+     *
+     * @return the number of deleted rows.
+     */
+    public long enforce(VSensorConfig config) {
+        if (config.getParsedStorageSize() == VSensorConfig.STORAGE_SIZE_NOT_SET)
+            return 0;
+        Retention retention = sensors.get(config.getName().toLowerCase());
+        if (retention == null)
+            retention = new Retention(config);
+        return retention.enforce(false);
+    }
+
+    public Hashtable<String, Object> getStatistics() {
+        Hashtable<String, Object> stat = new Hashtable<String, Object>();
+        for (Retention retention : sensors.values()) {
+            String prefix = "vs." + retention.config.getName().replaceAll("\\.", "_") + ".retention";
+            stat.put(prefix + ".deleted.count", retention.deleted);
+            stat.put(prefix + ".cutoff.value", retention.cutoff);
+            stat.put(prefix + ".latency.value", retention.duration);
+        }
+        return stat;
+    }
+
+    /**
+     * The retention of one virtual sensor table.
+     */
+    private static class Retention {
+
+        private final VSensorConfig config;
+
+        private final String table;
+
+        /** The number of rows deleted since the virtual sensor is loaded. */
+        private volatile long deleted = 0;
+
+        /** The latest cutoff, the rows older than it are deleted. */
+        private volatile long cutoff = Long.MIN_VALUE;
+
+        /** The duration of the latest enforcement (in milliseconds). */
+        private volatile long duration = 0;
+
+        private Retention(VSensorConfig config) {
+            this.config = config;
+            this.table = config.getName().toLowerCase();
+        }
+
+        private synchronized long enforce(boolean paced) {
+            long begin = System.currentTimeMillis();
+            StorageManager storage = Main.getStorage(config);
+            Connection conn = null;
+            PreparedStatement chunkBound = null;
+            PreparedStatement delete = null;
+            long total = 0;
+            try {
+                conn = storage.getConnection();
+                Long watermark = getCutoff(storage, conn);
+                if (watermark == null)
+                    return 0;
+                cutoff = watermark;
+                chunkBound = conn.prepareStatement(storage.addLimit("select timed from " + table + " where timed < ? order by timed asc", 1, getChunkSize() - 1));
+                delete = conn.prepareStatement("delete from " + table + " where timed < ?");
+                while (true) {
+                    long chunkBegin = System.currentTimeMillis();
+                    Long bound = getChunkBound(chunkBound, watermark);
+                    // The last chunk contains all the rows left before the cutoff.
+                    int count = delete(delete, bound == null ? watermark : bound + 1);
+                    if (count > 0) {
+                        total += count;
+                        deleted += count;
+                    }
+                    if (bound == null || count <= 0)
+                        break;
+                    if (paced && getRowsPerSecond() > 0) {
+                        long wait = count * 1000L / getRowsPerSecond() - (System.currentTimeMillis() - chunkBegin);
+                        if (wait > 0)
+                            Thread.sleep(wait);
+                    }
+                }
+                for (long resolution : RollupManager.getInstance().getResolutions(config.getName())) {
+                    PreparedStatement rollupDelete = conn.prepareStatement("delete from " + RollupManager.getTableName(config.getName(), resolution) + " where timed <= ?");
+                    try {
+                        delete(rollupDelete, watermark - resolution);
+                    } finally {
+                        storage.close(rollupDelete);
+                    }
+                }
+            } catch (SQLException e) {
+                logger.error("Enforcing the storage size of " + config.getName() + " failed: " + e.getMessage(), e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                storage.close(chunkBound);
+                storage.close(delete);
+                storage.close(conn);
+                duration = System.currentTimeMillis() - begin;
+            }
+            if (logger.isDebugEnabled())
+                logger.debug("There were " + total + " old rows dropped from " + config.getName());
+            return total;
+        }
+
+        /**
+         * Returns the timed below which the rows are deleted, or null if all the rows are kept.
+         */
+        private Long getCutoff(StorageManager storage, Connection conn) throws SQLException {
+            long size = config.getParsedStorageSize();
+            String query;
+            if (config.isStorageCountBased()) {
+                if (size <= 0)
+                    return Long.MAX_VALUE;
+                query = storage.addLimit("select timed from " + table + " order by timed desc", 1, (int) Math.min(Integer.MAX_VALUE, size - 1));
+            } else {
+                query = "select max(timed) from " + table;
+            }
+            PreparedStatement ps = conn.prepareStatement(query);
+            try {
+                ResultSet rs = ps.executeQuery();
+                if (!rs.next())
+                    return null;
+                long timed = rs.getLong(1);
+                if (rs.wasNull())
+                    return null;
+                return config.isStorageCountBased() ? timed : timed - size;
+            } finally {
+                storage.close(ps);
+            }
+        }
+
+        /**
+         * Returns the timed of the last row of the next chunk (the oldest rows), or null if there is less than a
+         * chunk of rows older than the cutoff.
+         */
+        private static Long getChunkBound(PreparedStatement chunkBound, long watermark) throws SQLException {
+            chunkBound.setLong(1, watermark);
+            ResultSet rs = chunkBound.executeQuery();
+            try {
+                return rs.next() ? rs.getLong(1) : null;
+            } finally {
+                rs.close();
+            }
+        }
+
+        /**
+         * Deletes the rows before the timed (excluded for the tables, included for the rollup tables).
+         */
+        private static int delete(PreparedStatement delete, long timed) throws SQLException {
+            delete.setLong(1, timed);
+            return delete.executeUpdate();
+        }
+    }
+
+}
@@ -0,0 +1,623 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/storage/RollupManager.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.storage;
+
+import gsn.Main;
+import gsn.VSensorStateChangeListener;
+import gsn.VirtualSensorDataListener;
+import gsn.beans.DataField;
+import gsn.beans.DataTypes;
+import gsn.beans.StreamElement;
+import gsn.beans.VSensorConfig;
+import gsn.utils.GSNRuntimeException;
+
+import java.io.Serializable;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Maintains the rollup tables of the virtual sensors declaring some (rollups attribute of the storage element,
+ * e.g., rollups="1m,1h,1d"). The rollup table of a resolution <code>r</code> has one row per period of
+ * <code>r</code> milliseconds (timed being the start of the period) with, for each numeric output field
+ * <code>f</code>, the columns <code>f_min</code>, <code>f_max</code>, <code>f_sum</code> and <code>f_count</code>
+ * (the number of non null values).
+ * <p>
+ * The tables are created and filled from the virtual sensor table when the virtual sensor is loaded, and then
+ * maintained incrementally from the published stream elements: the aggregates of the new stream elements are
+ * accumulated in memory, per period, and added to the rows of the rollup tables by a background thread every
+ * -DrollupFlushPeriod milliseconds. Publishing a stream element never reads nor writes the rollup tables.
+ * </p>
+ * The queries on long ranges use {@link #getResolution(String, String[], long, long[])} to read from the
+ * coarsest rollup table which gives the same result as the virtual sensor table, and call {@link #flush(String)}
+ * first, so that the results include the current periods. The {@link RetentionManager} deletes the periods
+ * which ended before the cutoff of the virtual sensor table.
+ */
+public class RollupManager implements VirtualSensorDataListener, VSensorStateChangeListener {
+
+    private static final transient Logger logger = Logger.getLogger(RollupManager.class);
+
+    public static final int DEFAULT_FLUSH_PERIOD = 5000;
+
+    public static final String MIN_SUFFIX = "_min";
+
+    public static final String MAX_SUFFIX = "_max";
+
+    public static final String SUM_SUFFIX = "_sum";
+
+    public static final String COUNT_SUFFIX = "_count";
+
+    private static RollupManager singleton = null;
+
+    private static int flushPeriod = -1;
+
+    private final ConcurrentHashMap<String, SensorRollups> sensors = new ConcurrentHashMap<String, SensorRollups>();
+
+    private ScheduledExecutorService flusher = null;
+
+    private RollupManager() {
+    }
+
+    public static synchronized RollupManager getInstance() {
+        if (singleton == null)
+            singleton = new RollupManager();
+        return singleton;
+    }
+
+    public static int getFlushPeriod() {
+        if (flushPeriod == -1)
+            flushPeriod = System.getProperty("rollupFlushPeriod") == null ? DEFAULT_FLUSH_PERIOD : Math.max(1, Integer.parseInt(System.getProperty("rollupFlushPeriod")));
+        return flushPeriod;
+    }
+
+    public static String getTableName(String vsName, long resolution) {
+        return vsName.toLowerCase() + "_rollup_" + resolution;
+    }
+
+    /**
+     * Returns the resolutions of the rollup tables of the virtual sensor, an empty array if it has none.
+     */
+    public long[] getResolutions(String vsName) {
+        SensorRollups rollups = sensors.get(vsName.toLowerCase());
+        return rollups == null ? new long[0] : rollups.resolutions.clone();
+    }
+
+    /**
+     * Writes the aggregates of the stream elements of the virtual sensor accumulated in memory to its rollup
+     * tables, before they are read.
+     */
+    public void flush(String vsName) {
+        SensorRollups rollups = sensors.get(vsName.toLowerCase());
+        if (rollups != null)
+            rollups.flush();
+    }
+
+    /**
+     * Returns the coarsest resolution of the rollup tables of the virtual sensor which contains all the fields,
+     * divides the interval and all the boundaries, or -1 if there is none.
+     *
+     * @param interval the length of the periods aggregated by the query.
+     * @param boundaries the timestamps at which the range of the query starts or ends (i.e., the first timestamp included
+     *                   or the first timestamp excluded).
+     */
+    public long getResolution(String vsName, String[] fields, long interval, long[] boundaries) {
+        SensorRollups rollups = sensors.get(vsName.toLowerCase());
+        if (rollups == null || !rollups.containsAll(fields))
+            return -1;
+        for (int i = rollups.resolutions.length - 1; i >= 0; i--) {
+            long resolution = rollups.resolutions[i];
+            if (interval % resolution != 0)
+                continue;
+            boolean aligned = true;
+            for (long boundary : boundaries)
+                aligned &= boundary % resolution == 0;
+            if (aligned)
+                return resolution;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the coarsest resolution of the rollup tables of the virtual sensor which contains the field and
+     * is not greater than <code>maxResolution</code>, or -1 if there is none.
+     */
+    public long getResolutionAtMost(String vsName, String field, long maxResolution) {
+        SensorRollups rollups = sensors.get(vsName.toLowerCase());
+        if (rollups == null || !rollups.containsAll(new String[] {field}))
+            return -1;
+        for (int i = rollups.resolutions.length - 1; i >= 0; i--)
+            if (rollups.resolutions[i] <= maxResolution)
+                return rollups.resolutions[i];
+        return -1;
+    }
+
+    public void consume(StreamElement se, VSensorConfig config) {
+        SensorRollups rollups = sensors.get(config.getName().toLowerCase());
+        if (rollups != null)
+            rollups.add(se);
+    }
+
+    public boolean vsLoading(VSensorConfig config) {
+        long[] resolutions = config.getRollupResolutions();
+        if (resolutions.length == 0)
+            return true;
+        ArrayList<DataField> numericFields = new ArrayList<DataField>();
+        for (DataField field : config.getOutputStructure())
+            if (isNumeric(field.getDataTypeID()) && !field.getName().equalsIgnoreCase("timed"))
+                numericFields.add(field);
+        if (numericFields.isEmpty()) {
+            logger.warn("The virtual sensor " + config.getName() + " has no numeric field, its rollups are ignored.");
+            return true;
+        }
+        SensorRollups rollups = new SensorRollups(config, resolutions, numericFields.toArray(new DataField[numericFields.size()]));
+        try {
+            rollups.initialize();
+            sensors.put(config.getName().toLowerCase(), rollups);
+            startFlusher();
+        } catch (SQLException e) {
+            logger.error("Creating the rollup tables of the virtual sensor " + config.getName() + " failed: " + e.getMessage(), e);
+        }
+        return true;
+    }
+
+    public boolean vsUnLoading(VSensorConfig config) {
+        SensorRollups rollups = sensors.remove(config.getName().toLowerCase());
+        if (rollups != null)
+            rollups.flush();
+        return true;
+    }
+
+    public synchronized void release() {
+        if (flusher != null)
+            flusher.shutdown();
+        flusher = null;
+        for (SensorRollups rollups : sensors.values())
+            rollups.flush();
+        sensors.clear();
+    }
+
+    private synchronized void startFlusher() {
+        if (flusher != null)
+            return;
+        flusher = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "RollupManager");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        flusher.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                for (SensorRollups rollups : sensors.values()) {
+                    try {
+                        rollups.flush();
+                    } catch (RuntimeException e) {
+                        logger.error("Updating the rollup tables of " + rollups.config.getName() + " failed: " + e.getMessage(), e);
+                    }
+                }
+            }
+        }, getFlushPeriod(), getFlushPeriod(), TimeUnit.MILLISECONDS);
+    }
+
+    private static boolean isNumeric(byte type) {
+        return type == DataTypes.DOUBLE || type == DataTypes.FLOAT || type == DataTypes.INTEGER || type == DataTypes.BIGINT
+                || type == DataTypes.SMALLINT || type == DataTypes.TINYINT;
+    }
+
+    /**
+     * The rollup tables of one virtual sensor.
+     */
+    private static class SensorRollups {
+
+        private final VSensorConfig config;
+
+        private final long[] resolutions;
+
+        private final DataField[] fields;
+
+        private final DataField[] columns;
+
+        private final Rollup[] rollups;
+
+        /** Held while the accumulated aggregates are written, so that they are written once and in order. */
+        private final Object flushLock = new Object();
+
+        private SensorRollups(VSensorConfig config, long[] resolutions, DataField[] fields) {
+            this.config = config;
+            this.resolutions = resolutions;
+            this.fields = fields;
+            columns = new DataField[fields.length * 4];
+            for (int i = 0; i < fields.length; i++) {
+                columns[i * 4] = new DataField(fields[i].getName() + MIN_SUFFIX, DataTypes.DOUBLE);
+                columns[i * 4 + 1] = new DataField(fields[i].getName() + MAX_SUFFIX, DataTypes.DOUBLE);
+                columns[i * 4 + 2] = new DataField(fields[i].getName() + SUM_SUFFIX, DataTypes.DOUBLE);
+                columns[i * 4 + 3] = new DataField(fields[i].getName() + COUNT_SUFFIX, DataTypes.BIGINT);
+            }
+            rollups = new Rollup[resolutions.length];
+            for (int i = 0; i < resolutions.length; i++)
+                rollups[i] = new Rollup(this, resolutions[i]);
+        }
+
+        private StorageManager getStorage() {
+            return Main.getStorage(config);
+        }
+
+        private boolean containsAll(String[] names) {
+            for (String name : names) {
+                boolean found = false;
+                for (DataField field : fields)
+                    found |= field.getName().equalsIgnoreCase(name);
+                if (!found)
+                    return false;
+            }
+            return true;
+        }
+
+        /**
+         * Creates the missing rollup tables and fills them from the virtual sensor table. The existing tables are
+         * computed again from their last period: the aggregates accumulated in memory after the last flush are
+         * lost if GSN stopped without flushing them.
+         */
+        private void initialize() throws SQLException {
+            StorageManager storage = getStorage();
+            Connection conn = null;
+            try {
+                conn = storage.getConnection();
+                for (Rollup rollup : rollups) {
+                    boolean exists;
+                    try {
+                        exists = storage.tableExists(rollup.table, columns, conn);
+                    } catch (GSNRuntimeException e) {
+                        // The output structure changed, the rollup table is built again.
+                        logger.warn("The rollup table " + rollup.table + " is outdated: " + e.getMessage());
+                        storage.executeDropTable(rollup.table, conn);
+                        exists = false;
+                    }
+                    if (!exists) {
+                        storage.executeCreateTable(rollup.table, columns, true, conn);
+                        fill(rollup, null, conn);
+                        logger.info("The rollup table " + rollup.table + " is created.");
+                        continue;
+                    }
+                    Long last = rollup.getLastPeriod(conn);
+                    boolean autoCommit = conn.getAutoCommit();
+                    conn.setAutoCommit(false);
+                    try {
+                        if (last != null && storage.executeUpdate(new StringBuilder("delete from ").append(rollup.table).append(" where timed >= ").append(last), conn) == -1)
+                            throw new SQLException("Deleting the last period of the rollup table " + rollup.table + " failed.");
+                        fill(rollup, last, conn);
+                        conn.commit();
+                    } catch (SQLException e) {
+                        conn.rollback();
+                        throw e;
+                    } finally {
+                        conn.setAutoCommit(autoCommit);
+                    }
+                    if (last != null)
+                        logger.info("The rollup table " + rollup.table + " is computed again from " + last + ".");
+                }
+            } finally {
+                storage.close(conn);
+            }
+        }
+
+        /**
+         * Adds the periods of the virtual sensor table starting from <code>from</code> (all of them if null) to the
+         * rollup table.
+         */
+        private void fill(Rollup rollup, Long from, Connection conn) throws SQLException {
+            StringBuilder query = new StringBuilder("insert into ").append(rollup.table).append(" (timed");
+            for (DataField column : columns)
+                query.append(", ").append(column.getName());
+            query.append(") select floor(timed/").append(rollup.resolution).append(")*").append(rollup.resolution);
+            for (DataField field : fields) {
+                query.append(", min(").append(field.getName()).append("), max(").append(field.getName()).append("), sum(")
+                        .append(field.getName()).append("), count(").append(field.getName()).append(")");
+            }
+            query.append(" from ").append(config.getName());
+            if (from != null)
+                query.append(" where timed >= ").append(from);
+            query.append(" group by floor(timed/").append(rollup.resolution).append(")*").append(rollup.resolution);
+            if (getStorage().executeUpdate(query, conn) == -1)
+                throw new SQLException("Filling the rollup table " + rollup.table + " failed.");
+        }
+
+        private synchronized void add(StreamElement se) {
+            for (Rollup rollup : rollups)
+                rollup.add(se);
+        }
+
+        /**
+         * Writes the accumulated aggregates to all the rollup tables in one transaction. If the write fails, the
+         * aggregates are merged back into the ones accumulated since, and written by the next flush.
+         */
+        private void flush() {
+            synchronized (flushLock) {
+                ArrayList<ArrayList<Rollup.Period>> pending = new ArrayList<ArrayList<Rollup.Period>>(rollups.length);
+                boolean empty = true;
+                synchronized (this) {
+                    for (Rollup rollup : rollups) {
+                        ArrayList<Rollup.Period> periods = rollup.drain();
+                        empty &= periods.isEmpty();
+                        pending.add(periods);
+                    }
+                }
+                if (empty)
+                    return;
+                StorageManager storage = getStorage();
+                Connection conn = null;
+                boolean written = false;
+                try {
+                    conn = storage.getConnection();
+                    conn.setAutoCommit(false);
+                    for (int i = 0; i < rollups.length; i++)
+                        for (Rollup.Period period : pending.get(i))
+                            rollups[i].write(period, conn);
+                    conn.commit();
+                    written = true;
+                } catch (SQLException e) {
+                    logger.error("Updating the rollup tables of " + config.getName() + " failed, retrying on the next flush: " + e.getMessage(), e);
+                } finally {
+                    if (conn != null) {
+                        try {
+                            if (!written)
+                                conn.rollback();
+                            conn.setAutoCommit(true);
+                        } catch (SQLException e) {
+                            logger.debug(e.getMessage(), e);
+                        }
+                    }
+                    storage.close(conn);
+                    if (!written) {
+                        synchronized (this) {
+                            for (int i = 0; i < rollups.length; i++)
+                                rollups[i].restore(pending.get(i));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The rollup table of one resolution, and the aggregates not written yet.
+     */
+    private static class Rollup {
+
+        private final SensorRollups sensor;
+
+        private final long resolution;
+
+        private final String table;
+
+        /** The aggregates of the stream elements not written yet, by start of period. */
+        private TreeMap<Long, Period> pending = new TreeMap<Long, Period>();
+
+        private Rollup(SensorRollups sensor, long resolution) {
+            this.sensor = sensor;
+            this.resolution = resolution;
+            this.table = getTableName(sensor.config.getName(), resolution);
+        }
+
+        private void add(StreamElement se) {
+            long timed = se.getTimeStamp();
+            long start = timed - ((timed % resolution) + resolution) % resolution;
+            Period period = pending.get(start);
+            if (period == null)
+                pending.put(start, period = new Period(start, sensor.fields.length));
+            period.add(se);
+        }
+
+        /**
+         * Returns the aggregates not written yet, and starts accumulating new ones.
+         */
+        private ArrayList<Period> drain() {
+            ArrayList<Period> toReturn = new ArrayList<Period>(pending.values());
+            if (!toReturn.isEmpty())
+                pending = new TreeMap<Long, Period>();
+            return toReturn;
+        }
+
+        /**
+         * Merges the aggregates of a failed write back into the ones accumulated since.
+         */
+        private void restore(ArrayList<Period> periods) {
+            for (Period period : periods) {
+                Period current = pending.get(period.start);
+                if (current == null)
+                    pending.put(period.start, period);
+                else
+                    current.add(period);
+            }
+        }
+
+        /**
+         * Returns the start of the last period of the rollup table, or null if it is empty.
+         */
+        private Long getLastPeriod(Connection conn) throws SQLException {
+            StorageManager storage = sensor.getStorage();
+            PreparedStatement ps = null;
+            ResultSet rs = null;
+            try {
+                ps = conn.prepareStatement("select max(timed) from " + table);
+                rs = ps.executeQuery();
+                if (!rs.next())
+                    return null;
+                long last = rs.getLong(1);
+                return rs.wasNull() ? null : last;
+            } finally {
+                storage.close(rs);
+                storage.close(ps);
+            }
+        }
+
+        /**
+         * Reads the period from the rollup table, or returns an empty period if it is not in the table.
+         */
+        private Period read(long start, Connection conn) throws SQLException {
+            Period period = new Period(start, sensor.fields.length);
+            StorageManager storage = sensor.getStorage();
+            PreparedStatement ps = null;
+            ResultSet rs = null;
+            try {
+                StringBuilder query = new StringBuilder("select ");
+                for (int i = 0; i < sensor.columns.length; i++)
+                    query.append(i == 0 ? "" : ", ").append(sensor.columns[i].getName());
+                query.append(" from ").append(table).append(" where timed = ?");
+                ps = conn.prepareStatement(query.toString());
+                ps.setLong(1, start);
+                rs = ps.executeQuery();
+                if (rs.next()) {
+                    for (int f = 0; f < sensor.fields.length; f++) {
+                        period.count[f] = rs.getLong(f * 4 + 4);
+                        if (period.count[f] > 0) {
+                            period.min[f] = rs.getDouble(f * 4 + 1);
+                            period.max[f] = rs.getDouble(f * 4 + 2);
+                            period.sum[f] = rs.getDouble(f * 4 + 3);
+                        }
+                    }
+                    period.stored = true;
+                }
+            } finally {
+                storage.close(rs);
+                storage.close(ps);
+            }
+            return period;
+        }
+
+        /**
+         * Adds the aggregates to the row of their period.
+         */
+        private void write(Period added, Connection conn) throws SQLException {
+            Period period = read(added.start, conn);
+            period.add(added);
+            StorageManager storage = sensor.getStorage();
+            PreparedStatement ps = null;
+            try {
+                StringBuilder query = new StringBuilder();
+                if (period.stored) {
+                    query.append("update ").append(table).append(" set ");
+                    for (int i = 0; i < sensor.columns.length; i++)
+                        query.append(i == 0 ? "" : ", ").append(sensor.columns[i].getName()).append(" = ?");
+                    query.append(" where timed = ?");
+                } else {
+                    query.append("insert into ").append(table).append(" (");
+                    for (DataField column : sensor.columns)
+                        query.append(column.getName()).append(", ");
+                    query.append("timed) values (");
+                    for (int i = 0; i < sensor.columns.length; i++)
+                        query.append("?, ");
+                    query.append("?)");
+                }
+                ps = conn.prepareStatement(query.toString());
+                int index = 1;
+                for (int f = 0; f < sensor.fields.length; f++) {
+                    if (period.count[f] > 0) {
+                        ps.setDouble(index++, period.min[f]);
+                        ps.setDouble(index++, period.max[f]);
+                        ps.setDouble(index++, period.sum[f]);
+                    } else {
+                        ps.setNull(index++, Types.DOUBLE);
+                        ps.setNull(index++, Types.DOUBLE);
+                        ps.setNull(index++, Types.DOUBLE);
+                    }
+                    ps.setLong(index++, period.count[f]);
+                }
+                ps.setLong(index, period.start);
+                ps.executeUpdate();
+            } finally {
+                storage.close(ps);
+            }
+        }
+
+        /**
+         * The aggregates of one period.
+         */
+        private class Period {
+
+            private final long start;
+
+            private final double[] min;
+
+            private final double[] max;
+
+            private final double[] sum;
+
+            private final long[] count;
+
+            /** True if the period is in the rollup table. */
+            private boolean stored = false;
+
+            private Period(long start, int fields) {
+                this.start = start;
+                min = new double[fields];
+                max = new double[fields];
+                sum = new double[fields];
+                count = new long[fields];
+            }
+
+            private void add(StreamElement se) {
+                for (int f = 0; f < sensor.fields.length; f++) {
+                    Serializable value = se.getData(sensor.fields[f].getName());
+                    if (!(value instanceof Number))
+                        continue;
+                    double v = ((Number) value).doubleValue();
+                    if (count[f] == 0 || v < min[f])
+                        min[f] = v;
+                    if (count[f] == 0 || v > max[f])
+                        max[f] = v;
+                    sum[f] += v;
+                    count[f]++;
+                }
+            }
+
+            private void add(Period other) {
+                for (int f = 0; f < sensor.fields.length; f++) {
+                    if (other.count[f] == 0)
+                        continue;
+                    if (count[f] == 0 || other.min[f] < min[f])
+                        min[f] = other.min[f];
+                    if (count[f] == 0 || other.max[f] > max[f])
+                        max[f] = other.max[f];
+                    sum[f] += other.sum[f];
+                    count[f] += other.count[f];
+                }
+            }
+        }
+    }
+
+}
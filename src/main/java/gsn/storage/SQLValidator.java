@@ -30,13 +30,17 @@ package gsn.storage;
 
 import gsn.VSensorStateChangeListener;
 import gsn.beans.DataField;
+import gsn.beans.DataTypes;
 import gsn.beans.VSensorConfig;
 
+import java.io.Serializable;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Properties;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.apache.log4j.Logger;
 import org.h2.command.CommandInterface;
@@ -78,7 +82,7 @@ public class SQLValidator implements VSensorStateChangeListener {
 		executeDDL("CREATE ALIAS UNIX_TIMESTAMP FOR \"java.lang.System.currentTimeMillis()\"");
 	}
 
-	public void executeDDL(String ddl) throws SQLException {
+	public synchronized void executeDDL(String ddl) throws SQLException {
 		CommandInterface command = session.prepareCommand(ddl, 0);
 		command.executeUpdate();
 	}
@@ -120,7 +124,7 @@ public class SQLValidator implements VSensorStateChangeListener {
 	 * @param query to validate.
 	 * @return Null if the validation fails. The name of the table if the validation succeeds.
 	 */
-	public  String validateQuery(String query) {
+	public synchronized String validateQuery(String query) {
 		Select select = queryToSelect(query);
 		if (select ==null)
 			return null;
@@ -129,7 +133,7 @@ public class SQLValidator implements VSensorStateChangeListener {
 		return select.getTables().iterator().next().getName();
 	}
 
-	public  DataField[] extractSelectColumns(String query, VSensorConfig vSensorConfig) {
+	public synchronized DataField[] extractSelectColumns(String query, VSensorConfig vSensorConfig) {
 		Select select = queryToSelect(query);
 		if (select ==null)
 			return new DataField[0];
@@ -138,7 +142,7 @@ public class SQLValidator implements VSensorStateChangeListener {
 	}
 	
 	//to allow the use of queries over models and not only VS
-	public  DataField[] extractSelectColumns(String query, DataField[] datafields) {
+	public synchronized DataField[] extractSelectColumns(String query, DataField[] datafields) {
 		Select select = queryToSelect(query);
 		if (select ==null)
 			return new DataField[0];
@@ -147,6 +151,99 @@ public class SQLValidator implements VSensorStateChangeListener {
 	}
 
 
+	private static final Pattern IN_MEMORY_QUERY = Pattern.compile("^select\\s+(.+?)\\s+from\\s+(\\w+)(\\s+where\\s+(.+))?$", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+	private static final Pattern IN_MEMORY_CONDITION = Pattern.compile("^(\\w+)\\s*(<=|>=|<>|!=|=|<|>)\\s*(-?\\d+(\\.\\d+)?([eE][-+]?\\d+)?|'[^']*')$");
+
+	private static final Pattern IN_MEMORY_UNSUPPORTED = Pattern.compile("[()\"]|\\b(or|not|like|between|in|is|distinct|top|as|case|null)\\b", Pattern.CASE_INSENSITIVE);
+
+	/**
+	 * Returns a query which can be evaluated in memory on the stream elements of the given structure, or null
+	 * if the query is not a plain projection, optionally with a conjunction of comparisons between fields and
+	 * constants (e.g., <code>select a, b from vs where a &gt; 3 and c = 'x'</code>).
+	 */
+	public InMemoryQuery toInMemoryQuery(String query, DataField[] structure) {
+		try {
+			if (queryToSelect(query) == null)
+				return null;
+		} catch (Exception e) {
+			logger.debug(e.getMessage(), e);
+			return null;
+		}
+		String withoutStrings = removeSingleQuotes(query);
+		if (IN_MEMORY_UNSUPPORTED.matcher(withoutStrings).find())
+			return null;
+		Matcher m = IN_MEMORY_QUERY.matcher(query.trim());
+		if (!m.matches())
+			return null;
+		ArrayList<String> names = new ArrayList<String>();
+		ArrayList<Byte> types = new ArrayList<Byte>();
+		for (String column : m.group(1).split(",")) {
+			column = column.trim();
+			if (column.equals("*")) {
+				for (DataField field : structure) {
+					names.add(field.getName().toLowerCase());
+					types.add(field.getDataTypeID());
+				}
+				continue;
+			}
+			if (column.equalsIgnoreCase("timed") || column.equalsIgnoreCase("pk"))
+				continue;
+			DataField field = findField(column, structure);
+			if (field == null)
+				return null;
+			names.add(field.getName().toLowerCase());
+			types.add(field.getDataTypeID());
+		}
+		ArrayList<String> conditionFields = new ArrayList<String>();
+		ArrayList<Byte> operators = new ArrayList<Byte>();
+		ArrayList<Serializable> values = new ArrayList<Serializable>();
+		if (m.group(4) != null) {
+			for (String condition : m.group(4).trim().split("(?i)\\s+and\\s+")) {
+				Matcher c = IN_MEMORY_CONDITION.matcher(condition.trim());
+				if (!c.matches())
+					return null;
+				String field = c.group(1);
+				String op = c.group(2);
+				String constant = c.group(3);
+				boolean isString = constant.startsWith("'");
+				if (isString && !(op.equals("=") || op.equals("<>") || op.equals("!=")))
+					return null; // string ordering depends on the collation of the database.
+				// The database converts the values compared to a constant of another type, the stream elements don't.
+				if (field.equalsIgnoreCase("timed") || field.equalsIgnoreCase("pk")) {
+					if (isString)
+						return null;
+				} else {
+					DataField dataField = findField(field, structure);
+					if (dataField == null || (isString ? dataField.getDataTypeID() != DataTypes.VARCHAR : !isNumeric(dataField.getDataTypeID())))
+						return null;
+				}
+				conditionFields.add(field);
+				operators.add(op.equals("=") ? InMemoryQuery.EQ : op.equals("<>") || op.equals("!=") ? InMemoryQuery.NE : op.equals("<") ? InMemoryQuery.LT : op.equals("<=") ? InMemoryQuery.LE : op.equals(">") ? InMemoryQuery.GT : InMemoryQuery.GE);
+				values.add(isString ? constant.substring(1, constant.length() - 1) : (Serializable) Double.valueOf(constant));
+			}
+		}
+		byte[] ops = new byte[operators.size()];
+		for (int i = 0; i < ops.length; i++)
+			ops[i] = operators.get(i);
+		return new InMemoryQuery(names.toArray(new String[names.size()]), types.toArray(new Byte[types.size()]),
+				conditionFields.toArray(new String[conditionFields.size()]), ops, values.toArray(new Serializable[values.size()]));
+	}
+
+	/**
+	 * The FLOAT fields are left out: the database compares them to the constants with their decimal value.
+	 */
+	private static boolean isNumeric(byte type) {
+		return type == DataTypes.TINYINT || type == DataTypes.SMALLINT || type == DataTypes.INTEGER || type == DataTypes.BIGINT || type == DataTypes.DOUBLE;
+	}
+
+	private static DataField findField(String name, DataField[] structure) {
+		for (DataField field : structure)
+			if (field.getName().equalsIgnoreCase(name))
+				return field;
+		return null;
+	}
+
 	public Connection getSampleConnection() {
 		return connection;
 	}
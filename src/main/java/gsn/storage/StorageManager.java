@@ -45,6 +45,7 @@ import gsn.utils.ValidityTools;
 import java.io.Serializable;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.List;
 
 import org.apache.commons.dbcp.*;
 import org.apache.log4j.Logger;
@@ -53,10 +54,17 @@ public abstract class StorageManager {
 
     private static final transient Logger logger = Logger.getLogger(StorageManager.class);
 
+    /**
+     * Number of rows fetched at once by the streamed queries.
+     */
+    protected static final int STREAMED_FETCH_SIZE = 1000;
+
     private String databaseDriver;
 
     private BasicDataSource pool;
 
+    private volatile InsertBatcher insertBatcher;
+
     public void init(String databaseDriver, String username, String password, String databaseURL, int maxDBConnections) {
         this.databaseDriver = databaseDriver;
         pool = DataSources.getDataSource(new DBConnectionInfo(databaseDriver,databaseURL,username,password));
@@ -376,6 +384,8 @@ public abstract class StorageManager {
      * @throws SQLException
      */
     public void shutdown() throws SQLException {
+        if (insertBatcher != null)
+            insertBatcher.close();
         logger.warn("Closing the connection pool [done].");
     }
 
@@ -489,6 +499,16 @@ public abstract class StorageManager {
         return connection.prepareStatement(query.toString()).executeQuery();
     }
 
+    /**
+     * Executes the query with a forward only result set, fetched by chunks when the driver supports it.
+     * Attention: Caller should close the result set and the connection.
+     */
+    public ResultSet streamedExecuteQueryWithResultSet(StringBuilder query, Connection connection) throws SQLException {
+        PreparedStatement ps = connection.prepareStatement(query.toString(), ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+        ps.setFetchSize(STREAMED_FETCH_SIZE);
+        return ps.executeQuery();
+    }
+
     public ResultSet executeQueryWithResultSet(AbstractQuery abstractQuery, Connection c) throws SQLException {
         if (abstractQuery.getLimitCriterion() == null) {
             return executeQueryWithResultSet(abstractQuery.getStandardQuery(), c);
@@ -536,8 +556,14 @@ public abstract class StorageManager {
         return executeQuery(query, binaryFieldsLinked, getConnection());
     }
 
+    /**
+     * Same as {@link #streamedExecuteQueryWithResultSet(StringBuilder, Connection)}, the rows are read through a
+     * data enumerator, which closes the connection.
+     */
     public DataEnumerator streamedExecuteQuery(String query, boolean binaryFieldsLinked, Connection conn) throws SQLException {
-        return new DataEnumerator(this, conn.prepareStatement(query), binaryFieldsLinked);
+        PreparedStatement ps = conn.prepareStatement(query, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+        ps.setFetchSize(STREAMED_FETCH_SIZE);
+        return new DataEnumerator(this, ps, binaryFieldsLinked);
     }
 
 
@@ -594,13 +620,14 @@ public abstract class StorageManager {
 
     public int executeUpdate(String updateStatement, Connection connection) {
         int toReturn = -1;
-        //PreparedStatement prepareStatement = null;
+        PreparedStatement prepareStatement = null;
         try {
-            //prepareStatement = connection.prepareStatement(updateStatement);
-            //toReturn = prepareStatement.executeUpdate();
-            toReturn = connection.createStatement().executeUpdate(updateStatement);
+            prepareStatement = connection.prepareStatement(updateStatement);
+            toReturn = prepareStatement.executeUpdate();
         } catch (SQLException error) {
             logger.error(error.getMessage(), error);
+        } finally {
+            close(prepareStatement);
         }
         return toReturn;
     }
@@ -621,91 +648,79 @@ public abstract class StorageManager {
         }
     }
 
+    /**
+     * Inserts the stream element. If the batched inserts are enabled (see {@link #enableInsertBatching(int, long)}),
+     * the element is only queued and written by the next flush, the failure of its insert is thrown by the next
+     * insert into the same table.
+     */
     public void executeInsert(CharSequence tableName, DataField[] fields, StreamElement se) throws SQLException {
+        executeInsert(tableName, fields, se, (InsertBatcher.CommitListener) null);
+    }
+
+    /**
+     * Same as {@link #executeInsert(CharSequence, DataField[], StreamElement)}, the listener (if not null) is
+     * notified once the stream element is visible in the database.
+     */
+    public void executeInsert(CharSequence tableName, DataField[] fields, StreamElement se, InsertBatcher.CommitListener listener) throws SQLException {
+        InsertBatcher batcher = insertBatcher;
+        if (batcher != null) {
+            batcher.add(tableName, fields, se, listener);
+        } else {
+            executeInsertDirectly(tableName, fields, se);
+            if (listener != null)
+                listener.committed(se);
+        }
+    }
+
+    /**
+     * Inserts the stream element right away (bypassing the batched inserts) and sets its internal primary key.
+     */
+    public void executeInsertDirectly(CharSequence tableName, DataField[] fields, StreamElement se) throws SQLException {
         Connection connection = null;
         try {
             connection = getConnection();
-            executeInsert(tableName, fields, se, connection);
+            executeInsert(tableName, fields, se, connection, true);
         } finally {
             close(connection);
         }
     }
 
     public void executeInsert(CharSequence tableName, DataField[] fields, StreamElement streamElement, Connection connection) throws SQLException {
+        executeInsert(tableName, fields, streamElement, connection, false);
+    }
+
+    /**
+     * Inserts the stream elements with a single JDBC batch on the provided connection.
+     */
+    public void executeBatchInsert(CharSequence tableName, DataField[] fields, List<StreamElement> streamElements, Connection connection) throws SQLException {
+        if (streamElements.isEmpty())
+            return;
         PreparedStatement ps = null;
         String query = getStatementInsert(tableName, fields).toString();
         try {
             ps = connection.prepareStatement(query);
-            int counter = 1;
-            for (DataField dataField : fields) {
-                if (dataField.getName().equalsIgnoreCase("timed"))
-                    continue;
-                Serializable value = streamElement.getData(dataField.getName());
-
-                switch (dataField.getDataTypeID()) {
-                    case DataTypes.VARCHAR:
-                        if (value == null)
-                            ps.setNull(counter, Types.VARCHAR);
-                        else
-                            ps.setString(counter, value.toString());
-                        break;
-                    case DataTypes.CHAR:
-                        if (value == null)
-                            ps.setNull(counter, Types.CHAR);
-                        else
-                            ps.setString(counter, value.toString());
-                        break;
-                    case DataTypes.INTEGER:
-                        if (value == null)
-                            ps.setNull(counter, Types.INTEGER);
-                        else
-                            ps.setInt(counter, ((Number) value).intValue());
-                        break;
-                    case DataTypes.SMALLINT:
-                        if (value == null)
-                            ps.setNull(counter, Types.SMALLINT);
-                        else
-                            ps.setShort(counter, ((Number) value).shortValue());
-                        break;
-                    case DataTypes.TINYINT:
-                        if (value == null)
-                            ps.setNull(counter, Types.TINYINT);
-                        else
-                            ps.setByte(counter, ((Number) value).byteValue());
-                        break;
-                    case DataTypes.DOUBLE:
-                        if (value == null)
-                            ps.setNull(counter, Types.DOUBLE);
-                        else
-                            ps.setDouble(counter, ((Number) value).doubleValue());
-                        break;
-                    case DataTypes.FLOAT:
-                        if (value == null)
-                            ps.setNull(counter, Types.FLOAT);
-                        else
-                            ps.setFloat(counter, ((Number) value).floatValue());
-                        break;
-                    case DataTypes.BIGINT:
-                        if (value == null)
-                            ps.setNull(counter, Types.BIGINT);
-                        else
-                            ps.setLong(counter, ((Number) value).longValue());
-                        break;
-                    case DataTypes.BINARY:
-                        if (value == null)
-                            ps.setNull(counter, Types.BINARY);
-                        else
-                            ps.setBytes(counter, (byte[]) value);
-                        break;
-                    default:
-                        logger.error("The type conversion is not supported for : "
-                                + dataField.getName() + "("
-                                + dataField.getDataTypeID() + ") : ");
-                }
-                counter++;
+            for (StreamElement se : streamElements) {
+                bindInsertParameters(ps, fields, se);
+                ps.addBatch();
             }
-            ps.setLong(counter, streamElement.getTimeStamp());
+            ps.executeBatch();
+        } catch (SQLException e) {
+            logger.warn("Error occurred on inserting data to the database, a batch of " + streamElements.size() + " stream elements dropped due to: " + e.getMessage() + ". Query: " + query);
+            throw e;
+        } finally {
+            close(ps);
+        }
+    }
+
+    private void executeInsert(CharSequence tableName, DataField[] fields, StreamElement streamElement, Connection connection, boolean returnPk) throws SQLException {
+        PreparedStatement ps = null;
+        String query = getStatementInsert(tableName, fields).toString();
+        try {
+            ps = returnPk ? connection.prepareStatement(query, Statement.RETURN_GENERATED_KEYS) : connection.prepareStatement(query);
+            bindInsertParameters(ps, fields, streamElement);
             ps.execute();
+            if (returnPk)
+                readGeneratedKeys(ps, new StreamElement[] {streamElement}, 1);
         } catch (GSNRuntimeException e) {
             //if (e.getType() == GSNRuntimeException.UNEXPECTED_VIRTUAL_SENSOR_REMOVAL) {
             //    if (logger.isDebugEnabled())
@@ -725,6 +740,134 @@ public abstract class StorageManager {
         }
     }
 
+    /**
+     * Binds the fields of the stream element to the parameters of a statement generated
+     * by {@link #getStatementInsert(CharSequence, DataField[])}.
+     */
+    protected void bindInsertParameters(PreparedStatement ps, DataField[] fields, StreamElement streamElement) throws SQLException {
+        int counter = 1;
+        for (DataField dataField : fields) {
+            if (dataField.getName().equalsIgnoreCase("timed"))
+                continue;
+            Serializable value = streamElement.getData(dataField.getName());
+
+            switch (dataField.getDataTypeID()) {
+                case DataTypes.VARCHAR:
+                    if (value == null)
+                        ps.setNull(counter, Types.VARCHAR);
+                    else
+                        ps.setString(counter, value.toString());
+                    break;
+                case DataTypes.CHAR:
+                    if (value == null)
+                        ps.setNull(counter, Types.CHAR);
+                    else
+                        ps.setString(counter, value.toString());
+                    break;
+                case DataTypes.INTEGER:
+                    if (value == null)
+                        ps.setNull(counter, Types.INTEGER);
+                    else
+                        ps.setInt(counter, ((Number) value).intValue());
+                    break;
+                case DataTypes.SMALLINT:
+                    if (value == null)
+                        ps.setNull(counter, Types.SMALLINT);
+                    else
+                        ps.setShort(counter, ((Number) value).shortValue());
+                    break;
+                case DataTypes.TINYINT:
+                    if (value == null)
+                        ps.setNull(counter, Types.TINYINT);
+                    else
+                        ps.setByte(counter, ((Number) value).byteValue());
+                    break;
+                case DataTypes.DOUBLE:
+                    if (value == null)
+                        ps.setNull(counter, Types.DOUBLE);
+                    else
+                        ps.setDouble(counter, ((Number) value).doubleValue());
+                    break;
+                case DataTypes.FLOAT:
+                    if (value == null)
+                        ps.setNull(counter, Types.FLOAT);
+                    else
+                        ps.setFloat(counter, ((Number) value).floatValue());
+                    break;
+                case DataTypes.BIGINT:
+                    if (value == null)
+                        ps.setNull(counter, Types.BIGINT);
+                    else
+                        ps.setLong(counter, ((Number) value).longValue());
+                    break;
+                case DataTypes.BINARY:
+                    if (value == null)
+                        ps.setNull(counter, Types.BINARY);
+                    else
+                        ps.setBytes(counter, (byte[]) value);
+                    break;
+                default:
+                    logger.error("The type conversion is not supported for : "
+                            + dataField.getName() + "("
+                            + dataField.getDataTypeID() + ") : ");
+            }
+            counter++;
+        }
+        ps.setLong(counter, streamElement.getTimeStamp());
+    }
+
+    /**
+     * Sets the internal primary key of the inserted stream elements from the keys generated by the database.
+     * The keys are only used if the driver returns exactly one key per inserted row, otherwise they are left unknown.
+     */
+    protected void readGeneratedKeys(Statement stmt, StreamElement[] inserted, int count) {
+        ResultSet keys = null;
+        try {
+            keys = stmt.getGeneratedKeys();
+            long[] pks = new long[count];
+            int i = 0;
+            while (keys.next()) {
+                if (i == count)
+                    return;
+                pks[i++] = keys.getLong(1);
+            }
+            if (i != count)
+                return;
+            for (i = 0; i < count; i++)
+                inserted[i].setInternalPrimayKey(pks[i]);
+        } catch (SQLException e) {
+            logger.debug("Generated keys are not available: " + e.getMessage());
+        } finally {
+            close(keys);
+        }
+    }
+
+    /**
+     * Enables the batched insert mode for this storage manager. The inserts done through
+     * {@link #executeInsert(CharSequence, DataField[], StreamElement)} are grouped per table
+     * and written using JDBC batches, at most <code>maxBatchSize</code> rows at once and at
+     * most <code>maxLingerMillis</code> after they were queued.
+     */
+    public synchronized void enableInsertBatching(int maxBatchSize, long maxLingerMillis) {
+        if (insertBatcher != null)
+            insertBatcher.close();
+        insertBatcher = new InsertBatcher(this, maxBatchSize, maxLingerMillis);
+        logger.info("Batched inserts enabled for " + getJDBCPrefix() + " (max batch size: " + maxBatchSize + ", max linger: " + maxLingerMillis + " ms).");
+    }
+
+    public boolean isInsertBatchingEnabled() {
+        return insertBatcher != null;
+    }
+
+    /**
+     * Writes the queued inserts synchronously. Does nothing if the batched inserts are not enabled.
+     */
+    public void flushInserts() {
+        InsertBatcher batcher = insertBatcher;
+        if (batcher != null)
+            batcher.flush();
+    }
+
     /***************************************************************************
      * Statement Generators
      **************************************************************************/
@@ -245,4 +245,11 @@ public class MySQLStorageManager extends StorageManager {
         return new DataEnumerator(this, ps, binaryFieldsLinked);
     }
 
+    @Override
+    public ResultSet streamedExecuteQueryWithResultSet(StringBuilder query, Connection connection) throws SQLException {
+        PreparedStatement ps = connection.prepareStatement(query.toString(), java.sql.ResultSet.TYPE_FORWARD_ONLY, java.sql.ResultSet.CONCUR_READ_ONLY);
+        ps.setFetchSize(Integer.MIN_VALUE);
+        return ps.executeQuery();
+    }
+
 }
@@ -51,7 +51,8 @@ public class Utils {
 		int mIndex = s.indexOf( "m" );
 		int hIndex = s.indexOf( "h" );
 		int sIndex = s.indexOf( "s" );
-		if ( mIndex < 0 && hIndex < 0 && sIndex < 0 ) {
+		int dIndex = s.indexOf( "d" );
+		if ( mIndex < 0 && hIndex < 0 && sIndex < 0 && dIndex < 0 ) {
 			return new Pair<Boolean,Long>(false,Long.parseLong(s));
 		} else {
 			StringBuilder shs = new StringBuilder(s);
@@ -59,6 +60,7 @@ public class Utils {
 			if ( mIndex >= 0 && mIndex == shs.length() - 1) value = Long.parseLong( shs.deleteCharAt( mIndex ).toString( ) ) * 60000;
 			else if ( hIndex >= 0 && hIndex == shs.length() - 1) value = Long.parseLong( shs.deleteCharAt( hIndex ).toString( ) ) * 3600000;
 			else if ( sIndex >= 0 && sIndex == shs.length() - 1) value = Long.parseLong( shs.deleteCharAt( sIndex ).toString( ) ) * 1000;
+			else if ( dIndex >= 0 && dIndex == shs.length() - 1) value = Long.parseLong( shs.deleteCharAt( dIndex ).toString( ) ) * 86400000;
 			else throw new NumberFormatException("unable to pasre window size :"+shs);
 			return new Pair<Boolean,Long>(true,value);
 		} 
@@ -0,0 +1,409 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/utils/geo/GridCodec.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.utils.geo;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Binary encoding of the grids stored by GridDataWrapper, GridModelVS and GridModelDataPredictVS.
+ * <p/>
+ * Layout (big endian): the magic number "GRID", the version, the type of the values ({@link #DOUBLE} or
+ * {@link #FLOAT}), the flags, a reserved byte, the number of rows, the number of columns and the tile size
+ * (0 when the grid is not tiled). The payload holds the tiles in row-major order, and the values of each tile
+ * in row-major order, a grid which is not tiled being a single tile. When the grid is compressed, each tile is
+ * deflated on its own and the header is followed by the offsets of the tiles in the payload.
+ * <p/>
+ * A cell or a sub-grid is read without decoding the rest of the grid: only the rows of the tiles which are needed
+ * are read, or the tiles which are needed are inflated when the grid is compressed. The null (missing) values are
+ * encoded as a NaN with a payload of its own: {@link #decode(byte[])} and {@link #decodeSubGrid(byte[], int, int, int, int)}
+ * give them back as null, the reads into primitive doubles as NaN.
+ * The grids serialized as Double[][] by the former versions are recognized and read transparently.
+ * <p/>
+ * The defaults of {@link #encode(Double[][])} can be changed with -DgridPrecision=float, -DgridTileSize=N and
+ * -DgridCompression=true. The compression should be used together with tiles, otherwise a cell read inflates the whole grid.
+ */
+public class GridCodec {
+
+    public static final int MAGIC = 0x47524944; // "GRID"
+
+    public static final byte VERSION = 1;
+
+    public static final byte DOUBLE = 0;
+
+    public static final byte FLOAT = 1;
+
+    public static final int HEADER_SIZE = 20;
+
+    private static final byte COMPRESSED = 1;
+
+    /**
+     * The bits of the null values, a NaN which differs from Double.NaN and Float.NaN.
+     */
+    private static final long MISSING_DOUBLE = 0x7ff8000000000001L;
+
+    private static final int MISSING_FLOAT = 0x7fc00001;
+
+    /**
+     * Encodes the grid with the default type, tile size and compression.
+     */
+    public static byte[] encode(Double[][] grid) {
+        byte type = "float".equalsIgnoreCase(System.getProperty("gridPrecision")) ? FLOAT : DOUBLE;
+        int tileSize = System.getProperty("gridTileSize") == null ? 0 : Integer.parseInt(System.getProperty("gridTileSize"));
+        boolean compressed = Boolean.parseBoolean(System.getProperty("gridCompression"));
+        return encode(grid, type, tileSize, compressed);
+    }
+
+    /**
+     * @param grid     the values, grid[row][column], null values being allowed.
+     * @param type     {@link #DOUBLE} or {@link #FLOAT}.
+     * @param tileSize the number of rows and columns of the tiles, 0 for a grid which is not tiled.
+     */
+    public static byte[] encode(Double[][] grid, byte type, int tileSize, boolean compressed) {
+        int rows = grid.length;
+        int cols = rows == 0 ? 0 : grid[0].length;
+        Header header = new Header(type, compressed, rows, cols, tileSize);
+
+        int tiles = header.tilesDown * header.tilesAcross;
+        int[] offsets = compressed ? new int[tiles + 1] : null;
+        Deflater deflater = compressed ? new Deflater(Deflater.BEST_SPEED) : null;
+        byte[] packed = compressed ? new byte[8192] : null;
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(compressed ? 1024 : rows * cols * header.elementSize);
+        byte[] raw = new byte[header.tileRows * header.tileCols * header.elementSize];
+        ByteBuffer buffer = ByteBuffer.wrap(raw);
+        try {
+            int tile = 0;
+            for (int ty = 0; ty < header.tilesDown; ty++) {
+                int top = ty * header.tileRows;
+                int height = Math.min(header.tileRows, rows - top);
+                for (int tx = 0; tx < header.tilesAcross; tx++) {
+                    int left = tx * header.tileCols;
+                    int width = Math.min(header.tileCols, cols - left);
+                    buffer.clear();
+                    for (int y = top; y < top + height; y++)
+                        for (int x = left; x < left + width; x++) {
+                            header.put(buffer, grid[y][x]);
+                        }
+                    if (compressed) {
+                        deflater.reset();
+                        deflater.setInput(raw, 0, buffer.position());
+                        deflater.finish();
+                        while (!deflater.finished())
+                            payload.write(packed, 0, deflater.deflate(packed));
+                        offsets[++tile] = payload.size();
+                    } else
+                        payload.write(raw, 0, buffer.position());
+                }
+            }
+        } finally {
+            if (deflater != null)
+                deflater.end();
+        }
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(HEADER_SIZE + (compressed ? (tiles + 1) * 4 : 0) + payload.size());
+        DataOutputStream out = new DataOutputStream(bos);
+        try {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeByte(type);
+            out.writeByte(compressed ? COMPRESSED : 0);
+            out.writeByte(0);
+            out.writeInt(rows);
+            out.writeInt(cols);
+            out.writeInt(tileSize);
+            if (compressed)
+                for (int offset : offsets)
+                    out.writeInt(offset);
+            payload.writeTo(out);
+            out.flush();
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // writing to memory
+        }
+        return bos.toByteArray();
+    }
+
+    /**
+     * @return true when the bytes hold a grid in this encoding, false for a legacy serialized grid.
+     */
+    public static boolean isEncoded(byte[] bytes) {
+        return bytes.length >= HEADER_SIZE && ByteBuffer.wrap(bytes).getInt(0) == MAGIC;
+    }
+
+    /**
+     * Decodes the whole grid, the null values being decoded as null and the NaN values as NaN.
+     */
+    public static Double[][] decode(byte[] bytes) throws IOException {
+        if (!isEncoded(bytes))
+            return deSerialize(new ByteArrayInputStream(bytes));
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        Header header = readHeader(in);
+        if (header.rows == 0 || header.cols == 0)
+            return new Double[header.rows][header.cols];
+        return read(in, header, 0, header.cols - 1, 0, header.rows - 1);
+    }
+
+    /**
+     * @return the values of the columns xmin to xmax and of the rows ymin to ymax (inclusive), indexed [row][column],
+     * the null values being decoded as null.
+     */
+    public static Double[][] decodeSubGrid(byte[] bytes, int xmin, int xmax, int ymin, int ymax) throws IOException {
+        if (!isEncoded(bytes)) {
+            Double[][] grid = deSerialize(new ByteArrayInputStream(bytes));
+            Double[][] values = new Double[ymax - ymin + 1][];
+            for (int y = ymin; y <= ymax; y++)
+                values[y - ymin] = Arrays.copyOfRange(grid[y], xmin, xmax + 1);
+            return values;
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        return read(in, readHeader(in), xmin, xmax, ymin, ymax);
+    }
+
+    /**
+     * @return the value of the cell at column x and row y, NaN if it is null.
+     */
+    public static double readCell(byte[] bytes, int x, int y) throws IOException {
+        return readCell(new ByteArrayInputStream(bytes), x, y);
+    }
+
+    /**
+     * Reads the value of the cell at column x and row y (NaN if it is null), skipping the bytes which are not needed.
+     */
+    public static double readCell(InputStream input, int x, int y) throws IOException {
+        return readSubGrid(input, x, x, y, y)[0][0];
+    }
+
+    /**
+     * @return the values of the columns xmin to xmax and of the rows ymin to ymax (inclusive), indexed [row][column],
+     * the null values being read as NaN.
+     */
+    public static double[][] readSubGrid(byte[] bytes, int xmin, int xmax, int ymin, int ymax) throws IOException {
+        return readSubGrid(new ByteArrayInputStream(bytes), xmin, xmax, ymin, ymax);
+    }
+
+    /**
+     * Reads the values of the columns xmin to xmax and of the rows ymin to ymax (inclusive, null values being read as NaN),
+     * skipping the bytes which are not needed.
+     */
+    public static double[][] readSubGrid(InputStream input, int xmin, int xmax, int ymin, int ymax) throws IOException {
+        if (!input.markSupported())
+            input = new BufferedInputStream(input);
+        input.mark(4);
+        DataInputStream in = new DataInputStream(input);
+        int magic = in.readInt();
+        input.reset();
+        Double[][] grid;
+        if (magic != MAGIC) {
+            grid = deSerialize(input);
+        } else {
+            grid = read(in, readHeader(in), xmin, xmax, ymin, ymax);
+            xmax -= xmin;
+            ymax -= ymin;
+            xmin = ymin = 0;
+        }
+        double[][] values = new double[ymax - ymin + 1][xmax - xmin + 1];
+        for (int y = ymin; y <= ymax; y++)
+            for (int x = xmin; x <= xmax; x++)
+                values[y - ymin][x - xmin] = grid[y][x] == null ? Double.NaN : grid[y][x];
+        return values;
+    }
+
+    private static Double[][] deSerialize(InputStream input) throws IOException {
+        ObjectInputStream in = new ObjectInputStream(input);
+        try {
+            return (Double[][]) in.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Not a serialized grid: " + e.getMessage(), e);
+        } catch (ClassCastException e) {
+            throw new IOException("Not a serialized grid: " + e.getMessage(), e);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static Header readHeader(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC)
+            throw new IOException("Not an encoded grid.");
+        byte version = in.readByte();
+        if (version > VERSION)
+            throw new IOException("Unsupported version of the grid encoding: " + version);
+        byte type = in.readByte();
+        boolean compressed = (in.readByte() & COMPRESSED) != 0;
+        in.readByte();
+        int rows = in.readInt();
+        int cols = in.readInt();
+        int tileSize = in.readInt();
+        Header header = new Header(type, compressed, rows, cols, tileSize);
+        if (compressed) {
+            header.offsets = new int[header.tilesDown * header.tilesAcross + 1];
+            for (int i = 0; i < header.offsets.length; i++)
+                header.offsets[i] = in.readInt();
+        }
+        return header;
+    }
+
+    /**
+     * Reads a sub-grid from the payload, the tiles being visited in the order in which they are stored.
+     */
+    private static Double[][] read(DataInputStream in, Header header, int xmin, int xmax, int ymin, int ymax) throws IOException {
+        if (xmin < 0 || ymin < 0 || xmax >= header.cols || ymax >= header.rows || xmin > xmax || ymin > ymax)
+            throw new IndexOutOfBoundsException("[" + xmin + ", " + xmax + "] x [" + ymin + ", " + ymax + "] is not within a grid of "
+                    + header.cols + " columns and " + header.rows + " rows.");
+        Double[][] values = new Double[ymax - ymin + 1][xmax - xmin + 1];
+        long position = 0; // in the payload
+        Inflater inflater = header.compressed ? new Inflater() : null;
+        try {
+            for (int ty = ymin / header.tileRows; ty <= ymax / header.tileRows; ty++) {
+                int top = ty * header.tileRows;
+                int height = Math.min(header.tileRows, header.rows - top);
+                int firstRow = Math.max(ymin, top);
+                int lastRow = Math.min(ymax, top + height - 1);
+                for (int tx = xmin / header.tileCols; tx <= xmax / header.tileCols; tx++) {
+                    int left = tx * header.tileCols;
+                    int width = Math.min(header.tileCols, header.cols - left);
+                    int firstCol = Math.max(xmin, left);
+                    int lastCol = Math.min(xmax, left + width - 1);
+                    if (header.compressed) {
+                        int tile = ty * header.tilesAcross + tx;
+                        position = skip(in, position, header.offsets[tile]);
+                        byte[] packed = new byte[header.offsets[tile + 1] - header.offsets[tile]];
+                        in.readFully(packed);
+                        position += packed.length;
+                        ByteBuffer raw = ByteBuffer.wrap(inflate(inflater, packed, width * height * header.elementSize));
+                        for (int y = firstRow; y <= lastRow; y++)
+                            for (int x = firstCol; x <= lastCol; x++)
+                                values[y - ymin][x - xmin] = header.get(raw, ((y - top) * width + x - left) * header.elementSize);
+                    } else {
+                        long tileOffset = ((long) top * header.cols + (long) left * height) * header.elementSize;
+                        byte[] row = new byte[(lastCol - firstCol + 1) * header.elementSize];
+                        ByteBuffer buffer = ByteBuffer.wrap(row);
+                        for (int y = firstRow; y <= lastRow; y++) {
+                            position = skip(in, position, tileOffset + ((long) (y - top) * width + firstCol - left) * header.elementSize);
+                            in.readFully(row);
+                            position += row.length;
+                            for (int x = firstCol; x <= lastCol; x++)
+                                values[y - ymin][x - xmin] = header.get(buffer, (x - firstCol) * header.elementSize);
+                        }
+                    }
+                }
+            }
+        } finally {
+            if (inflater != null)
+                inflater.end();
+        }
+        return values;
+    }
+
+    private static long skip(DataInputStream in, long position, long target) throws IOException {
+        if (target < position)
+            throw new IOException("Corrupted grid: the tiles are not in order.");
+        long remaining = target - position;
+        while (remaining > 0) {
+            int skipped = in.skipBytes((int) Math.min(remaining, Integer.MAX_VALUE));
+            if (skipped <= 0)
+                throw new EOFException("Truncated grid.");
+            remaining -= skipped;
+        }
+        return target;
+    }
+
+    private static byte[] inflate(Inflater inflater, byte[] packed, int length) throws IOException {
+        byte[] raw = new byte[length];
+        inflater.reset();
+        inflater.setInput(packed);
+        try {
+            int n = 0;
+            while (n < length && !inflater.finished()) {
+                int inflated = inflater.inflate(raw, n, length - n);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    break;
+                n += inflated;
+            }
+            if (n < length)
+                throw new EOFException("Truncated tile in the grid.");
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupted tile in the grid: " + e.getMessage(), e);
+        }
+        return raw;
+    }
+
+    private static class Header {
+
+        final byte type;
+        final boolean compressed;
+        final int rows;
+        final int cols;
+        final int elementSize;
+        final int tileRows;
+        final int tileCols;
+        final int tilesDown;
+        final int tilesAcross;
+        int[] offsets;
+
+        Header(byte type, boolean compressed, int rows, int cols, int tileSize) {
+            if (type != DOUBLE && type != FLOAT)
+                throw new IllegalArgumentException("Unknown type of grid values: " + type);
+            if (rows < 0 || cols < 0 || tileSize < 0)
+                throw new IllegalArgumentException("Invalid grid dimensions: " + rows + "x" + cols + ", tiles of " + tileSize);
+            this.type = type;
+            this.compressed = compressed;
+            this.rows = rows;
+            this.cols = cols;
+            elementSize = type == DOUBLE ? 8 : 4;
+            tileRows = tileSize > 0 ? tileSize : Math.max(1, rows);
+            tileCols = tileSize > 0 ? tileSize : Math.max(1, cols);
+            tilesDown = (rows + tileRows - 1) / tileRows;
+            tilesAcross = (cols + tileCols - 1) / tileCols;
+        }
+
+        void put(ByteBuffer buffer, Double value) {
+            if (type == DOUBLE)
+                buffer.putLong(value == null ? MISSING_DOUBLE : Double.doubleToRawLongBits(value));
+            else
+                buffer.putInt(value == null ? MISSING_FLOAT : Float.floatToRawIntBits(value.floatValue()));
+        }
+
+        Double get(ByteBuffer buffer, int index) {
+            if (type == DOUBLE) {
+                long bits = buffer.getLong(index);
+                return bits == MISSING_DOUBLE ? null : Double.longBitsToDouble(bits);
+            }
+            int bits = buffer.getInt(index);
+            return bits == MISSING_FLOAT ? null : (double) Float.intBitsToFloat(bits);
+        }
+    }
+}
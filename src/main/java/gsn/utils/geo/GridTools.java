@@ -32,9 +32,8 @@ import org.apache.log4j.Logger;
 import org.json.JSONArray;
 import org.json.simple.JSONObject;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
+import java.io.InputStream;
 import java.sql.*;
 import java.util.HashMap;
 import java.util.Map;
@@ -48,18 +47,12 @@ public class GridTools {
         StringBuilder sb = new StringBuilder();
 
         try {
-            ByteArrayInputStream bis = new ByteArrayInputStream(bytes);
-            ObjectInputStream in = null;
+            Double deserial[][] = GridCodec.decode(bytes);
 
-            in = new ObjectInputStream(bis);
-
-            Double deserial[][] = new Double[0][];
-
-            deserial = (Double[][]) in.readObject();
-            in.close();
-
-            logger.debug("deserial.length" + deserial.length);
-            logger.debug("deserial[0].length" + deserial[0].length);
+            if (logger.isDebugEnabled()) {
+                logger.debug("deserial.length" + deserial.length);
+                logger.debug("deserial[0].length" + deserial[0].length);
+            }
 
             for (int i = 0; i < deserial.length; i++) {
 
@@ -71,8 +64,6 @@ public class GridTools {
 
         } catch (IOException e) {
             logger.warn(e);
-        } catch (ClassNotFoundException e) {
-            logger.warn(e);
         }
 
         return sb.toString();
@@ -80,29 +71,28 @@ public class GridTools {
 
     public static double deSerializeToCell(byte[] bytes, int xcell, int ycell) {
 
-        StringBuilder sb = new StringBuilder();
         double value = 0;
 
         try {
-            ByteArrayInputStream bis = new ByteArrayInputStream(bytes);
-            ObjectInputStream in = null;
-
-            in = new ObjectInputStream(bis);
-
-            Double deserial[][] = new Double[0][];
+            value = GridCodec.readCell(bytes, xcell, ycell);
+        } catch (IOException e) {
+            logger.warn(e);
+        }
 
-            deserial = (Double[][]) in.readObject();
-            in.close();
+        return value;
+    }
 
-            logger.debug("deserial.length" + deserial.length);
-            logger.debug("deserial[0].length" + deserial[0].length);
+    /*
+    * reads a single cell from a stream, only the bytes before the cell are read (and skipped)
+    * */
+    public static double deSerializeToCell(InputStream stream, int xcell, int ycell) {
 
-            value = deserial[ycell][xcell];
+        double value = 0;
 
+        try {
+            value = GridCodec.readCell(stream, xcell, ycell);
         } catch (IOException e) {
             logger.warn(e);
-        } catch (ClassNotFoundException e) {
-            logger.warn(e);
         }
 
         return value;
@@ -113,31 +103,18 @@ public class GridTools {
         StringBuilder sb = new StringBuilder();
 
         try {
-            ByteArrayInputStream bis = new ByteArrayInputStream(bytes);
-            ObjectInputStream in = null;
-
-            in = new ObjectInputStream(bis);
-
-            Double deserial[][] = new Double[0][];
-
-            deserial = (Double[][]) in.readObject();
-            in.close();
+            Double[][] subgrid = GridCodec.decodeSubGrid(bytes, xmin, xmax, ymin, ymax);
 
-            logger.debug("deserial.length" + deserial.length);
-            logger.debug("deserial[0].length" + deserial[0].length);
+            for (int i = 0; i < subgrid.length; i++) {
 
-            for (int i = ymin; i <= ymax; i++) {
-
-                for (int j = xmin; j <= xmax; j++) {
-                    sb.append(deserial[i][j]).append(" ");
+                for (int j = 0; j < subgrid[i].length; j++) {
+                    sb.append(subgrid[i][j]).append(" ");
                 }
                 sb.append("\n");
             }
 
         } catch (IOException e) {
             logger.warn(e);
-        } catch (ClassNotFoundException e) {
-            logger.warn(e);
         }
 
         return sb.toString();
@@ -151,31 +128,23 @@ public class GridTools {
         Double deserial[][] = new Double[0][];
 
         try {
-            ByteArrayInputStream bis = new ByteArrayInputStream(bytes);
-            ObjectInputStream in = null;
-
-            in = new ObjectInputStream(bis);
-
-            deserial = (Double[][]) in.readObject();
-            in.close();
+            deserial = GridCodec.decode(bytes);
 
             if (logger.isDebugEnabled()) {
                 logger.debug("deserial.length" + deserial.length);
                 logger.debug("deserial[0].length" + deserial[0].length);
-            }
 
-            for (int i = 0; i < deserial.length; i++) {
-                StringBuilder sb = new StringBuilder();
-                for (int j = 0; j < deserial[0].length; j++) {
-                    sb.append(deserial[i][j]).append(" ");
+                for (int i = 0; i < deserial.length; i++) {
+                    StringBuilder sb = new StringBuilder();
+                    for (int j = 0; j < deserial[0].length; j++) {
+                        sb.append(deserial[i][j]).append(" ");
+                    }
+                    logger.debug(sb.toString());
                 }
-                logger.debug(sb.toString());
             }
 
         } catch (IOException e) {
             logger.error(e.getMessage(), e);
-        } catch (ClassNotFoundException e) {
-            logger.error(e.getMessage(), e);
         }
 
         return deserial;
@@ -249,25 +218,25 @@ public class GridTools {
     }
 
 
+    /*
+    * The rows are read forward only and the grids are streamed from the database,
+    * so that only the bytes up to the requested cell of each grid are read.
+    * */
     public static Map<Long, Double> executeQueryForCell2TimeSeriesAsListOfDoubles(String query, int xcell, int ycell, String sensor) {
 
         Map<Long, Double> listOfDoubles = new HashMap<Long, Double>();
         Connection connection = null;
-        StringBuilder sb = new StringBuilder();
+        Statement statement = null;
         ResultSet results = null;
 
         try {
         	connection = Main.getStorage(sensor).getConnection();
-            Statement statement = connection.createStatement(ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY);
+            statement = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
             results = statement.executeQuery(query);
             ResultSetMetaData metaData;    // Additional information about the results
-            int numCols, numRows;          // How many rows and columns in the table
+            int numCols;                   // How many columns in the table
             metaData = results.getMetaData();       // Get metadata on them
             numCols = metaData.getColumnCount();    // How many columns?
-            results.last();                         // Move to last row
-            numRows = results.getRow();             // How many rows?
-
-            String s;
 
             byte typ[] = new byte[numCols];
             String columnLabel[] = new String[numCols];
@@ -281,34 +250,33 @@ public class GridTools {
             }
 
             Long timed = 0L;
-            double value = 0.0;
 
-            for (int row = 0; row < numRows; row++) {
-                sb = new StringBuilder("");
-                results.absolute(row + 1);                // Go to the specified row
+            while (results.next()) {
+                // A row without grid keeps a null value, not the one of the previous row.
+                Double value = null;
                 for (int col = 0; col < numCols; col++) {
-                    Object o = results.getObject(col + 1); // Get value of the column
-                    if (o == null)
-                        s = "null";
-                    else
-                        s = o.toString();
                     if (columnLabel[col].equalsIgnoreCase("timed")) {
-                        timed = Long.valueOf(s);
+                        timed = results.getLong(col + 1);
                         continue;
                     }
                     if (typ[col] == DataTypes.BINARY) {
-                        byte[] bin = (byte[]) o;
-                        value = GridTools.deSerializeToCell(bin, xcell, ycell);
+                        InputStream bin = results.getBinaryStream(col + 1);
+                        if (bin != null) {
+                            value = GridTools.deSerializeToCell(bin, xcell, ycell);
+                            try {
+                                bin.close();
+                            } catch (IOException e) {
+                                logger.debug(e.getMessage(), e);
+                            }
+                        }
                     }
                 }
 
                 listOfDoubles.put(timed, value);
             }
 
-            //.add(sb.toString());
         } catch (SQLException e) {
         	logger.warn("SQLException: " + e.getMessage());
-            sb.append("ERROR in execution of query: " + e.getMessage());
         } finally {
             if (results != null)
                 try {
@@ -316,6 +284,12 @@ public class GridTools {
                 } catch (SQLException e) {
                     logger.warn(e.getMessage(), e);
                 }
+            if (statement != null)
+                try {
+                    statement.close();
+                } catch (SQLException e) {
+                    logger.warn(e.getMessage(), e);
+                }
             Main.getStorage(sensor).close(connection);
         }
 
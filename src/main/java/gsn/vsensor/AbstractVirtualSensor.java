@@ -34,6 +34,7 @@ import gsn.beans.DataTypes;
 import gsn.beans.StreamElement;
 import gsn.beans.VSensorConfig;
 import gsn.monitoring.Monitorable;
+import gsn.monitoring.PipelineLatency;
 
 import java.io.Serializable;
 import java.sql.SQLException;
@@ -207,7 +208,10 @@ public abstract class AbstractVirtualSensor implements Monitorable{
 	}
 	
 	public final void dataAvailable_decorated ( String inputStreamName , StreamElement streamElement ){
+		long begin = PipelineLatency.ENABLED ? System.nanoTime( ) : 0;
 		dataAvailable ( inputStreamName , streamElement );
+		if ( PipelineLatency.ENABLED )
+			PipelineLatency.record( virtualSensorConfiguration.getName( ) , PipelineLatency.Stage.VIRTUAL_SENSOR , begin );
 		inputCount = inputCount == Long.MAX_VALUE ? 0 : inputCount + 1;
 	}
 
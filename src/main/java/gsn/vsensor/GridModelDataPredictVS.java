@@ -29,6 +29,7 @@ package gsn.vsensor;
 
 import gsn.beans.DataField;
 import gsn.beans.StreamElement;
+import gsn.utils.geo.GridCodec;
 import gsn.utils.models.ModelLoader;
 
 import org.apache.log4j.Logger;
@@ -38,9 +39,6 @@ import weka.core.FastVector;
 import weka.core.Instance;
 import weka.core.Instances;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.TreeMap;
 
@@ -183,27 +181,14 @@ public class GridModelDataPredictVS extends AbstractVirtualSensor {
 			//preparing the output
 			
 			Serializable[] stream = new Serializable[7];
-	        try {
-
-	            ByteArrayOutputStream bos = new ByteArrayOutputStream();
-	            ObjectOutputStream oos = new ObjectOutputStream(bos);
-	            oos.writeObject(rawData);
-	            oos.flush();
-	            oos.close();
-	            bos.close();
-
-	            stream[0] = new Integer(gridSize);
-	            stream[1] = new Integer(gridSize);
-	            stream[2] = new Double(center_lat - (cellSize*gridSize/2));
-	            stream[3] = new Double(center_long - (cellSize*gridSize/2));
-	            stream[4] = new Double(cellSize);
-	            stream[5] = new Double(0);
-	            stream[6] = bos.toByteArray();
-
-	        } catch (IOException e) {
-	            logger.warn(e.getMessage(), e);
-	            success = false;
-	        }
+
+	        stream[0] = new Integer(gridSize);
+	        stream[1] = new Integer(gridSize);
+	        stream[2] = new Double(center_lat - (cellSize*gridSize/2));
+	        stream[3] = new Double(center_long - (cellSize*gridSize/2));
+	        stream[4] = new Double(cellSize);
+	        stream[5] = new Double(0);
+	        stream[6] = GridCodec.encode(rawData);
 	        
 	        if(success){
 	        	StreamElement se = new StreamElement(getOutputFormat(), stream, data.getTimeStamp());
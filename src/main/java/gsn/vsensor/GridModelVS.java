@@ -30,13 +30,11 @@ import gsn.VirtualSensor;
 import gsn.VirtualSensorInitializationFailedException;
 import gsn.beans.DataField;
 import gsn.beans.StreamElement;
+import gsn.utils.geo.GridCodec;
 import gsn.utils.models.AbstractModel;
 
 import org.apache.log4j.Logger;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.TreeMap;
 
@@ -223,29 +221,17 @@ public class GridModelVS extends AbstractVirtualSensor {
 			//preparing the output
 			
 			Serializable[] stream = new Serializable[7];
-	        try {
-
-	            ByteArrayOutputStream bos = new ByteArrayOutputStream();
-	            ObjectOutputStream oos = new ObjectOutputStream(bos);
-	            oos.writeObject(rawData);
-	            oos.flush();
-	            oos.close();
-	            bos.close();
-
-	            stream[0] = new Integer(gridSize);
-	            stream[1] = new Integer(gridSize);
-	            stream[2] = new Double(x_BL);
-	            stream[3] = new Double(y_BL);
-	            stream[4] = new Double(cellSize);
-	            stream[5] = new Double(0);
-	            stream[6] = bos.toByteArray();
-	            
-	        	StreamElement se = new StreamElement(getOutputFormat(), stream, data.getTimeStamp());
-	        	dataProduced(se);
-
-	        } catch (IOException e) {
-	            logger.warn(e.getMessage(), e);
-	        }
+
+	        stream[0] = new Integer(gridSize);
+	        stream[1] = new Integer(gridSize);
+	        stream[2] = new Double(x_BL);
+	        stream[3] = new Double(y_BL);
+	        stream[4] = new Double(cellSize);
+	        stream[5] = new Double(0);
+	        stream[6] = GridCodec.encode(rawData);
+
+	        StreamElement se = new StreamElement(getOutputFormat(), stream, data.getTimeStamp());
+	        dataProduced(se);
     }
 
 	
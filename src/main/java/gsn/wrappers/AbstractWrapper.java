@@ -34,12 +34,15 @@ import gsn.beans.AddressBean;
 import gsn.beans.DataField;
 import gsn.beans.StreamElement;
 import gsn.beans.StreamSource;
+import gsn.beans.windowing.InMemoryQueryRewriter;
 import gsn.beans.windowing.LocalTimeBasedSlidingHandler;
 import gsn.beans.windowing.RemoteTimeBasedSlidingHandler;
 import gsn.beans.windowing.SlidingHandler;
 import gsn.beans.windowing.TupleBasedSlidingHandler;
+import gsn.beans.windowing.WindowBuffer;
 import gsn.beans.windowing.WindowType;
 import gsn.monitoring.Monitorable;
+import gsn.monitoring.PipelineLatency;
 import gsn.utils.GSNRuntimeException;
 
 import java.io.Serializable;
@@ -51,6 +54,16 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.naming.OperationNotSupportedException;
 
@@ -84,6 +97,50 @@ public abstract class AbstractWrapper extends Thread implements Monitorable {
 	
 	private Long elementCount = 0L;
 
+	/**
+	 * The recent stream elements, for the stream sources evaluated in memory.
+	 */
+	private WindowBuffer windowBuffer;
+
+	/**
+	 * The number of listeners reading their window from the window storage.
+	 */
+	private volatile int windowStorageListeners = 0;
+
+	public static final int DEFAULT_INGEST_BATCH_SIZE = 256;
+
+	public static final int DEFAULT_INGEST_THREADS = 2;
+
+	private static int ingestQueueSize = -1;
+
+	private static int ingestBatchSize = -1;
+
+	private static ExecutorService ingestWorkers = null;
+
+	/**
+	 * The stream elements posted by the wrapper thread and not yet written by the ingest stage
+	 * (only used if -DwrapperQueueSize is set).
+	 */
+	private final ConcurrentLinkedQueue<QueuedElement> ingestQueue = new ConcurrentLinkedQueue<QueuedElement>();
+
+	private final AtomicInteger ingestQueueDepth = new AtomicInteger();
+
+	private final AtomicBoolean ingestScheduled = new AtomicBoolean(false);
+
+	private final AtomicLong droppedCount = new AtomicLong();
+
+	private long batchCount = 0;
+
+	private long batchLatencyTotal = 0;
+
+	private long batchLatencyMax = 0;
+
+	private final Runnable ingestTask = new Runnable() {
+		public void run() {
+			ingest();
+		}
+	};
+
 	/**
 	 * Returns the view name created for this listener. Note that, GSN creates
 	 * one view per listener.
@@ -110,6 +167,8 @@ public abstract class AbstractWrapper extends Thread implements Monitorable {
 		}
 
 		listeners.add(ss);
+		if (!(ss.getQueryRewriter() instanceof InMemoryQueryRewriter))
+			windowStorageListeners++;
 		if (logger.isDebugEnabled())
 			logger.debug("Adding listeners: " + ss.toString());
 	}
@@ -124,7 +183,8 @@ public abstract class AbstractWrapper extends Thread implements Monitorable {
 	 * @throws SQLException
 	 */
 	public void removeListener(StreamSource ss) throws SQLException {
-		listeners.remove(ss);
+		if (listeners.remove(ss) && !(ss.getQueryRewriter() instanceof InMemoryQueryRewriter))
+			windowStorageListeners--;
 		// getStorageManager( ).executeDropView( ss.getUIDStr() );
 		for (SlidingHandler slidingHandler : slidingHandlers.values()) {
 			if (slidingHandler.isInterestedIn(ss))
@@ -143,6 +203,15 @@ public abstract class AbstractWrapper extends Thread implements Monitorable {
 		return listeners;
 	}
 
+	/**
+	 * Returns the in-memory window buffer of the wrapper, created on the first call.
+	 */
+	public synchronized WindowBuffer getWindowBuffer() {
+		if (windowBuffer == null)
+			windowBuffer = new WindowBuffer(getOutputFormat());
+		return windowBuffer;
+	}
+
 	//protected StorageManager getStorageManager() {
 	//	return StorageManager.getInstance();
     //
@@ -216,13 +285,13 @@ public abstract class AbstractWrapper extends Thread implements Monitorable {
 	protected void postStreamElement(Serializable... values) {
 		StreamElement se = new StreamElement(getOutputFormat(), values, System
 				.currentTimeMillis());
-		postStreamElement(se);
+		postStreamElement(se, false);
 	}
 
 	protected void postStreamElement(long timestamp, Serializable[] values) {
 		StreamElement se = new StreamElement(getOutputFormat(), values,
 				timestamp);
-		postStreamElement(se);
+		postStreamElement(se, false);
 	}
 
 	/**
@@ -230,12 +299,34 @@ public abstract class AbstractWrapper extends Thread implements Monitorable {
 	 * streams if needed. The return value specifies if the newly provided
 	 * stream element generated at least one input stream notification or not.
 	 * 
+	 * With the ingest queue, the stream element is only queued and the method
+	 * returns false, see {@link #postStreamElementAndWait(StreamElement)}.
+	 * 
 	 * @param streamElement
 	 * @return If the method returns false, it means the insertion doesn't
 	 *         effected any input stream.
 	 */
 
 	protected Boolean postStreamElement(StreamElement streamElement) {
+		return postStreamElement(streamElement, false);
+	}
+
+	/**
+	 * As {@link #postStreamElement(StreamElement)}, but with the ingest queue
+	 * the calling thread waits for the stream element to be written by the
+	 * ingest stage to return its outcome. Only for the wrappers using the
+	 * result, e.g. to acknowledge the stream element to its sender.
+	 */
+	protected boolean postStreamElementAndWait(StreamElement streamElement) {
+		return postStreamElement(streamElement, true);
+	}
+
+	/**
+	 * @param waitForResult false if the caller doesn't use the result: with the
+	 *            ingest queue, the method returns false as soon as the stream
+	 *            element is queued.
+	 */
+	private boolean postStreamElement(StreamElement streamElement, boolean waitForResult) {
 		if (streamElement == null) {
 			logger.info("postStreamElement is called with null ! Wrapper "
 					+ getWrapperName() + " might has a problem !");
@@ -244,6 +335,9 @@ public abstract class AbstractWrapper extends Thread implements Monitorable {
 		try {
 			if (!isActive() || listeners.size() == 0)
 				return false;
+			if (getIngestQueueCapacity() > 0)
+				return enqueue(streamElement, waitForResult);
+			long begin = PipelineLatency.ENABLED ? System.nanoTime() : 0;
 			if (!insertIntoWrapperTable(streamElement))
 				return false;
 			boolean toReturn = false;
@@ -252,15 +346,20 @@ public abstract class AbstractWrapper extends Thread implements Monitorable {
 				logger.debug("Size of the listeners to be evaluated - "
 						+ listeners.size());
 
+			long slidingBegin = PipelineLatency.ENABLED ? System.nanoTime() : 0;
 			for (SlidingHandler slidingHandler : slidingHandlers.values()) {
 				toReturn = slidingHandler.dataAvailable(streamElement)
 						|| toReturn;
 			}
+			if (PipelineLatency.ENABLED)
+				PipelineLatency.record(activeAddressBean.getVirtualSensorName(), PipelineLatency.Stage.SLIDING_HANDLER, slidingBegin);
 
 			if (++noOfCallsToPostSE
 					% GARBAGE_COLLECT_AFTER_SPECIFIED_NO_OF_ELEMENTS == 0) {
 				int removedRaws = removeUselessValues();
 			}
+			if (PipelineLatency.ENABLED)
+				PipelineLatency.record(activeAddressBean.getVirtualSensorName(), PipelineLatency.Stage.WRAPPER_POST, begin);
 			return toReturn;
 		} catch (Exception e) {
 			logger.error(e.getMessage(), e);
@@ -270,6 +369,203 @@ public abstract class AbstractWrapper extends Thread implements Monitorable {
 		}
 	}
 
+	/**
+	 * Posts a batch of stream elements, in order. With the ingest queue, the stream elements are only queued,
+	 * otherwise the calling thread inserts the batch at once (a single JDBC batch) and then notifies the sliding
+	 * handlers of each stream element, as {@link #postStreamElement(StreamElement)} would.
+	 */
+	protected void postStreamElements(List<StreamElement> streamElements) {
+		if (streamElements.isEmpty() || !isActive() || listeners.size() == 0)
+			return;
+		if (getIngestQueueCapacity() > 0) {
+			for (StreamElement se : streamElements)
+				enqueue(se, false);
+			return;
+		}
+		try {
+			writeBatch(streamElements);
+		} catch (Exception e) {
+			logger.error(e.getMessage(), e);
+			logger.error("Produced data items from the wrapper couldn't be propagated inside the system.");
+		}
+	}
+
+	/**
+	 * The capacity of the ingest queue of each wrapper (-DwrapperQueueSize). If set, the stream elements
+	 * posted by the wrappers are queued and written by a shared pool of threads (-DwrapperIngestThreads)
+	 * in batches of at most -DwrapperBatchSize elements. By default (0), the wrapper thread writes each
+	 * stream element itself. The threads posting through {@link #postStreamElementAndWait(StreamElement)}
+	 * wait for the write of their stream element to get its outcome, the concurrent posts are written together.
+	 */
+	public static int getIngestQueueSize() {
+		if (ingestQueueSize == -1)
+			ingestQueueSize = System.getProperty("wrapperQueueSize") == null ? 0 : Math.max(0, Integer.parseInt(System.getProperty("wrapperQueueSize")));
+		return ingestQueueSize;
+	}
+
+	/**
+	 * The capacity of the ingest queue of this wrapper, {@link #getIngestQueueSize()} unless overridden.
+	 */
+	protected int getIngestQueueCapacity() {
+		return getIngestQueueSize();
+	}
+
+	public static int getIngestBatchSize() {
+		if (ingestBatchSize == -1)
+			ingestBatchSize = System.getProperty("wrapperBatchSize") == null ? DEFAULT_INGEST_BATCH_SIZE : Math.max(1, Integer.parseInt(System.getProperty("wrapperBatchSize")));
+		return ingestBatchSize;
+	}
+
+	private static synchronized ExecutorService getIngestWorkers() {
+		if (ingestWorkers == null) {
+			int threads = System.getProperty("wrapperIngestThreads") == null ? DEFAULT_INGEST_THREADS : Math.max(1, Integer.parseInt(System.getProperty("wrapperIngestThreads")));
+			ingestWorkers = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+				private final AtomicInteger counter = new AtomicInteger();
+
+				public Thread newThread(Runnable r) {
+					Thread t = new IngestThread(r, "WrapperIngest-" + counter.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return ingestWorkers;
+	}
+
+	/**
+	 * Queues the stream element for the ingest stage, the stream element is dropped if the queue is full.
+	 *
+	 * @param waitForResult true to wait until the stream element is written. The ingest threads never wait:
+	 *            the stream elements they post (e.g., produced by the virtual sensors they notify) may be
+	 *            queued behind the ones they are writing.
+	 * @return false if the stream element is dropped or not written yet, otherwise as
+	 *         {@link #postStreamElementAndWait(StreamElement)}.
+	 */
+	private boolean enqueue(StreamElement streamElement, boolean waitForResult) {
+		if (ingestQueueDepth.incrementAndGet() > getIngestQueueCapacity()) {
+			ingestQueueDepth.decrementAndGet();
+			droppedCount.incrementAndGet();
+			if (logger.isDebugEnabled())
+				logger.debug("The ingest queue of " + getName() + " is full, dropping : [" + streamElement.toString() + "]");
+			return false;
+		}
+		QueuedElement queued = new QueuedElement(streamElement, waitForResult && !(Thread.currentThread() instanceof IngestThread));
+		ingestQueue.offer(queued);
+		scheduleIngest();
+		if (queued.written == null)
+			return false;
+		try {
+			queued.written.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		return queued.result;
+	}
+
+	private void scheduleIngest() {
+		if (!ingestQueue.isEmpty() && ingestScheduled.compareAndSet(false, true))
+			getIngestWorkers().execute(ingestTask);
+	}
+
+	/**
+	 * Writes the next batch of queued stream elements (see {@link #writeBatch(List)}) and reports the outcome
+	 * of each one to the waiting threads. Only one batch of a wrapper is written at a time, which keeps the
+	 * elements in order.
+	 */
+	private void ingest() {
+		ArrayList<QueuedElement> batch = new ArrayList<QueuedElement>(Math.min(getIngestBatchSize(), Math.max(1, ingestQueueDepth.get())));
+		boolean[] results = null;
+		try {
+			QueuedElement next;
+			while (batch.size() < getIngestBatchSize() && (next = ingestQueue.poll()) != null) {
+				ingestQueueDepth.decrementAndGet();
+				batch.add(next);
+			}
+			if (!batch.isEmpty() && isActive() && listeners.size() > 0) {
+				ArrayList<StreamElement> streamElements = new ArrayList<StreamElement>(batch.size());
+				for (QueuedElement queued : batch)
+					streamElements.add(queued.streamElement);
+				results = writeBatch(streamElements);
+			}
+		} catch (Exception e) {
+			logger.error(e.getMessage(), e);
+			logger.error("Produced data items from the wrapper couldn't be propagated inside the system.");
+		} finally {
+			for (int i = 0; i < batch.size(); i++)
+				batch.get(i).done(results != null && results[i]);
+			ingestScheduled.set(false);
+			// Gives the worker to the other wrappers before the next batch.
+			scheduleIngest();
+		}
+	}
+
+	/**
+	 * Writes a batch of stream elements: the out of order elements are dropped against the in-memory
+	 * watermark, the others are inserted with a single JDBC batch, then the sliding handlers are notified
+	 * of each of them in turn. The windows only include the stream elements up to the time of their slide,
+	 * they are evaluated at each slide due within the batch, as if the stream elements were posted one by one.
+	 * The watermark only moves once the batch is inserted: if the insert fails, the batch can be posted again.
+	 *
+	 * @return for each stream element, as {@link #postStreamElementAndWait(StreamElement)}.
+	 */
+	private boolean[] writeBatch(List<StreamElement> batch) throws SQLException {
+		long begin = System.nanoTime();
+		boolean[] results = new boolean[batch.size()];
+		ArrayList<StreamElement> accepted = new ArrayList<StreamElement>(batch.size());
+		StreamElement last = null;
+		for (StreamElement se : batch) {
+			if (isOutOfOrder(se) || (last != null && isOutOfOrder(se.getTimeStamp(), last.getTimeStamp()))) {
+				oooCount = oooCount == Long.MAX_VALUE ? 0 : oooCount + 1;
+				logger.debug("Out of order data item detected, it is not propagated into the system : [" + se.toString() + "]");
+				continue;
+			}
+			last = se;
+			accepted.add(se);
+		}
+		if (accepted.isEmpty())
+			return results;
+		if (windowStorageListeners > 0) {
+			long insertBegin = PipelineLatency.ENABLED ? System.nanoTime() : 0;
+			Connection conn = null;
+			try {
+				conn = Main.getWindowStorage().getConnection();
+				Main.getWindowStorage().executeBatchInsert(aliasCodeS, getOutputFormat(), accepted, conn);
+			} finally {
+				Main.getWindowStorage().close(conn);
+			}
+			if (PipelineLatency.ENABLED)
+				PipelineLatency.record(activeAddressBean.getVirtualSensorName(), PipelineLatency.Stage.WINDOW_INSERT, insertBegin);
+		}
+		if (windowBuffer != null)
+			for (StreamElement se : accepted)
+				windowBuffer.append(se);
+		lastInOrderTimestamp = last.getTimeStamp();
+		elementCount = elementCount > Long.MAX_VALUE - accepted.size() ? 0 : elementCount + accepted.size();
+
+		long slidingBegin = PipelineLatency.ENABLED ? System.nanoTime() : 0;
+		int index = 0;
+		for (StreamElement se : accepted) {
+			while (batch.get(index) != se)
+				index++;
+			for (SlidingHandler slidingHandler : slidingHandlers.values())
+				results[index] = slidingHandler.dataAvailable(se) || results[index];
+		}
+		if (PipelineLatency.ENABLED)
+			PipelineLatency.record(activeAddressBean.getVirtualSensorName(), PipelineLatency.Stage.SLIDING_HANDLER, slidingBegin);
+		removeUselessValues();
+
+		if (PipelineLatency.ENABLED)
+			PipelineLatency.record(activeAddressBean.getVirtualSensorName(), PipelineLatency.Stage.WRAPPER_POST, begin);
+		long latency = System.nanoTime() - begin;
+		synchronized (ingestQueue) {
+			batchCount++;
+			batchLatencyTotal += latency;
+			batchLatencyMax = Math.max(batchLatencyMax, latency);
+		}
+		return results;
+	}
+
 	/**
 	 * Updates the table representing the data items produced by the stream
 	 * element. Returns false if the update fails or doesn't change the state of
@@ -292,8 +588,15 @@ public abstract class AbstractWrapper extends Thread implements Monitorable {
 				logger.debug("Out of order data item detected, it is not propagated into the system : [" + se.toString() + "]");
 				return false;
 			}
-			conn = Main.getWindowStorage().getConnection();
-			Main.getWindowStorage().executeInsert(aliasCodeS, getOutputFormat(), se, conn);
+			if (windowBuffer != null)
+				windowBuffer.append(se);
+			if (windowStorageListeners > 0) {
+				long begin = PipelineLatency.ENABLED ? System.nanoTime() : 0;
+				conn = Main.getWindowStorage().getConnection();
+				Main.getWindowStorage().executeInsert(aliasCodeS, getOutputFormat(), se, conn);
+				if (PipelineLatency.ENABLED)
+					PipelineLatency.record(activeAddressBean.getVirtualSensorName(), PipelineLatency.Stage.WINDOW_INSERT, begin);
+			}
             lastInOrderTimestamp = se.getTimeStamp();
             elementCount = elementCount == Long.MAX_VALUE ? 0 : elementCount + 1;
             return true;
@@ -312,26 +615,31 @@ public abstract class AbstractWrapper extends Thread implements Monitorable {
                 conn = Main.getWindowStorage().getConnection();
                 StringBuilder query = new StringBuilder();
 				query.append("select max(timed) from ").append(aliasCodeS);
-				ResultSet rs2 = Main.getWindowStorage().executeQueryWithResultSet(new StringBuilder("select count(*) from "+aliasCodeS),
-						conn);
-				int n=rs2.next()?rs2.getInt(1):0;
-					
 				ResultSet rs = Main.getWindowStorage().executeQueryWithResultSet(query,
 						conn);
-				
-				if (rs.next() && n>0) {
-
-					lastInOrderTimestamp = rs.getLong(1);
-				} else {
-					lastInOrderTimestamp = Long.MIN_VALUE; // Table is empty
+				// max(timed) is null if the table is empty, afterwards the watermark is only kept in memory.
+				lastInOrderTimestamp = Long.MIN_VALUE;
+				if (rs.next()) {
+					long max = rs.getLong(1);
+					if (!rs.wasNull())
+						lastInOrderTimestamp = max;
 				}
+				Main.getWindowStorage().close(rs);
 			}
-            return (se.getTimeStamp() <= lastInOrderTimestamp);
+            return isOutOfOrder(se.getTimeStamp(), lastInOrderTimestamp);
 		} finally {
 			Main.getWindowStorage().close(conn);
 		}
     }
 
+	/**
+	 * The timestamps have to increase, or only not to decrease if the timestamps are not unique (see
+	 * {@link #isTimeStampUnique()}).
+	 */
+	private boolean isOutOfOrder(long timestamp, long lastTimestamp) {
+		return isTimeStampUnique() ? timestamp <= lastTimestamp : timestamp < lastTimestamp;
+	}
+
 	/**
 	 * This method is called whenever the wrapper wants to send a data item back
 	 * to the source where the data is coming from. For example, If the data is
@@ -391,6 +699,8 @@ public abstract class AbstractWrapper extends Thread implements Monitorable {
 	}
 
 	public int removeUselessValues() throws SQLException {
+		if (windowStorageListeners == 0)
+			return 0; // the in-memory windows are trimmed by their buffer.
 		StringBuilder query = getUselessWindow();
 		if (query == null)
 			return 0;
@@ -408,6 +718,10 @@ public abstract class AbstractWrapper extends Thread implements Monitorable {
 
 	public void releaseResources() throws SQLException {
 		isActive = false;
+		QueuedElement queued;
+		while ((queued = ingestQueue.poll()) != null)
+			queued.done(false);
+		ingestQueueDepth.set(0);
 		Main.getInstance().getToMonitor().remove(this);
 		dispose();
 		if (logger.isInfoEnabled())
@@ -466,11 +780,12 @@ public abstract class AbstractWrapper extends Thread implements Monitorable {
 	}
 
 	/**
-	 * Returns true if the wrapper can produce multiple different data items
-	 * [stream elements] with the same timestamp. If this is true, then all the
-	 * stream elements with the same timestamp will be accepted. If this method
-	 * returns false (default value), duplicates override each other and the
-	 * latest received duplicate is the one which is going to be persisted.
+	 * Returns false if the wrapper can produce multiple different data items
+	 * [stream elements] with the same timestamp. If this is false, then all the
+	 * stream elements with the same timestamp will be accepted (the index on
+	 * the timestamps of the wrapper table is not unique). If this method
+	 * returns true (default value), a stream element with the same timestamp
+	 * as the previous one is dropped as out of order.
 	 */
 	public boolean isTimeStampUnique() {
 		return true;
@@ -485,8 +800,51 @@ public abstract class AbstractWrapper extends Thread implements Monitorable {
 		Hashtable<String, Object> stat = new Hashtable<String, Object>();
 		stat.put("vs."+activeAddressBean.getVirtualSensorName().replaceAll("\\.", "_")+".input."+ activeAddressBean.getInputStreamName().replaceAll("\\.", "_") +".outOfOrder.count", oooCount);
 		stat.put("vs."+activeAddressBean.getVirtualSensorName().replaceAll("\\.", "_")+".input."+ activeAddressBean.getInputStreamName().replaceAll("\\.", "_") +".produced.count", elementCount);
+		if (getIngestQueueCapacity() > 0) {
+			String prefix = "vs."+activeAddressBean.getVirtualSensorName().replaceAll("\\.", "_")+".input."+ activeAddressBean.getInputStreamName().replaceAll("\\.", "_");
+			stat.put(prefix + ".queue.depth.value", ingestQueueDepth.get());
+			stat.put(prefix + ".dropped.count", droppedCount.get());
+			synchronized (ingestQueue) {
+				stat.put(prefix + ".batch.count", batchCount);
+				// in microseconds.
+				stat.put(prefix + ".batch.latency.avg.value", batchCount == 0 ? 0 : batchLatencyTotal / batchCount / 1000);
+				stat.put(prefix + ".batch.latency.max.value", batchLatencyMax / 1000);
+			}
+		}
 		return stat;
 	}
+
+	/**
+	 * A stream element of the ingest queue, with the outcome of its write for the thread waiting for it.
+	 */
+	private static class QueuedElement {
+
+		private final StreamElement streamElement;
+
+		/** Null if no thread waits for the outcome. */
+		private final CountDownLatch written;
+
+		private boolean result = false;
+
+		private QueuedElement(StreamElement streamElement, boolean waiting) {
+			this.streamElement = streamElement;
+			this.written = waiting ? new CountDownLatch(1) : null;
+		}
+
+		private void done(boolean result) {
+			if (written != null) {
+				this.result = result;
+				written.countDown();
+			}
+		}
+	}
+
+	private static class IngestThread extends Thread {
+
+		private IngestThread(Runnable target, String name) {
+			super(target, name);
+		}
+	}
 	
 	
 }
@@ -28,6 +28,7 @@ package gsn.wrappers;
 import gsn.beans.AddressBean;
 import gsn.beans.DataField;
 import gsn.beans.StreamElement;
+import gsn.utils.geo.GridCodec;
 import org.apache.log4j.Logger;
 import org.joda.time.format.DateTimeFormat;
 import org.joda.time.format.DateTimeFormatter;
@@ -323,34 +324,19 @@ public class GridDataWrapper extends AbstractWrapper {
 
         Serializable[] stream = new Serializable[7];
 
-        try {
-
-            ByteArrayOutputStream bos = new ByteArrayOutputStream();
-            ObjectOutputStream oos = new ObjectOutputStream(bos);
-            oos.writeObject(rawData);
-            oos.flush();
-            oos.close();
-            bos.close();
-
-            System.out.println("size => " + bos.toByteArray().length);
-
-            stream[0] = new Integer(ncols);
-            stream[1] = new Integer(nrows);
-            stream[2] = new Double(xllcorner);
-            stream[3] = new Double(yllcorner);
-            stream[4] = new Double(cellsize);
-            stream[5] = new Double(NODATA_value);
-            stream[6] = bos.toByteArray();
+        byte[] grid = GridCodec.encode(rawData);
 
-            logger.debug("size => " + bos.toByteArray().length);
+        stream[0] = new Integer(ncols);
+        stream[1] = new Integer(nrows);
+        stream[2] = new Double(xllcorner);
+        stream[3] = new Double(yllcorner);
+        stream[4] = new Double(cellsize);
+        stream[5] = new Double(NODATA_value);
+        stream[6] = grid;
 
-            //testDeserialize(bos.toByteArray());
+        logger.debug("size => " + grid.length);
 
-
-        } catch (IOException e) {
-            logger.warn(e.getMessage(), e);
-            success = false;
-        }
+        //testDeserialize(grid);
 
         StreamElement se = new StreamElement(getOutputFormat(), stream, timed);
 
@@ -367,15 +353,7 @@ public class GridDataWrapper extends AbstractWrapper {
     public static void testDeserialize(byte[] bytes) {
 
         try {
-            ByteArrayInputStream bis = new ByteArrayInputStream(bytes);
-            ObjectInputStream in = null;
-
-            in = new ObjectInputStream(bis);
-
-            Double deserial[][] = new Double[0][];
-
-            deserial = (Double[][]) in.readObject();
-            in.close();
+            Double deserial[][] = GridCodec.decode(bytes);
 
             logger.debug("deserial.length" + deserial.length);
             logger.debug("deserial[0].length" + deserial[0].length);
@@ -390,8 +368,6 @@ public class GridDataWrapper extends AbstractWrapper {
 
         } catch (IOException e) {
             logger.error(e.getMessage(), e);
-        } catch (ClassNotFoundException e) {
-            logger.error(e.getMessage(), e);
         }
     }
 
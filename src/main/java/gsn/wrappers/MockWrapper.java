@@ -47,7 +47,7 @@ public class MockWrapper extends AbstractWrapper {
 	}
 
 	public boolean publishStreamElement(StreamElement se) {
-		return postStreamElement(se);
+		return postStreamElementAndWait(se);
 	}
 
 	public void dispose() {
@@ -34,10 +34,18 @@ import java.io.IOException;
 import java.io.Reader;
 import java.io.Serializable;
 import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.zip.CRC32;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang.StringUtils;
@@ -47,6 +55,7 @@ import org.joda.time.DateTimeZone;
 import org.joda.time.format.DateTimeFormat;
 import org.joda.time.format.DateTimeFormatter;
 
+import au.com.bytecode.opencsv.CSVParser;
 import au.com.bytecode.opencsv.CSVReader;
 
 /**
@@ -62,6 +71,13 @@ public class CSVHandler {
 
     private static final String TIMESTAMP = "timed";
 
+    private static final int READ_BUFFER_SIZE = 65536;
+
+    /**
+     * The length of the beginning of the data file saved with the offset, to detect the rotations.
+     */
+    private static final int FINGERPRINT_LENGTH = 1024;
+
     public static DateTime parseTimeStamp(String format, String value) throws IllegalArgumentException {
         DateTimeFormatter fmt = DateTimeFormat.forPattern(format);
         return fmt.parseDateTime(value);
@@ -75,6 +91,11 @@ public class CSVHandler {
 
     private String checkPointFile;
 
+    private long offset = -1; // -1 until loaded from the offset file.
+    private int fingerprintLength = 0;
+    private long fingerprint = 0;
+    private String fileKey = null;
+
     public boolean initialize(String dataFile, String inFields, String inFormats, char separator, char stringSeparator, int skipFirstXLines, String nullValues) {
         return initialize(dataFile, inFields, inFormats, separator, stringSeparator, skipFirstXLines, nullValues, LOCAL_TIMEZONE_ID, "check-poin/" + (new File(dataFile).getName() + ".chk-point"));
     }
@@ -224,6 +245,143 @@ public class CSVHandler {
         return toReturn;
     }
 
+    /**
+     * Parses the rows appended to the data file after the byte offset, as {@link #parseValues(Reader, long)}: the
+     * lines are read until the end of the file, the last line is left for the next call if it is not complete
+     * yet. At most maxItems rows newer than the checkpoint are added to the items.
+     *
+     * @param skipRows the number of rows without timestamp to skip (the counter based checkpoints).
+     * @return the offset following the last row read.
+     */
+    public long parseValues(FileChannel channel, long offset, long previousCheckPoint, long skipRows, List<TreeMap<String, Serializable>> items, int maxItems) throws IOException {
+        CSVParser parser = new CSVParser(getSeparator(), getStringSeparator());
+        Charset charset = Charset.defaultCharset(); // as the FileReader
+        ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        byte[] line = new byte[256];
+        int length = 0;
+        int skipLines = offset == 0 ? getSkipFirstXLines() : 0;
+        long position = offset;
+        long end = offset;
+        String[] values = null;
+        while (items.size() < maxItems) {
+            buffer.clear();
+            if (channel.read(buffer, position) <= 0)
+                break;
+            buffer.flip();
+            while (buffer.hasRemaining() && items.size() < maxItems) {
+                byte b = buffer.get();
+                position++;
+                if (b != '\n') {
+                    if (length == line.length)
+                        line = Arrays.copyOf(line, length * 2);
+                    line[length++] = b;
+                    continue;
+                }
+                if (length > 0 && line[length - 1] == '\r')
+                    length--;
+                String text = new String(line, 0, length, charset);
+                length = 0;
+                if (skipLines > 0) {
+                    skipLines--;
+                    end = position;
+                    continue;
+                }
+                String[] tokens = parser.parseLineMulti(text);
+                values = values == null ? tokens : concat(values, tokens);
+                if (parser.isPending())
+                    continue; // A quoted value continues on the next line.
+                end = position;
+                TreeMap<String, Serializable> se = convertTo(formats, fields, getNulls(), values, getSeparator());
+                values = null;
+                if (isEmpty(se))
+                    continue;
+                if (se.containsKey(TIMESTAMP)) {
+                    if (((Long) se.get(TIMESTAMP)) <= previousCheckPoint)
+                        continue;
+                } else if (skipRows > 0) {
+                    skipRows--;
+                    continue;
+                }
+                items.add(se);
+            }
+        }
+        return end;
+    }
+
+    private static String[] concat(String[] first, String[] second) {
+        String[] toReturn = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, toReturn, first.length, second.length);
+        return toReturn;
+    }
+
+    /**
+     * Returns the offset saved with the checkpoint (0 if there is none), or -1 if the data file was rotated or
+     * truncated since: it is shorter than the offset, or its beginning or its file key (the inode) changed.
+     */
+    public long getOffset(FileChannel channel, String fileKey) throws IOException {
+        if (offset == -1)
+            loadOffset();
+        if (offset == 0)
+            return 0;
+        if (offset > channel.size() || (this.fileKey != null && fileKey != null && !this.fileKey.equals(fileKey)) || fingerprint(channel, fingerprintLength) != fingerprint)
+            return -1;
+        return offset;
+    }
+
+    /**
+     * Saves the offset of the data file, next to the checkpoint file.
+     */
+    public void updateOffset(FileChannel channel, String fileKey, long offset) throws IOException {
+        if (offset == 0) // A rotated or truncated file, its fingerprint is taken again as it grows.
+            fingerprintLength = 0;
+        if (fingerprintLength < FINGERPRINT_LENGTH) {
+            fingerprintLength = (int) Math.min(FINGERPRINT_LENGTH, offset);
+            fingerprint = fingerprint(channel, fingerprintLength);
+        }
+        this.offset = offset;
+        this.fileKey = fileKey;
+        FileUtils.writeStringToFile(new File(getOffsetFile()), offset + " " + fingerprintLength + " " + fingerprint + (fileKey == null ? "" : " " + fileKey), "UTF-8");
+    }
+
+    private void loadOffset() throws IOException {
+        offset = 0;
+        File file = new File(getOffsetFile());
+        if (!file.isFile())
+            return;
+        String[] val = FileUtils.readFileToString(file, "UTF-8").trim().split(" ", 4);
+        try {
+            if (val.length >= 3) {
+                fingerprintLength = Integer.parseInt(val[1]);
+                fingerprint = Long.parseLong(val[2]);
+                fileKey = val.length > 3 ? val[3] : null;
+                offset = Long.parseLong(val[0]);
+            }
+        } catch (NumberFormatException e) {
+            logger.warn("Ignoring the invalid offset file: " + file);
+        }
+    }
+
+    private static long fingerprint(FileChannel channel, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining() && channel.read(buffer, buffer.position()) > 0)
+            ;
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, buffer.position());
+        return crc.getValue();
+    }
+
+    /**
+     * Returns the key identifying the file (e.g., the device and inode), or null if the file system doesn't provide one.
+     */
+    public static String getFileKey(File file) {
+        try {
+            Object key = Files.readAttributes(file.toPath(), BasicFileAttributes.class).fileKey();
+            return key == null ? null : key.toString().replace(' ', '_');
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
     private boolean isEmpty(Map<String, Serializable> se) {
         for (Object o : se.values())
             if (o != null)
@@ -377,4 +535,8 @@ public class CSVHandler {
         return checkPointFile;
     }
 
+    public String getOffsetFile() {
+        return checkPointFile + ".offset";
+    }
+
 }
@@ -35,9 +35,10 @@ import gsn.beans.StreamElement;
 import gsn.wrappers.AbstractWrapper;
 
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.io.Serializable;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.TreeMap;
 
@@ -47,6 +48,10 @@ import org.apache.log4j.Logger;
 /**
  * Timezones: http://joda-time.sourceforge.net/timezones.html
  * Formatting: http://joda-time.sourceforge.net/apidocs/org/joda/time/format/DateTimeFormat.html
+ * <p>
+ * The data file is tailed: each read starts at the byte offset saved with the checkpoint (in the .offset file next
+ * to it) and parses the rows appended since, by batches of -DwrapperBatchSize rows. The file is read again from
+ * the beginning when it is rotated or truncated.
  */
 public class CSVWrapper extends AbstractWrapper {
 
@@ -66,6 +71,7 @@ public class CSVWrapper extends AbstractWrapper {
 
     boolean useCounterForCheckPoint = false;
     long processedLineCounter = 0; // counts lines processed when checkpoint use counter to track changes (instead of timestamp, by default)
+    long lastTimestamp = 0; // timestamp of the latest processed line, when the checkpoint uses the timestamps
 
     public boolean initialize() {
         AddressBean addressBean = getActiveAddressBean();
@@ -124,6 +130,8 @@ public class CSVWrapper extends AbstractWrapper {
 
             if (useCounterForCheckPoint) {
                 processedLineCounter = lastItem;
+            } else {
+                lastTimestamp = lastItem;
             }
 
         } catch (Exception e) {
@@ -140,70 +148,74 @@ public class CSVWrapper extends AbstractWrapper {
 
 
     public void run() {
-        Exception preivousError = null;
-        long previousModTime = -1;
-        long previousCheckModTime = -1;
+        String previousError = null;
         while (isActive()) {
-            File dataFile = new File(handler.getDataFile());
-            File chkPointFile = new File(handler.getCheckPointFile());
-            long lastModified = -1;
-            long lastModifiedCheckPoint = -1;
-            if (dataFile.isFile())
-                lastModified = dataFile.lastModified();
-            if (chkPointFile.isFile())
-                lastModifiedCheckPoint = chkPointFile.lastModified();
-            FileReader reader = null;
-
-            /*
-            DEBUG_INFO("* Entry *");
-            DEBUG_INFO(list("lastModified", lastModified));
-            DEBUG_INFO(list("lastModifiedCheckPoint", lastModifiedCheckPoint));
-            */
-
+            int read = 0;
             try {
-                ArrayList<TreeMap<String, Serializable>> output = null;
-                if (preivousError == null || (preivousError != null && ((lastModified != previousModTime || lastModifiedCheckPoint != previousCheckModTime) || useCounterForCheckPoint))) {
-
-                    reader = new FileReader(handler.getDataFile());
-                    output = handler.work(reader, checkPointDir);
-                    for (TreeMap<String, Serializable> se : output) {
-                        StreamElement streamElement = new StreamElement(se, getOutputFormat());
-                        String [] ses = streamElement.getFieldNames();
-                        processedLineCounter++;
-                        for (int i=0;i<ses.length; i++){
-                            if ("anetz_snow_height".equalsIgnoreCase(ses[i]) || "mst_surface_temp".equalsIgnoreCase(ses[i])){
-                                logger.warn(dataFile+" : "+se);
-                                break;
-                            }
-                        }
-                        boolean insertionSuccess = postStreamElement(streamElement);
-
-                        if (!useCounterForCheckPoint)
-                            handler.updateCheckPointFile(streamElement.getTimeStamp()); // write latest processed timestamp
-                        else
-                            handler.updateCheckPointFile(processedLineCounter); // write latest processed line number
-                    }
-                }
-                //if (output==null || output.size()==0) //More intelligent sleeping, being more proactive once the wrapper receives huge files.
-                Thread.sleep(samplingPeriodInMsc);
+                read = readNewRows();
+                previousError = null;
             } catch (Exception e) {
-                if (preivousError != null && preivousError.getMessage().equals(e.getMessage()))
-                    continue;
-                logger.error(e.getMessage() + " :: " + dataFile, e);
-                preivousError = e;
-                previousModTime = lastModified;
-                previousCheckModTime = lastModifiedCheckPoint;
-            } finally {
-                if (reader != null)
-                    try {
-                        reader.close();
-                    } catch (IOException e) {
-                        logger.debug(e.getMessage(), e);
-                    }
+                if (!e.toString().equals(previousError))
+                    logger.error(e.getMessage() + " :: " + handler.getDataFile(), e);
+                previousError = e.toString();
+            }
+            // Reads the next batch right away while catching up on a large file.
+            if (read < getIngestBatchSize()) {
+                try {
+                    Thread.sleep(samplingPeriodInMsc);
+                } catch (InterruptedException e) {
+                    logger.debug(e.getMessage(), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Posts the next batch of rows appended to the data file, then saves the offset and the checkpoint.
+     *
+     * @return the number of posted rows.
+     */
+    private int readNewRows() throws IOException {
+        File file = new File(handler.getDataFile());
+        if (!file.isFile())
+            return 0;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            String fileKey = CSVHandler.getFileKey(file);
+            long offset = handler.getOffset(channel, fileKey);
+            if (offset == -1) {
+                logger.warn("The data file " + file + " was rotated or truncated, reading it from the beginning.");
+                offset = 0;
+                handler.updateOffset(channel, fileKey, 0);
+            }
+            if (offset == channel.size())
+                return 0;
+            // Without the offset (on the first read or after a rotation), the rows of the counter based checkpoint
+            // are skipped, as when the whole file was read on each poll.
+            long skipRows = useCounterForCheckPoint && offset == 0 ? processedLineCounter : 0;
+            ArrayList<TreeMap<String, Serializable>> output = new ArrayList<TreeMap<String, Serializable>>();
+            long end = handler.parseValues(channel, offset, useCounterForCheckPoint ? Long.MIN_VALUE : lastTimestamp, skipRows, output, getIngestBatchSize());
+            ArrayList<StreamElement> streamElements = new ArrayList<StreamElement>(output.size());
+            for (TreeMap<String, Serializable> se : output) {
+                StreamElement streamElement = new StreamElement(se, getOutputFormat());
+                processedLineCounter++;
+                lastTimestamp = streamElement.getTimeStamp();
+                streamElements.add(streamElement);
+            }
+            // Inserted at once (or queued), the windows still slide on each row.
+            postStreamElements(streamElements);
+            if (end != offset)
+                handler.updateOffset(channel, fileKey, end);
+            if (!output.isEmpty()) {
+                if (!useCounterForCheckPoint)
+                    handler.updateCheckPointFile(lastTimestamp); // write latest processed timestamp
+                else
+                    handler.updateCheckPointFile(processedLineCounter); // write latest processed line number
             }
-            /*
-            DEBUG_INFO("* Exit *");
-            */
+            return output.size();
+        } finally {
+            raf.close();
         }
     }
 
@@ -0,0 +1,48 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/wrappers/general/TCPWrapper.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.wrappers.general;
+
+import gsn.networking.IngestServer;
+import gsn.networking.PacketDecoder;
+
+import java.io.IOException;
+
+/**
+ * Receives the packets sent by the nodes over TCP connections to the port, the
+ * bytes of each connection are decoded as a stream of frames by the decoder of
+ * the wrapper (see {@link UDPWrapper} for the predicates).
+ */
+public class TCPWrapper extends UDPWrapper {
+   
+   protected IngestServer.Binding bind ( IngestServer server , int port , PacketDecoder decoder ) throws IOException {
+      return server.bindStream( port , decoder , this );
+   }
+   
+   public String getWrapperName() {
+      return "network tcp";
+   }
+   
+}
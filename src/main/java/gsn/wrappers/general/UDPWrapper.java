@@ -29,15 +29,14 @@ package gsn.wrappers.general;
 
 import gsn.beans.AddressBean;
 import gsn.beans.DataField;
-import gsn.beans.DataTypes;
 import gsn.beans.StreamElement;
+import gsn.networking.IngestServer;
+import gsn.networking.PacketDecoder;
+import gsn.networking.RawPacketDecoder;
 import gsn.wrappers.AbstractWrapper;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.Serializable;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.util.List;
 
 import org.apache.log4j.Logger;
 
@@ -45,32 +44,45 @@ import org.apache.log4j.Logger;
  * Links GSN to a Wisenet sensors network. The computer running this wrapper
  * should be connected to an IP network. One of the WSN nodes should forward
  * received packets through UDP to the host running this wrapper.
+ * <p>
+ * The packets are received by the shared {@link IngestServer} and decoded by
+ * the decoder of the wrapper, each packet is a RAW_PACKET by default. The
+ * stream elements are always written by the ingest stage of the wrapper, off
+ * the event loop of the server. The packets received together share the same
+ * reception time, the timestamps are not unique.
  */
-public class UDPWrapper extends AbstractWrapper {
+public class UDPWrapper extends AbstractWrapper implements IngestServer.Listener {
    
-   private static final String    RAW_PACKET    = "RAW_PACKET";
+   /**
+    * The capacity of the ingest queue if -DwrapperQueueSize is not larger.
+    */
+   public static final int        DEFAULT_QUEUE_SIZE = 4096;
    
    private final transient Logger logger        = Logger.getLogger( UDPWrapper.class );
    
-   private int                    threadCounter = 0;
-   
-   public InputStream             is;
-   
    private AddressBean            addressBean;
    
    private int                    port;
    
-   private DatagramSocket         socket;
+   private PacketDecoder          decoder       = new RawPacketDecoder( );
+   
+   private IngestServer.Binding   binding;
    
    /*
-    * Needs the following information from XML file : port : the udp port it
-    * should be listening to rate : time to sleep between each packet
+    * Needs the following information from XML file : port : the port it
+    * should be listening to, decoder (optional) : the class name of the
+    * PacketDecoder of the packets, RawPacketDecoder by default.
     */
    public boolean initialize (  ) {
       addressBean = getActiveAddressBean( );
       try {
          port = Integer.parseInt( addressBean.getPredicateValue( "port" ) );
-         socket = new DatagramSocket( port );
+         decoder = ( PacketDecoder ) Class.forName( addressBean.getPredicateValueWithDefault( "decoder" , RawPacketDecoder.class.getName( ) ) ).newInstance( );
+         if ( ! decoder.initialize( addressBean ) ) {
+            logger.warn( "The packet decoder " + decoder.getClass( ).getName( ) + " couldn't be initialized." );
+            return false;
+         }
+         binding = bind( IngestServer.getInstance( ) , port , decoder );
       } catch ( Exception e ) {
          logger.warn( e.getMessage( ) , e );
          return false;
@@ -78,32 +90,39 @@ public class UDPWrapper extends AbstractWrapper {
       return true;
    }
    
+   protected IngestServer.Binding bind ( IngestServer server , int port , PacketDecoder decoder ) throws IOException {
+      return server.bindDatagram( port , decoder , this );
+   }
+   
+   /**
+    * The packets are received by the event loops of the ingest server, the
+    * thread of the wrapper has nothing to do.
+    */
    public void run ( ) {
-      byte [ ] receivedData = new byte [ 50 ];
-      DatagramPacket receivedPacket = null;
-      while ( isActive( ) ) {
-         try {
-            receivedPacket = new DatagramPacket( receivedData , receivedData.length );
-            socket.receive( receivedPacket );
-            String dataRead = new String( receivedPacket.getData( ) );
-            if ( logger.isDebugEnabled( ) ) logger.debug( "UDPWrapper received a packet : " + dataRead );
-            StreamElement streamElement = new StreamElement( new String [ ] { RAW_PACKET } , new Byte [ ] { DataTypes.BINARY } , new Serializable [ ] { receivedPacket.getData( ) } , System
-                  .currentTimeMillis( ) );
-            postStreamElement( streamElement );
-         } catch ( IOException e ) {
-            logger.warn( "Error while receiving data on UDP socket : " + e.getMessage( ) );
-         }
-      }
+   }
+   
+   /**
+    * Queues the stream elements, the event loop of the server never waits for
+    * the inserts and the sliding handlers.
+    */
+   public void packetsReceived ( List < StreamElement > elements ) {
+      postStreamElements( elements );
+   }
+   
+   protected int getIngestQueueCapacity ( ) {
+      return Math.max( getIngestQueueSize( ) , DEFAULT_QUEUE_SIZE );
+   }
+   
+   public boolean isTimeStampUnique ( ) {
+      return false;
    }
    
    public  DataField [] getOutputFormat ( ) {
-      return new DataField[] {new DataField( RAW_PACKET , "BINARY" , "The packet contains raw data received as a UDP packet." ) };
-     
+      return decoder.getOutputFormat( );
    }
    
    public void dispose (  ) {
-      socket.close();
-      threadCounter--;
+      if ( binding != null ) binding.close( );
    }
    public String getWrapperName() {
     return "network udp";
@@ -0,0 +1,167 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/TestContainerImplPublishing.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn;
+
+import static org.junit.Assert.assertEquals;
+import gsn.beans.DataField;
+import gsn.beans.StreamElement;
+import gsn.beans.VSensorConfig;
+import gsn.storage.StorageManager;
+import gsn.storage.StorageManagerFactory;
+
+import java.io.Serializable;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Virtual sensors publishing at the same time through ContainerImpl on H2: the rows and the notifications of each
+ * virtual sensor stay in the same order, with one publisher per virtual sensor and with several publishers for the
+ * same virtual sensor. The throughput is measured by the PublishBenchmark of the benchmarks profile.
+ */
+public class TestContainerImplPublishing {
+
+	private static final int THREADS = 8;
+
+	private static final int ELEMENTS_PER_THREAD = 500;
+
+	private static final DataField[] structure = new DataField[] {new DataField("reading", "bigint")};
+
+	private static StorageManager sm;
+
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception {
+		DriverManager.registerDriver( new org.h2.Driver( ) );
+		sm = StorageManagerFactory.getInstance("org.h2.Driver", "sa", "", "jdbc:h2:mem:publish_order;DB_CLOSE_DELAY=-1", THREADS * 2);
+	}
+
+	private static VSensorConfig config(String name) throws Exception {
+		VSensorConfig config = new VSensorConfig();
+		config.setName(name);
+		config.setOutputStructure(structure);
+		sm.executeCreateTable(name, structure, true);
+		return config;
+	}
+
+	/**
+	 * Publishes ELEMENTS_PER_THREAD elements from each thread to its virtual sensor, the readings (and the timestamps)
+	 * of the thread i are i, i + THREADS, i + 2 * THREADS...
+	 */
+	private static void publish(final VSensorConfig[] configs) throws Exception {
+		final CountDownLatch start = new CountDownLatch(1);
+		final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+		Thread[] threads = new Thread[THREADS];
+		for (int i = 0; i < THREADS; i++) {
+			final int first = i + 1;
+			final VSensorConfig config = configs[i];
+			threads[i] = new Thread(new Runnable() {
+				public void run() {
+					try {
+						start.await();
+						for (long t = first; t <= (long) THREADS * ELEMENTS_PER_THREAD; t += THREADS)
+							ContainerImpl.getInstance().publishData(sm, config, new StreamElement(structure, new Serializable[] {t}, t));
+					} catch (Exception e) {
+						failure.set(e);
+					}
+				}
+			});
+			threads[i].start();
+		}
+		start.countDown();
+		for (Thread thread : threads)
+			thread.join();
+		if (failure.get() != null)
+			throw failure.get();
+	}
+
+	private static List<Long> readings(String table) throws Exception {
+		ArrayList<Long> readings = new ArrayList<Long>();
+		Connection conn = sm.getConnection();
+		try {
+			ResultSet rs = sm.executeQueryWithResultSet(new StringBuilder("select reading from ").append(table).append(" order by pk asc"), conn);
+			while (rs.next())
+				readings.add(rs.getLong(1));
+		} finally {
+			sm.close(conn);
+		}
+		return readings;
+	}
+
+	@Test
+	public void testOnePublisherPerSensor() throws Exception {
+		VSensorConfig[] configs = new VSensorConfig[THREADS];
+		for (int i = 0; i < THREADS; i++)
+			configs[i] = config("parallel_vs_" + i);
+		publish(configs);
+		for (int i = 0; i < THREADS; i++) {
+			List<Long> readings = readings(configs[i].getName());
+			assertEquals(ELEMENTS_PER_THREAD, readings.size());
+			for (int j = 0; j < readings.size(); j++)
+				assertEquals(i + 1L + (long) j * THREADS, (long) readings.get(j));
+		}
+	}
+
+	@Test
+	public void testConcurrentPublishersOfOneSensor() throws Exception {
+		final VSensorConfig config = config("shared_vs");
+		VSensorConfig[] configs = new VSensorConfig[THREADS];
+		for (int i = 0; i < THREADS; i++)
+			configs[i] = config;
+		final List<Long> notified = Collections.synchronizedList(new ArrayList<Long>());
+		VirtualSensorDataListener listener = new VirtualSensorDataListener() {
+			public void consume(StreamElement se, VSensorConfig c) {
+				if (c == config)
+					notified.add((Long) se.getData("reading"));
+			}
+		};
+		ContainerImpl.getInstance().addVSensorDataListener(listener);
+		try {
+			publish(configs);
+		} finally {
+			ContainerImpl.getInstance().removeVSensorDataListener(listener);
+		}
+		// The listeners see the elements in the order of the rows, and the elements of each publisher in order.
+		List<Long> readings = readings("shared_vs");
+		assertEquals(THREADS * ELEMENTS_PER_THREAD, readings.size());
+		assertEquals(readings, notified);
+		long[] last = new long[THREADS];
+		for (long reading : readings) {
+			int publisher = (int) ((reading - 1) % THREADS);
+			assertEquals(true, reading > last[publisher]);
+			last[publisher] = reading;
+		}
+		ContainerImpl.getInstance().vsUnLoading(config);
+	}
+
+}
@@ -0,0 +1,199 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/TestDataDistributer.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import gsn.beans.DataField;
+import gsn.beans.StreamElement;
+import gsn.beans.VSensorConfig;
+import gsn.http.rest.DefaultDistributionRequest;
+import gsn.http.rest.DeliverySystem;
+import gsn.storage.SQLValidator;
+import gsn.storage.StorageManager;
+import gsn.storage.StorageManagerFactory;
+import gsn.vsensor.SQLValidatorIntegration;
+
+import java.io.Serializable;
+import java.lang.reflect.Field;
+import java.sql.DriverManager;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * The overflow policies of the distributer for a listener catching up from the database (the in-memory
+ * distribution is disabled): the listener blocks on the delivery of the first stream element while the
+ * next ones are published.
+ */
+public class TestDataDistributer {
+
+	private static final int QUEUE_SIZE = 10;
+
+	private static final int ELEMENTS = 50;
+
+	private static final DataField[] structure = new DataField[] {new DataField("reading", "bigint")};
+
+	private static StorageManager sm;
+
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception {
+		DriverManager.registerDriver( new org.h2.Driver( ) );
+		sm = StorageManagerFactory.getInstance("org.h2.Driver", "sa", "", "jdbc:h2:mem:distributer;DB_CLOSE_DELAY=-1", Main.DEFAULT_MAX_DB_CONNECTIONS);
+		// The distributer reads the rows from the storages of the (not started) container.
+		setStaticField(Main.class, "mainStorage", sm);
+		setStaticField(Main.class, "windowStorage", sm);
+		setStaticField(Main.class, "validationStorage", sm);
+		setStaticField(DataDistributer.class, "queueSize", QUEUE_SIZE);
+	}
+
+	private static void setStaticField(Class<?> c, String name, Object value) throws Exception {
+		Field field = c.getDeclaredField(name);
+		field.setAccessible(true);
+		field.set(null, value);
+	}
+
+	/**
+	 * Publishes the readings 1 to ELEMENTS, the readings from 2 once the delivery of the first one is blocked.
+	 */
+	private static BlockingDelivery publish(String name, DataDistributer.OverflowPolicy policy) throws Exception {
+		setStaticField(DataDistributer.class, "overflowPolicy", policy);
+		VSensorConfig config = new VSensorConfig();
+		config.setName(name);
+		config.setOutputStructure(structure);
+		sm.executeCreateTable(name, structure, true);
+		new SQLValidatorIntegration(SQLValidator.getInstance()).vsLoading(config);
+		DataDistributer distributer = DataDistributer.getInstance(BlockingDelivery.class);
+		BlockingDelivery delivery = new BlockingDelivery();
+		distributer.addListener(DefaultDistributionRequest.create(delivery, config, "select * from " + name, 0));
+		try {
+			for (long t = 1; t <= ELEMENTS; t++) {
+				StreamElement se = new StreamElement(structure, new Serializable[] {t}, t);
+				sm.executeInsertDirectly(name, structure, se);
+				distributer.consume(se, config);
+				if (t == 1)
+					assertTrue(delivery.blocked.await(10, TimeUnit.SECONDS));
+			}
+		} finally {
+			delivery.release.countDown();
+		}
+		return delivery;
+	}
+
+	@Test
+	public void testDropOldest() throws Exception {
+		BlockingDelivery delivery = publish("distributer_drop_oldest", DataDistributer.OverflowPolicy.DROP_OLDEST);
+		// The first reading, then the latest QUEUE_SIZE ones.
+		assertTrue(delivery.delivered.tryAcquire(1 + QUEUE_SIZE, 10, TimeUnit.SECONDS));
+		ArrayList<Long> expected = new ArrayList<Long>();
+		expected.add(1L);
+		for (long t = ELEMENTS - QUEUE_SIZE + 1; t <= ELEMENTS; t++)
+			expected.add(t);
+		Thread.sleep(100);
+		assertEquals(expected, delivery.getReadings());
+	}
+
+	@Test
+	public void testCoalesce() throws Exception {
+		BlockingDelivery delivery = publish("distributer_coalesce", DataDistributer.OverflowPolicy.COALESCE);
+		// The first reading, then the readings published since the queue was cleared for the last time.
+		int cleared = (ELEMENTS - 2) / QUEUE_SIZE * QUEUE_SIZE + 1;
+		int expectedCount = 1 + ELEMENTS - cleared;
+		assertTrue(delivery.delivered.tryAcquire(expectedCount, 10, TimeUnit.SECONDS));
+		ArrayList<Long> expected = new ArrayList<Long>();
+		expected.add(1L);
+		for (long t = cleared + 1; t <= ELEMENTS; t++)
+			expected.add(t);
+		Thread.sleep(100);
+		assertEquals(expected, delivery.getReadings());
+	}
+
+	@Test
+	public void testDisconnect() throws Exception {
+		BlockingDelivery delivery = publish("distributer_disconnect", DataDistributer.OverflowPolicy.DISCONNECT);
+		assertTrue(delivery.isClosed());
+		assertTrue(delivery.delivered.tryAcquire(1, 10, TimeUnit.SECONDS));
+		Thread.sleep(100);
+		assertEquals(1, delivery.getReadings().size());
+	}
+
+	/**
+	 * Blocks on the delivery of the first stream element until released.
+	 */
+	public static class BlockingDelivery implements DeliverySystem {
+
+		private final CountDownLatch blocked = new CountDownLatch(1);
+
+		private final CountDownLatch release = new CountDownLatch(1);
+
+		private final Semaphore delivered = new Semaphore(0);
+
+		private final List<Long> readings = new ArrayList<Long>();
+
+		private volatile boolean closed = false;
+
+		public void writeStructure(DataField[] fields) {}
+
+		public boolean writeStreamElement(StreamElement se) {
+			blocked.countDown();
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				return false;
+			}
+			synchronized (readings) {
+				readings.add((Long) se.getData("reading"));
+			}
+			delivered.release();
+			return true;
+		}
+
+		public boolean writeKeepAliveStreamElement() {
+			return true;
+		}
+
+		public void close() {
+			closed = true;
+		}
+
+		public boolean isClosed() {
+			return closed;
+		}
+
+		private List<Long> getReadings() {
+			synchronized (readings) {
+				return new ArrayList<Long>(readings);
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,174 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/TestVSensorLoaderOrdering.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import gsn.beans.AddressBean;
+import gsn.beans.InputStream;
+import gsn.beans.StreamSource;
+import gsn.beans.VSensorConfig;
+import gsn.utils.KeyValueImp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * The order in which the virtual sensors of a batch are loaded by several threads: after the virtual sensors they
+ * read through the local wrapper, one at a time for the same name, and without waiting in a cycle.
+ */
+public class TestVSensorLoaderOrdering {
+
+	private static final int THREADS = 4;
+
+	private static VSensorConfig config(String name, String... sources) {
+		return configInFile(name, name + ".xml", sources);
+	}
+
+	private static VSensorConfig configInFile(String name, String fileName, String... sources) {
+		VSensorConfig config = new VSensorConfig();
+		config.setName(name);
+		config.setFileName(fileName);
+		InputStream is = new InputStream();
+		is.setInputStreamName("input");
+		StreamSource[] streamSources = new StreamSource[sources.length];
+		for (int i = 0; i < sources.length; i++)
+			streamSources[i] = new StreamSource().setAlias("source" + i).setAddressing(new AddressBean[] {new AddressBean("local", new KeyValueImp("name", sources[i]))});
+		is.setSources(streamSources);
+		config.setInputStreams(is);
+		return config;
+	}
+
+	/**
+	 * Records the beginning and the end of each load (by file name), the loads lasting long enough to overlap.
+	 */
+	private static class RecordingLoader implements VSensorLoader.Loader {
+
+		final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+
+		final Set<String> failing = new HashSet<String>();
+
+		final Set<String> loaded = Collections.synchronizedSet(new HashSet<String>());
+
+		int running = 0;
+
+		int maxRunning = 0;
+
+		public boolean load(VSensorConfig vs) {
+			synchronized (this) {
+				maxRunning = Math.max(maxRunning, ++running);
+			}
+			events.add("start " + vs.getFileName());
+			try {
+				Thread.sleep(50);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			// A second virtual sensor with the same name is rejected, as by VSensorLoader.isVirtualSensorValid.
+			boolean result = !failing.contains(vs.getName()) && loaded.add(vs.getName().toLowerCase());
+			events.add("end " + vs.getFileName());
+			synchronized (this) {
+				running--;
+			}
+			return result;
+		}
+
+		void assertBefore(String first, String then) {
+			int end = events.indexOf("end " + first);
+			int start = events.indexOf("start " + then);
+			assertTrue(end >= 0 && start >= 0);
+			assertTrue(first + " is not loaded before " + then + ": " + events, end < start);
+		}
+	}
+
+	@Test
+	public void testDependencyOrdering() {
+		// c reads b, which reads a, d is independent.
+		ArrayList<VSensorConfig> configs = new ArrayList<VSensorConfig>(Arrays.asList(config("c", "b"), config("b", "a"), config("d"), config("a")));
+		RecordingLoader loader = new RecordingLoader();
+		assertEquals(4, VSensorLoader.loadConcurrently(configs, THREADS, loader));
+		loader.assertBefore("a.xml", "b.xml");
+		loader.assertBefore("b.xml", "c.xml");
+		// d does not wait.
+		assertTrue(loader.maxRunning > 1);
+	}
+
+	@Test
+	public void testFailedDependency() {
+		ArrayList<VSensorConfig> configs = new ArrayList<VSensorConfig>(Arrays.asList(config("b", "a"), config("a")));
+		RecordingLoader loader = new RecordingLoader();
+		loader.failing.add("a");
+		assertEquals(1, VSensorLoader.loadConcurrently(configs, THREADS, loader));
+		loader.assertBefore("a.xml", "b.xml");
+	}
+
+	@Test
+	public void testCycle() {
+		// a and b read each other, c reads a.
+		ArrayList<VSensorConfig> configs = new ArrayList<VSensorConfig>(Arrays.asList(config("a", "b"), config("b", "a"), config("c", "a")));
+		RecordingLoader loader = new RecordingLoader();
+		assertEquals(3, VSensorLoader.loadConcurrently(configs, THREADS, loader));
+		assertEquals(6, loader.events.size());
+	}
+
+	@Test
+	public void testSameName() {
+		// Equal configurations (VSensorConfig.equals compares the names) in different files, and a name differing by the case.
+		ArrayList<VSensorConfig> configs = new ArrayList<VSensorConfig>(Arrays.asList(configInFile("dup", "dup1.xml"), configInFile("dup", "dup2.xml"), configInFile("DUP", "dup3.xml")));
+		RecordingLoader loader = new RecordingLoader();
+		assertEquals(1, VSensorLoader.loadConcurrently(configs, THREADS, loader));
+		assertEquals(6, loader.events.size());
+		assertEquals(1, loader.maxRunning);
+		loader.assertBefore("dup1.xml", "dup2.xml");
+		loader.assertBefore("dup1.xml", "dup3.xml");
+	}
+
+	@Test
+	public void testReload() {
+		// loadPlugin() removes the modified virtual sensors, then loads them again in the next batch.
+		RecordingLoader loader = new RecordingLoader();
+		ArrayList<VSensorConfig> configs = new ArrayList<VSensorConfig>(Arrays.asList(config("b", "a"), config("a")));
+		assertEquals(2, VSensorLoader.loadConcurrently(configs, THREADS, loader));
+		loader.loaded.clear();
+		loader.events.clear();
+		configs = new ArrayList<VSensorConfig>(Arrays.asList(config("b", "a"), config("a")));
+		assertEquals(2, VSensorLoader.loadConcurrently(configs, THREADS, loader));
+		loader.assertBefore("a.xml", "b.xml");
+		// Only the modified dependant is reloaded, its source being loaded already.
+		loader.events.clear();
+		loader.loaded.remove("b");
+		assertEquals(1, VSensorLoader.loadConcurrently(new ArrayList<VSensorConfig>(Arrays.asList(config("b", "a"))), THREADS, loader));
+		assertFalse(loader.events.contains("start a.xml"));
+	}
+
+}
@@ -0,0 +1,158 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/acquisition2/TestSafeStorageDrain.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.acquisition2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import gsn.acquisition2.client.MessageHandler;
+import gsn.acquisition2.client.SafeStorageClientSessionHandler;
+import gsn.acquisition2.messages.DataMsg;
+import gsn.acquisition2.messages.HelloMsg;
+import gsn.acquisition2.server.SafeStorageServerSessionHandler;
+import gsn.acquisition2.wrappers.AbstractWrapper2;
+import gsn.beans.AddressBean;
+import gsn.utils.KeyValueImp;
+
+import java.io.File;
+import java.io.Serializable;
+import java.net.InetSocketAddress;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.mina.common.ConnectFuture;
+import org.apache.mina.common.IoSession;
+import org.apache.mina.common.ThreadModel;
+import org.apache.mina.filter.codec.ProtocolCodecFilter;
+import org.apache.mina.filter.codec.serialization.ObjectSerializationCodecFactory;
+import org.apache.mina.filter.executor.ExecutorFilter;
+import org.apache.mina.transport.socket.nio.SocketAcceptor;
+import org.apache.mina.transport.socket.nio.SocketAcceptorConfig;
+import org.apache.mina.transport.socket.nio.SocketConnector;
+import org.apache.mina.transport.socket.nio.SocketConnectorConfig;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Drains a backlog of the safe storage through a loopback connection, once with the stop-and-wait protocol
+ * and once with a window of messages in flight: every entry is received in order and acknowledged.
+ */
+public class TestSafeStorageDrain {
+
+	private static final int PORT = 22971;
+
+	private static final int BACKLOG = 5000;
+
+	private static final int WINDOW = 64;
+
+	private static SafeStorage ss;
+
+	private static SocketAcceptor acceptor;
+
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception {
+		ss = new SafeStorage(PORT);
+		acceptor = new SocketAcceptor();
+		acceptor.getDefaultConfig().setThreadModel(ThreadModel.MANUAL);
+		SocketAcceptorConfig cfg = new SocketAcceptorConfig();
+		cfg.setReuseAddress(true);
+		cfg.getFilterChain().addLast("codec", new ProtocolCodecFilter(new ObjectSerializationCodecFactory()));
+		cfg.getFilterChain().addLast("threadPool", new ExecutorFilter(new ThreadPoolExecutor(0, Integer.MAX_VALUE, Long.MAX_VALUE, TimeUnit.NANOSECONDS, new LinkedBlockingQueue<Runnable>())));
+		acceptor.bind(new InetSocketAddress(PORT), new SafeStorageServerSessionHandler(ss), cfg);
+	}
+
+	@AfterClass
+	public static void tearDownAfterClass() {
+		acceptor.unbindAll();
+		ss.shutdown();
+		ss.getStorage().dropAllTables();
+		for (File file : new File(".").listFiles())
+			if (file.getName().startsWith("storage" + PORT + ".h2"))
+				file.delete();
+	}
+
+	@Test
+	public void testStopAndWaitDrain() throws Exception {
+		drain("drain-stop-and-wait", 1);
+	}
+
+	@Test
+	public void testWindowedDrain() throws Exception {
+		drain("drain-windowed", WINDOW);
+	}
+
+	private void drain(String requester, int window) throws Exception {
+		AddressBean wrapperDetails = new AddressBean("mem2", new KeyValueImp("wrapper-name", "mem2"), new KeyValueImp("sampling-rate", "100000000"),
+				new KeyValueImp("wrapper-keep-processed-ss-entries", "true"), new KeyValueImp(SafeStorageServerSessionHandler.WINDOW_PREDICATE, Integer.toString(window)));
+		AbstractWrapper2 wrapper = ss.prepareWrapper(new HelloMsg(wrapperDetails, requester), null);
+		PreparedStatement insert = ss.getStorage().createPreparedStatement("insert into " + wrapper.getTableName() + " (stream_element) values (?)");
+		for (long i = 0; i < BACKLOG; i++) {
+			insert.setObject(1, new Serializable[] {i, i * 0.5, "reading"});
+			insert.executeUpdate();
+		}
+		insert.close();
+
+		final CountDownLatch drained = new CountDownLatch(BACKLOG);
+		final AtomicLong lastSequenceNumber = new AtomicLong(-1);
+		final AtomicLong outOfOrder = new AtomicLong();
+		MessageHandler handler = new MessageHandler() {
+			public boolean messageToBeProcessed(DataMsg dataMessage) {
+				if (dataMessage.getSequenceNumber() <= lastSequenceNumber.getAndSet(dataMessage.getSequenceNumber()))
+					outOfOrder.incrementAndGet();
+				drained.countDown();
+				return true;
+			}
+
+			public void restartConnection() {
+			}
+		};
+		SocketConnector connector = new SocketConnector();
+		connector.setWorkerTimeout(1);
+		SocketConnectorConfig cfg = new SocketConnectorConfig();
+		cfg.getFilterChain().addLast("codec", new ProtocolCodecFilter(new ObjectSerializationCodecFactory()));
+		ConnectFuture future = connector.connect(new InetSocketAddress("localhost", PORT), new SafeStorageClientSessionHandler(wrapperDetails, handler, requester), cfg);
+		future.join();
+		IoSession session = future.getSession();
+		assertTrue(drained.await(120, TimeUnit.SECONDS));
+		assertEquals(0, outOfOrder.get());
+
+		// The last acknowledgments are applied when the window is empty.
+		Thread.sleep(500);
+		session.close().join();
+		PreparedStatement count = ss.getStorage().createPreparedStatement("select count(*) from " + wrapper.getTableName() + " where processed = false");
+		ResultSet rs = count.executeQuery();
+		rs.next();
+		assertEquals(0, rs.getLong(1));
+		rs.close();
+		count.close();
+	}
+
+}
@@ -0,0 +1,189 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/acquisition2/TestSafeStorageQueues.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.acquisition2;
+
+import static org.junit.Assert.assertEquals;
+import gsn.acquisition2.messages.DataMsg;
+import gsn.acquisition2.wrappers.AbstractWrapper2;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * The segmented log queue (acknowledgment, recovery of a torn record), the recovery of both backends,
+ * and the release of the queue of a wrapper.
+ */
+public class TestSafeStorageQueues {
+
+	private static final int PORT = 22972;
+
+	private static final int ENTRIES = 20000;
+
+	private File directory;
+
+	@Before
+	public void setUp() {
+		directory = new File(System.getProperty("java.io.tmpdir"), "gsn-segmented-log-" + System.nanoTime());
+	}
+
+	@After
+	public void tearDown() {
+		delete(directory);
+		for (File file : new File(".").listFiles())
+			if (file.getName().startsWith("storage" + PORT + ".h2"))
+				file.delete();
+	}
+
+	private static void delete(File file) {
+		if (file.isDirectory())
+			for (File child : file.listFiles())
+				delete(child);
+		file.delete();
+	}
+
+	@Test
+	public void testAcknowledgmentAndRecovery() throws Exception {
+		SegmentedLogQueue queue = new SegmentedLogQueue(directory, 4096, false, false);
+		for (long i = 1; i <= 1000; i++)
+			assertEquals(i, queue.append(new Serializable[] {i, "reading"}));
+		List<DataMsg> entries = queue.read(0, 300);
+		assertEquals(300, entries.size());
+		assertEquals(300L, entries.get(299).getSequenceNumber());
+		assertEquals(300L, entries.get(299).getData()[0]);
+		int segments = segmentFiles().length;
+		queue.acknowledge(300);
+		assertEquals(true, segmentFiles().length < segments);
+		queue.close();
+
+		// The acknowledged entries are not sent again.
+		queue = new SegmentedLogQueue(directory, 4096, false, false);
+		entries = queue.read(-1, ENTRIES);
+		assertEquals(700, entries.size());
+		assertEquals(301L, entries.get(0).getSequenceNumber());
+		queue.close();
+
+		// A torn record ends the log.
+		File[] files = segmentFiles();
+		RandomAccessFile raf = new RandomAccessFile(files[files.length - 1], "rw");
+		byte[] content = new byte[(int) raf.length()];
+		raf.readFully(content);
+		int last = content.length - 1;
+		while (content[last] == 0)
+			last--;
+		raf.seek(last - 2);
+		raf.write(new byte[] {1, 2, 3});
+		raf.close();
+		queue = new SegmentedLogQueue(directory, 4096, false, false);
+		entries = queue.read(-1, ENTRIES);
+		assertEquals(699, entries.size());
+		assertEquals(1000L, queue.append(new Serializable[] {1000L, "reading"}));
+		queue.close();
+	}
+
+	@Test
+	public void testReopenAndDrain() throws Exception {
+		SafeStorageDB db = new SafeStorageDB(PORT);
+		String table = db.prepareTableIfNeeded("reopened");
+		ingest(new H2SafeStorageQueue(db, table, false));
+		db.getConnection().close();
+		db = new SafeStorageDB(PORT);
+		SafeStorageQueue h2 = new H2SafeStorageQueue(db, table, false);
+		assertEquals(ENTRIES, drain(h2));
+		h2.close();
+		db.dropAllTables();
+		db.getConnection().close();
+
+		ingest(new SegmentedLogQueue(directory, SegmentedLogQueue.DEFAULT_SEGMENT_SIZE, false, false));
+		SafeStorageQueue log = new SegmentedLogQueue(directory, SegmentedLogQueue.DEFAULT_SEGMENT_SIZE, false, false);
+		assertEquals(ENTRIES, drain(log));
+		log.close();
+	}
+
+	@Test
+	public void testReleaseResources() throws Exception {
+		final List<String> calls = new ArrayList<String>();
+		AbstractWrapper2 wrapper = new AbstractWrapper2() {
+			public boolean initialize() {
+				return true;
+			}
+			public void dispose() {
+				calls.add("dispose");
+			}
+			public String getWrapperName() {
+				return "released";
+			}
+			public void run() {
+			}
+		};
+		wrapper.setQueue(new SegmentedLogQueue(directory, 4096, false, false) {
+			public void close() {
+				super.close();
+				calls.add("close");
+			}
+		});
+		wrapper.releaseResources();
+		// The acquisition is stopped before the queue is closed.
+		assertEquals(Arrays.asList("dispose", "close"), calls);
+	}
+
+	private void ingest(SafeStorageQueue queue) throws Exception {
+		for (long i = 0; i < ENTRIES; i++)
+			queue.append(new Serializable[] {i, i * 0.5, System.currentTimeMillis()});
+		queue.close();
+	}
+
+	private int drain(SafeStorageQueue queue) throws Exception {
+		int count = 0;
+		long last = -1;
+		List<DataMsg> entries;
+		while (!(entries = queue.read(last, 256)).isEmpty()) {
+			count += entries.size();
+			last = entries.get(entries.size() - 1).getSequenceNumber();
+			queue.acknowledge(last);
+		}
+		return count;
+	}
+
+	private File[] segmentFiles() {
+		File[] files = directory.listFiles(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.endsWith(".seg");
+			}
+		});
+		Arrays.sort(files);
+		return files;
+	}
+
+}
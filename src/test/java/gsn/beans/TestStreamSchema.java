@@ -0,0 +1,192 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/beans/TestStreamSchema.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.beans;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import gsn.http.rest.StreamElement4Rest;
+import gsn.networking.zeromq.ZeroMQCodec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.thoughtworks.xstream.XStream;
+
+/**
+ * The schema backed stream elements: the shared schemas, the index based accessors, the compatibility with the
+ * boxed values and the serializations, and the heap used by the stream elements of both representations.
+ */
+public class TestStreamSchema {
+
+	private static final int ELEMENTS = 200000;
+
+	private static final DataField[] structure = new DataField[] {new DataField("Temperature", "double"), new DataField("light", "int"),
+			new DataField("station", "varchar(20)"), new DataField("counter", "bigint"), new DataField("humidity", "float")};
+
+	private static StreamElement element(long i) {
+		StreamElement se = new StreamElement(StreamSchema.of(structure), i);
+		se.setDouble(0, i * 0.5);
+		se.setLong(1, i);
+		se.setData(2, "station-" + (i % 10));
+		se.setLong(3, i * 1000);
+		return se;
+	}
+
+	@Test
+	public void testSharedSchema() {
+		StreamSchema schema = StreamSchema.of(structure);
+		assertSame(schema, StreamSchema.of(structure));
+		DataField[] copy = new DataField[structure.length];
+		for (int i = 0; i < structure.length; i++)
+			copy[i] = new DataField(structure[i].getName(), structure[i].getDataTypeID());
+		assertSame(schema, StreamSchema.of(copy));
+		StreamElement se = new StreamElement(structure, new Serializable[] {1.5, 2, "a", 3L, 4.5f}, 10);
+		assertSame(schema, se.getSchema());
+		assertSame(se.getFieldNames(), new StreamElement(schema, 11).getFieldNames());
+		assertArrayEquals(schema.getFieldNames(), se.getFieldNames());
+		assertArrayEquals(schema.getFieldTypes(), se.getFieldTypes());
+		assertEquals("temperature", se.getFieldNames()[0]);
+		assertEquals(2, se.indexOf("STATION"));
+		assertEquals(-1, se.indexOf("missing"));
+		assertEquals(1.5, se.getData("temperature"));
+		assertEquals(2, se.getLong(1));
+		assertEquals(4.5, se.getDouble(4), 0);
+	}
+
+	@Test
+	public void testCopies() {
+		StreamSchema schema = StreamSchema.of(structure);
+		schema.getFieldNames()[0] = "changed";
+		schema.getFieldTypes()[0] = DataTypes.VARCHAR;
+		assertEquals("temperature", schema.getFieldNames()[0]);
+		assertEquals(DataTypes.DOUBLE, (byte) schema.getFieldTypes()[0]);
+		// The arrays shared by the stream elements are not the ones of the schema.
+		String[] shared = new StreamElement(schema, 1).getFieldNames();
+		shared[1] = "changed";
+		try {
+			assertEquals("light", schema.getFieldNames()[1]);
+			assertEquals(1, schema.indexOf("light"));
+			assertSame(schema, StreamSchema.of(structure));
+		} finally {
+			shared[1] = "light";
+		}
+		assertSame(schema, StreamSchema.of(new String[] {"temperature", "light", "station", "counter", "humidity"}, schema.getFieldTypes()));
+		assertTrue(schema.isPrimitive(0));
+	}
+
+	@Test
+	public void testSlots() {
+		StreamElement se = element(7);
+		assertEquals(3.5, se.getDouble(0), 0);
+		assertEquals(7, se.getLong(1));
+		assertEquals(7000L, se.getData("counter"));
+		assertEquals(7, se.getData("light"));
+		assertEquals("station-7", se.getData(2));
+		assertTrue(se.isNull(4));
+		assertNull(se.getData("humidity"));
+		se.setData(4, 1.25f);
+		assertEquals(1.25f, se.getData(4));
+		assertTrue(se.toString().contains("light/" + DataTypes.INTEGER + " = 7"));
+
+		StreamElement copy = new StreamElement(se);
+		copy.setLong(1, 8);
+		assertEquals(7, se.getLong(1));
+
+		// Once boxed, the array is the only copy of the values.
+		Serializable[] values = se.getData();
+		assertArrayEquals(new Serializable[] {3.5, 7, "station-7", 7000L, 1.25f}, values);
+		values[1] = 9;
+		assertEquals(9, se.getLong(1));
+		se.setDouble(0, 1.0);
+		assertEquals(1.0, values[0]);
+		assertEquals(8, copy.getData()[1]);
+	}
+
+	@Test
+	public void testSerializations() throws Exception {
+		StreamElement se = element(3);
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		ObjectOutputStream oos = new ObjectOutputStream(bos);
+		oos.writeObject(element(3));
+		oos.close();
+		StreamElement read = (StreamElement) new ObjectInputStream(new ByteArrayInputStream(bos.toByteArray())).readObject();
+		assertArrayEquals(se.getData(), read.getData());
+		assertEquals(3L, read.getTimeStamp());
+
+		XStream xstream = new XStream();
+		read = (StreamElement) xstream.fromXML(xstream.toXML(element(3)));
+		assertArrayEquals(se.getData(), read.getData());
+
+		ZeroMQCodec codec = new ZeroMQCodec(new Kryo());
+		codec.add(element(3));
+		codec.finish();
+		read = new ZeroMQCodec(new Kryo()).decode(Arrays.copyOf(codec.getBuffer(), codec.length())).get(0);
+		assertArrayEquals(se.getData(), read.getData());
+
+		read = new StreamElement4Rest(element(3)).toStreamElement();
+		assertArrayEquals(se.getData(), read.getData());
+		assertEquals(3000L, read.getData("counter"));
+	}
+
+	@Test
+	public void testHeap() {
+		StreamSchema schema = StreamSchema.of(structure);
+		StreamElement[] elements = new StreamElement[ELEMENTS];
+		long before = usedHeap();
+		for (int i = 0; i < ELEMENTS; i++) {
+			// The former representation: per element names, types and index.
+			elements[i] = new StreamElement(schema.getFieldNames(), schema.getFieldTypes(),
+					new Serializable[] {i * 0.5, i, "station-" + (i % 10), i * 1000L, null}, i);
+			elements[i].getData("light");
+		}
+		long boxed = usedHeap() - before;
+		Arrays.fill(elements, null);
+		before = usedHeap();
+		for (int i = 0; i < ELEMENTS; i++)
+			elements[i] = element(i);
+		long slots = usedHeap() - before;
+		assertEquals(ELEMENTS - 1.0, elements[ELEMENTS - 1].getLong(1), 0);
+		// About 565 bytes per element with boxed values, 216 with slots.
+		assertTrue("boxed: " + boxed / ELEMENTS + " bytes per element, slots: " + slots / ELEMENTS, slots < boxed * 3 / 4);
+	}
+
+	private static long usedHeap() {
+		for (int i = 0; i < 3; i++)
+			System.gc();
+		return Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+	}
+
+}
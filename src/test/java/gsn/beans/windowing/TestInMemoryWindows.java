@@ -0,0 +1,173 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/beans/windowing/TestInMemoryWindows.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.beans.windowing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import gsn.beans.DataField;
+import gsn.beans.DataTypes;
+import gsn.beans.StreamElement;
+import gsn.beans.StreamSource;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestInMemoryWindows {
+
+	private static final DataField[] structure = new DataField[] {new DataField("temperature", "double"), new DataField("packet_type", "int")};
+
+	private static final String[] names = new String[] {"temperature", "packet_type"};
+
+	private static final Byte[] types = new Byte[] {DataTypes.DOUBLE, DataTypes.INTEGER};
+
+	private WindowBuffer buffer;
+
+	@Before
+	public void setUp() {
+		buffer = new WindowBuffer(structure);
+		buffer.require(new StreamSource(), 5, -1);
+		for (int i = 1; i <= 10; i++)
+			buffer.append(new StreamElement(structure, new Serializable[] {i * 1.5, i % 2}, i * 1000));
+	}
+
+	@Test
+	public void testBufferKeepsRequiredHistory() {
+		assertEquals(5, buffer.size());
+		StreamSource timeBased = new StreamSource();
+		buffer.require(timeBased, 0, 7000);
+		buffer.append(new StreamElement(structure, new Serializable[] {1.0, 1}, 11000));
+		assertEquals(6, buffer.size());
+		buffer.release(timeBased);
+		assertEquals(5, buffer.size());
+	}
+
+	@Test
+	public void testWindows() {
+		WindowBuffer.Rows rows = buffer.lastTuples(3, Long.MAX_VALUE);
+		assertEquals(3, rows.size());
+		assertEquals(10000, rows.timed(0));
+		assertEquals(8000, rows.timed(2));
+		rows = buffer.lastTuples(3, 8500);
+		assertEquals(8000, rows.timed(0));
+		assertEquals(6000, rows.timed(2));
+		rows = buffer.range(7000, 9000);
+		assertEquals(3, rows.size());
+		assertEquals(9000, rows.timed(0));
+		assertEquals(0, buffer.range(20000, Long.MAX_VALUE).size());
+	}
+
+	@Test
+	public void testProjectionAndConditions() {
+		InMemoryWindowQuery query = InMemoryWindowQuery.parse("select temperature as t, timed from wrapper where packet_type = 1 and timed >= 7000", "wrapper", names, types, true);
+		assertNotNull(query);
+		assertTrue(query.isWithTimed());
+		ArrayList<StreamElement> result = query.evaluate(buffer.lastTuples(5, Long.MAX_VALUE), 1);
+		assertEquals(2, result.size());
+		assertEquals(9000, result.get(0).getTimeStamp());
+		assertEquals(13.5, result.get(0).getData("t"));
+		assertEquals(7000, result.get(1).getTimeStamp());
+
+		InMemoryWindowQuery inputStreamQuery = InMemoryWindowQuery.parse("select source1.t from source1", "source1", query.getFieldNames(), query.getFieldTypes(), true);
+		assertNotNull(inputStreamQuery);
+		assertEquals(2, inputStreamQuery.evaluate(InMemoryWindowQuery.asRows(result), 1).size());
+	}
+
+	@Test
+	public void testAggregates() {
+		InMemoryWindowQuery query = InMemoryWindowQuery.parse("select count(*) as c, avg(temperature), max(packet_type) from wrapper", "wrapper", names, types, true);
+		assertNotNull(query);
+		ArrayList<StreamElement> result = query.evaluate(buffer.lastTuples(4, Long.MAX_VALUE), 1);
+		assertEquals(1, result.size());
+		assertEquals(4L, result.get(0).getData("c"));
+		assertEquals(12.75, result.get(0).getData("avg(temperature)"));
+		assertEquals(1, result.get(0).getData("max(packet_type)"));
+		// Like in SQL, the aggregates of an empty window are still returned.
+		result = query.evaluate(buffer.range(1, 0), 1);
+		assertEquals(1, result.size());
+		assertEquals(0L, result.get(0).getData("c"));
+		assertNull(result.get(0).getData("avg(temperature)"));
+	}
+
+	@Test
+	public void testAggregateTypes() {
+		DataField[] integers = new DataField[] {new DataField("counter", "bigint"), new DataField("level", "int"), new DataField("ratio", "float")};
+		WindowBuffer integerBuffer = new WindowBuffer(integers);
+		integerBuffer.require(new StreamSource(), 3, -1);
+		// The sum of the counters, 2^53 + 3, can't be accumulated in a double.
+		integerBuffer.append(new StreamElement(integers, new Serializable[] {(1L << 53), -7, 0.5f}, 1000));
+		integerBuffer.append(new StreamElement(integers, new Serializable[] {1L, 2, 0.25f}, 2000));
+		integerBuffer.append(new StreamElement(integers, new Serializable[] {2L, 1, 0.25f}, 3000));
+		InMemoryWindowQuery query = InMemoryWindowQuery.parse("select sum(counter), avg(counter), sum(level), avg(level), avg(ratio) from wrapper", "wrapper",
+				new String[] {"counter", "level", "ratio"}, new Byte[] {DataTypes.BIGINT, DataTypes.INTEGER, DataTypes.FLOAT}, true);
+		assertEquals(DataTypes.DOUBLE, (byte) query.getFieldTypes()[0]);
+		assertEquals(DataTypes.BIGINT, (byte) query.getFieldTypes()[1]);
+		assertEquals(DataTypes.BIGINT, (byte) query.getFieldTypes()[2]);
+		assertEquals(DataTypes.INTEGER, (byte) query.getFieldTypes()[3]);
+		assertEquals(DataTypes.FLOAT, (byte) query.getFieldTypes()[4]);
+		StreamElement result = query.evaluate(integerBuffer.lastTuples(3, Long.MAX_VALUE), 1).get(0);
+		assertEquals((double) ((1L << 53) + 3), result.getData("sum(counter)"));
+		// H2 rounds the average of the bigints half up, and truncates the one of the integers.
+		assertEquals(((1L << 53) + 3) / 3 + 1, result.getData("avg(counter)"));
+		assertEquals(-4L, result.getData("sum(level)"));
+		assertEquals(-1, result.getData("avg(level)"));
+		assertEquals(1 / 3f, result.getData("avg(ratio)"));
+		assertEquals(result.getData("avg(counter)"), query.newSlidingAggregate().slide(integerBuffer.lastTuples(3, Long.MAX_VALUE), 1).get(0).getData("avg(counter)"));
+	}
+
+	@Test
+	public void testSlidingAggregates() {
+		InMemoryWindowQuery query = InMemoryWindowQuery.parse("select count(*), sum(packet_type), min(temperature), max(temperature) from wrapper where temperature > 4", "wrapper", names, types, true);
+		InMemoryWindowQuery.SlidingAggregate aggregate = query.newSlidingAggregate();
+		for (int i = 11; i <= 30; i++) {
+			buffer.append(new StreamElement(structure, new Serializable[] {(i * 7) % 11 * 1.0, i % 3}, i * 1000));
+			for (WindowBuffer.Rows rows : new WindowBuffer.Rows[] {buffer.lastTuples(4, Long.MAX_VALUE), buffer.range(i * 1000 - 2500, Long.MAX_VALUE)}) {
+				StreamElement expected = query.evaluate(rows, 1).get(0);
+				StreamElement actual = aggregate.slide(rows, 1).get(0);
+				for (String name : expected.getFieldNames())
+					assertEquals(expected.getData(name), actual.getData(name));
+			}
+		}
+	}
+
+	@Test
+	public void testUnsupportedQueries() {
+		assertNull(InMemoryWindowQuery.parse("select * from wrapper where packet_type = 1 or packet_type = 2", "wrapper", names, types, true));
+		assertNull(InMemoryWindowQuery.parse("select * from wrapper order by timed", "wrapper", names, types, true));
+		assertNull(InMemoryWindowQuery.parse("select s1.temperature from s1, s2", "s1", names, types, true));
+		assertNull(InMemoryWindowQuery.parse("select abs(temperature) from wrapper", "wrapper", names, types, true));
+		assertNull(InMemoryWindowQuery.parse("select temperature, count(*) from wrapper", "wrapper", names, types, true));
+		assertNull(InMemoryWindowQuery.parse("select humidity from wrapper", "wrapper", names, types, true));
+		assertFalse(InMemoryWindowQuery.parse("select * from wrapper", "wrapper", names, types, true).isAggregate());
+	}
+
+}
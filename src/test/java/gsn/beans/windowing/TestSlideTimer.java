@@ -0,0 +1,96 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/beans/windowing/TestSlideTimer.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.beans.windowing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import gsn.beans.StreamSource;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class TestSlideTimer {
+
+	/**
+	 * Counts the slides, and the slides running at the same time.
+	 */
+	private static class CountingListener implements SlideTimer.SlideListener {
+
+		private final long duration;
+
+		private final AtomicInteger running = new AtomicInteger();
+
+		private volatile int maxRunning = 0;
+
+		private volatile int slides = 0;
+
+		private volatile boolean ordered = true;
+
+		private long lastTimestamp = 0;
+
+		private CountingListener(long duration) {
+			this.duration = duration;
+		}
+
+		public void slide(ArrayList<StreamSource> streamSources, long timestamp) {
+			maxRunning = Math.max(maxRunning, running.incrementAndGet());
+			ordered &= timestamp >= lastTimestamp;
+			lastTimestamp = timestamp;
+			try {
+				Thread.sleep(duration);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			slides++;
+			running.decrementAndGet();
+		}
+	}
+
+	@Test
+	public void testSlidesOfAListenerAreSerialized() throws Exception {
+		SlideTimer timer = SlideTimer.getInstance();
+		// The slides of the slow listener are due more often than they can run.
+		CountingListener slow = new CountingListener(50);
+		CountingListener fast = new CountingListener(0);
+		ArrayList<SlideTimer.Slide> slides = new ArrayList<SlideTimer.Slide>();
+		slides.add(timer.schedule(slow, new StreamSource(), 0, 10));
+		slides.add(timer.schedule(slow, new StreamSource(), 5, 20));
+		slides.add(timer.schedule(fast, new StreamSource(), 0, 20));
+		Thread.sleep(1000);
+		for (SlideTimer.Slide slide : slides)
+			slide.cancel();
+		Thread.sleep(100);
+
+		assertEquals(1, slow.maxRunning);
+		assertTrue(slow.ordered);
+		assertTrue(slow.slides > 5);
+		// The slow listener holds at most one of the workers.
+		assertTrue(fast.slides > 20);
+	}
+
+}
@@ -0,0 +1,200 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/http/ac/TestAccessControlCache.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.http.ac;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * The snapshots of the access control cache: the case insensitive names, the invalidation on writes, the
+ * snapshots and logins loaded during a write, which are not kept, the reload by a single thread and the
+ * failed loads.
+ */
+public class TestAccessControlCache {
+
+	/**
+	 * Counts the loads of the managed virtual sensors, read from a list instead of the access control tables.
+	 */
+	private static class CountingCache extends AccessControlCache {
+
+		private final List<String> managed = new ArrayList<String>();
+
+		private volatile int loads = 0;
+
+		/** Invalidates the cache while loading the snapshot, as a concurrent write. */
+		private boolean writeWhileLoading = false;
+
+		/** Fails to load the snapshot, as if the access control tables can't be read. */
+		private boolean failing = false;
+
+		/** Counted down once the load started, which then waits for <code>release</code>. */
+		private CountDownLatch loading = null;
+
+		private final CountDownLatch release = new CountDownLatch(1);
+
+		List<String> loadManaged() throws Exception {
+			loads++;
+			if (writeWhileLoading) {
+				writeWhileLoading = false;
+				invalidate();
+			}
+			if (loading != null) {
+				loading.countDown();
+				release.await();
+			}
+			if (failing)
+				throw new Exception("The access control tables can't be read.");
+			return new ArrayList<String>(managed);
+		}
+	}
+
+	private static User user(String name) {
+		return new User(name, "encrypted", new Vector(Arrays.asList("vs1")), new Vector(Arrays.asList("group1")));
+	}
+
+	@Test
+	public void testCaseInsensitive() {
+		CountingCache cache = new CountingCache();
+		cache.managed.add("Managed_VS");
+		assertTrue(cache.isVSManaged("managed_vs"));
+		assertTrue(cache.isVSManaged("MANAGED_VS"));
+		assertTrue(cache.isVSManaged("Managed_VS"));
+		assertFalse(cache.isVSManaged("other_vs"));
+		assertFalse(cache.isVSManaged(null));
+		// Loaded once.
+		assertEquals(1, cache.loads);
+	}
+
+	@Test
+	public void testInvalidate() {
+		CountingCache cache = new CountingCache();
+		assertFalse(cache.isVSManaged("vs"));
+		cache.managed.add("vs");
+		// Still the former snapshot.
+		assertFalse(cache.isVSManaged("vs"));
+		long generation = cache.getGeneration();
+		cache.invalidate();
+		assertEquals(generation + 1, cache.getGeneration());
+		assertTrue(cache.isVSManaged("vs"));
+		assertEquals(2, cache.loads);
+	}
+
+	@Test
+	public void testWriteWhileLoading() {
+		CountingCache cache = new CountingCache();
+		cache.managed.add("vs");
+		cache.writeWhileLoading = true;
+		// The snapshot loaded during the write is used once, not kept.
+		assertTrue(cache.isVSManaged("vs"));
+		assertTrue(cache.isVSManaged("vs"));
+		assertEquals(2, cache.loads);
+		assertTrue(cache.isVSManaged("vs"));
+		assertEquals(2, cache.loads);
+	}
+
+	@Test
+	public void testSingleReload() throws Exception {
+		final CountingCache cache = new CountingCache();
+		assertFalse(cache.isVSManaged("vs"));
+		cache.managed.add("vs");
+		cache.invalidate();
+		cache.loading = new CountDownLatch(1);
+		final boolean[] reloaded = new boolean[1];
+		Thread reloader = new Thread() {
+			public void run() {
+				reloaded[0] = cache.isVSManaged("vs");
+			}
+		};
+		reloader.start();
+		assertTrue(cache.loading.await(5, TimeUnit.SECONDS));
+		// The previous snapshot is used while the other thread reloads it.
+		assertFalse(cache.isVSManaged("vs"));
+		assertEquals(2, cache.loads);
+		cache.release.countDown();
+		reloader.join();
+		assertTrue(reloaded[0]);
+		assertTrue(cache.isVSManaged("vs"));
+		assertEquals(2, cache.loads);
+	}
+
+	@Test
+	public void testFailedLoad() {
+		CountingCache cache = new CountingCache();
+		cache.failing = true;
+		// Without snapshot, every virtual sensor is managed.
+		assertTrue(cache.isVSManaged("vs"));
+		assertNull(cache.getUser("alice", "encrypted"));
+		cache.failing = false;
+		assertFalse(cache.isVSManaged("vs"));
+		// The previous snapshot is kept if it can't be reloaded.
+		cache.invalidate();
+		cache.failing = true;
+		assertFalse(cache.isVSManaged("vs"));
+		assertEquals(4, cache.loads);
+	}
+
+	@Test
+	public void testLogins() {
+		CountingCache cache = new CountingCache();
+		assertNull(cache.getUser("alice", "encrypted"));
+		long generation = cache.getGeneration();
+		cache.putUser(user("alice"), generation);
+		User alice = cache.getUser("alice", "encrypted");
+		assertEquals("alice", alice.getUserName());
+		assertEquals(Arrays.asList("vs1"), new ArrayList<Object>(alice.getDataSourceList()));
+		assertEquals(Arrays.asList("group1"), new ArrayList<Object>(alice.getGroupList()));
+		// Each call gets its own user and lists.
+		assertNotSame(alice, cache.getUser("alice", "encrypted"));
+		alice.getDataSourceList().clear();
+		assertEquals(1, cache.getUser("alice", "encrypted").getDataSourceList().size());
+		assertNull(cache.getUser("alice", "wrong"));
+
+		// Dropped by a write.
+		cache.invalidate();
+		assertNull(cache.getUser("alice", "encrypted"));
+
+		// The rights loaded before a write are not kept.
+		generation = cache.getGeneration();
+		cache.invalidate();
+		cache.putUser(user("bob"), generation);
+		assertNull(cache.getUser("bob", "encrypted"));
+		cache.putUser(user("bob"), cache.getGeneration());
+		assertEquals("bob", cache.getUser("bob", "encrypted").getUserName());
+	}
+
+}
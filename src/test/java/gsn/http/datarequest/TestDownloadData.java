@@ -0,0 +1,70 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/http/datarequest/TestDownloadData.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.http.datarequest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import gsn.Main;
+
+import java.util.concurrent.ThreadPoolExecutor;
+
+import org.junit.Test;
+
+/**
+ * The number of connections the fetches of the downloads may hold.
+ */
+public class TestDownloadData {
+
+	@Test
+	public void testDefaults() {
+		int threads = DownloadData.getFetchThreads(null, Main.DEFAULT_MAX_DB_CONNECTIONS);
+		assertEquals(2, threads);
+		assertEquals(1, DownloadData.getParallelFetches(null, threads));
+	}
+
+	@Test
+	public void testLimits() {
+		// At most a quarter of the connections of the pool.
+		assertEquals(2, DownloadData.getFetchThreads("8", 8));
+		assertEquals(8, DownloadData.getFetchThreads("8", 40));
+		assertEquals(1, DownloadData.getFetchThreads("4", 2));
+		assertEquals(1, DownloadData.getFetchThreads("0", 40));
+		// At most the number of fetch threads.
+		assertEquals(2, DownloadData.getParallelFetches("4", 2));
+		assertEquals(3, DownloadData.getParallelFetches("3", 8));
+		assertEquals(1, DownloadData.getParallelFetches("0", 8));
+	}
+
+	@Test
+	public void testFetchers() {
+		ThreadPoolExecutor fetchers = (ThreadPoolExecutor) DownloadData.getFetchers();
+		assertEquals(DownloadData.getFetchThreads(), fetchers.getMaximumPoolSize());
+		assertTrue(DownloadData.getParallelFetches() <= fetchers.getMaximumPoolSize());
+		if (System.getProperty("maxDBConnections") == null)
+			assertTrue(fetchers.getMaximumPoolSize() <= Main.DEFAULT_MAX_DB_CONNECTIONS / DownloadData.FETCH_CONNECTIONS_DIVISOR);
+	}
+
+}
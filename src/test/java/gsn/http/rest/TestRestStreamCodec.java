@@ -0,0 +1,189 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/http/rest/TestRestStreamCodec.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.http.rest;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import gsn.beans.DataField;
+import gsn.beans.DataTypes;
+import gsn.beans.StreamElement;
+import gsn.beans.StreamSchema;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Round trips through the binary framing of the streaming protocol: the output structure, the values of every
+ * data type (null or not), the keep alive messages and the invalid frames.
+ */
+public class TestRestStreamCodec {
+
+	private static final DataField[] structure = new DataField[] {new DataField("tiny", "tinyint"), new DataField("small", "smallint"),
+			new DataField("int", "integer"), new DataField("big", "bigint"), new DataField("dbl", "double"), new DataField("flt", "float"),
+			new DataField("text", "varchar(20)"), new DataField("letters", "char(5)"), new DataField("image", "binary")};
+
+	private static final Serializable[] values = new Serializable[] {(byte) -7, (short) 1234, 123456, 1L << 40, 3.141592, 2.5f, "a varchar",
+			"chars", new byte[] {0, 1, -2, 127}};
+
+	private static final Serializable[] nulls = new Serializable[structure.length];
+
+	private static List<StreamElement> roundTrip(List<List<StreamElement>> batches, DataField[] fields, DataField[][] decodedFields) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bos);
+		RestStreamCodec encoder = new RestStreamCodec();
+		encoder.writeStructure(out, fields);
+		for (List<StreamElement> batch : batches) {
+			for (StreamElement se : batch)
+				encoder.add(se);
+			assertEquals(batch.size(), encoder.size());
+			encoder.writeBatch(out);
+			assertEquals(0, encoder.size());
+		}
+		out.flush();
+
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bos.toByteArray()));
+		RestStreamCodec decoder = new RestStreamCodec();
+		decodedFields[0] = decoder.readStructure(in);
+		ArrayList<StreamElement> decoded = new ArrayList<StreamElement>();
+		for (List<StreamElement> batch : batches) {
+			ArrayList<StreamElement> elements = decoder.readBatch(in);
+			assertEquals(batch.size(), elements.size());
+			decoded.addAll(elements);
+		}
+		assertEquals(-1, in.read());
+		return decoded;
+	}
+
+	private static void assertElement(StreamElement expected, StreamElement actual) {
+		assertEquals(expected.getTimeStamp(), actual.getTimeStamp());
+		assertArrayEquals(expected.getFieldNames(), actual.getFieldNames());
+		assertArrayEquals(expected.getFieldTypes(), actual.getFieldTypes());
+		for (int i = 0; i < expected.getFieldNames().length; i++) {
+			Serializable value = expected.getData(i);
+			if (value instanceof byte[])
+				assertArrayEquals((byte[]) value, (byte[]) actual.getData(i));
+			else
+				assertEquals(expected.getFieldNames()[i], value, actual.getData(i));
+		}
+	}
+
+	@Test
+	public void testAllTypes() throws IOException {
+		List<StreamElement> batch = new ArrayList<StreamElement>();
+		batch.add(new StreamElement(structure, values, 1000));
+		batch.add(new StreamElement(structure, nulls, 2000));
+		// Each field null in turn.
+		for (int i = 0; i < structure.length; i++) {
+			Serializable[] partial = values.clone();
+			partial[i] = null;
+			batch.add(new StreamElement(structure, partial, 3000 + i));
+		}
+		List<List<StreamElement>> batches = new ArrayList<List<StreamElement>>();
+		batches.add(batch);
+		DataField[][] fields = new DataField[1][];
+		List<StreamElement> decoded = roundTrip(batches, structure, fields);
+
+		assertEquals(structure.length, fields[0].length);
+		for (int i = 0; i < structure.length; i++) {
+			assertEquals(structure[i].getName(), fields[0][i].getName());
+			assertEquals(structure[i].getDataTypeID(), fields[0][i].getDataTypeID());
+			assertEquals(structure[i].getType(), fields[0][i].getType());
+		}
+		for (int i = 0; i < batch.size(); i++)
+			assertElement(batch.get(i), decoded.get(i));
+		for (Serializable value : decoded.get(1).getData())
+			assertNull(value);
+		assertTrue(decoded.get(0).getData("tiny") instanceof Byte);
+		assertTrue(decoded.get(0).getData("small") instanceof Short);
+		assertTrue(decoded.get(0).getData("flt") instanceof Float);
+		assertEquals(DataTypes.BINARY, (byte) decoded.get(0).getFieldTypes()[8]);
+	}
+
+	@Test
+	public void testSchemaBacked() throws IOException {
+		StreamElement se = new StreamElement(StreamSchema.of(structure), 5000);
+		se.setLong(0, -7);
+		se.setLong(3, 1L << 40);
+		se.setDouble(4, 0.5);
+		se.setData(6, "slots");
+		// The other fields are null.
+		List<StreamElement> batch = new ArrayList<StreamElement>();
+		batch.add(se);
+		List<List<StreamElement>> batches = new ArrayList<List<StreamElement>>();
+		batches.add(batch);
+		StreamElement decoded = roundTrip(batches, structure, new DataField[1][]).get(0);
+		assertElement(se, decoded);
+		assertEquals((byte) -7, decoded.getData("tiny"));
+		assertNull(decoded.getData("small"));
+		assertNull(decoded.getData("image"));
+	}
+
+	@Test
+	public void testKeepAlive() throws IOException {
+		List<List<StreamElement>> batches = new ArrayList<List<StreamElement>>();
+		batches.add(new ArrayList<StreamElement>());
+		List<StreamElement> batch = new ArrayList<StreamElement>();
+		batch.add(new StreamElement(structure, values, 1));
+		batches.add(batch);
+		batches.add(new ArrayList<StreamElement>());
+		List<StreamElement> decoded = roundTrip(batches, structure, new DataField[1][]);
+		assertEquals(1, decoded.size());
+		assertElement(batch.get(0), decoded.get(0));
+	}
+
+	@Test
+	public void testInvalidFrame() throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		new DataOutputStream(bos).writeInt(RestStreamCodec.MAX_FRAME_LENGTH + 1);
+		try {
+			new RestStreamCodec().readBatch(new DataInputStream(new ByteArrayInputStream(bos.toByteArray())));
+			fail("The frame length is not checked.");
+		} catch (IOException e) {
+			assertTrue(e.getMessage().contains("frame length"));
+		}
+	}
+
+	@Test
+	public void testContentType() {
+		assertTrue(RestStreamCodec.isAccepted("text/xml, " + RestStreamCodec.CONTENT_TYPE));
+		assertFalse(RestStreamCodec.isAccepted(null));
+		assertTrue(RestStreamCodec.isBinary(" " + RestStreamCodec.CONTENT_TYPE + "; charset=binary"));
+		assertFalse(RestStreamCodec.isBinary("text/xml"));
+	}
+
+}
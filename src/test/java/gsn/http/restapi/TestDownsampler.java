@@ -0,0 +1,108 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/http/restapi/TestDownsampler.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.http.restapi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Vector;
+
+import org.junit.Test;
+
+public class TestDownsampler {
+
+	private static final int POINTS = 100000;
+
+	private static final long SPIKE = 50000;
+
+	private Vector<Long> timestamps;
+
+	private List<Vector<Double>> elements;
+
+	private void downsample(Downsampler.Mode mode, int size) {
+		timestamps = new Vector<Long>();
+		elements = new ArrayList<Vector<Double>>();
+		Downsampler downsampler = new Downsampler(mode, 0, POINTS - 1, size, timestamps, elements);
+		for (int i = 0; i < POINTS; i++)
+			downsampler.add(i, i == SPIKE ? Double.valueOf(1000.0) : (i % 7 == 0 ? null : Math.sin(i / 1000.0)));
+		downsampler.finish();
+		assertEquals(timestamps.size(), elements.size());
+		for (int i = 1; i < timestamps.size(); i++)
+			assertTrue(timestamps.get(i) > timestamps.get(i - 1));
+	}
+
+	@Test
+	public void testLTTB() {
+		downsample(Downsampler.Mode.LTTB, 100);
+		assertEquals(100, timestamps.size());
+		assertEquals(1L, (long) timestamps.firstElement()); // 0 is null
+		assertEquals(POINTS - 1, (long) timestamps.lastElement());
+		assertTrue(timestamps.contains(SPIKE));
+	}
+
+	@Test
+	public void testMinMax() {
+		downsample(Downsampler.Mode.MINMAX, 100);
+		assertEquals(100, timestamps.size());
+		assertTrue(timestamps.contains(SPIKE));
+	}
+
+	@Test
+	public void testAverage() {
+		downsample(Downsampler.Mode.AVG, 100);
+		assertEquals(100, timestamps.size());
+	}
+
+	@Test
+	public void testFewPoints() {
+		timestamps = new Vector<Long>();
+		elements = new ArrayList<Vector<Double>>();
+		Downsampler downsampler = new Downsampler(Downsampler.Mode.LTTB, 0, 10, 100, timestamps, elements);
+		downsampler.add(3, 1.0);
+		downsampler.add(5, 2.0);
+		downsampler.add(8, 3.0);
+		downsampler.finish();
+		assertEquals(3, timestamps.size());
+	}
+
+	@Test
+	public void testAggregates() {
+		// The periods of a rollup table, 10 points each, are weighted like the points themselves.
+		timestamps = new Vector<Long>();
+		elements = new ArrayList<Vector<Double>>();
+		Downsampler downsampler = new Downsampler(Downsampler.Mode.AVG, 0, 99999, 10, timestamps, elements);
+		for (int i = 0; i < 100; i++)
+			downsampler.addAggregate(i * 1000 + 500, i, i + 5, (i + 2.5) * 10, i == 0 ? 0 : 10);
+		downsampler.finish();
+		assertEquals(10, timestamps.size());
+		assertEquals(17.0, elements.get(1).get(0), 1e-9);
+		assertEquals(15000L, (long) timestamps.get(1));
+		assertEquals(7.5, elements.get(0).get(0), 1e-9); // the empty period is ignored.
+	}
+
+}
@@ -0,0 +1,104 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/monitoring/TestLatencyHistogram.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.monitoring;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * The buckets and percentiles of the latency histograms, the export of the pipeline stages, and the values
+ * recorded concurrently (the cost of recording is measured by LatencyHistogramBenchmark).
+ */
+public class TestLatencyHistogram {
+
+	private static final int VALUES = 200000;
+
+	@Test
+	public void testBuckets() {
+		long previous = -1;
+		for (long value = 0; value < 100000; value++) {
+			int index = LatencyHistogram.indexOf(value);
+			assertTrue(value <= LatencyHistogram.highestValueOf(index));
+			assertTrue(index == 0 || value > LatencyHistogram.highestValueOf(index - 1));
+			assertTrue(LatencyHistogram.highestValueOf(index) - value <= value / 16);
+			assertTrue(index >= previous);
+			previous = index;
+		}
+		assertEquals(LatencyHistogram.MAX_VALUE, LatencyHistogram.highestValueOf(LatencyHistogram.indexOf(LatencyHistogram.MAX_VALUE)));
+	}
+
+	@Test
+	public void testPercentiles() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals(0, histogram.getValueAtPercentile(99));
+		for (long value = 1; value <= 10000; value++)
+			histogram.record(value);
+		histogram.record(Long.MAX_VALUE);
+		assertEquals(10001, histogram.getCount());
+		assertEquals(Long.MAX_VALUE, histogram.getMax());
+		assertEquals(5000, histogram.getValueAtPercentile(50), 5000 / 16);
+		assertEquals(9900, histogram.getValueAtPercentile(99), 9900 / 16);
+		assertEquals(127, histogram.getCountAtOrBelow(127)); // 127 is the highest value of a bucket.
+		assertEquals(10001, histogram.getCountAtOrBelow(Long.MAX_VALUE));
+	}
+
+	@Test
+	public void testExport() {
+		PipelineLatency.getHistogram("Export_VS", PipelineLatency.Stage.DELIVERY).record(42);
+		PipelineLatency.getHistogram("export_vs", PipelineLatency.Stage.DELIVERY).record(4200);
+		assertEquals(2L, PipelineLatency.getInstance().getStatistics().get("vs.export_vs.latency.delivery.count"));
+		StringBuilder output = new StringBuilder();
+		PipelineLatency.writeHistograms(output);
+		assertTrue(output.indexOf("gsn_pipeline_latency_microseconds_bucket{vs=\"export_vs\",stage=\"delivery\",le=\"50\"} 1\n") >= 0);
+		assertTrue(output.indexOf("gsn_pipeline_latency_microseconds_count{vs=\"export_vs\",stage=\"delivery\"} 2\n") >= 0);
+	}
+
+	@Test
+	public void testConcurrentRecording() throws InterruptedException {
+		final LatencyHistogram histogram = new LatencyHistogram();
+		Thread[] threads = new Thread[4];
+		for (int i = 0; i < threads.length; i++)
+			threads[i] = new Thread() {
+				public void run() {
+					for (int i = 0; i < VALUES; i++)
+						histogram.record(i % 10000 + 1);
+				}
+			};
+		for (Thread t : threads)
+			t.start();
+		for (Thread t : threads)
+			t.join();
+		// No value is lost, each thread records the same distribution.
+		assertEquals((long) threads.length * VALUES, histogram.getCount());
+		assertEquals(10000, histogram.getMax());
+		assertEquals(5000, histogram.getValueAtPercentile(50), 5000 / 16);
+		assertEquals(9900, histogram.getValueAtPercentile(99), 9900 / 16);
+		assertEquals(threads.length * 127L * (VALUES / 10000), histogram.getCountAtOrBelow(127));
+	}
+
+}
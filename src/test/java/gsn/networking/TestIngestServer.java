@@ -0,0 +1,153 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/networking/TestIngestServer.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.networking;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import gsn.beans.AddressBean;
+import gsn.beans.DataField;
+import gsn.beans.StreamElement;
+
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * The datagrams and the TCP frames received by the ingest server over loopback, and the release of the ports.
+ */
+public class TestIngestServer {
+
+	private final LinkedBlockingQueue<StreamElement> received = new LinkedBlockingQueue<StreamElement>();
+
+	private final IngestServer.Listener listener = new IngestServer.Listener() {
+		public void packetsReceived(List<StreamElement> elements) {
+			received.addAll(elements);
+		}
+	};
+
+	/**
+	 * Frames of a one byte length followed by the bytes, produced as raw packets.
+	 */
+	private static class LengthDecoder implements PacketDecoder {
+
+		private final RawPacketDecoder raw = new RawPacketDecoder();
+
+		public boolean initialize(AddressBean addressBean) {
+			return true;
+		}
+
+		public DataField[] getOutputFormat() {
+			return raw.getOutputFormat();
+		}
+
+		public void decode(ByteBuffer buffer, long timestamp, List<StreamElement> elements) {
+			while (buffer.remaining() > 0 && buffer.remaining() > buffer.get(buffer.position())) {
+				ByteBuffer frame = buffer.duplicate();
+				frame.position(buffer.position() + 1).limit(buffer.position() + 1 + buffer.get(buffer.position()));
+				raw.decode(frame, timestamp, elements);
+				buffer.position(frame.limit());
+			}
+		}
+	}
+
+	private byte[] next() throws InterruptedException {
+		StreamElement se = received.poll(5, TimeUnit.SECONDS);
+		return (byte[]) se.getData(0);
+	}
+
+	@Test
+	public void testDatagrams() throws Exception {
+		IngestServer.Binding binding = IngestServer.getInstance().bindDatagram(0, new RawPacketDecoder(), listener);
+		DatagramSocket socket = new DatagramSocket();
+		try {
+			for (int length : new int[] {1, 200, 1400}) {
+				byte[] packet = new byte[length];
+				packet[length - 1] = (byte) length;
+				socket.send(new DatagramPacket(packet, length, InetAddress.getLoopbackAddress(), binding.getPort()));
+				assertEquals(length, next().length);
+			}
+		} finally {
+			socket.close();
+			binding.close();
+		}
+	}
+
+	@Test
+	public void testBurst() throws Exception {
+		IngestServer.Binding binding = IngestServer.getInstance().bindDatagram(0, new RawPacketDecoder(), listener);
+		DatagramSocket socket = new DatagramSocket();
+		try {
+			long begin = System.currentTimeMillis();
+			for (int i = 0; i < 50; i++)
+				socket.send(new DatagramPacket(new byte[] {(byte) i}, 1, InetAddress.getLoopbackAddress(), binding.getPort()));
+			// Received in the same passes, stamped with the time of their pass.
+			long last = begin;
+			for (int i = 0; i < 50; i++) {
+				StreamElement se = received.poll(5, TimeUnit.SECONDS);
+				assertEquals(i, ((byte[]) se.getData(0))[0]);
+				assertTrue(se.getTimeStamp() >= last);
+				last = se.getTimeStamp();
+			}
+			assertTrue(last <= System.currentTimeMillis());
+		} finally {
+			socket.close();
+			binding.close();
+		}
+	}
+
+	@Test
+	public void testFrames() throws Exception {
+		IngestServer.Binding binding = IngestServer.getInstance().bindStream(0, new LengthDecoder(), listener);
+		Socket socket = new Socket(InetAddress.getLoopbackAddress(), binding.getPort());
+		try {
+			OutputStream out = socket.getOutputStream();
+			out.write(new byte[] {2, 'a', 'b', 3, 'c'});
+			out.flush();
+			assertArrayEquals("ab".getBytes(), next());
+			// The second frame is completed by the next write.
+			out.write(new byte[] {'d', 'e', 1, 'f'});
+			out.flush();
+			assertArrayEquals("cde".getBytes(), next());
+			assertArrayEquals("f".getBytes(), next());
+		} finally {
+			socket.close();
+			binding.close();
+		}
+		// The port is released once closed.
+		IngestServer.getInstance().bindStream(binding.getPort(), new LengthDecoder(), listener).close();
+		assertEquals(0, IngestServer.getInstance().getStatistics().get("core.ingest.ports.value"));
+	}
+
+}
@@ -0,0 +1,91 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/networking/zeromq/TestZeroMQCodec.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.networking.zeromq;
+
+import static org.junit.Assert.assertEquals;
+import gsn.beans.DataField;
+import gsn.beans.StreamElement;
+
+import java.io.ByteArrayInputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+
+/**
+ * Round trips through the data frames and through the single-part messages of the former format.
+ * The encoding throughput is measured by gsn.benchmarks.ZeroMQCodecBenchmark.
+ */
+public class TestZeroMQCodec {
+
+	private static final DataField[] structure = new DataField[] {new DataField("temperature", "double"), new DataField("light", "int")};
+
+	private static final String VS_NAME = "zeromq_vs";
+
+	private static StreamElement element(long i) {
+		return new StreamElement(structure, new Serializable[] {i * 0.5, (int) i}, i);
+	}
+
+	@Test
+	public void testRoundTrip() {
+		ZeroMQCodec codec = new ZeroMQCodec(new Kryo());
+		ZeroMQCodec decoder = new ZeroMQCodec(new Kryo());
+		for (int frame = 0; frame < 3; frame++) {
+			for (long i = 1; i <= frame * 10 + 1; i++)
+				codec.add(element(i));
+			codec.finish();
+			ArrayList<StreamElement> elements = decoder.decode(Arrays.copyOf(codec.getBuffer(), codec.length()));
+			codec.clear();
+			assertEquals(frame * 10 + 1, elements.size());
+			for (int i = 0; i < elements.size(); i++) {
+				assertEquals(i + 1L, elements.get(i).getTimeStamp());
+				assertEquals((i + 1) * 0.5, elements.get(i).getData("temperature"));
+				assertEquals(i + 1, elements.get(i).getData("light"));
+			}
+		}
+	}
+
+	@Test
+	public void testSinglePart() {
+		ZeroMQCodec codec = new ZeroMQCodec(new Kryo());
+		byte[] topic = ZeroMQCodec.getTopic(VS_NAME);
+		for (long i = 1; i <= 3; i++) {
+			codec.encodeSinglePart(topic, element(i));
+			// Decoded as the wrappers of the former versions.
+			ByteArrayInputStream bais = new ByteArrayInputStream(Arrays.copyOf(codec.getBuffer(), codec.length()));
+			bais.skip(VS_NAME.length() + 1);
+			StreamElement se = new Kryo().readObjectOrNull(new Input(bais), StreamElement.class);
+			assertEquals(i, se.getTimeStamp());
+			assertEquals(i * 0.5, se.getData("temperature"));
+			assertEquals((int) i, se.getData("light"));
+		}
+	}
+
+}
@@ -42,6 +42,7 @@ import org.junit.Test;
 import java.io.Serializable;
 import java.util.HashMap;
 import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class TestScriptletProcessor {
 
@@ -192,6 +193,75 @@ public class TestScriptletProcessor {
         processor.evaluate(processor.scriptlet, se, true);
     }
 
+    @Test
+    public void testConcurrentScriptlet() {
+        final AtomicLong produced = new AtomicLong();
+        final StreamElement[] output = new StreamElement[1];
+        ScriptletProcessor processor = new ScriptletProcessor() {
+            protected void dataProduced(StreamElement se) {
+                produced.incrementAndGet();
+                output[0] = se;
+            }
+        };
+        TreeMap<String,String> parameters = new TreeMap<String,String>();
+        parameters.put("scriptlet", "if (isdef('previous')) throw new IllegalStateException('not discarded'); previous = TEMPERATURE; "
+                + "state.putIfAbsent('counter', new java.util.concurrent.atomic.AtomicLong()); ATM = (double) state.counter.incrementAndGet();");
+        parameters.put("concurrent", "true");
+        assertTrue(processor.initialize(dataFields2, parameters));
+        StreamElement se = new StreamElement(dataFields1, data1, 123456L);
+        processor.dataAvailable("input", se);
+        processor.dataAvailable("input", se);
+        assertEquals(2, produced.get());
+        assertEquals(data1[0], output[0].getData("temperature"));
+        assertEquals(data1[1], output[0].getData("speed"));
+        assertEquals(2.0, output[0].getData("atm"));
+        assertEquals(123456L, output[0].getTimeStamp());
+    }
+
+    @Test
+    public void testConcurrentSlots() {
+        final StreamElement[] output = new StreamElement[1];
+        ScriptletProcessor processor = new ScriptletProcessor() {
+            protected void dataProduced(StreamElement se) {
+                output[0] = se;
+            }
+        };
+        TreeMap<String,String> parameters = new TreeMap<String,String>();
+        // Assignments, compound assignments and increments of slots, and a closure reading the output fields by their names.
+        parameters.put("scriptlet", "x = TEMPERATURE; x += 10; x++; TEMPERATURE = x; SPEED = 0d; [1d, 2d].each { SPEED = SPEED + it }; ATM = binding.getVariable('SPEED') * 2;");
+        parameters.put("concurrent", "true");
+        assertTrue(processor.initialize(dataFields2, parameters));
+        processor.dataAvailable("input", new StreamElement(dataFields1, data1, 1L));
+        assertEquals(34, output[0].getData("temperature"));
+        assertEquals(3.0, output[0].getData("speed"));
+        assertEquals(6.0, output[0].getData("atm"));
+    }
+
+    @Test(expected = groovy.lang.MissingPropertyException.class)
+    public void testConcurrentUnsetVariable() {
+        ScriptletProcessor processor = new ScriptletProcessor();
+        TreeMap<String,String> parameters = new TreeMap<String,String>();
+        parameters.put("scriptlet", "ATM = thevar;");
+        parameters.put("concurrent", "true");
+        assertTrue(processor.initialize(dataFields2, parameters));
+        processor.dataAvailable("input", new StreamElement(dataFields1, data1, 1L));
+    }
+
+    @Test
+    public void testConcurrentDispose() {
+        ScriptletProcessor processor = new ScriptletProcessor();
+        TreeMap<String,String> parameters = new TreeMap<String,String>();
+        parameters.put("scriptlet", "ATM = SPEED;");
+        parameters.put("concurrent", "true");
+        assertTrue(processor.initialize(dataFields2, parameters));
+        processor.dataAvailable("input", new StreamElement(dataFields1, data1, 1L));
+        groovy.lang.Script idle = processor.scriptletInstances.borrow();
+        processor.scriptletInstances.release(idle);
+        processor.dispose();
+        // The idle instances are dropped.
+        assertNotSame(idle, processor.scriptletInstances.borrow());
+    }
+
     //
 
     private ScriptletProcessor getProcessor(DataField[] outputStructure, String scriptlet) {
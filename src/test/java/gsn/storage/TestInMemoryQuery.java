@@ -0,0 +1,194 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/storage/TestInMemoryQuery.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.storage;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import gsn.beans.DataField;
+import gsn.beans.StreamElement;
+
+import java.io.Serializable;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * The queries evaluated in memory by the data distributer give the same rows as the database, the other ones are
+ * left to the database.
+ */
+public class TestInMemoryQuery {
+
+	private static final String TABLE = "in_memory_vs";
+
+	private static final DataField[] structure = new DataField[] {new DataField("temperature", "double"), new DataField("light", "integer"),
+			new DataField("counter", "bigint"), new DataField("label", "varchar(20)"), new DataField("gain", "float"), new DataField("code", "char(4)")};
+
+	private static final List<StreamElement> elements = new ArrayList<StreamElement>();
+
+	private static StorageManager sm;
+
+	private static SQLValidator validator;
+
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception {
+		DriverManager.registerDriver( new org.h2.Driver( ) );
+		sm = StorageManagerFactory.getInstance("org.h2.Driver", "sa", "", "jdbc:h2:mem:in_memory_query;DB_CLOSE_DELAY=-1", 4);
+		validator = SQLValidator.getInstance();
+		validator.executeDDL(sm.getStatementCreateTable(TABLE, structure, validator.getSampleConnection()).toString());
+		sm.executeCreateTable(TABLE, structure, true);
+		String[] labels = {"a", "b", "abc", "x y", null};
+		for (int i = 0; i < 20; i++) {
+			Serializable temperature = i == 7 ? null : (Serializable) (i * 1.5 - 10);
+			StreamElement se = new StreamElement(structure, new Serializable[] {temperature, i % 4, i * 1000L, labels[i % labels.length], i * 0.1f, "c" + i % 3}, 1000 + i);
+			se.setInternalPrimayKey(i + 1);
+			sm.executeInsert(TABLE, structure, se);
+			elements.add(se);
+		}
+	}
+
+	private static InMemoryQuery accepted(String query) {
+		InMemoryQuery inMemoryQuery = validator.toInMemoryQuery(query, structure);
+		assertNotNull(query, inMemoryQuery);
+		return inMemoryQuery;
+	}
+
+	/**
+	 * Evaluates the query in memory and through the database, the rows have to be the same, in the same order.
+	 */
+	private static int assertSameRows(String query) throws SQLException {
+		InMemoryQuery inMemoryQuery = accepted(query);
+		ArrayList<StreamElement> expected = new ArrayList<StreamElement>();
+		for (StreamElement se : elements)
+			if (inMemoryQuery.accept(se))
+				expected.add(inMemoryQuery.project(se));
+		Connection conn = sm.getConnection();
+		try {
+			ResultSet rs = sm.executeQueryWithResultSet(new StringBuilder(query.replaceFirst("(?i)^select ", "select timed, ")).append(" order by timed"), conn);
+			int row = 0;
+			while (rs.next()) {
+				StreamElement se = expected.get(row++);
+				assertEquals(query, se.getTimeStamp(), rs.getLong(1));
+				for (String name : inMemoryQuery.getFieldNames())
+					assertEquals(query + " " + name, rs.getObject(name), se.getData(name));
+			}
+			assertEquals(query, expected.size(), row);
+		} finally {
+			sm.close(conn);
+		}
+		return expected.size();
+	}
+
+	@Test
+	public void testProjection() throws Exception {
+		assertArrayEquals(new String[] {"temperature", "light", "counter", "label", "gain", "code"}, accepted("select * from " + TABLE).getFieldNames());
+		assertArrayEquals(new String[] {"label", "light"}, accepted("select LABEL, light from " + TABLE).getFieldNames());
+		// The timestamp and the primary key are always carried by the stream elements.
+		assertArrayEquals(new String[] {"light"}, accepted("select timed, pk, light from " + TABLE).getFieldNames());
+		assertEquals(20, assertSameRows("select * from " + TABLE));
+		assertEquals(20, assertSameRows("select label, temperature from " + TABLE));
+		StreamElement projected = accepted("select light from " + TABLE).project(elements.get(5));
+		assertEquals(1005, projected.getTimeStamp());
+		assertEquals(6, projected.getInternalPrimayKey());
+	}
+
+	@Test
+	public void testComparisons() throws Exception {
+		assertEquals(10, assertSameRows("select light from " + TABLE + " where temperature >= 5"));
+		assertEquals(9, assertSameRows("select light from " + TABLE + " where temperature < 5"));
+		assertEquals(15, assertSameRows("select * from " + TABLE + " where light <> 0"));
+		assertEquals(15, assertSameRows("select * from " + TABLE + " where light != 0"));
+		assertEquals(5, assertSameRows("select * from " + TABLE + " where light = 2"));
+		assertEquals(6, assertSameRows("select * from " + TABLE + " where counter <= 5000"));
+		assertEquals(12, assertSameRows("select * from " + TABLE + " where counter > 7.5e3"));
+		assertEquals(1, assertSameRows("select * from " + TABLE + " where temperature = -8.5"));
+		assertEquals(4, assertSameRows("select * from " + TABLE + " where label = 'abc'"));
+		assertEquals(12, assertSameRows("select * from " + TABLE + " where label <> 'abc'"));
+		assertEquals(4, assertSameRows("select * from " + TABLE + " where label = 'x y'"));
+		assertEquals(10, assertSameRows("select * from " + TABLE + " where timed >= 1010"));
+		assertEquals(3, assertSameRows("select * from " + TABLE + " where pk < 4"));
+	}
+
+	@Test
+	public void testConjunctions() throws Exception {
+		assertEquals(6, assertSameRows("select light, label from " + TABLE + " where temperature > 0 and light < 2"));
+		assertEquals(2, assertSameRows("select * from " + TABLE + " WHERE light >= 1 AND light <= 2 And timed < 1010 and label <> 'b'"));
+		assertEquals(0, assertSameRows("select * from " + TABLE + " where light = 1 and light = 2"));
+	}
+
+	@Test
+	public void testRejected() throws Exception {
+		String[] rejected = {
+				// Disjunctions, negations and other operators.
+				"select * from " + TABLE + " where light = 1 or light = 2",
+				"select * from " + TABLE + " where not light = 1",
+				"select * from " + TABLE + " where (light = 1)",
+				"select * from " + TABLE + " where label like 'a%'",
+				"select * from " + TABLE + " where light between 1 and 2",
+				"select * from " + TABLE + " where light in (1, 2)",
+				"select * from " + TABLE + " where label is null",
+				"select * from " + TABLE + " where light = counter",
+				"select * from " + TABLE + " where light + 1 > 2",
+				// Aliases and expressions in the projection.
+				"select light as l from " + TABLE,
+				"select light l from " + TABLE,
+				"select v.light from " + TABLE + " v",
+				"select light * 2 from " + TABLE,
+				"select distinct light from " + TABLE,
+				"select count(*) from " + TABLE,
+				"select max(light) from " + TABLE,
+				// Ordering, limits and clauses the pattern doesn't know.
+				"select * from " + TABLE + " order by timed",
+				"select * from " + TABLE + " limit 5",
+				"select light from " + TABLE + " group by light",
+				"select * from " + TABLE + " where light = 1 order by timed",
+				// String ordering depends on the collation, conversions between types on the database.
+				"select * from " + TABLE + " where label > 'b'",
+				"select * from " + TABLE + " where label = 1",
+				"select * from " + TABLE + " where light = '1'",
+				"select * from " + TABLE + " where timed = '1000'",
+				"select * from " + TABLE + " where gain > 0.5",
+				"select * from " + TABLE + " where code = 'c1'",
+				// Unknown fields and tables, invalid queries.
+				"select missing from " + TABLE,
+				"select * from " + TABLE + " where missing = 1",
+				"select * from unknown_vs",
+				"select * from " + TABLE + ", other",
+				"select * from (select * from " + TABLE + ")",
+				"delete from " + TABLE,
+				"select from " + TABLE};
+		for (String query : rejected)
+			assertNull(query, validator.toInMemoryQuery(query, structure));
+	}
+
+}
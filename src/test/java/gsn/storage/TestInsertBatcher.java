@@ -0,0 +1,125 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/storage/TestInsertBatcher.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import gsn.beans.DataField;
+import gsn.beans.StreamElement;
+
+import java.io.Serializable;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * The batched inserts: the order and the thread of the commit notifications, and the report of the failed inserts.
+ */
+public class TestInsertBatcher {
+
+	private static final DataField[] structure = new DataField[] {new DataField("reading", "bigint")};
+
+	private static StorageManager sm;
+
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception {
+		DriverManager.registerDriver( new org.h2.Driver( ) );
+		sm = StorageManagerFactory.getInstance("org.h2.Driver", "sa", "", "jdbc:h2:mem:insert_batcher;DB_CLOSE_DELAY=-1", 4);
+	}
+
+	private static StreamElement element(long t) {
+		return new StreamElement(structure, new Serializable[] {t}, t);
+	}
+
+	private static long count(String table) throws SQLException {
+		Connection conn = sm.getConnection();
+		try {
+			ResultSet rs = sm.executeQueryWithResultSet(new StringBuilder("select count(*) from ").append(table), conn);
+			rs.next();
+			return rs.getLong(1);
+		} finally {
+			sm.close(conn);
+		}
+	}
+
+	@Test
+	public void testCommitOrder() throws Exception {
+		sm.executeCreateTable("batched_order", structure, true);
+		final InsertBatcher batcher = new InsertBatcher(sm, 10, 20);
+		final List<Long> notified = Collections.synchronizedList(new ArrayList<Long>());
+		final CountDownLatch allNotified = new CountDownLatch(25);
+		final boolean[] locked = new boolean[1];
+		InsertBatcher.CommitListener listener = new InsertBatcher.CommitListener() {
+			public void committed(StreamElement se) {
+				locked[0] |= Thread.holdsLock(batcher);
+				notified.add(se.getTimeStamp());
+				allNotified.countDown();
+			}
+		};
+		for (long t = 1; t <= 25; t++)
+			batcher.add("batched_order", structure, element(t), listener);
+		// 20 elements are flushed by the size of the batches, the last 5 by the linger time.
+		assertTrue(allNotified.await(5, TimeUnit.SECONDS));
+		assertEquals(25, notified.size());
+		for (int i = 0; i < notified.size(); i++)
+			assertEquals(i + 1L, (long) notified.get(i));
+		assertFalse(locked[0]);
+		assertEquals(25, count("batched_order"));
+		batcher.close();
+	}
+
+	@Test
+	public void testFailure() throws Exception {
+		sm.executeCreateTable("batched_failure", structure, true);
+		InsertBatcher batcher = new InsertBatcher(sm, 100, 60000);
+		batcher.add("batched_failure", structure, element(1), null);
+		// Duplicated timestamp, rejected by the unique index on timed.
+		batcher.add("batched_failure", structure, element(1), null);
+		batcher.flush();
+		try {
+			batcher.add("batched_failure", structure, element(2), null);
+			fail("The failed insert is not reported.");
+		} catch (SQLException e) {
+			assertTrue(e.getMessage().contains("batched_failure"));
+		}
+		// Reported once, the element of the failing call is inserted anyway.
+		batcher.add("batched_failure", structure, element(3), null);
+		batcher.close();
+		assertEquals(3, count("batched_failure"));
+	}
+
+}
@@ -0,0 +1,193 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/storage/TestRetentionManager.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import gsn.Main;
+import gsn.beans.DataField;
+import gsn.beans.StorageConfig;
+import gsn.beans.StreamElement;
+import gsn.beans.VSensorConfig;
+import gsn.storage.db.H2StorageManager;
+
+import java.io.Serializable;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * The deletes of the retention on H2, by chunks, and the statements closed before the connections.
+ */
+public class TestRetentionManager {
+
+	private static final DataField[] structure = new DataField[] {new DataField("reading", "double")};
+
+	/** The statements still open when their connection was closed. */
+	private static final List<Statement> leaked = Collections.synchronizedList(new ArrayList<Statement>());
+
+	private static StorageManager sm;
+
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception {
+		DriverManager.registerDriver( new org.h2.Driver( ) );
+		sm = new H2StorageManager() {
+			public Connection getConnection() throws SQLException {
+				return tracked(super.getConnection());
+			}
+		};
+		sm.init("org.h2.Driver", "sa", "", "jdbc:h2:mem:retention;DB_CLOSE_DELAY=-1", 4);
+		// The retention and the rollups use the storage of the (not started) container.
+		setStaticField(Main.class, "mainStorage", sm);
+		setStaticField(RollupManager.class, "flushPeriod", 3600 * 1000);
+		// Several chunks per table.
+		setStaticField(RetentionManager.class, "chunkSize", 3);
+	}
+
+	@Before
+	public void setUp() {
+		leaked.clear();
+	}
+
+	private static void setStaticField(Class<?> c, String name, Object value) throws Exception {
+		Field field = c.getDeclaredField(name);
+		field.setAccessible(true);
+		field.set(null, value);
+	}
+
+	/**
+	 * Records the statements of the connection still open when it is closed.
+	 */
+	private static Connection tracked(final Connection conn) {
+		final List<Statement> statements = new ArrayList<Statement>();
+		return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] {Connection.class}, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				if (method.getName().equals("close"))
+					for (Statement statement : statements)
+						if (!statement.isClosed())
+							leaked.add(statement);
+				try {
+					Object result = method.invoke(conn, args);
+					if (result instanceof Statement)
+						statements.add((Statement) result);
+					return result;
+				} catch (InvocationTargetException e) {
+					throw e.getCause();
+				}
+			}
+		});
+	}
+
+	private static VSensorConfig config(String name, String storageSize, String rollups) throws SQLException {
+		StorageConfig storage = new StorageConfig();
+		storage.setStorageSize(storageSize);
+		if (rollups != null)
+			storage.setRollups(rollups);
+		VSensorConfig config = new VSensorConfig();
+		config.setName(name);
+		config.setOutputStructure(structure);
+		config.setInputStreams();
+		config.setStorage(storage);
+		config.validate();
+		sm.executeCreateTable(name, structure, true);
+		return config;
+	}
+
+	private static void insert(String table, long... timestamps) throws SQLException {
+		for (long t : timestamps)
+			sm.executeInsert(table, structure, new StreamElement(structure, new Serializable[] {(double) t}, t));
+	}
+
+	private static List<Long> timestamps(String table) throws SQLException {
+		ArrayList<Long> timestamps = new ArrayList<Long>();
+		Connection conn = sm.getConnection();
+		try {
+			ResultSet rs = sm.executeQueryWithResultSet(new StringBuilder("select timed from ").append(table).append(" order by timed asc"), conn);
+			while (rs.next())
+				timestamps.add(rs.getLong(1));
+		} finally {
+			sm.close(conn);
+		}
+		return timestamps;
+	}
+
+	@Test
+	public void testCountBased() throws Exception {
+		VSensorConfig config = config("retention_count", "5", null);
+		for (long t = 1; t <= 20; t++)
+			insert("retention_count", t);
+		assertEquals(15, RetentionManager.getInstance().enforce(config));
+		assertEquals(Arrays.asList(16L, 17L, 18L, 19L, 20L), timestamps("retention_count"));
+		assertEquals(0, RetentionManager.getInstance().enforce(config));
+		assertTrue(leaked.isEmpty());
+	}
+
+	@Test
+	public void testTimeBased() throws Exception {
+		VSensorConfig config = config("retention_time", "3s", "1s");
+		insert("retention_time", 0, 1000, 2000, 3000, 4000, 5000, 5500, 6000, 7000, 8000, 9000);
+		RollupManager.getInstance().vsLoading(config);
+		try {
+			// The rows older than 9000 - 3s, and the periods of the rollups which ended before them.
+			assertEquals(7, RetentionManager.getInstance().enforce(config));
+			assertEquals(Arrays.asList(6000L, 7000L, 8000L, 9000L), timestamps("retention_time"));
+			assertEquals(Arrays.asList(6000L, 7000L, 8000L, 9000L), timestamps(RollupManager.getTableName("retention_time", 1000)));
+			assertTrue(leaked.isEmpty());
+		} finally {
+			RollupManager.getInstance().vsUnLoading(config);
+		}
+	}
+
+	@Test
+	public void testExecuteUpdate() throws Exception {
+		config("retention_update", "1", null);
+		insert("retention_update", 1, 2, 3);
+		Connection conn = sm.getConnection();
+		try {
+			assertEquals(2, sm.executeUpdate(new StringBuilder("delete from retention_update where timed < 3"), conn));
+		} finally {
+			sm.close(conn);
+		}
+		assertEquals(Arrays.asList(3L), timestamps("retention_update"));
+		assertTrue(leaked.isEmpty());
+	}
+
+}
@@ -0,0 +1,200 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/storage/TestRollupManager.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.storage;
+
+import static org.junit.Assert.assertEquals;
+import gsn.Main;
+import gsn.beans.DataField;
+import gsn.beans.StorageConfig;
+import gsn.beans.StreamElement;
+import gsn.beans.VSensorConfig;
+
+import java.io.Serializable;
+import java.lang.reflect.Field;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * The rollup tables of a virtual sensor on H2: filled when the virtual sensor is loaded, written from memory when
+ * they are read (never while publishing) and trimmed with the virtual sensor table. A failed write is retried by the
+ * next flush, the periods not flushed before a stop are computed again when the virtual sensor is loaded.
+ */
+public class TestRollupManager {
+
+	private static final String VS_NAME = "rollup_vs";
+
+	private static final DataField[] structure = new DataField[] {new DataField("reading", "double")};
+
+	private static StorageManager sm;
+
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception {
+		DriverManager.registerDriver( new org.h2.Driver( ) );
+		sm = StorageManagerFactory.getInstance("org.h2.Driver", "sa", "", "jdbc:h2:mem:rollups;DB_CLOSE_DELAY=-1", 4);
+		// The rollups and the retention use the storage of the (not started) container.
+		setStaticField(Main.class, "mainStorage", sm);
+		// Only the reads flush the rollups during the test.
+		setStaticField(RollupManager.class, "flushPeriod", 3600 * 1000);
+	}
+
+	private static void setStaticField(Class<?> c, String name, Object value) throws Exception {
+		Field field = c.getDeclaredField(name);
+		field.setAccessible(true);
+		field.set(null, value);
+	}
+
+	private static void publish(VSensorConfig config, long timed, double reading) throws Exception {
+		StreamElement se = new StreamElement(structure, new Serializable[] {reading}, timed);
+		sm.executeInsert(config.getName(), structure, se);
+		RollupManager.getInstance().consume(se, config);
+	}
+
+	/**
+	 * Returns the rows of the rollup table of one second: timed, min, max, sum and count.
+	 */
+	private static List<List<Double>> rollups() throws Exception {
+		return rollups(VS_NAME, 1000);
+	}
+
+	private static List<List<Double>> rollups(String vsName, long resolution) throws Exception {
+		ArrayList<List<Double>> rows = new ArrayList<List<Double>>();
+		Connection conn = sm.getConnection();
+		try {
+			ResultSet rs = sm.executeQueryWithResultSet(new StringBuilder("select timed, reading_min, reading_max, reading_sum, reading_count from ")
+					.append(RollupManager.getTableName(vsName, resolution)).append(" order by timed asc"), conn);
+			while (rs.next())
+				rows.add(Arrays.asList(rs.getDouble(1), rs.getDouble(2), rs.getDouble(3), rs.getDouble(4), rs.getDouble(5)));
+		} finally {
+			sm.close(conn);
+		}
+		return rows;
+	}
+
+	private static List<Double> row(double timed, double min, double max, double sum, double count) {
+		return Arrays.asList(timed, min, max, sum, count);
+	}
+
+	private static VSensorConfig config(String vsName, String rollups) throws Exception {
+		StorageConfig storage = new StorageConfig();
+		storage.setRollups(rollups);
+		storage.setStorageSize("1s");
+		VSensorConfig config = new VSensorConfig();
+		config.setName(vsName);
+		config.setOutputStructure(structure);
+		config.setInputStreams();
+		config.setStorage(storage);
+		config.validate();
+		sm.executeCreateTable(vsName, structure, true);
+		return config;
+	}
+
+	private static void execute(String update) throws Exception {
+		Connection conn = sm.getConnection();
+		try {
+			conn.createStatement().execute(update);
+		} finally {
+			sm.close(conn);
+		}
+	}
+
+	@Test
+	public void testRollups() throws Exception {
+		VSensorConfig config = config(VS_NAME, "1s");
+		sm.executeInsert(VS_NAME, structure, new StreamElement(structure, new Serializable[] {1.0}, 500));
+		sm.executeInsert(VS_NAME, structure, new StreamElement(structure, new Serializable[] {2.0}, 1500));
+		RollupManager.getInstance().vsLoading(config);
+		try {
+			// Filled from the virtual sensor table.
+			assertEquals(Arrays.asList(row(0, 1, 1, 1, 1), row(1000, 2, 2, 2, 1)), rollups());
+
+			publish(config, 1600, 4);
+			publish(config, 2100, 8);
+			publish(config, 700, 16); // late
+			// Publishing doesn't write the rollup tables.
+			assertEquals(Arrays.asList(row(0, 1, 1, 1, 1), row(1000, 2, 2, 2, 1)), rollups());
+
+			// Flushed before reading, with the current period.
+			RollupManager.getInstance().flush(VS_NAME);
+			assertEquals(Arrays.asList(row(0, 1, 16, 17, 2), row(1000, 2, 4, 6, 2), row(2000, 8, 8, 8, 1)), rollups());
+
+			// The rows older than 2100 - 1s are deleted, and the period which ended before them.
+			RetentionManager.getInstance().enforce(config);
+			assertEquals(Arrays.asList(row(1000, 2, 4, 6, 2), row(2000, 8, 8, 8, 1)), rollups());
+		} finally {
+			RollupManager.getInstance().vsUnLoading(config);
+		}
+	}
+
+	@Test
+	public void testFailedFlush() throws Exception {
+		VSensorConfig config = config("rollup_failed", "1s,2s");
+		RollupManager.getInstance().vsLoading(config);
+		String table = RollupManager.getTableName("rollup_failed", 2000);
+		try {
+			publish(config, 500, 1);
+			publish(config, 2500, 2);
+			// The write of the second table fails, the first one is rolled back.
+			execute("alter table " + table + " rename to rollup_failed_moved");
+			RollupManager.getInstance().flush("rollup_failed");
+			assertEquals(Arrays.asList(), rollups("rollup_failed", 1000));
+			// Written once by the next flush, with the aggregates accumulated since.
+			execute("alter table rollup_failed_moved rename to " + table);
+			publish(config, 2600, 4);
+			RollupManager.getInstance().flush("rollup_failed");
+			assertEquals(Arrays.asList(row(0, 1, 1, 1, 1), row(2000, 2, 4, 6, 2)), rollups("rollup_failed", 1000));
+			assertEquals(Arrays.asList(row(0, 1, 1, 1, 1), row(2000, 2, 4, 6, 2)), rollups("rollup_failed", 2000));
+		} finally {
+			RollupManager.getInstance().vsUnLoading(config);
+		}
+	}
+
+	@Test
+	public void testRecovery() throws Exception {
+		VSensorConfig config = config("rollup_recovered", "1s");
+		sm.executeInsert("rollup_recovered", structure, new StreamElement(structure, new Serializable[] {1.0}, 500));
+		sm.executeInsert("rollup_recovered", structure, new StreamElement(structure, new Serializable[] {2.0}, 1500));
+		RollupManager.getInstance().vsLoading(config);
+		RollupManager.getInstance().vsUnLoading(config);
+		// Stored in the virtual sensor table, not in the rollups: GSN stopped before flushing them.
+		sm.executeInsert("rollup_recovered", structure, new StreamElement(structure, new Serializable[] {4.0}, 1700));
+		sm.executeInsert("rollup_recovered", structure, new StreamElement(structure, new Serializable[] {8.0}, 2500));
+		RollupManager.getInstance().vsLoading(config);
+		try {
+			// Computed again from the last period stored.
+			assertEquals(Arrays.asList(row(0, 1, 1, 1, 1), row(1000, 2, 4, 6, 2), row(2000, 8, 8, 8, 1)), rollups("rollup_recovered", 1000));
+		} finally {
+			RollupManager.getInstance().vsUnLoading(config);
+		}
+	}
+
+}
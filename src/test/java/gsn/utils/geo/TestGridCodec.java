@@ -0,0 +1,118 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/utils/geo/TestGridCodec.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.utils.geo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+
+import org.junit.Test;
+
+/**
+ * Round trips through the grid encodings (null and NaN values included) and reads of the legacy serialized grids.
+ * The time to read a cell from a series of grids is measured by gsn.benchmarks.GridCodecBenchmark.
+ */
+public class TestGridCodec {
+
+	private static Double[][] grid(int rows, int cols) {
+		Double[][] grid = new Double[rows][cols];
+		for (int y = 0; y < rows; y++)
+			for (int x = 0; x < cols; x++)
+				grid[y][x] = y * 1000.0 + x + 0.25;
+		return grid;
+	}
+
+	private static byte[] serialize(Double[][] grid) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		ObjectOutputStream oos = new ObjectOutputStream(bos);
+		oos.writeObject(grid);
+		oos.close();
+		return bos.toByteArray();
+	}
+
+	@Test
+	public void testRoundTrips() throws IOException {
+		Double[][] grid = grid(37, 53);
+		grid[5][7] = null;
+		grid[6][7] = Double.NaN;
+		for (byte type : new byte[] {GridCodec.DOUBLE, GridCodec.FLOAT})
+			for (int tileSize : new int[] {0, 1, 8, 16, 100})
+				for (boolean compressed : new boolean[] {false, true}) {
+					byte[] bytes = GridCodec.encode(grid, type, tileSize, compressed);
+					assertTrue(GridCodec.isEncoded(bytes));
+					Double[][] decoded = GridCodec.decode(bytes);
+					assertEquals(37, decoded.length);
+					assertEquals(53, decoded[0].length);
+					for (int y = 0; y < 37; y++)
+						for (int x = 0; x < 53; x++)
+							if (y == 5 && x == 7)
+								assertNull(decoded[y][x]);
+							else if (y == 6 && x == 7)
+								assertTrue(decoded[y][x].isNaN());
+							else
+								assertEquals(grid[y][x], decoded[y][x], 0);
+					assertEquals(grid[36][52], GridCodec.readCell(bytes, 52, 36), 0);
+					assertEquals(grid[20][3], GridCodec.readCell(bytes, 3, 20), 0);
+					assertTrue(Double.isNaN(GridCodec.readCell(bytes, 7, 5)));
+					double[][] subgrid = GridCodec.readSubGrid(bytes, 6, 30, 4, 19);
+					assertEquals(16, subgrid.length);
+					assertEquals(25, subgrid[0].length);
+					for (int y = 4; y <= 19; y++)
+						for (int x = 6; x <= 30; x++)
+							if ((y == 5 || y == 6) && x == 7)
+								assertTrue(Double.isNaN(subgrid[y - 4][x - 6]));
+							else
+								assertEquals(grid[y][x], subgrid[y - 4][x - 6], 0);
+					Double[][] decodedSubgrid = GridCodec.decodeSubGrid(bytes, 6, 30, 4, 19);
+					assertNull(decodedSubgrid[1][1]);
+					assertTrue(decodedSubgrid[2][1].isNaN());
+					assertEquals(grid[19][30], decodedSubgrid[15][24], 0);
+				}
+		assertEquals(0, GridCodec.decode(GridCodec.encode(new Double[0][0])).length);
+	}
+
+	@Test
+	public void testLegacyGrids() throws IOException {
+		Double[][] grid = grid(10, 20);
+		byte[] bytes = serialize(grid);
+		assertFalse(GridCodec.isEncoded(bytes));
+		assertEquals(grid[9][19], GridCodec.decode(bytes)[9][19]);
+		assertEquals(grid[4][17], GridCodec.readCell(bytes, 17, 4), 0);
+		assertEquals(grid[2][3], GridCodec.readSubGrid(bytes, 3, 5, 2, 8)[0][0], 0);
+		assertEquals(grid[8][5], GridCodec.decodeSubGrid(bytes, 3, 5, 2, 8)[6][2]);
+		assertEquals(grid[7][11], GridTools.deSerializeToCell(bytes, 11, 7), 0);
+		assertEquals(GridTools.deSerializeToString(bytes), GridTools.deSerializeToString(GridCodec.encode(grid)));
+		grid[3][4] = null;
+		assertEquals(GridTools.deSerializeToStringWithBoundaries(serialize(grid), 2, 6, 1, 5),
+				GridTools.deSerializeToStringWithBoundaries(GridCodec.encode(grid), 2, 6, 1, 5));
+	}
+
+}
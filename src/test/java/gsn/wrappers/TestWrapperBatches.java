@@ -0,0 +1,265 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/wrappers/TestWrapperBatches.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.wrappers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import gsn.Main;
+import gsn.beans.AddressBean;
+import gsn.beans.DataField;
+import gsn.beans.InputStream;
+import gsn.beans.StreamElement;
+import gsn.beans.StreamSource;
+import gsn.beans.windowing.QueryRewriter;
+import gsn.beans.windowing.SQLViewQueryRewriter;
+import gsn.storage.StorageManager;
+
+import java.io.Serializable;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * The batches of stream elements written at once (by the calling thread or by the ingest stage) slide the windows
+ * as the stream elements posted one by one.
+ */
+public class TestWrapperBatches {
+
+	private static final DataField[] structure = new DataField[] {new DataField("reading", "bigint")};
+
+	private static StorageManager sm;
+
+	private BatchWrapper wrapper;
+
+	private RecordingRewriter tuples;
+
+	private RecordingRewriter eachTuple;
+
+	private RecordingRewriter eachTupleTime;
+
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception {
+		Main.getInstance();
+		sm = Main.getWindowStorage();
+	}
+
+	@After
+	public void tearDown() throws SQLException {
+		if (wrapper != null)
+			wrapper.releaseResources();
+	}
+
+	/**
+	 * Creates the wrapper, with a tuple based window sliding every two stream elements and two windows sliding on
+	 * each stream element, one of them time based.
+	 */
+	private void createWrapper(int queueCapacity) throws SQLException {
+		wrapper = new BatchWrapper(queueCapacity);
+		AddressBean addressBean = new AddressBean("batches");
+		wrapper.setActiveAddressBean(addressBean);
+		assertTrue(wrapper.initialize());
+		sm.executeCreateTable(wrapper.getDBAliasInStr(), structure, true);
+		tuples = new RecordingRewriter(streamSource(addressBean, "tuples", "2", "2"));
+		eachTuple = new RecordingRewriter(streamSource(addressBean, "each_tuple", "2", null));
+		eachTupleTime = new RecordingRewriter(streamSource(addressBean, "each_tuple_time", "2s", null));
+	}
+
+	private StreamSource streamSource(AddressBean addressBean, String alias, String historySize, String slideValue) throws SQLException {
+		StreamSource ss = new StreamSource().setAlias(alias).setAddressing(new AddressBean[] {addressBean}).setSqlQuery("select * from wrapper")
+				.setRawHistorySize(historySize).setInputStream(new InputStream());
+		if (slideValue != null)
+			ss.setRawSlideValue(slideValue);
+		ss.setSamplingRate(1);
+		assertTrue(ss.validate());
+		ss.setWrapper(wrapper);
+		return ss;
+	}
+
+	private static StreamElement element(long t) {
+		return new StreamElement(structure, new Serializable[] {t}, t);
+	}
+
+	private static List<StreamElement> elements(long... timestamps) {
+		ArrayList<StreamElement> elements = new ArrayList<StreamElement>();
+		for (long t : timestamps)
+			elements.add(element(t));
+		return elements;
+	}
+
+	private long count(long timed) throws SQLException {
+		Connection conn = sm.getConnection();
+		try {
+			ResultSet rs = sm.executeQueryWithResultSet(new StringBuilder("select count(*) from ").append(wrapper.getDBAliasInStr()).append(" where timed = ").append(timed), conn);
+			rs.next();
+			return rs.getLong(1);
+		} finally {
+			sm.close(conn);
+		}
+	}
+
+	/**
+	 * Each slide of the stream elements 1000 to 5000, with the timestamps in the window.
+	 */
+	private void assertSlides() {
+		assertEquals(Arrays.asList("2000:1000,2000", "4000:3000,4000"), tuples.slides);
+		assertEquals(Arrays.asList("1000:1000", "2000:1000,2000", "3000:2000,3000", "4000:3000,4000", "5000:4000,5000"), eachTuple.slides);
+		assertEquals(Arrays.asList("1000:1000", "2000:1000,2000", "3000:1000,2000,3000", "4000:2000,3000,4000", "5000:3000,4000,5000"), eachTupleTime.slides);
+	}
+
+	@Test
+	public void testBatch() throws Exception {
+		createWrapper(0);
+		wrapper.postStreamElements(elements(1000, 2000, 3000, 4000, 5000));
+		assertSlides();
+		assertEquals(1, count(5000));
+	}
+
+	@Test
+	public void testFailedBatch() throws Exception {
+		createWrapper(0);
+		sm.executeUpdate(new StringBuilder("alter table ").append(wrapper.getDBAliasInStr()).append(" add constraint failed_batch check (reading < 0)"));
+		wrapper.postStreamElements(elements(1000, 2000, 3000, 4000, 5000));
+		assertEquals(0, count(1000));
+		sm.executeUpdate(new StringBuilder("alter table ").append(wrapper.getDBAliasInStr()).append(" drop constraint failed_batch"));
+		// Not inserted, the same stream elements are not out of order.
+		wrapper.postStreamElements(elements(1000, 2000, 3000, 4000, 5000));
+		assertSlides();
+		assertEquals(1, count(5000));
+	}
+
+	@Test
+	public void testQueuedBatch() throws Exception {
+		createWrapper(16);
+		wrapper.postStreamElements(elements(1000, 2000, 3000, 4000));
+		// Written after the queued ones, in order.
+		assertTrue(wrapper.postStreamElementAndWait(element(5000)));
+		assertSlides();
+	}
+
+	@Test
+	public void testQueuedPostResult() throws Exception {
+		createWrapper(16);
+		for (long t = 1000; t <= 5000; t += 1000) {
+			assertTrue(wrapper.postStreamElementAndWait(element(t)));
+			// Reported once inserted and notified.
+			assertEquals(1, count(t));
+			assertTrue(eachTuple.slides.get(eachTuple.slides.size() - 1).startsWith(t + ":"));
+		}
+		assertSlides();
+		assertFalse(wrapper.postStreamElementAndWait(element(4500)));
+		assertEquals(0, count(4500));
+		// Only queued, written before the next stream element.
+		assertFalse(wrapper.postStreamElement(element(6000)));
+		assertTrue(wrapper.postStreamElementAndWait(element(7000)));
+		assertEquals(1, count(6000));
+	}
+
+	private static class BatchWrapper extends AbstractWrapper {
+
+		private final int queueCapacity;
+
+		private BatchWrapper(int queueCapacity) {
+			this.queueCapacity = queueCapacity;
+			setUsingRemoteTimestamp(true);
+		}
+
+		protected int getIngestQueueCapacity() {
+			return queueCapacity;
+		}
+
+		public DataField[] getOutputFormat() {
+			return structure;
+		}
+
+		public String getWrapperName() {
+			return "BatchWrapper";
+		}
+
+		public boolean initialize() {
+			return true;
+		}
+
+		public void dispose() {
+		}
+	}
+
+	/**
+	 * Records the slides of a stream source, with the timestamps in its window read from the view of the stream source.
+	 */
+	private static class RecordingRewriter extends QueryRewriter {
+
+		private final QueryRewriter view;
+
+		private final List<String> slides = Collections.synchronizedList(new ArrayList<String>());
+
+		private RecordingRewriter(StreamSource streamSource) {
+			view = streamSource.getQueryRewriter();
+			setStreamSource(streamSource);
+		}
+
+		public boolean initialize() {
+			return true;
+		}
+
+		public StringBuilder rewrite(String query) {
+			return view.rewrite(query);
+		}
+
+		public void dispose() {
+			view.dispose();
+		}
+
+		public boolean dataAvailable(long timestamp) {
+			StringBuilder window = new StringBuilder();
+			Connection conn = null;
+			try {
+				sm.executeUpdate(new StringBuilder("update ").append(SQLViewQueryRewriter.VIEW_HELPER_TABLE).append(" set timed=").append(timestamp)
+						.append(" where u_id='").append(streamSource.getUIDStr()).append("'"));
+				conn = sm.getConnection();
+				ResultSet rs = sm.executeQueryWithResultSet(new StringBuilder("select timed from ").append(streamSource.getUIDStr()).append(" order by timed"), conn);
+				while (rs.next())
+					window.append(window.length() == 0 ? "" : ",").append(rs.getLong(1));
+			} catch (SQLException e) {
+				throw new RuntimeException(e);
+			} finally {
+				sm.close(conn);
+			}
+			slides.add(timestamp + ":" + window);
+			return window.length() > 0;
+		}
+	}
+
+}
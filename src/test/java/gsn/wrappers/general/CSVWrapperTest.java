@@ -31,8 +31,10 @@ import static org.junit.Assert.assertNull;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.io.Serializable;
 import java.io.StringReader;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.TreeMap;
@@ -163,6 +165,72 @@ public class CSVWrapperTest {
 		assertEquals(0, CSVHandler.generateFieldIdx("", false).length);
 	}
 	
+	@Test
+	public void testOffsets() throws IOException {
+		File f = new File(CHECK_POINT_DIR, CSV_FILE_NAME);
+		String checkPoint = new File(CHECK_POINT_DIR, "offsets").getPath();
+		new File(checkPoint + ".offset").delete();
+		FileUtils.writeStringToFile(f, "# header\n1,10,\"a\"\n2,20,\"b\nc\"\r\n3,30,x\n4,4", "UTF-8");
+		CSVHandler wrapper = new CSVHandler();
+		assertEquals(true, wrapper.initialize(f.getPath(), "counter,v,s", "numeric,numeric,string", ',', '\"', 1, "", null, checkPoint));
+		ArrayList<TreeMap<String, Serializable>> parsed = new ArrayList<TreeMap<String, Serializable>>();
+		RandomAccessFile raf = new RandomAccessFile(f, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			String fileKey = CSVHandler.getFileKey(f);
+			assertEquals(0, wrapper.getOffset(channel, fileKey));
+			long offset = wrapper.parseValues(channel, 0, -1, 0, parsed, 2);
+			assertEquals(2, parsed.size());
+			assertEquals("b\nc", parsed.get(1).get("s"));
+			wrapper.updateOffset(channel, fileKey, offset);
+			assertEquals(offset, wrapper.getOffset(channel, fileKey));
+			parsed.clear();
+			// The last line is not complete yet.
+			offset = wrapper.parseValues(channel, offset, -1, 0, parsed, 100);
+			assertEquals(1, parsed.size());
+			assertEquals(channel.size() - 3, offset);
+			wrapper.updateOffset(channel, fileKey, offset);
+		} finally {
+			raf.close();
+		}
+		// Truncated, the file is read again from the beginning.
+		FileUtils.writeStringToFile(f, "# header\n5,50,y\n", "UTF-8");
+		raf = new RandomAccessFile(f, "r");
+		long offset;
+		try {
+			FileChannel channel = raf.getChannel();
+			String fileKey = CSVHandler.getFileKey(f);
+			assertEquals(-1, wrapper.getOffset(channel, fileKey));
+			wrapper.updateOffset(channel, fileKey, 0);
+			assertEquals(0, wrapper.getOffset(channel, fileKey));
+			parsed.clear();
+			offset = wrapper.parseValues(channel, 0, -1, 0, parsed, 100);
+			assertEquals(1, parsed.size());
+			assertEquals(5.0, parsed.get(0).get("counter"));
+			assertEquals(channel.size(), offset);
+			wrapper.updateOffset(channel, fileKey, offset);
+			// The fingerprint is the one of the new content.
+			assertEquals(offset, wrapper.getOffset(channel, fileKey));
+		} finally {
+			raf.close();
+		}
+		// Only the rows appended since are read, also after a restart.
+		FileUtils.writeStringToFile(f, "6,60,z\n", "UTF-8", true);
+		CSVHandler restarted = new CSVHandler();
+		assertEquals(true, restarted.initialize(f.getPath(), "counter,v,s", "numeric,numeric,string", ',', '\"', 1, "", null, checkPoint));
+		raf = new RandomAccessFile(f, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			assertEquals(offset, restarted.getOffset(channel, CSVHandler.getFileKey(f)));
+			parsed.clear();
+			assertEquals(channel.size(), restarted.parseValues(channel, offset, -1, 0, parsed, 100));
+			assertEquals(1, parsed.size());
+			assertEquals(6.0, parsed.get(0).get("counter"));
+		} finally {
+			raf.close();
+		}
+	}
+	
 	@Test
 	public void testFileUtils() throws IOException {
 		String content = "";
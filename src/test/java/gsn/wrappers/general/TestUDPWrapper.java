@@ -0,0 +1,170 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/wrappers/general/TestUDPWrapper.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.wrappers.general;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import gsn.Main;
+import gsn.beans.AddressBean;
+import gsn.beans.InputStream;
+import gsn.beans.StreamSource;
+import gsn.beans.windowing.QueryRewriter;
+import gsn.networking.IngestServer;
+import gsn.networking.PacketDecoder;
+import gsn.storage.StorageManager;
+import gsn.utils.KeyValueImp;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * The datagrams received by the wrapper through the ingest server, written into the wrapper table.
+ */
+public class TestUDPWrapper {
+
+	private static final int PACKETS = 20;
+
+	private static StorageManager sm;
+
+	private BoundWrapper wrapper;
+
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception {
+		Main.getInstance();
+		sm = Main.getWindowStorage();
+	}
+
+	@After
+	public void tearDown() throws SQLException {
+		if (wrapper != null)
+			wrapper.releaseResources();
+	}
+
+	@Test
+	public void testBurst() throws Exception {
+		wrapper = new BoundWrapper();
+		AddressBean addressBean = new AddressBean("udp", new KeyValueImp("port", "0"));
+		wrapper.setActiveAddressBean(addressBean);
+		assertTrue(wrapper.initialize());
+		sm.executeCreateTable(wrapper.getDBAliasInStr(), wrapper.getOutputFormat(), wrapper.isTimeStampUnique());
+		StreamSource ss = new StreamSource().setAlias("packets").setAddressing(new AddressBean[] {addressBean}).setSqlQuery("select * from wrapper")
+				.setRawHistorySize(String.valueOf(PACKETS)).setInputStream(new InputStream());
+		ss.setSamplingRate(1);
+		assertTrue(ss.validate());
+		ss.setWrapper(wrapper);
+		RecordingRewriter recorder = new RecordingRewriter(ss);
+
+		// Sent at once, most of them are received in the same pass of the event loop.
+		DatagramSocket socket = new DatagramSocket();
+		try {
+			for (int i = 0; i < PACKETS; i++)
+				socket.send(new DatagramPacket(new byte[] {(byte) i}, 1, InetAddress.getLoopbackAddress(), wrapper.binding.getPort()));
+		} finally {
+			socket.close();
+		}
+		for (int i = 0; i < 100 && recorder.timestamps.size() < PACKETS; i++)
+			Thread.sleep(50);
+
+		// None of the packets sharing the same reception time is dropped.
+		assertEquals(PACKETS, recorder.timestamps.size());
+		for (int i = 1; i < PACKETS; i++)
+			assertTrue(recorder.timestamps.get(i) >= recorder.timestamps.get(i - 1));
+		for (String thread : recorder.threads)
+			assertFalse(thread, thread.startsWith("IngestServer-"));
+		Connection conn = sm.getConnection();
+		try {
+			ResultSet rs = sm.executeQueryWithResultSet(new StringBuilder("select raw_packet from ").append(wrapper.getDBAliasInStr()).append(" order by pk"), conn);
+			for (int i = 0; i < PACKETS; i++) {
+				assertTrue(rs.next());
+				assertArrayEquals(new byte[] {(byte) i}, rs.getBytes(1));
+			}
+			assertFalse(rs.next());
+		} finally {
+			sm.close(conn);
+		}
+	}
+
+	private static class BoundWrapper extends UDPWrapper {
+
+		private IngestServer.Binding binding;
+
+		protected IngestServer.Binding bind(IngestServer server, int port, PacketDecoder decoder) throws IOException {
+			binding = super.bind(server, port, decoder);
+			return binding;
+		}
+	}
+
+	/**
+	 * Records the timestamps notified to a stream source and the threads notifying them.
+	 */
+	private static class RecordingRewriter extends QueryRewriter {
+
+		private final QueryRewriter view;
+
+		private final List<Long> timestamps = Collections.synchronizedList(new ArrayList<Long>());
+
+		private final List<String> threads = Collections.synchronizedList(new ArrayList<String>());
+
+		private RecordingRewriter(StreamSource streamSource) {
+			view = streamSource.getQueryRewriter();
+			setStreamSource(streamSource);
+		}
+
+		public boolean initialize() {
+			return true;
+		}
+
+		public StringBuilder rewrite(String query) {
+			return view.rewrite(query);
+		}
+
+		public void dispose() {
+			view.dispose();
+		}
+
+		public boolean dataAvailable(long timestamp) {
+			threads.add(Thread.currentThread().getName());
+			timestamps.add(timestamp);
+			return true;
+		}
+	}
+
+}